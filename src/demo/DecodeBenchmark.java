@@ -0,0 +1,90 @@
+package demo;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import qwicksound.PreloadedAudio;
+import qwicksound.QwickSound;
+
+/**
+ * Compares the time it takes to preload compressed audio files on one thread
+ * and in parallel segments. Each file is loaded several times either way and
+ * the median time is reported, along with the speedup. Long files show the
+ * difference best; files shorter than two segments are always decoded on
+ * one thread. No output line is needed.
+ *
+ * <pre>
+ * java demo.DecodeBenchmark [runs] [file ...]
+ * </pre>
+ *
+ * @author Christian Holton
+ *
+ */
+public class DecodeBenchmark {
+
+	public static void main(String[] args) {
+		int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		String[] files = (args.length > 1) ? Arrays.copyOfRange(args, 1,
+				args.length) : new String[] { "media/scifi_music.m4a",
+				"media/laser_cannon.ogg", "media/lightsaber.mp3" };
+
+		System.out.println("Cores: "
+				+ Runtime.getRuntime().availableProcessors());
+		System.out.println(String.format("%-32s %12s %12s %8s", "File",
+				"serial ms", "parallel ms", "speedup"));
+		for (String file : files) {
+			Path path = Paths.get(file);
+			// Warm up the decoders and the JIT.
+			load(path, false);
+			load(path, true);
+			double serial = median(path, false, runs);
+			double parallel = median(path, true, runs);
+			System.out.println(String.format("%-32s %12.1f %12.1f %7.2fx",
+					path.getFileName(), serial, parallel, serial / parallel));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Load a file repeatedly and get the median time.
+	 *
+	 * @param path
+	 *            The file.
+	 * @param parallel
+	 *            Whether to decode in parallel segments.
+	 * @param runs
+	 *            The number of loads.
+	 *
+	 * @return The median time in milliseconds.
+	 */
+	private static double median(Path path, boolean parallel, int runs) {
+		double[] times = new double[runs];
+		for (int i = 0; i < runs; i++) {
+			times[i] = load(path, parallel);
+		}
+		Arrays.sort(times);
+		return times[runs / 2];
+	}
+
+	/**
+	 * Load a file once.
+	 *
+	 * @param path
+	 *            The file.
+	 * @param parallel
+	 *            Whether to decode in parallel segments.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	private static double load(Path path, boolean parallel) {
+		QwickSound.setParallelDecoding(parallel);
+		long start = System.nanoTime();
+		PreloadedAudio audio = QwickSound.createPreloadedAudio(path);
+		long end = System.nanoTime();
+		if (audio == null) {
+			throw new IllegalArgumentException("Could not load " + path);
+		}
+		return (end - start) / 1.0e6;
+	}
+}
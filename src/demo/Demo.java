@@ -84,8 +84,9 @@ public class Demo {
 
 		wait(6.0);
 
-		// Play the hello Audio at a volume of 1.50.
-		helloAudio.play(1.50);
+		// Play the hello Audio at a volume of 1.50, and wait for it to
+		// finish instead of polling its state.
+		helloAudio.play(1.50).completion().join();
 
 		// The system must be shutdown.
 		QwickSound.shutdown();
@@ -0,0 +1,119 @@
+package demo;
+
+import java.util.Random;
+
+import qwicksound.BiquadFilter;
+import qwicksound.Compressor;
+import qwicksound.Processor;
+import qwicksound.QwickSound;
+import qwicksound.Reverb;
+
+/**
+ * Measures the CPU cost of QwickSound's built-in effects. Each effect
+ * processes blocks of noise, the same block size the mixer uses, and the
+ * cost is reported per block and as the share of one core needed to run it
+ * in real time on one voice. No output line is needed.
+ *
+ * <pre>
+ * java demo.DspBenchmark [seconds per effect]
+ * </pre>
+ *
+ * @author Christian Holton
+ *
+ */
+public class DspBenchmark {
+
+	/**
+	 * The number of frames per block, as in the mixer.
+	 */
+	private static final int BLOCK_FRAMES = 256;
+
+	public static void main(String[] args) {
+		double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 2.0;
+		float sampleRate = QwickSound.getOutputSampleRate();
+		double blockNanos = BLOCK_FRAMES / (double) sampleRate * 1.0e9;
+
+		Processor[] processors = {
+				new BiquadFilter(BiquadFilter.Type.LOW_PASS, 800.0),
+				new BiquadFilter(BiquadFilter.Type.PEAK, 2000.0, 1.0, 6.0),
+				new Reverb(0.8, 0.3, 0.35),
+				new Compressor(-18.0, 4.0),
+				Compressor.limiter(-1.0) };
+
+		System.out.println("Block: " + BLOCK_FRAMES + " frames ("
+				+ format(blockNanos / 1.0e6) + " ms at " + sampleRate + " Hz)");
+		System.out.println(String.format("%-32s %12s %10s %12s", "Effect",
+				"ns/block", "% of core", "voices/core"));
+		for (Processor processor : processors) {
+			float[] block = noise(BLOCK_FRAMES);
+			float[] work = new float[block.length];
+			// Warm up the JIT.
+			run(processor, block, work, 0.5);
+			double nanos = run(processor, block, work, seconds);
+			double load = nanos / blockNanos;
+			System.out.println(String.format("%-32s %12.0f %10.3f %12.0f",
+					processor, nanos, load * 100.0, 1.0 / load));
+		}
+	}
+
+	/**
+	 * Process blocks repeatedly for the specified time.
+	 *
+	 * @param processor
+	 *            The effect.
+	 * @param block
+	 *            The input block.
+	 * @param work
+	 *            The block that is processed, refilled from {@code block}
+	 *            each time.
+	 * @param seconds
+	 *            How long to run.
+	 *
+	 * @return The average time per block in nanoseconds.
+	 */
+	private static double run(Processor processor, float[] block,
+			float[] work, double seconds) {
+		long end = System.nanoTime() + (long) (seconds * 1.0e9);
+		long blocks = 0;
+		long start = System.nanoTime();
+		long now;
+		do {
+			for (int i = 0; i < 64; i++) {
+				System.arraycopy(block, 0, work, 0, block.length);
+				processor.process(work, BLOCK_FRAMES);
+			}
+			blocks += 64;
+			now = System.nanoTime();
+		} while (now < end);
+		return (now - start) / (double) blocks;
+	}
+
+	/**
+	 * Create a block of stereo white noise at half of full scale.
+	 *
+	 * @param frames
+	 *            The number of frames.
+	 *
+	 * @return The interleaved samples.
+	 */
+	private static float[] noise(int frames) {
+		Random random = new Random(42);
+		float[] samples = new float[frames * 2];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (random.nextFloat() - 0.5f);
+		}
+		return samples;
+	}
+
+	/**
+	 * Format a number with two decimals.
+	 *
+	 * @param value
+	 *            The number.
+	 *
+	 * @return The formatted number.
+	 */
+	private static String format(double value) {
+		return String.format("%.2f", value);
+	}
+}
@@ -0,0 +1,241 @@
+package demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import qwicksound.Audio;
+import qwicksound.Playback;
+import qwicksound.QwickSound;
+
+/**
+ * Streams audio from a local HTTP server that misbehaves on purpose, to
+ * exercise the recovery paths of HTTP streaming:
+ * <ul>
+ * <li>{@code resume} - the server drops the first connection halfway
+ * through, and honors the {@code Range} request that resumes it.</li>
+ * <li>{@code skip} - the server drops the first connection halfway through,
+ * and ignores {@code Range} requests, so the download restarts from the
+ * beginning and the bytes already received are skipped.</li>
+ * <li>{@code cache} - the file of the {@code resume} case is played again,
+ * which must be read from the spill cache without any request.</li>
+ * </ul>
+ * Each case plays the file to its end and checks that the completed
+ * download in the spill cache is identical to the original file. The mix is
+ * rendered headless (see {@link QwickSound#setHeadless}).
+ *
+ * <pre>
+ * java demo.HttpStreamTest [file]
+ * </pre>
+ *
+ * @author Christian Holton
+ *
+ */
+public class HttpStreamTest {
+
+	/**
+	 * The longest time to wait for a play to finish, in seconds.
+	 */
+	private static final long TIMEOUT = 30;
+
+	/**
+	 * The file served.
+	 */
+	private static byte[] data;
+	/**
+	 * The number of requests received by the {@code resume} case.
+	 */
+	private static final AtomicInteger resumeRequests = new AtomicInteger();
+	/**
+	 * The number of requests received by the {@code skip} case.
+	 */
+	private static final AtomicInteger skipRequests = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		Path file = Paths.get((args.length > 0) ? args[0]
+				: "media/video_game_fire.mp3");
+		data = Files.readAllBytes(file);
+		String name = file.getFileName().toString();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(
+				"127.0.0.1", 0), 0);
+		server.createContext("/resume/", new FlakyHandler(true, resumeRequests));
+		server.createContext("/skip/", new FlakyHandler(false, skipRequests));
+		server.start();
+		String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+		Path cache = Files.createTempDirectory("qwicksound-cache");
+		QwickSound.setHeadless(true);
+		QwickSound.setStreamCacheDirectory(cache);
+		QwickSound.init();
+
+		boolean ok = true;
+		Audio resume = QwickSound.createStreamingAudio(new URL(base
+				+ "/resume/" + name));
+		ok &= report("resume", play(resume), resumeRequests.get(),
+				newestDownload(cache));
+		Audio skip = QwickSound.createStreamingAudio(new URL(base + "/skip/"
+				+ name));
+		ok &= report("skip", play(skip), skipRequests.get(),
+				newestDownload(cache));
+		int before = resumeRequests.get();
+		Audio replay = QwickSound.createStreamingAudio(new URL(base
+				+ "/resume/" + name));
+		boolean played = play(replay);
+		int requests = resumeRequests.get() - before;
+		System.out.println(String.format("%-7s played %-5s requests %d",
+				"cache", played, requests));
+		ok &= played && requests == 0;
+
+		resume.close();
+		skip.close();
+		replay.close();
+		QwickSound.shutdown();
+		server.stop(0);
+		System.out.println(ok ? "All cases passed." : "FAILED");
+	}
+
+	/**
+	 * Play audio to its end.
+	 *
+	 * @param audio
+	 *            The audio.
+	 *
+	 * @return {@code true} if the play finished within the timeout.
+	 */
+	private static boolean play(Audio audio) throws Exception {
+		Playback playback = audio.play();
+		if (playback == null) {
+			return false;
+		}
+		try {
+			playback.completion().get(TIMEOUT, TimeUnit.SECONDS);
+			return !Double.isNaN(playback.getStartLatency());
+		} catch (TimeoutException ex) {
+			playback.stop();
+			return false;
+		}
+	}
+
+	/**
+	 * Print the result of a case.
+	 *
+	 * @param name
+	 *            The name of the case.
+	 * @param played
+	 *            Whether the play finished.
+	 * @param requests
+	 *            The number of requests the server received.
+	 * @param cached
+	 *            The completed download in the spill cache, or {@code null}.
+	 *
+	 * @return {@code true} if the case passed.
+	 */
+	private static boolean report(String name, boolean played, int requests,
+			byte[] cached) {
+		boolean identical = Arrays.equals(cached, data);
+		System.out.println(String.format(
+				"%-7s played %-5s requests %d  cached download %s", name,
+				played, requests, (cached == null) ? "missing"
+						: identical ? "identical" : "DIFFERS"));
+		return played && requests >= 2 && identical;
+	}
+
+	/**
+	 * Read the most recently completed download from the spill cache. The
+	 * cache names its files after a hash of their {@code URL}, so the
+	 * download of each case is told apart by the order the cases run in.
+	 *
+	 * @param cache
+	 *            The cache directory.
+	 *
+	 * @return The bytes, or {@code null} if the cache is empty.
+	 */
+	private static byte[] newestDownload(Path cache) throws IOException {
+		DirectoryStream<Path> files = Files.newDirectoryStream(cache);
+		try {
+			Path newest = null;
+			for (Path path : files) {
+				if (newest == null
+						|| Files.getLastModifiedTime(path).compareTo(
+								Files.getLastModifiedTime(newest)) > 0) {
+					newest = path;
+				}
+			}
+			return (newest == null) ? null : Files.readAllBytes(newest);
+		} finally {
+			files.close();
+		}
+	}
+
+	/**
+	 * Serves the file, dropping the first connection halfway through.
+	 */
+	private static class FlakyHandler implements HttpHandler {
+
+		/**
+		 * Whether {@code Range} requests are honored.
+		 */
+		private final boolean ranges;
+		/**
+		 * Counts the requests.
+		 */
+		private final AtomicInteger requests;
+
+		/**
+		 * Creates a new {@code FlakyHandler}.
+		 *
+		 * @param ranges
+		 *            Whether {@code Range} requests are honored.
+		 * @param requests
+		 *            Counts the requests.
+		 */
+		FlakyHandler(boolean ranges, AtomicInteger requests) {
+			this.ranges = ranges;
+			this.requests = requests;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			boolean drop = requests.incrementAndGet() == 1;
+			int offset = 0;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if (ranges && range != null && range.startsWith("bytes=")) {
+				offset = Integer.parseInt(range.substring(6,
+						range.indexOf('-')));
+			}
+			int length = data.length - offset;
+			if (offset > 0) {
+				exchange.getResponseHeaders().set(
+						"Content-Range",
+						"bytes " + offset + "-" + (data.length - 1) + "/"
+								+ data.length);
+				exchange.sendResponseHeaders(206, length);
+			} else {
+				exchange.sendResponseHeaders(200, length);
+			}
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(data, offset, drop ? length / 2 : length);
+				out.flush();
+			} catch (IOException ex) {
+				// The client went away.
+			}
+			// Closing an exchange whose body is short drops the connection.
+			exchange.close();
+		}
+	}
+}
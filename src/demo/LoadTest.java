@@ -0,0 +1,333 @@
+package demo;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import qwicksound.Audio;
+import qwicksound.Playback;
+import qwicksound.QwickSound;
+import qwicksound.RenderStats;
+
+/**
+ * Replays trigger patterns against QwickSound and reports how it holds up:
+ * the start latency of the triggered playbacks (from the call to
+ * {@code play} to the mixing of their first sample) as percentiles, the
+ * number of threads and the heap in use, the plays that were dropped by the
+ * instance limits or failed to start, and the blocks the mixer finished late.
+ * <p>
+ * The patterns are:
+ * <ul>
+ * <li>{@code burst} - {@code rate} preloaded sounds triggered at once, twice
+ * a second.</li>
+ * <li>{@code steady} - preloaded sounds triggered evenly at {@code rate} per
+ * second.</li>
+ * <li>{@code loops} - {@code rate} looping preloaded sounds started over the
+ * first second and kept playing.</li>
+ * <li>{@code mixed} - streaming and preloaded sounds alternately triggered
+ * evenly at {@code rate} per second, over streaming music.</li>
+ * </ul>
+ * By default the mix is rendered headless (see
+ * {@link QwickSound#setHeadless}), so no audio device is needed and the
+ * results do not depend on one; pass {@code device} to play through the
+ * output device instead.
+ *
+ * <pre>
+ * java demo.LoadTest [burst|steady|loops|mixed|all] [seconds] [rate] [headless|device]
+ * </pre>
+ *
+ * @author Christian Holton
+ *
+ */
+public class LoadTest {
+
+	/**
+	 * The sound effects triggered by the patterns.
+	 */
+	private static final String[] EFFECTS = { "media/laser_cannon.ogg",
+			"media/video_game_fire.mp3", "media/lightsaber.mp3" };
+	/**
+	 * The files streamed by the {@code mixed} pattern.
+	 */
+	private static final String[] STREAMS = { "media/scifi_music.m4a",
+			"media/golden_record_greeting.wav" };
+	/**
+	 * How long to wait after a pattern for its last plays to start, in
+	 * seconds.
+	 */
+	private static final double SETTLE = 1.0;
+
+	/**
+	 * Counts the live threads.
+	 */
+	private static final ThreadMXBean threads = ManagementFactory
+			.getThreadMXBean();
+	/**
+	 * Measures the heap.
+	 */
+	private static final MemoryMXBean memory = ManagementFactory
+			.getMemoryMXBean();
+
+	public static void main(String[] args) {
+		String pattern = (args.length > 0) ? args[0] : "all";
+		double seconds = (args.length > 1) ? Double.parseDouble(args[1]) : 10.0;
+		int rate = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+		boolean headless = (args.length > 3) ? !args[3].equals("device")
+				: true;
+
+		QwickSound.setHeadless(headless);
+		QwickSound.init();
+
+		List<Audio> effects = new ArrayList<Audio>();
+		for (String file : EFFECTS) {
+			effects.add(QwickSound.createPreloadedAudio(Paths.get(file)));
+		}
+		List<Audio> streams = new ArrayList<Audio>();
+		for (String file : STREAMS) {
+			streams.add(QwickSound.createStreamingAudio(Paths.get(file)));
+		}
+		if (effects.contains(null) || streams.contains(null)) {
+			throw new IllegalArgumentException("Could not load the media.");
+		}
+
+		System.out.println((headless ? "Headless" : "Device") + ", "
+				+ seconds + " s per pattern, rate " + rate + ", "
+				+ Runtime.getRuntime().availableProcessors() + " cores");
+		System.out.println(String.format(
+				"%-8s %6s %6s %6s %7s %7s %7s %7s %8s %8s %5s %5s", "Pattern",
+				"plays", "drop", "fail", "p50 ms", "p90 ms", "p99 ms",
+				"max ms", "threads", "heap MB", "late", "xrun"));
+		for (String name : new String[] { "burst", "steady", "loops",
+				"mixed" }) {
+			if (pattern.equals("all") || pattern.equals(name)) {
+				run(name, seconds, rate, effects, streams);
+			}
+		}
+
+		for (Audio audio : effects) {
+			audio.close();
+		}
+		for (Audio audio : streams) {
+			audio.close();
+		}
+		QwickSound.shutdown();
+	}
+
+	/**
+	 * Replay a pattern and print its results.
+	 *
+	 * @param pattern
+	 *            The name of the pattern.
+	 * @param seconds
+	 *            How long to trigger sounds.
+	 * @param rate
+	 *            The burst size, trigger rate or number of loops.
+	 * @param effects
+	 *            The preloaded sound effects.
+	 * @param streams
+	 *            The streaming audio.
+	 */
+	private static void run(String pattern, double seconds, int rate,
+			List<Audio> effects, List<Audio> streams) {
+		List<Playback> playbacks = new ArrayList<Playback>();
+		long suppressed = suppressed(effects) + suppressed(streams);
+		int underruns = QwickSound.getUnderrunCount();
+		int plays = 0;
+		int refused = 0;
+		int failed = 0;
+		Sampler sampler = new Sampler();
+		sampler.start();
+		QwickSound.resetRenderStats();
+
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1.0e9);
+		if (pattern.equals("mixed")) {
+			playbacks.add(streams.get(0).play(0.5, -1));
+			plays++;
+		}
+		for (long i = 0;; i++) {
+			long due;
+			int count = 1;
+			if (pattern.equals("burst")) {
+				due = start + i * 500000000L;
+				count = rate;
+			} else if (pattern.equals("loops")) {
+				if (i == rate) {
+					break;
+				}
+				due = start + i * 1000000000L / rate;
+			} else {
+				due = start + i * 1000000000L / rate;
+			}
+			if (due >= end) {
+				break;
+			}
+			sleepUntil(due);
+			for (int j = 0; j < count; j++) {
+				Audio audio;
+				if (pattern.equals("mixed") && i % 2 == 1) {
+					audio = streams.get(1);
+				} else {
+					audio = effects.get((int) ((i + j) % effects.size()));
+				}
+				Playback playback = pattern.equals("loops") ? audio.play(
+						1.0 / rate, -1) : audio.play(1.0 / count);
+				plays++;
+				if (playback == null) {
+					refused++;
+				} else {
+					playbacks.add(playback);
+				}
+			}
+		}
+		sleepUntil(Math.max(end, System.nanoTime()));
+		sleepUntil(System.nanoTime() + (long) (SETTLE * 1.0e9));
+		RenderStats stats = QwickSound.getRenderStats();
+
+		double[] latencies = new double[playbacks.size()];
+		int started = 0;
+		for (Playback playback : playbacks) {
+			double latency = playback.getStartLatency();
+			if (Double.isNaN(latency)) {
+				failed++;
+			} else {
+				latencies[started++] = latency;
+			}
+			playback.stop();
+		}
+		latencies = Arrays.copyOf(latencies, started);
+		Arrays.sort(latencies);
+		sampler.finish();
+		long dropped = suppressed(effects) + suppressed(streams) - suppressed;
+		// A play that was neither dropped nor started failed.
+		failed += refused - dropped;
+
+		System.out.println(String.format(
+				"%-8s %6d %6d %6d %7.2f %7.2f %7.2f %7.2f %8d %8.1f %5d %5d",
+				pattern, plays, dropped, failed, percentile(latencies, 0.50),
+				percentile(latencies, 0.90), percentile(latencies, 0.99),
+				percentile(latencies, 1.0), sampler.peakThreads,
+				sampler.peakHeap / 1048576.0, stats.getLateBlockCount(),
+				QwickSound.getUnderrunCount() - underruns));
+
+		// Let the stopped playbacks leave the mixer before the next pattern.
+		sleepUntil(System.nanoTime() + (long) (SETTLE * 1.0e9));
+	}
+
+	/**
+	 * Get the total number of plays of some {@code Audio} that were
+	 * suppressed by their instance limits.
+	 *
+	 * @param audio
+	 *            The {@code Audio}.
+	 *
+	 * @return The number of suppressed plays.
+	 */
+	private static long suppressed(List<Audio> audio) {
+		long total = 0;
+		for (Audio a : audio) {
+			total += a.getNumSuppressedPlays();
+		}
+		return total;
+	}
+
+	/**
+	 * Get a percentile of sorted latencies.
+	 *
+	 * @param sorted
+	 *            The latencies in seconds, in ascending order.
+	 * @param p
+	 *            The percentile, from 0 to 1.
+	 *
+	 * @return The latency in milliseconds, or {@code NaN} if there are none.
+	 */
+	private static double percentile(double[] sorted, double p) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, index)] * 1000.0;
+	}
+
+	/**
+	 * Sleep until the specified time.
+	 *
+	 * @param deadline
+	 *            The time, from {@code System.nanoTime()}.
+	 */
+	private static void sleepUntil(long deadline) {
+		long now;
+		while ((now = System.nanoTime()) < deadline) {
+			LockSupport.parkNanos(deadline - now);
+		}
+	}
+
+	/**
+	 * Samples the number of live threads and the heap in use while a pattern
+	 * runs, keeping the peaks.
+	 */
+	private static class Sampler extends Thread {
+
+		/**
+		 * The sampling interval in milliseconds.
+		 */
+		private static final long INTERVAL = 50;
+		/**
+		 * The largest number of live threads sampled.
+		 */
+		volatile int peakThreads;
+		/**
+		 * The largest heap usage sampled, in bytes.
+		 */
+		volatile long peakHeap;
+		/**
+		 * Set to stop sampling.
+		 */
+		private volatile boolean done;
+
+		Sampler() {
+			super("LoadTest sampler");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!done) {
+				sample();
+				try {
+					Thread.sleep(INTERVAL);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Take a final sample and stop sampling.
+		 */
+		void finish() {
+			done = true;
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			sample();
+		}
+
+		/**
+		 * Record the current number of threads and heap usage.
+		 */
+		private void sample() {
+			peakThreads = Math.max(peakThreads, threads.getThreadCount());
+			peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage()
+					.getUsed());
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package demo;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import qwicksound.Playback;
+import qwicksound.PreloadedAudio;
+import qwicksound.QwickSound;
+import qwicksound.RenderStats;
+import qwicksound.SampleEncoding;
+
+/**
+ * Measures what each {@code SampleEncoding} costs the mixer. For each
+ * encoding, a file is preloaded and looped on many voices at once, and the
+ * mixer's render statistics give the processing time per block, which is
+ * reported per voice along with the memory the audio data occupies. The
+ * difference to {@code PCM_16} is the cost of decoding. An output line is
+ * needed.
+ *
+ * <pre>
+ * java demo.VoiceBenchmark [voices] [seconds per encoding] [file]
+ * </pre>
+ *
+ * @author Christian Holton
+ *
+ */
+public class VoiceBenchmark {
+
+	public static void main(String[] args) {
+		int voices = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+		double seconds = (args.length > 1) ? Double.parseDouble(args[1]) : 5.0;
+		Path path = Paths.get((args.length > 2) ? args[2]
+				: "media/laser_cannon.ogg");
+
+		QwickSound.init();
+		QwickSound.setMaxVoices(voices);
+
+		System.out.println("Voices: " + voices);
+		System.out.println(String.format("%-10s %10s %14s %14s %10s",
+				"Encoding", "bytes", "us/block", "ns/voice/block", "late"));
+		for (SampleEncoding encoding : SampleEncoding.values()) {
+			QwickSound.setSampleEncoding(encoding);
+			PreloadedAudio audio = QwickSound.createPreloadedAudio(path);
+			if (audio == null) {
+				throw new IllegalArgumentException("Could not load " + path);
+			}
+			List<Playback> playbacks = new ArrayList<Playback>();
+			for (int i = 0; i < voices; i++) {
+				playbacks.add(audio.play(1.0 / voices, -1));
+			}
+			// Let the JIT settle before measuring.
+			wait(1.0);
+			QwickSound.resetRenderStats();
+			wait(seconds);
+			RenderStats stats = QwickSound.getRenderStats();
+			for (Playback playback : playbacks) {
+				playback.stop();
+			}
+			double mean = stats.getProcessingTime().getMean() * 1.0e9;
+			System.out.println(String.format("%-10s %10d %14.1f %14.1f %10d",
+					encoding, audio.getMemoryUsage(), mean / 1.0e3, mean
+							/ voices, stats.getLateBlockCount()));
+		}
+		QwickSound.shutdown();
+	}
+
+	/**
+	 * Sleep for the specified time.
+	 *
+	 * @param seconds
+	 *            The time in seconds.
+	 */
+	private static void wait(double seconds) {
+		try {
+			Thread.sleep((long) (seconds * 1000.0));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
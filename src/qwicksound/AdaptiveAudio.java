@@ -0,0 +1,439 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * {@code Audio} that chooses between preloading and streaming by itself, and
+ * changes its mind as it is used. It is created by
+ * {@link QwickSound#createAudio(String)}.
+ * <p>
+ * <ul>
+ * <li>Initially, the audio is preloaded if its decoded data is small: up to
+ * {@code PRELOAD_BYTES_COMPRESSED} for MP3, Ogg and MP4 audio, which cost
+ * CPU time to decode on every streamed play, and up to
+ * {@code PRELOAD_BYTES_PCM} for uncompressed audio, which streams cheaply.
+ * Larger audio is streamed.</li>
+ * <li>Streamed audio that is played often, i.e. at least
+ * {@code PROMOTE_RATE_COMPRESSED} or {@code PROMOTE_RATE_PCM} times per
+ * minute, is promoted: its audio data is decoded in the background, if it is
+ * no larger than {@code MAX_PROMOTED_BYTES} and fits within the memory
+ * budget, and later plays start from memory.</li>
+ * <li>Preloaded audio counts against the memory budget (see
+ * {@link QwickSound#setMemoryBudget}) like {@code PreloadedAudio}. When room
+ * is needed, the least recently played idle assets are demoted, i.e. their
+ * audio data is released and they stream from then on. A demoted asset is
+ * not promoted again for {@code PROMOTE_BACKOFF} seconds, so that two assets
+ * competing for the budget do not take turns being decoded.</li>
+ * </ul>
+ * <p>
+ * The play rate is an exponentially decaying count of plays with a time
+ * constant of one minute (see {@link #getPlayRate}). The audio data is not
+ * reduced by the optimization pass (see
+ * {@link QwickSound#setPcmOptimization}), so that a preloaded play sounds
+ * exactly like a streamed one, but it is stored in the configured sample
+ * encoding (see {@link QwickSound#setSampleEncoding}).
+ *
+ * @author Christian Holton
+ *
+ * @see PreloadedAudio
+ * @see StreamingAudio
+ *
+ */
+public class AdaptiveAudio extends Audio {
+
+	/**
+	 * The largest decoded size in bytes of compressed audio that is preloaded
+	 * initially, about 12 seconds of stereo audio at 44.1 kHz.
+	 */
+	public static final long PRELOAD_BYTES_COMPRESSED = 2L << 20;
+	/**
+	 * The largest size in bytes of uncompressed audio that is preloaded
+	 * initially, about 3 seconds of stereo audio at 44.1 kHz.
+	 */
+	public static final long PRELOAD_BYTES_PCM = 512L << 10;
+	/**
+	 * The play rate, in plays per minute, at which streamed compressed audio
+	 * is promoted.
+	 */
+	public static final double PROMOTE_RATE_COMPRESSED = 3.0;
+	/**
+	 * The play rate, in plays per minute, at which streamed uncompressed
+	 * audio is promoted.
+	 */
+	public static final double PROMOTE_RATE_PCM = 8.0;
+	/**
+	 * The largest decoded size in bytes of audio that is promoted, about 95
+	 * seconds of stereo audio at 44.1 kHz.
+	 */
+	public static final long MAX_PROMOTED_BYTES = 16L << 20;
+	/**
+	 * The time in seconds after a demotion during which an asset is not
+	 * promoted again.
+	 */
+	public static final double PROMOTE_BACKOFF = 60.0;
+	/**
+	 * The time constant of the play rate in nanoseconds.
+	 */
+	private static final double RATE_WINDOW_NANOS = 60.0e9;
+	/**
+	 * Whether the audio is compressed, i.e. has to be decoded on every
+	 * streamed play.
+	 */
+	private final boolean compressed;
+	/**
+	 * Guards the installation and eviction of the audio data.
+	 */
+	private final ReentrantLock loadLock = new ReentrantLock();
+	/**
+	 * The preloaded audio data, or {@code null} while the audio is streamed.
+	 */
+	private volatile SampleData data;
+	/**
+	 * The registration of the audio data with the {@code MemoryBudget}, or
+	 * {@code null}. Guarded by {@code loadLock}.
+	 */
+	private MemoryBudget.Entry budgetEntry;
+	/**
+	 * The canonical format of the audio data, or {@code null} if it could
+	 * not be read.
+	 */
+	private volatile AudioFormat format;
+	/**
+	 * The decaying count of plays. Guarded by {@code this}.
+	 */
+	private double playCount;
+	/**
+	 * When {@code playCount} was last updated, from {@code System.nanoTime()}.
+	 * Guarded by {@code this}.
+	 */
+	private long playCountTime = System.nanoTime();
+	/**
+	 * When the audio data was last released or failed to be promoted, from
+	 * {@code System.nanoTime()}, or 0. Guarded by {@code this}.
+	 */
+	private long demotedAt;
+	/**
+	 * Whether the audio data is being decoded in the background. Guarded by
+	 * {@code this}.
+	 */
+	private boolean promoting;
+	/**
+	 * {@code Logger} for the {@code AdaptiveAudio} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(AdaptiveAudio.class
+			.getName());
+
+	/**
+	 * Creates a new {@code AdaptiveAudio} that preloads or streams its audio
+	 * data from the specified source, which must be reopenable.
+	 *
+	 * @param source
+	 *            The source of the audio data.
+	 */
+	AdaptiveAudio(AudioSource source) {
+		super(source);
+		compressed = SegmentedDecoder.handles(getFileName());
+		long limit = Math.min(compressed ? PRELOAD_BYTES_COMPRESSED
+				: PRELOAD_BYTES_PCM, MemoryBudget.getInstance()
+				.getReclaimable());
+		PcmData pcm = source.loadPcm(limit);
+		if (pcm != null) {
+			install(pcm);
+		} else {
+			format = readFormat();
+			Normalizer.measure(this);
+			logger.info("Streaming \"" + getFileName() + "\"");
+		}
+	}
+
+	@Override
+	public Playback play() {
+		return startPlayback(QwickSound.DEFAULT_VOLUME,
+				QwickSound.DEFAULT_NUM_LOOPS);
+	}
+
+	@Override
+	public Playback play(double volume) {
+		return startPlayback(volume, QwickSound.DEFAULT_NUM_LOOPS);
+	}
+
+	@Override
+	public Playback play(int numLoops) {
+		return startPlayback(QwickSound.DEFAULT_VOLUME, numLoops);
+	}
+
+	@Override
+	public Playback play(double volume, int numLoops) {
+		return startPlayback(volume, numLoops);
+	}
+
+	/**
+	 * Whether the audio data is currently held in memory, i.e. plays start
+	 * as {@code PreloadedPlayback}s rather than {@code StreamingPlayback}s.
+	 *
+	 * @return {@code true} if the audio is preloaded.
+	 */
+	public boolean isPreloaded() {
+		return data != null;
+	}
+
+	/**
+	 * Get how often this {@code AdaptiveAudio} is played: the number of plays
+	 * in about the last minute, with older plays counting less the older they
+	 * are.
+	 *
+	 * @return The play rate in plays per minute.
+	 */
+	public synchronized double getPlayRate() {
+		return decayedPlayCount(System.nanoTime());
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		SampleData data = this.data;
+		return (data == null || !data.isOnHeap()) ? 0 : data.getByteCount();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		loadLock.lock();
+		try {
+			release();
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AdaptiveAudio " + getFileName();
+	}
+
+	/**
+	 * Release the preloaded audio data if this {@code AdaptiveAudio} is idle,
+	 * so that it streams from now on. Called by the {@code MemoryBudget};
+	 * never blocks.
+	 *
+	 * @return {@code true} if the data was released.
+	 */
+	@Override
+	boolean evict() {
+		if (!loadLock.tryLock()) {
+			return false;
+		}
+		try {
+			if (data == null || budgetEntry == null
+					|| getNumActivePlaybacks() > 0) {
+				return false;
+			}
+			release();
+		} finally {
+			loadLock.unlock();
+		}
+		synchronized (this) {
+			demotedAt = System.nanoTime();
+		}
+		logger.info("Demoted \"" + getFileName() + "\" to streaming");
+		return true;
+	}
+
+	/**
+	 * Start a {@code PreloadedPlayback} if the audio data is in memory, or a
+	 * {@code StreamingPlayback} otherwise, and promote the audio in the
+	 * background if it is played often enough. This method is called by all
+	 * the {@code play} methods.
+	 *
+	 * @param volume
+	 *            The volume that playback will occur at.
+	 * @param numLoops
+	 *            The number of times the audio data will be played in
+	 *            succession.
+	 *
+	 * @return The {@code Playback} which is to be played, or {@code null} if
+	 *         the request was suppressed by the instance limits (see
+	 *         {@code checkTrigger}), the audio data could not be read or this
+	 *         {@code AdaptiveAudio} has been closed.
+	 */
+	private Playback startPlayback(double volume, int numLoops) {
+		if (!checkTrigger(volume)) {
+			return null;
+		}
+		if (isClosed() || format == null) {
+			logger.warning("Cannot play \"" + getFileName() + "\" because "
+					+ (isClosed() ? "it has been closed."
+							: "its audio data could not be read."));
+			triggerRefused();
+			return null;
+		}
+		boolean promote = recordPlay();
+		Playback playback;
+		loadLock.lock();
+		try {
+			SampleData data = this.data;
+			long instanceID = ++numPlaybacks;
+			if (data != null) {
+				PreloadedPlayback preloaded = new PreloadedPlayback(this, data,
+						instanceID);
+				logger.info("Starting preloaded playback of \""
+						+ getFileName() + "\" instance " + instanceID);
+				volume = playbackStarted(preloaded, volume);
+				if (budgetEntry != null) {
+					budgetEntry.touch();
+				}
+				preloaded.start(volume, numLoops);
+				playback = preloaded;
+			} else {
+				StreamingPlayback streaming = new StreamingPlayback(this,
+						format, instanceID);
+				logger.info("Starting streaming playback of \""
+						+ getFileName() + "\" instance " + instanceID);
+				volume = playbackStarted(streaming, volume);
+				streaming.start(volume, numLoops, exec);
+				playback = streaming;
+			}
+		} finally {
+			loadLock.unlock();
+		}
+		if (promote) {
+			promote();
+		}
+		return playback;
+	}
+
+	/**
+	 * Count a play, and decide whether the audio should be promoted.
+	 *
+	 * @return {@code true} if the caller should start the promotion.
+	 */
+	private synchronized boolean recordPlay() {
+		long now = System.nanoTime();
+		playCount = decayedPlayCount(now) + 1.0;
+		playCountTime = now;
+		double promoteRate = compressed ? PROMOTE_RATE_COMPRESSED
+				: PROMOTE_RATE_PCM;
+		if (data != null || promoting || playCount < promoteRate
+				|| (demotedAt != 0 && now - demotedAt < PROMOTE_BACKOFF * 1.0e9)) {
+			return false;
+		}
+		promoting = true;
+		return true;
+	}
+
+	/**
+	 * Get the play count decayed to the specified time. Must be called with
+	 * the monitor of this {@code AdaptiveAudio} held.
+	 *
+	 * @param now
+	 *            The time, from {@code System.nanoTime()}.
+	 *
+	 * @return The decayed play count.
+	 */
+	private double decayedPlayCount(long now) {
+		return playCount * Math.exp(-(now - playCountTime) / RATE_WINDOW_NANOS);
+	}
+
+	/**
+	 * Decode the audio data in the background, and preload it if it fits
+	 * within {@code MAX_PROMOTED_BYTES} and the memory budget.
+	 */
+	private void promote() {
+		try {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					long limit = Math.min(MAX_PROMOTED_BYTES, MemoryBudget
+							.getInstance().getReclaimable());
+					PcmData pcm = isClosed() ? null : source.loadPcm(limit);
+					if (pcm != null) {
+						loadLock.lock();
+						try {
+							if (!isClosed()) {
+								install(pcm);
+							}
+						} finally {
+							loadLock.unlock();
+						}
+					}
+					synchronized (AdaptiveAudio.this) {
+						promoting = false;
+						if (data == null) {
+							// Too large for now; do not decode it again
+							// on every play.
+							demotedAt = System.nanoTime();
+						}
+					}
+					if (data != null) {
+						logger.info("Promoted \"" + getFileName()
+								+ "\" to preloaded");
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// The system is shutting down.
+			synchronized (this) {
+				promoting = false;
+			}
+		}
+	}
+
+	/**
+	 * Install decoded audio data: measure its loudness, encode it and
+	 * register it with the {@code MemoryBudget}. Called by the constructor
+	 * or with {@code loadLock} held.
+	 *
+	 * @param pcm
+	 *            The decoded audio data.
+	 */
+	private void install(PcmData pcm) {
+		Normalizer.measure(this, pcm);
+		SampleData stored = SampleData.encode(pcm);
+		format = new AudioFormat(stored.getSampleRate(), 16,
+				stored.getChannels(), true, false);
+		if (stored.isOnHeap()) {
+			budgetEntry = MemoryBudget.getInstance().register(this,
+					stored.getByteCount());
+		}
+		data = stored;
+	}
+
+	/**
+	 * Release the preloaded audio data and its registration with the
+	 * {@code MemoryBudget}. Must be called with {@code loadLock} held.
+	 */
+	private void release() {
+		data = null;
+		if (budgetEntry != null) {
+			MemoryBudget.getInstance().release(budgetEntry);
+			budgetEntry = null;
+		}
+	}
+
+	/**
+	 * Open the source to find the canonical format of its audio data.
+	 *
+	 * @return The format, or {@code null} if the source could not be opened.
+	 */
+	private AudioFormat readFormat() {
+		AudioInputStream audioInStream = source.open();
+		if (audioInStream == null) {
+			logger.warning("Could not read \"" + getFileName() + "\"");
+			return null;
+		}
+		audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+		try {
+			audioInStream.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		return audioInStream.getFormat();
+	}
+}
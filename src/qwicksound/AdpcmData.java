@@ -0,0 +1,267 @@
+package qwicksound;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Audio data stored as IMA ADPCM, 4 bits per sample, about a quarter of the
+ * size of 16-bit PCM.
+ * <p>
+ * The data is split into blocks of {@code BLOCK_FRAMES} frames. For each
+ * channel, a block holds a 4-byte header, the block's first sample and the
+ * step index to start from, followed by the other 256 samples as nibbles,
+ * low nibble first. Since every block starts from an exact sample, any block
+ * can be decoded on its own, which is how playback seeks and loops.
+ * <p>
+ * The decoder looks up each nibble's difference and next step index in
+ * tables indexed by step index and nibble, so the inner loop has no
+ * branches other than the clamp.
+ *
+ * @author Christian Holton
+ *
+ */
+final class AdpcmData extends SampleData {
+
+	/**
+	 * The number of frames per block.
+	 */
+	static final int BLOCK_FRAMES = 257;
+	/**
+	 * The number of bytes per channel per block.
+	 */
+	private static final int CHANNEL_BYTES = 4 + (BLOCK_FRAMES - 1) / 2;
+	/**
+	 * The quantizer step sizes of IMA ADPCM.
+	 */
+	private static final int[] STEPS = { 7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+			19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80, 88,
+			97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+			337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060,
+			1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024,
+			3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630,
+			9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350,
+			22385, 24623, 27086, 29794, 32767 };
+	/**
+	 * The change of the step index after each magnitude of nibble.
+	 */
+	private static final int[] INDEX_CHANGES = { -1, -1, -1, -1, 2, 4, 6, 8 };
+	/**
+	 * The difference each nibble decodes to, by step index and nibble.
+	 */
+	private static final int[] DIFFERENCES = new int[STEPS.length * 16];
+	/**
+	 * The step index that follows each nibble, by step index and nibble.
+	 */
+	private static final int[] NEXT_INDEX = new int[STEPS.length * 16];
+	static {
+		for (int index = 0; index < STEPS.length; index++) {
+			int step = STEPS[index];
+			for (int nibble = 0; nibble < 16; nibble++) {
+				int difference = step >> 3;
+				if ((nibble & 4) != 0) {
+					difference += step;
+				}
+				if ((nibble & 2) != 0) {
+					difference += step >> 1;
+				}
+				if ((nibble & 1) != 0) {
+					difference += step >> 2;
+				}
+				DIFFERENCES[index * 16 + nibble] = ((nibble & 8) != 0) ? -difference
+						: difference;
+				NEXT_INDEX[index * 16 + nibble] = Math.max(0, Math.min(
+						STEPS.length - 1, index + INDEX_CHANGES[nibble & 7]));
+			}
+		}
+	}
+	/**
+	 * The encoded blocks.
+	 */
+	private final byte[] data;
+
+	/**
+	 * Reads {@code AdpcmData}, decoding a block at a time.
+	 */
+	private final class BlockReader extends Reader {
+
+		/**
+		 * The samples of the decoded block, interleaved.
+		 */
+		private final float[] block = new float[BLOCK_FRAMES * channels];
+		/**
+		 * The index of the decoded block, or -1 if none has been decoded.
+		 */
+		private int decoded = -1;
+
+		@Override
+		void read(int frame, int count, float[] dest, int offset) {
+			while (count > 0) {
+				int index = frame / BLOCK_FRAMES;
+				if (index != decoded) {
+					decode(index, block);
+					decoded = index;
+				}
+				int start = frame - index * BLOCK_FRAMES;
+				int frames = Math.min(count, BLOCK_FRAMES - start);
+				System.arraycopy(block, start * channels, dest, offset, frames
+						* channels);
+				frame += frames;
+				count -= frames;
+				offset += frames * channels;
+			}
+		}
+	}
+
+	/**
+	 * Creates a new {@code AdpcmData}.
+	 *
+	 * @param data
+	 *            The encoded blocks.
+	 * @param channels
+	 *            The number of channels per frame.
+	 * @param sampleRate
+	 *            The number of frames per second.
+	 * @param frameCount
+	 *            The total number of frames.
+	 */
+	private AdpcmData(byte[] data, int channels, float sampleRate,
+			int frameCount) {
+		super(channels, sampleRate, frameCount);
+		this.data = data;
+	}
+
+	/**
+	 * Encode 16-bit PCM data. The step index carries over from block to
+	 * block, so that each block starts with a step fitted to the signal.
+	 *
+	 * @param pcm
+	 *            The data.
+	 *
+	 * @return The encoded data.
+	 */
+	static AdpcmData encode(PcmData pcm) {
+		ByteBuffer samples = pcm.getData();
+		int channels = pcm.getChannels();
+		int frameCount = pcm.getFrameCount();
+		int blocks = (frameCount + BLOCK_FRAMES - 1) / BLOCK_FRAMES;
+		byte[] data = new byte[blocks * channels * CHANNEL_BYTES];
+		for (int c = 0; c < channels; c++) {
+			int index = 0;
+			for (int b = 0; b < blocks; b++) {
+				int first = b * BLOCK_FRAMES;
+				int pos = (b * channels + c) * CHANNEL_BYTES;
+				int predictor = samples.getShort((first * channels + c) * 2);
+				data[pos] = (byte) predictor;
+				data[pos + 1] = (byte) (predictor >> 8);
+				data[pos + 2] = (byte) index;
+				pos += 4;
+				int end = Math.min(frameCount, first + BLOCK_FRAMES);
+				for (int i = 1; first + i < end; i++) {
+					int sample = samples.getShort(((first + i) * channels + c) * 2);
+					int nibble = quantize(sample - predictor, STEPS[index]);
+					int k = index * 16 + nibble;
+					predictor = clamp(predictor + DIFFERENCES[k]);
+					index = NEXT_INDEX[k];
+					data[pos + ((i - 1) >> 1)] |= (byte) (nibble << (((i - 1) & 1) << 2));
+				}
+			}
+		}
+		return new AdpcmData(data, channels, pcm.getSampleRate(), frameCount);
+	}
+
+	/**
+	 * Find the nibble whose difference comes closest to the actual
+	 * difference.
+	 *
+	 * @param difference
+	 *            The difference between the sample and the prediction.
+	 * @param step
+	 *            The current step size.
+	 *
+	 * @return The nibble.
+	 */
+	private static int quantize(int difference, int step) {
+		int nibble = 0;
+		if (difference < 0) {
+			nibble = 8;
+			difference = -difference;
+		}
+		if (difference >= step) {
+			nibble |= 4;
+			difference -= step;
+		}
+		step >>= 1;
+		if (difference >= step) {
+			nibble |= 2;
+			difference -= step;
+		}
+		step >>= 1;
+		if (difference >= step) {
+			nibble |= 1;
+		}
+		return nibble;
+	}
+
+	/**
+	 * Limit a sample to the 16-bit range.
+	 *
+	 * @param sample
+	 *            The sample.
+	 *
+	 * @return The limited sample.
+	 */
+	private static int clamp(int sample) {
+		return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+	}
+
+	/**
+	 * Decode a block.
+	 *
+	 * @param index
+	 *            The index of the block.
+	 * @param block
+	 *            The array that receives the samples, interleaved.
+	 */
+	private void decode(int index, float[] block) {
+		byte[] data = this.data;
+		for (int c = 0; c < channels; c++) {
+			int pos = (index * channels + c) * CHANNEL_BYTES;
+			int predictor = (short) ((data[pos] & 0xff) | (data[pos + 1] << 8));
+			int step = data[pos + 2];
+			pos += 4;
+			block[c] = predictor * SAMPLE_SCALE;
+			for (int i = 1, j = channels + c; i < BLOCK_FRAMES; i += 2, pos++) {
+				int bits = data[pos];
+				int k = step * 16 + (bits & 0x0f);
+				predictor = clamp(predictor + DIFFERENCES[k]);
+				step = NEXT_INDEX[k];
+				block[j] = predictor * SAMPLE_SCALE;
+				j += channels;
+				k = step * 16 + ((bits >> 4) & 0x0f);
+				predictor = clamp(predictor + DIFFERENCES[k]);
+				step = NEXT_INDEX[k];
+				block[j] = predictor * SAMPLE_SCALE;
+				j += channels;
+			}
+		}
+	}
+
+	@Override
+	Reader newReader() {
+		return new BlockReader();
+	}
+
+	@Override
+	SampleEncoding getSampleEncoding() {
+		return SampleEncoding.IMA_ADPCM;
+	}
+
+	@Override
+	boolean isOnHeap() {
+		return true;
+	}
+
+	@Override
+	long getByteCount() {
+		return data.length;
+	}
+}
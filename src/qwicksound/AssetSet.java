@@ -0,0 +1,521 @@
+package qwicksound;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * A named set of audio files that are loaded and unloaded together, e.g. the
+ * sounds of one level or scene (see {@link QwickSound#getAssetSet}). The files
+ * are declared with the {@code add} methods, loaded in the background by
+ * {@link #acquire}, and unloaded by {@link #release}, which closes their
+ * {@code Audio} and so frees its memory at once rather than when it is
+ * garbage collected.
+ * <p>
+ * Assets are reference counted across sets: a file declared by several sets
+ * is loaded once, shared, and only unloaded when no acquired set declares it
+ * any more. A set itself is reference counted too, so it may be acquired by
+ * several owners and stays loaded until each has released it. A transition
+ * from one scene to the next is therefore
+ *
+ * <pre>
+ * next.acquire();
+ * previous.release();
+ * </pre>
+ *
+ * which keeps the assets shared by both scenes loaded and playing, unloads
+ * the rest of the previous scene at once, and loads the rest of the next
+ * scene in the background; wait on the future returned by {@code acquire}
+ * before playing them. The assets of an acquire are loaded one after
+ * another on a single thread, so that the decoding of a large set does not
+ * add up to a memory spike.
+ * <p>
+ * Unloading an asset stops its {@code Playbacks}. Preloaded assets count
+ * against the memory budget (see {@link QwickSound#setMemoryBudget}) while
+ * they are loaded.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class AssetSet {
+
+	/**
+	 * The declared asset sets, by name.
+	 */
+	private static final Map<String, AssetSet> sets = new HashMap<String, AssetSet>();
+	/**
+	 * The assets of all acquired sets, by key. Guarded by
+	 * {@code AssetSet.class}, as is the reference counting of every set and
+	 * asset.
+	 */
+	private static final Map<String, Asset> assets = new HashMap<String, Asset>();
+	/**
+	 * The name of this set.
+	 */
+	private final String name;
+	/**
+	 * The declared assets, by asset name, in order of declaration.
+	 */
+	private final Map<String, Declaration> declarations = new LinkedHashMap<String, Declaration>();
+	/**
+	 * The number of times this set has been acquired and not released.
+	 */
+	private int refCount;
+	/**
+	 * The shared assets held while this set is acquired, by asset name.
+	 */
+	private final Map<String, Asset> held = new LinkedHashMap<String, Asset>();
+	/**
+	 * Completes once the assets of the current acquire have been loaded, or
+	 * {@code null} if this set is not acquired.
+	 */
+	private CompletableFuture<AssetSet> loaded;
+	/**
+	 * {@code Logger} for the {@code AssetSet} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(AssetSet.class
+			.getName());
+
+	/**
+	 * Creates a new, empty {@code AssetSet}.
+	 *
+	 * @param name
+	 *            The name of the set.
+	 */
+	private AssetSet(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the asset set with the specified name, declaring an empty one if it
+	 * does not exist yet.
+	 *
+	 * @param name
+	 *            The name of the set.
+	 *
+	 * @return The {@code AssetSet}.
+	 */
+	static AssetSet named(String name) {
+		synchronized (AssetSet.class) {
+			AssetSet set = sets.get(name);
+			if (set == null) {
+				set = new AssetSet(name);
+				sets.put(name, set);
+			}
+			return set;
+		}
+	}
+
+	/**
+	 * Declare an audio file that is loaded into memory as a
+	 * {@code PreloadedAudio}. Its asset name is its file name. Note that the
+	 * file's containing directory must be on the classpath.
+	 *
+	 * @param fileName
+	 *            The name of the audio file.
+	 *
+	 * @return This {@code AssetSet}.
+	 */
+	public AssetSet add(String fileName) {
+		URL fileURL = QwickSound.loadFile(fileName);
+		if (fileURL != null) {
+			declare(fileName, "preloaded " + fileURL, AudioSource.of(fileURL),
+					false);
+		}
+		return this;
+	}
+
+	/**
+	 * Declare the audio file at the specified path that is loaded into memory
+	 * as a {@code PreloadedAudio}. Its asset name is its file name.
+	 *
+	 * @param path
+	 *            The path of the audio file.
+	 *
+	 * @return This {@code AssetSet}.
+	 */
+	public AssetSet add(Path path) {
+		declare(path.getFileName().toString(), "preloaded " + key(path),
+				AudioSource.of(path), false);
+		return this;
+	}
+
+	/**
+	 * Declare the audio file at the specified path that is played as a
+	 * {@code StreamingAudio}, e.g. music. Its asset name is its file name.
+	 * Loading it opens the stream of its first play.
+	 *
+	 * @param path
+	 *            The path of the audio file.
+	 *
+	 * @return This {@code AssetSet}.
+	 */
+	public AssetSet addStreaming(Path path) {
+		declare(path.getFileName().toString(), "streaming " + key(path),
+				AudioSource.of(path), true);
+		return this;
+	}
+
+	/**
+	 * Acquire this set, loading its assets that are not loaded yet in the
+	 * background. Each call must be matched by a call to {@code release}.
+	 *
+	 * @return A future that completes with this {@code AssetSet} once all of
+	 *         its assets have been loaded. Assets whose audio data could not be
+	 *         read are loaded as {@code Audio} that refuses to play. The
+	 *         future fails if the system is shutting down.
+	 */
+	public CompletableFuture<AssetSet> acquire() {
+		final List<Asset> toLoad = new ArrayList<Asset>();
+		CompletableFuture<AssetSet> future;
+		synchronized (AssetSet.class) {
+			if (refCount++ > 0) {
+				return loaded;
+			}
+			List<CompletableFuture<Audio>> pending = new ArrayList<CompletableFuture<Audio>>();
+			for (Declaration declaration : declarations.values()) {
+				Asset asset = assets.get(declaration.key);
+				if (asset == null) {
+					asset = new Asset(declaration);
+					assets.put(declaration.key, asset);
+				}
+				if (asset.refCount++ == 0 && asset.future == null) {
+					asset.future = new CompletableFuture<Audio>();
+					toLoad.add(asset);
+				}
+				held.put(declaration.name, asset);
+				pending.add(asset.future);
+			}
+			loaded = future = CompletableFuture.allOf(
+					pending.toArray(new CompletableFuture<?>[pending.size()]))
+					.thenApply(new Function<Void, AssetSet>() {
+						@Override
+						public AssetSet apply(Void ignored) {
+							return AssetSet.this;
+						}
+					});
+		}
+		logger.info("Acquired " + this + ", loading " + toLoad.size()
+				+ " of " + declarations.size() + " assets");
+		if (!toLoad.isEmpty()) {
+			try {
+				Audio.exec.execute(new Runnable() {
+					@Override
+					public void run() {
+						for (Asset asset : toLoad) {
+							load(asset);
+						}
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				// The system is shutting down; nothing is loaded. The failed
+				// futures stay with the assets, so that sets acquiring them
+				// before they are released fail too.
+				for (Asset asset : toLoad) {
+					CompletableFuture<Audio> refused;
+					synchronized (AssetSet.class) {
+						refused = asset.future;
+					}
+					refused.completeExceptionally(ex);
+				}
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Release this set. Once it has been released as many times as it was
+	 * acquired, its assets that no other acquired set declares are unloaded:
+	 * their {@code Audio} is closed, which stops its {@code Playbacks}.
+	 */
+	public void release() {
+		List<Audio> unload = new ArrayList<Audio>();
+		synchronized (AssetSet.class) {
+			if (refCount == 0) {
+				logger.warning(this + " released more often than acquired");
+				return;
+			}
+			if (--refCount > 0) {
+				return;
+			}
+			for (Asset asset : held.values()) {
+				if (--asset.refCount == 0) {
+					if (asset.audio != null) {
+						unload.add(asset.audio);
+						asset.audio = null;
+						asset.future = null;
+					}
+					if (asset.future == null || asset.future.isDone()) {
+						assets.remove(asset.key);
+					}
+					// Otherwise it is still loading, and load() unloads it.
+				}
+			}
+			held.clear();
+			loaded = null;
+		}
+		logger.info("Released " + this + ", unloading " + unload.size()
+				+ " assets");
+		for (Audio audio : unload) {
+			audio.close();
+		}
+	}
+
+	/**
+	 * Get a loaded asset of this set.
+	 *
+	 * @param assetName
+	 *            The asset name, i.e. the file name of the audio file.
+	 *
+	 * @return The {@code Audio}, or {@code null} if this set is not acquired,
+	 *         the asset has not been loaded yet, or this set declares no such
+	 *         asset.
+	 */
+	public Audio get(String assetName) {
+		synchronized (AssetSet.class) {
+			Asset asset = held.get(assetName);
+			return (asset == null) ? null : asset.audio;
+		}
+	}
+
+	/**
+	 * Whether this set is acquired and all of its assets have been loaded.
+	 *
+	 * @return {@code true} if the assets are ready to be played.
+	 */
+	public boolean isLoaded() {
+		synchronized (AssetSet.class) {
+			return loaded != null && loaded.isDone()
+					&& !loaded.isCompletedExceptionally();
+		}
+	}
+
+	/**
+	 * Get the number of times this set has been acquired and not released.
+	 *
+	 * @return The reference count.
+	 */
+	public int getReferenceCount() {
+		synchronized (AssetSet.class) {
+			return refCount;
+		}
+	}
+
+	/**
+	 * Get the number of bytes of decoded audio data the loaded assets of
+	 * this set hold on the heap, including assets it shares with other sets.
+	 *
+	 * @return The memory usage in bytes.
+	 */
+	public long getMemoryUsage() {
+		long total = 0;
+		synchronized (AssetSet.class) {
+			for (Asset asset : held.values()) {
+				if (asset.audio != null) {
+					total += asset.audio.getMemoryUsage();
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Get the name of this set.
+	 *
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the names of the declared assets, in order of declaration.
+	 *
+	 * @return The asset names.
+	 */
+	public Set<String> getAssetNames() {
+		synchronized (AssetSet.class) {
+			return Collections.unmodifiableSet(new LinkedHashSet<String>(
+					declarations.keySet()));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AssetSet " + name;
+	}
+
+	/**
+	 * Declare an asset. An asset declared while this set is acquired is
+	 * loaded the next time it is acquired.
+	 *
+	 * @param assetName
+	 *            The asset name.
+	 * @param key
+	 *            Identifies the asset across sets.
+	 * @param source
+	 *            The source of the audio data.
+	 * @param streaming
+	 *            Whether the asset is a {@code StreamingAudio}.
+	 */
+	private void declare(String assetName, String key, AudioSource source,
+			boolean streaming) {
+		synchronized (AssetSet.class) {
+			if (refCount > 0) {
+				logger.warning("\"" + assetName + "\" is added to " + this
+						+ " while it is acquired, so it is not loaded until "
+						+ "the set is acquired again.");
+			}
+			declarations.put(assetName, new Declaration(assetName, key,
+					source, streaming));
+		}
+	}
+
+	/**
+	 * Load an asset, unless it was unloaded before its turn came. Called on
+	 * the loading thread.
+	 *
+	 * @param asset
+	 *            The asset.
+	 */
+	private static void load(Asset asset) {
+		CompletableFuture<Audio> future;
+		synchronized (AssetSet.class) {
+			future = asset.future;
+			if (asset.refCount == 0) {
+				asset.future = null;
+				assets.remove(asset.key);
+				future.complete(null);
+				return;
+			}
+		}
+		Audio audio = asset.declaration.streaming ? new StreamingAudio(
+				asset.declaration.source) : new PreloadedAudio(
+				asset.declaration.source);
+		boolean unload = false;
+		synchronized (AssetSet.class) {
+			if (asset.refCount == 0) {
+				// Every set declaring it was released while it loaded.
+				asset.future = null;
+				assets.remove(asset.key);
+				unload = true;
+			} else {
+				asset.audio = audio;
+			}
+		}
+		if (unload) {
+			audio.close();
+		} else {
+			logger.info("Loaded asset \"" + asset.declaration.name + "\"");
+		}
+		future.complete(audio);
+	}
+
+	/**
+	 * Get the key of a file, which identifies it across sets.
+	 *
+	 * @param path
+	 *            The path of the file.
+	 *
+	 * @return The key.
+	 */
+	private static String key(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * An asset declared by a set.
+	 */
+	private static final class Declaration {
+
+		/**
+		 * The asset name.
+		 */
+		final String name;
+		/**
+		 * Identifies the asset across sets: its kind and location.
+		 */
+		final String key;
+		/**
+		 * The source of the audio data.
+		 */
+		final AudioSource source;
+		/**
+		 * Whether the asset is a {@code StreamingAudio}.
+		 */
+		final boolean streaming;
+
+		/**
+		 * Creates a new {@code Declaration}.
+		 *
+		 * @param name
+		 *            The asset name.
+		 * @param key
+		 *            Identifies the asset across sets.
+		 * @param source
+		 *            The source of the audio data.
+		 * @param streaming
+		 *            Whether the asset is a {@code StreamingAudio}.
+		 */
+		Declaration(String name, String key, AudioSource source,
+				boolean streaming) {
+			this.name = name;
+			this.key = key;
+			this.source = source;
+			this.streaming = streaming;
+		}
+	}
+
+	/**
+	 * An asset shared by the acquired sets that declare it.
+	 */
+	private static final class Asset {
+
+		/**
+		 * Identifies the asset.
+		 */
+		final String key;
+		/**
+		 * The declaration it is loaded from, i.e. that of the first set that
+		 * acquired it.
+		 */
+		final Declaration declaration;
+		/**
+		 * The number of acquired sets that declare the asset.
+		 */
+		int refCount;
+		/**
+		 * The loaded {@code Audio}, or {@code null} while it is loading.
+		 */
+		Audio audio;
+		/**
+		 * Completes with the {@code Audio} once it is loaded, or {@code null}
+		 * if the asset is neither loading nor loaded.
+		 */
+		CompletableFuture<Audio> future;
+
+		/**
+		 * Creates a new {@code Asset}.
+		 *
+		 * @param declaration
+		 *            The declaration it is loaded from.
+		 */
+		Asset(Declaration declaration) {
+			this.key = declaration.key;
+			this.declaration = declaration;
+		}
+	}
+}
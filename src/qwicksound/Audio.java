@@ -4,16 +4,25 @@ import java.io.File;
 import java.net.URL;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
 
 /**
  * Represents a single instance of audio, based on an audio file, that is to be
  * played. There is a one-to-one relationship between an {@code Audio} object
  * and its underlying audio file.
+ * <p>
+ * An {@code Audio} should be closed once it is no longer needed, which stops
+ * its {@code Playback}s and releases the streams it holds open. An
+ * {@code Audio} that becomes unreachable without being closed is released
+ * by a {@code Cleaner}, and a warning is logged.
  * 
  * @author Christian Holton
  *
  */
-public abstract class Audio {
+public abstract class Audio implements AutoCloseable {
 
 	/**
 	 * Manages the threads that are used to execute {@code Playback} objects.
@@ -24,17 +33,120 @@ public abstract class Audio {
 	 * {@code Audio}.
 	 */
 	protected URL fileURL;
+	/**
+	 * The name of this {@code Audio} when it is not based on a file with a
+	 * {@code URL}, e.g. audio read from a {@code ByteBuffer} or an entry of a
+	 * {@code SoundBank}.
+	 */
+	protected String name;
+	/**
+	 * The source of the audio data of this {@code Audio}.
+	 */
+	AudioSource source;
+	/**
+	 * The bus that the {@code Playbacks} of this {@code Audio} are mixed
+	 * into.
+	 */
+	private volatile Bus bus = Bus.MASTER;
 	/**
 	 * The number of {@code Playbacks} that have been created by, and thus
 	 * associated with, this {@code Audio}.
 	 */
 	protected long numPlaybacks;
+	/**
+	 * The {@code Playbacks} and streams this {@code Audio} holds open.
+	 */
+	final AudioResources resources;
+	/**
+	 * The maximum number of concurrent {@code Playbacks}, or 0 for no limit.
+	 */
+	private volatile int maxInstances;
+	/**
+	 * The minimum time between the starts of two {@code Playbacks}, in
+	 * nanoseconds.
+	 */
+	private volatile long minRetriggerNanos;
+	/**
+	 * The window, in nanoseconds, within which play requests are coalesced
+	 * into the most recently started {@code Playback}.
+	 */
+	private volatile long coalesceWindowNanos;
+	/**
+	 * The most recently started {@code Playback}. This and the other state of
+	 * the instance limits below are guarded by {@code this}.
+	 */
+	private Playback lastPlayback;
+	/**
+	 * The time, from {@code System.nanoTime()}, at which the most recent play
+	 * request was admitted.
+	 */
+	private long lastStartTime;
+	/**
+	 * The sum of the squared volumes of the play requests coalesced into
+	 * {@code lastPlayback}, including its own.
+	 */
+	private double coalescedPower;
+	/**
+	 * The sum of the squared volumes of the play requests coalesced while a
+	 * start was pending, which the next {@code Playback} to start takes on.
+	 */
+	private double pendingPower;
+	/**
+	 * The number of play requests that were coalesced or dropped rather than
+	 * starting a new {@code Playback}.
+	 */
+	private long numSuppressedPlays;
+	/**
+	 * The number of play requests admitted by {@code checkTrigger} whose
+	 * {@code Playback} has not been started yet. They count against
+	 * {@code maxInstances}, so that concurrent requests cannot exceed it, and
+	 * absorb requests like an active {@code Playback}, so that no request
+	 * waits for them.
+	 */
+	private int pendingStarts;
+	/**
+	 * The measured loudness of the audio data, or {@code null} if it has not
+	 * been measured yet. Set by the {@code Normalizer}.
+	 */
+	volatile Loudness loudness;
+	/**
+	 * {@code Logger} for the {@code Audio} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(Audio.class
+			.getName());
+
+	/**
+	 * Creates a new {@code Audio} without a source, and registers its
+	 * resources. For subclasses outside this package, which set
+	 * {@code fileURL} or {@code name} themselves and supply the audio data of
+	 * their {@code Playbacks}.
+	 */
+	protected Audio() {
+		resources = new AudioResources(this, getClass().getSimpleName());
+	}
+
+	/**
+	 * Creates a new {@code Audio} whose audio data comes from the specified
+	 * source, and registers its resources.
+	 * 
+	 * @param source
+	 *            The source of the audio data.
+	 */
+	Audio(AudioSource source) {
+		this.source = source;
+		this.fileURL = source.getURL();
+		this.name = source.getName();
+		resources = new AudioResources(this, getClass().getSimpleName() + " "
+				+ getFileName());
+	}
 
 	/**
 	 * Play this {@code Audio} once at the default volume.
 	 * 
 	 * @return A new {@code Playback} instance that represents one play of this
-	 *         {@code Audio} at the default volume.
+	 *         {@code Audio} at the default volume. Returns {@code null} if the
+	 *         request was suppressed by the instance limits (see {@link
+	 *         #setMaxInstances}) or this {@code Audio} has been closed.
 	 */
 	public abstract Playback play();
 
@@ -46,7 +158,9 @@ public abstract class Audio {
 	 *            The default volume is 1.0.
 	 * 
 	 * @return A new {@code Playback} instance that represents one play of this
-	 *         {@code Audio} at the specified volume.
+	 *         {@code Audio} at the specified volume. Returns {@code null} if
+	 *         the request was suppressed by the instance limits (see {@link
+	 *         #setMaxInstances}) or this {@code Audio} has been closed.
 	 */
 	public abstract Playback play(double volume);
 
@@ -59,6 +173,9 @@ public abstract class Audio {
 	 * 
 	 * @return A new {@code Playback} instance that represents numLoops
 	 *         consecutive plays of this {@code Audio} at the default volume.
+	 *         Returns {@code null} if the request was suppressed by the
+	 *         instance limits (see {@link #setMaxInstances}) or this {@code
+	 *         Audio} has been closed.
 	 */
 	public abstract Playback play(int numLoops);
 
@@ -74,6 +191,9 @@ public abstract class Audio {
 	 * 
 	 * @return A new {@code Playback} instance that represents numLoops
 	 *         consecutive plays of this {@code Audio} at the specified volume.
+	 *         Returns {@code null} if the request was suppressed by the
+	 *         instance limits (see {@link #setMaxInstances}) or this {@code
+	 *         Audio} has been closed.
 	 */
 	public abstract Playback play(double volume, int numLoops);
 
@@ -89,11 +209,15 @@ public abstract class Audio {
 
 	/**
 	 * Get the filename and extension (not the complete path) of the audio file
-	 * associated with this {@code Audio} object.
+	 * associated with this {@code Audio} object. For an {@code Audio} that is
+	 * not based on a file with a {@code URL}, its name is returned instead.
 	 * 
 	 * @return The audio file's name.
 	 */
 	public String getFileName() {
+		if (fileURL == null) {
+			return name;
+		}
 		String s = fileURL.getFile().substring(
 				fileURL.getFile().lastIndexOf(File.separator) + 1);
 		return s.replaceAll("%20", " ");
@@ -109,6 +233,307 @@ public abstract class Audio {
 		return numPlaybacks;
 	}
 
+	/**
+	 * Get the number of bytes of decoded audio data held in memory by this
+	 * {@code Audio}.
+	 * 
+	 * @return The memory usage in bytes.
+	 */
+	public long getMemoryUsage() {
+		return 0;
+	}
+
+	/**
+	 * Assign this {@code Audio} to a bus. Its {@code Playbacks}, including
+	 * those already playing, are mixed into the bus and scaled by its volume.
+	 * 
+	 * @param bus
+	 *            The bus, or {@code null} for {@code Bus.MASTER} (the
+	 *            default).
+	 */
+	public void setBus(Bus bus) {
+		this.bus = (bus == null) ? Bus.MASTER : bus;
+		MixEngine.getInstance().voicesChanged();
+	}
+
+	/**
+	 * Get the bus this {@code Audio} is assigned to.
+	 * 
+	 * @return The bus.
+	 */
+	public Bus getBus() {
+		return bus;
+	}
+
+	/**
+	 * Get the number of {@code Playback} instances of this {@code Audio} that
+	 * have been started and have not yet stopped.
+	 * 
+	 * @return The number of active {@code Playbacks}.
+	 */
+	public int getNumActivePlaybacks() {
+		return resources.getActiveCount();
+	}
+
+	/**
+	 * Close this {@code Audio}: stop all of its {@code Playbacks} and release
+	 * the resources it holds. Further play requests are refused. Calling this
+	 * more than once has no further effect.
+	 */
+	@Override
+	public void close() {
+		if (!resources.isClosed()) {
+			logger.info("Closing " + this);
+		}
+		resources.close();
+	}
+
+	/**
+	 * Whether this {@code Audio} has been closed, either by {@code close} or
+	 * by {@link QwickSound#shutdown(java.time.Duration)}.
+	 * 
+	 * @return {@code true} if this {@code Audio} has been closed.
+	 */
+	public boolean isClosed() {
+		return resources.isClosed();
+	}
+
+	/**
+	 * Set the maximum number of {@code Playbacks} of this {@code Audio} that
+	 * may be active at once. While the limit is reached, play requests are
+	 * dropped and return {@code null}. Starts that have been admitted but
+	 * have not begun yet count against the limit.
+	 * 
+	 * @param maxInstances
+	 *            The maximum number of concurrent {@code Playbacks}, or 0 for
+	 *            no limit (the default).
+	 */
+	public void setMaxInstances(int maxInstances) {
+		this.maxInstances = Math.max(0, maxInstances);
+	}
+
+	/**
+	 * Get the maximum number of {@code Playbacks} of this {@code Audio} that
+	 * may be active at once.
+	 * 
+	 * @return The maximum number of concurrent {@code Playbacks}, or 0 for no
+	 *         limit.
+	 */
+	public int getMaxInstances() {
+		return maxInstances;
+	}
+
+	/**
+	 * Set the minimum time between the starts of two {@code Playbacks} of
+	 * this {@code Audio}. Play requests that arrive sooner are dropped and
+	 * return {@code null}.
+	 * 
+	 * @param seconds
+	 *            The minimum retrigger interval in seconds. The default is 0.
+	 */
+	public void setMinRetriggerInterval(double seconds) {
+		minRetriggerNanos = (long) (Math.max(0.0, seconds) * 1.0e9);
+	}
+
+	/**
+	 * Get the minimum time between the starts of two {@code Playbacks} of
+	 * this {@code Audio}.
+	 * 
+	 * @return The minimum retrigger interval in seconds.
+	 */
+	public double getMinRetriggerInterval() {
+		return minRetriggerNanos / 1.0e9;
+	}
+
+	/**
+	 * Set the window within which play requests are coalesced. A play request
+	 * that arrives within this window of the start of the most recent
+	 * {@code Playback}, while that {@code Playback} is still active or has yet
+	 * to begin, does not start a new {@code Playback}. Instead, the volume of
+	 * that {@code Playback} is raised to the combined (power-summed) volume of
+	 * the coalesced requests, and {@code null} is returned, so that the caller
+	 * cannot stop or change a {@code Playback} another request started.
+	 * 
+	 * @param seconds
+	 *            The coalescing window in seconds. The default is 0, which
+	 *            disables coalescing.
+	 */
+	public void setCoalesceWindow(double seconds) {
+		coalesceWindowNanos = (long) (Math.max(0.0, seconds) * 1.0e9);
+	}
+
+	/**
+	 * Get the window within which play requests are coalesced.
+	 * 
+	 * @return The coalescing window in seconds.
+	 */
+	public double getCoalesceWindow() {
+		return coalesceWindowNanos / 1.0e9;
+	}
+
+	/**
+	 * Get the number of play requests that were coalesced or dropped by this
+	 * {@code Audio's} instance limits instead of starting a new
+	 * {@code Playback}.
+	 * 
+	 * @return The number of suppressed play requests.
+	 */
+	public synchronized long getNumSuppressedPlays() {
+		return numSuppressedPlays;
+	}
+
+	/**
+	 * Apply the instance limits of this {@code Audio} to a play request. This
+	 * is called at the start of {@code startPlayback}, before anything is
+	 * allocated. It never blocks: a request is either admitted or dropped at
+	 * once. A request that is admitted must be followed by a call to either
+	 * {@code playbackStarted} or {@code triggerRefused}.
+	 * 
+	 * @param volume
+	 *            The volume of the play request. A non-finite volume counts
+	 *            as the default volume.
+	 * 
+	 * @return {@code true} if a new {@code Playback} should be started,
+	 *         {@code false} if the request was coalesced or dropped.
+	 */
+	protected synchronized boolean checkTrigger(double volume) {
+		volume = finiteVolume(volume);
+		long now = System.nanoTime();
+		Playback last = lastPlayback;
+		boolean pending = pendingStarts > 0;
+		if (last != null || pending) {
+			long elapsed = now - lastStartTime;
+			if (elapsed < coalesceWindowNanos
+					&& (pending || last.getState() != Playback.State.STOPPED)) {
+				if (pending) {
+					pendingPower += volume * volume;
+				} else {
+					coalescedPower += volume * volume;
+					last.setVolume(Math.sqrt(coalescedPower));
+				}
+				numSuppressedPlays++;
+				return false;
+			}
+			if (elapsed < minRetriggerNanos
+					|| (maxInstances > 0 && resources.getActiveCount()
+							+ pendingStarts >= maxInstances)) {
+				numSuppressedPlays++;
+				return false;
+			}
+		}
+		pendingStarts++;
+		lastStartTime = now;
+		return true;
+	}
+
+	/**
+	 * Record that a play request admitted by {@code checkTrigger} is not
+	 * started after all, e.g. because this {@code Audio} has been closed.
+	 */
+	protected synchronized void triggerRefused() {
+		pendingStarts--;
+	}
+
+	/**
+	 * Record that a {@code Playback} of this {@code Audio} is being started.
+	 * This must be called before the {@code Playback} is started.
+	 * 
+	 * @param playback
+	 *            The {@code Playback} being started.
+	 * @param volume
+	 *            The volume it is being started at. A non-finite volume
+	 *            counts as the default volume.
+	 * 
+	 * @return The volume to start it at, raised by the requests coalesced
+	 *         while it was pending.
+	 */
+	protected synchronized double playbackStarted(Playback playback,
+			double volume) {
+		volume = finiteVolume(volume);
+		resources.started(playback);
+		pendingStarts--;
+		lastPlayback = playback;
+		playback.triggerTime = System.nanoTime();
+		coalescedPower = volume * volume + pendingPower;
+		pendingPower = 0.0;
+		return Math.sqrt(coalescedPower);
+	}
+
+	/**
+	 * Replace a non-finite play volume with the default volume, so that it
+	 * cannot spread to the combined volume of coalesced requests.
+	 * 
+	 * @param volume
+	 *            The volume of a play request.
+	 * 
+	 * @return The volume, or {@code QwickSound.DEFAULT_VOLUME} if it is
+	 *         {@code NaN} or infinite.
+	 */
+	private static double finiteVolume(double volume) {
+		if (Double.isNaN(volume) || Double.isInfinite(volume)) {
+			return QwickSound.DEFAULT_VOLUME;
+		}
+		return volume;
+	}
+
+	/**
+	 * Release the decoded audio data this {@code Audio} holds against the
+	 * memory budget, if it is idle. Called by the {@code MemoryBudget} to
+	 * make room; must never block.
+	 * 
+	 * @return {@code true} if the data was released.
+	 */
+	boolean evict() {
+		return false;
+	}
+
+	/**
+	 * Record that a started {@code Playback} of this {@code Audio} has
+	 * stopped. Called by {@code Playback.setStopped}.
+	 * 
+	 * @param playback
+	 *            The {@code Playback} that stopped.
+	 */
+	protected void playbackStopped(Playback playback) {
+		resources.stopped(playback);
+	}
+
+	/**
+	 * Get the integrated loudness of this {@code Audio}, measured according to
+	 * ITU-R BS.1770 when its audio data was decoded or, for streaming audio,
+	 * by a background pass.
+	 * 
+	 * @return The loudness in LUFS, negative infinity if the audio is silent,
+	 *         or {@code NaN} if it has not been measured yet.
+	 */
+	public double getLoudness() {
+		Loudness loudness = this.loudness;
+		return (loudness == null) ? Double.NaN : loudness.getIntegrated();
+	}
+
+	/**
+	 * Get the sample peak of this {@code Audio}.
+	 * 
+	 * @return The largest absolute sample value, from 0 to 1, or {@code NaN}
+	 *         if it has not been measured yet.
+	 */
+	public double getPeak() {
+		Loudness loudness = this.loudness;
+		return (loudness == null) ? Double.NaN : loudness.getPeak();
+	}
+
+	/**
+	 * Get the gain that new {@code Playbacks} of this {@code Audio} are
+	 * scaled by, on top of their volume, to bring it to the normalization
+	 * target (see {@link QwickSound#setNormalizationTarget}).
+	 * 
+	 * @return The gain, or 1.0 if normalization is disabled or the loudness
+	 *         has not been measured yet.
+	 */
+	public double getNormalizationGain() {
+		return Normalizer.gain(loudness);
+	}
+
 	/**
 	 * Shutdown the {@code Audio's ExecutorService} in an orderly manner,
 	 * rejecting new {@code play} requests while allowing any currently playing
@@ -121,4 +546,28 @@ public abstract class Audio {
 			exec.shutdown();
 		}
 	}
+
+	/**
+	 * Wait for the threads that run {@code Playback} objects, and the render
+	 * thread, to terminate after {@code shutdown} has been called.
+	 * 
+	 * @param deadline
+	 *            The time, from {@code System.nanoTime()}, at which to give
+	 *            up.
+	 * 
+	 * @return {@code true} if all threads terminated before the deadline.
+	 */
+	static boolean awaitTermination(long deadline) {
+		try {
+			if (exec != null
+					&& !exec.awaitTermination(deadline - System.nanoTime(),
+							TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+			return RenderThread.join(deadline);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
 }
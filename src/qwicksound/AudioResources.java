@@ -0,0 +1,254 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Tracks what an {@code Audio} holds open: its active {@code Playback}s, the
+ * stream pre-opened for its next {@code StreamingPlayback}, and the streams
+ * being decoded by its running {@code StreamingPlayback}s.
+ * <p>
+ * Every {@code AudioResources} is registered with a {@code Cleaner}, and is
+ * released either when its {@code Audio} is closed or, if it never is, once
+ * the {@code Audio} has become unreachable. The latter is logged as a leak.
+ * Since the {@code Cleaner} must not reach the {@code Audio} itself, this
+ * class only refers to the {@code Audio} through its active
+ * {@code Playback}s, which keep it alive while they play anyway.
+ * <p>
+ * The {@code AudioResources} of all unreleased {@code Audio} are kept in a
+ * registry, which is used to stop everything on shutdown and to list what is
+ * still open (see {@link QwickSound#getOpenResources}).
+ *
+ * @author Christian Holton
+ *
+ */
+final class AudioResources implements Runnable {
+
+	/**
+	 * Releases the resources of unreachable {@code Audio}.
+	 */
+	private static final Cleaner cleaner = Cleaner.create();
+	/**
+	 * The resources of all {@code Audio} that have not been released.
+	 */
+	private static final Set<AudioResources> open = ConcurrentHashMap
+			.newKeySet();
+	/**
+	 * Describes the {@code Audio}, e.g. {@code "StreamingAudio music.ogg"}.
+	 */
+	private final String description;
+	/**
+	 * The {@code Playback}s that have been started and have not yet stopped.
+	 */
+	private final Set<Playback> playbacks = ConcurrentHashMap.newKeySet();
+	/**
+	 * The number of streams being decoded by running
+	 * {@code StreamingPlayback}s.
+	 */
+	private final AtomicInteger decodingStreams = new AtomicInteger();
+	/**
+	 * The stream pre-opened for the next {@code StreamingPlayback}, or
+	 * {@code null}. Guarded by {@code this}.
+	 */
+	private AudioInputStream preparedStream;
+	/**
+	 * Whether the resources have been released. Guarded by {@code this}.
+	 */
+	private boolean released;
+	/**
+	 * Whether the {@code Audio} has been closed.
+	 */
+	private volatile boolean closed;
+	/**
+	 * The registration with the {@code Cleaner}.
+	 */
+	private final Cleaner.Cleanable cleanable;
+	/**
+	 * {@code Logger} for the {@code AudioResources} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(AudioResources.class
+			.getName());
+
+	/**
+	 * Creates a new {@code AudioResources} and registers it.
+	 *
+	 * @param audio
+	 *            The {@code Audio} whose resources are tracked.
+	 * @param description
+	 *            Describes the {@code Audio}.
+	 */
+	AudioResources(Audio audio, String description) {
+		this.description = description;
+		open.add(this);
+		cleanable = cleaner.register(audio, this);
+	}
+
+	/**
+	 * Record that a {@code Playback} has been started.
+	 *
+	 * @param playback
+	 *            The {@code Playback}.
+	 */
+	void started(Playback playback) {
+		playbacks.add(playback);
+	}
+
+	/**
+	 * Record that a started {@code Playback} has stopped.
+	 *
+	 * @param playback
+	 *            The {@code Playback}.
+	 */
+	void stopped(Playback playback) {
+		playbacks.remove(playback);
+	}
+
+	/**
+	 * Get the number of {@code Playback}s that have been started and have
+	 * not yet stopped.
+	 *
+	 * @return The number of active {@code Playback}s.
+	 */
+	int getActiveCount() {
+		return playbacks.size();
+	}
+
+	/**
+	 * Hand over the stream pre-opened for the next {@code StreamingPlayback}.
+	 * The previous one now belongs to a running {@code StreamingPlayback},
+	 * which closes it itself. If the resources have already been released,
+	 * the stream is closed at once.
+	 *
+	 * @param stream
+	 *            The stream, or {@code null}.
+	 */
+	synchronized void setPreparedStream(AudioInputStream stream) {
+		if (released) {
+			close(stream);
+			return;
+		}
+		preparedStream = stream;
+	}
+
+	/**
+	 * Record that a {@code StreamingPlayback} has started decoding.
+	 */
+	void decodingStarted() {
+		decodingStreams.incrementAndGet();
+	}
+
+	/**
+	 * Record that a {@code StreamingPlayback} has closed its stream.
+	 */
+	void decodingStopped() {
+		decodingStreams.decrementAndGet();
+	}
+
+	/**
+	 * Whether the {@code Audio} has been closed, or its resources released
+	 * by {@code closeAll}.
+	 *
+	 * @return {@code true} if it has been closed.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stop all active {@code Playback}s and release the resources. Calling
+	 * this more than once has no further effect.
+	 */
+	void close() {
+		closed = true;
+		for (Playback playback : playbacks) {
+			playback.stop();
+		}
+		cleanable.clean();
+	}
+
+	/**
+	 * Release the resources. Run once, either by {@code close} or by the
+	 * {@code Cleaner} once the {@code Audio} has become unreachable.
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			released = true;
+			close(preparedStream);
+			preparedStream = null;
+		}
+		open.remove(this);
+		if (!closed) {
+			logger.warning(description + " became unreachable without being"
+					+ " closed. Its resources were released by the cleaner.");
+		}
+	}
+
+	/**
+	 * Describe what the {@code Audio} holds open.
+	 *
+	 * @return The description.
+	 */
+	@Override
+	public String toString() {
+		int streams = decodingStreams.get();
+		synchronized (this) {
+			if (preparedStream != null) {
+				streams++;
+			}
+		}
+		return description + ": " + playbacks.size() + " active playbacks, "
+				+ streams + " open streams";
+	}
+
+	/**
+	 * Describe what every {@code Audio} that has not been closed holds open.
+	 *
+	 * @return One description per {@code Audio}.
+	 */
+	static List<String> report() {
+		List<String> report = new ArrayList<String>();
+		for (AudioResources resources : open) {
+			report.add(resources.toString());
+		}
+		return report;
+	}
+
+	/**
+	 * Close the resources of every {@code Audio}, stopping all of their
+	 * {@code Playback}s.
+	 */
+	static void closeAll() {
+		for (AudioResources resources : open) {
+			resources.close();
+		}
+	}
+
+	/**
+	 * Close a stream, logging any failure.
+	 *
+	 * @param stream
+	 *            The stream, or {@code null}.
+	 */
+	private static void close(AudioInputStream stream) {
+		if (stream == null) {
+			return;
+		}
+		try {
+			stream.close();
+		} catch (IOException ex) {
+			logger.warning("Could not close a pre-opened audio stream.");
+			ex.printStackTrace();
+		}
+	}
+}
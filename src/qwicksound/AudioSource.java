@@ -0,0 +1,468 @@
+package qwicksound;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Where the audio data of an {@code Audio} comes from. A {@code AudioSource}
+ * can open a decoded {@code AudioInputStream} of its data, as
+ * {@code StreamingAudio} does for every play, and can load all of its data as
+ * {@code PcmData}, as {@code PreloadedAudio} does.
+ *
+ * @author Christian Holton
+ *
+ */
+abstract class AudioSource {
+
+	/**
+	 * {@code Logger} for the {@code AudioSource} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(AudioSource.class
+			.getName());
+
+	/**
+	 * Get the name of the audio, which includes its file extension.
+	 *
+	 * @return The name.
+	 */
+	abstract String getName();
+
+	/**
+	 * Get the {@code URL} of the audio file, if there is one.
+	 *
+	 * @return The {@code URL}, or {@code null}.
+	 */
+	URL getURL() {
+		return null;
+	}
+
+	/**
+	 * Open a stream of the audio data, decoded to PCM.
+	 *
+	 * @return The stream, or {@code null} if it could not be opened.
+	 */
+	abstract AudioInputStream open();
+
+	/**
+	 * Whether {@code open} and {@code loadPcm} may be called more than once.
+	 *
+	 * @return {@code true} if the source can be read repeatedly.
+	 */
+	boolean isReopenable() {
+		return true;
+	}
+
+	/**
+	 * Load all of the audio data in the canonical PCM format.
+	 *
+	 * @param limit
+	 *            The maximum number of bytes to load.
+	 *
+	 * @return The audio data, or {@code null} if it is larger than
+	 *         {@code limit} or could not be read.
+	 */
+	PcmData loadPcm(long limit) {
+		AudioInputStream audioInStream = null;
+		if (SegmentedDecoder.isEnabled() && SegmentedDecoder.handles(getName())) {
+			ByteBuffer data = encodedData();
+			if (data != null) {
+				PcmData pcm = SegmentedDecoder.decode(data.duplicate(),
+						getName(), limit);
+				if (pcm == SegmentedDecoder.TOO_LARGE) {
+					return null;
+				}
+				if (pcm != null) {
+					return pcm;
+				}
+				// Decode the data at hand on one thread rather than reading
+				// the file again.
+				audioInStream = QwickSound.acquireAudioInputStream(
+						new ByteBufferInputStream(data), getName());
+			}
+		}
+		if (audioInStream == null) {
+			audioInStream = open();
+		}
+		if (audioInStream == null) {
+			return null;
+		}
+		audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+		return PreloadedAudio.readData(audioInStream,
+				estimateDecodedSize(audioInStream), limit);
+	}
+
+	/**
+	 * Get the encoded audio file data as a whole, so that it can be decoded
+	 * in segments.
+	 *
+	 * @return The data, or {@code null} if it is not at hand.
+	 */
+	ByteBuffer encodedData() {
+		return null;
+	}
+
+	/**
+	 * Estimate the number of bytes the decoded audio data will occupy.
+	 *
+	 * @param audioInStream
+	 *            The decoded stream of the audio.
+	 *
+	 * @return The estimated size in bytes, or -1 if it is unknown.
+	 */
+	long estimateDecodedSize(AudioInputStream audioInStream) {
+		long frameLength = audioInStream.getFrameLength();
+		if (frameLength == AudioSystem.NOT_SPECIFIED) {
+			return -1;
+		}
+		return frameLength * audioInStream.getFormat().getFrameSize();
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Create a source for the audio file with the specified {@code URL}. HTTP
+	 * and HTTPS files are downloaded ahead of the decoder by an
+	 * {@code HttpSource}.
+	 *
+	 * @param fileURL
+	 *            The audio file's {@code URL}.
+	 *
+	 * @return The source.
+	 */
+	static AudioSource of(URL fileURL) {
+		if (HttpSource.handles(fileURL)) {
+			return new HttpSource(fileURL);
+		}
+		return new UrlSource(fileURL);
+	}
+
+	/**
+	 * Create a source for the audio file at the specified path.
+	 *
+	 * @param path
+	 *            The audio file's path.
+	 *
+	 * @return The source.
+	 */
+	static AudioSource of(Path path) {
+		return new PathSource(path);
+	}
+
+	/**
+	 * Create a source for audio file data held in a buffer. The buffer is
+	 * not copied and must not be modified afterwards.
+	 *
+	 * @param data
+	 *            The audio file data, between the buffer's position and limit.
+	 * @param name
+	 *            The name of the audio, which includes its file extension.
+	 *
+	 * @return The source.
+	 */
+	static AudioSource of(ByteBuffer data, String name) {
+		return new BufferSource(data, name);
+	}
+
+	/**
+	 * Create a source that reads audio file data once from a stream.
+	 *
+	 * @param in
+	 *            The stream of audio file data.
+	 * @param name
+	 *            The name of the audio, which includes its file extension.
+	 *
+	 * @return The source.
+	 */
+	static AudioSource of(InputStream in, String name) {
+		return new StreamSource(in, name);
+	}
+
+	/**
+	 * An audio file with a {@code URL}, e.g. a classpath resource.
+	 */
+	private static final class UrlSource extends AudioSource {
+
+		/**
+		 * The audio file's {@code URL}.
+		 */
+		private final URL fileURL;
+
+		/**
+		 * Creates a new {@code UrlSource}.
+		 *
+		 * @param fileURL
+		 *            The audio file's {@code URL}.
+		 */
+		UrlSource(URL fileURL) {
+			this.fileURL = fileURL;
+		}
+
+		@Override
+		String getName() {
+			String s = fileURL.getFile().substring(
+					fileURL.getFile().lastIndexOf('/') + 1);
+			return s.replaceAll("%20", " ");
+		}
+
+		@Override
+		URL getURL() {
+			return fileURL;
+		}
+
+		@Override
+		AudioInputStream open() {
+			return QwickSound.acquireAudioInputStream(fileURL);
+		}
+
+		@Override
+		ByteBuffer encodedData() {
+			try {
+				URLConnection connection = fileURL.openConnection();
+				long length = connection.getContentLengthLong();
+				if (length >= 0 && SegmentedDecoder.segmentCount(length) < 2) {
+					// Too short to be worth reading twice.
+					return null;
+				}
+				ByteArrayOutputStream byteOutStream = new ByteArrayOutputStream(
+						(int) Math.max(0, Math.min(length, Integer.MAX_VALUE)));
+				InputStream in = connection.getInputStream();
+				try {
+					byte[] buffer = new byte[8192];
+					int bytesRead;
+					while ((bytesRead = in.read(buffer)) != -1) {
+						byteOutStream.write(buffer, 0, bytesRead);
+					}
+				} finally {
+					in.close();
+				}
+				return ByteBuffer.wrap(byteOutStream.toByteArray());
+			} catch (IOException ex) {
+				logger.warning("Could not read the file \"" + fileURL + "\"");
+				ex.printStackTrace();
+				return null;
+			}
+		}
+
+		@Override
+		long estimateDecodedSize(AudioInputStream audioInStream) {
+			return QwickSound.estimateDecodedSize(fileURL, audioInStream);
+		}
+	}
+
+	/**
+	 * An audio file on the file system. WAV and AIFF files are read through a
+	 * {@code FileChannel} straight into a right-sized buffer; other formats
+	 * are decoded through Java Sound.
+	 */
+	private static final class PathSource extends AudioSource {
+
+		/**
+		 * The audio file's path.
+		 */
+		private final Path path;
+
+		/**
+		 * Creates a new {@code PathSource}.
+		 *
+		 * @param path
+		 *            The audio file's path.
+		 */
+		PathSource(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		String getName() {
+			return path.getFileName().toString();
+		}
+
+		@Override
+		URL getURL() {
+			try {
+				return path.toUri().toURL();
+			} catch (MalformedURLException ex) {
+				return null;
+			}
+		}
+
+		@Override
+		AudioInputStream open() {
+			File file = path.toFile();
+			try {
+				return FormatResolver.toPCM(FormatResolver.open(file));
+			} catch (UnsupportedAudioFileException ex) {
+				logger.warning("The audio format of the file \"" + path
+						+ "\" could not be recognized.");
+				ex.printStackTrace();
+			} catch (IOException ex) {
+				logger.warning("Could not aquire an AudioInputStream for the "
+						+ "file \"" + path + "\"");
+				ex.printStackTrace();
+			}
+			return null;
+		}
+
+		@Override
+		ByteBuffer encodedData() {
+			try {
+				FileChannel channel = FileChannel.open(path,
+						StandardOpenOption.READ);
+				try {
+					if (channel.size() > Integer.MAX_VALUE) {
+						return null;
+					}
+					return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							channel.size());
+				} finally {
+					channel.close();
+				}
+			} catch (IOException ex) {
+				logger.warning("Could not map the file \"" + path + "\"");
+				ex.printStackTrace();
+				return null;
+			}
+		}
+
+		@Override
+		PcmData loadPcm(long limit) {
+			try {
+				FileChannel channel = FileChannel.open(path,
+						StandardOpenOption.READ);
+				try {
+					PcmData pcm = PcmFileReader.read(channel, limit);
+					if (pcm != null) {
+						return pcm;
+					}
+				} finally {
+					channel.close();
+				}
+			} catch (IOException ex) {
+				logger.warning("Could not read the file \"" + path + "\"");
+				ex.printStackTrace();
+				return null;
+			}
+			// Not a plain PCM file. Decode it instead.
+			return super.loadPcm(limit);
+		}
+	}
+
+	/**
+	 * Audio file data held in a {@code ByteBuffer}.
+	 */
+	private static final class BufferSource extends AudioSource {
+
+		/**
+		 * The audio file data.
+		 */
+		private final ByteBuffer data;
+		/**
+		 * The name of the audio.
+		 */
+		private final String name;
+
+		/**
+		 * Creates a new {@code BufferSource}.
+		 *
+		 * @param data
+		 *            The audio file data.
+		 * @param name
+		 *            The name of the audio.
+		 */
+		BufferSource(ByteBuffer data, String name) {
+			this.data = data.slice();
+			this.name = name;
+		}
+
+		@Override
+		String getName() {
+			return name;
+		}
+
+		@Override
+		AudioInputStream open() {
+			return QwickSound.acquireAudioInputStream(new ByteBufferInputStream(
+					data), name);
+		}
+
+		@Override
+		ByteBuffer encodedData() {
+			return data.duplicate();
+		}
+
+		@Override
+		PcmData loadPcm(long limit) {
+			PcmData pcm = PcmFileReader.read(data.duplicate(), limit);
+			return (pcm != null) ? pcm : super.loadPcm(limit);
+		}
+	}
+
+	/**
+	 * Audio file data that can be read only once from an
+	 * {@code InputStream}.
+	 */
+	private static final class StreamSource extends AudioSource {
+
+		/**
+		 * The stream, or {@code null} once it has been opened.
+		 */
+		private InputStream in;
+		/**
+		 * The name of the audio.
+		 */
+		private final String name;
+
+		/**
+		 * Creates a new {@code StreamSource}.
+		 *
+		 * @param in
+		 *            The stream of audio file data.
+		 * @param name
+		 *            The name of the audio.
+		 */
+		StreamSource(InputStream in, String name) {
+			this.in = in;
+			this.name = name;
+		}
+
+		@Override
+		String getName() {
+			return name;
+		}
+
+		@Override
+		synchronized AudioInputStream open() {
+			if (in == null) {
+				logger.warning("The stream of \"" + name
+						+ "\" has already been read.");
+				return null;
+			}
+			InputStream stream = in;
+			in = null;
+			return QwickSound.acquireAudioInputStream(stream, name);
+		}
+
+		@Override
+		boolean isReopenable() {
+			return false;
+		}
+	}
+}
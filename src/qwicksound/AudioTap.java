@@ -0,0 +1,357 @@
+package qwicksound;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Publishes the blocks of audio rendered for a {@code Playback} (see
+ * {@link Playback#tap}) or for the output (see {@link QwickSound#getOutputTap})
+ * for analysis, e.g. level meters or beat detection.
+ * <p>
+ * Each block is a read-only {@code FloatBuffer} of interleaved stereo
+ * samples, nominally in the range [-1.0, 1.0], between its position and
+ * limit. A block holds at most 256 frames at the output's sample rate, and
+ * is only valid until {@code onNext} returns; subscribers that keep samples
+ * must copy them.
+ * <p>
+ * The render thread never waits for subscribers. It copies each block into a
+ * ring of {@code SLOTS} preallocated buffers, which a delivery thread of the
+ * tap hands to the subscribers. If the ring is full because subscribers are
+ * slow, the block is dropped for all of them (see
+ * {@code getDroppedBlocks}); if a subscriber has no outstanding demand, the
+ * block is dropped for that subscriber only. Nothing is copied while a tap
+ * has no subscribers.
+ * <p>
+ * The tap of a {@code Playback} completes its subscribers once the
+ * {@code Playback} has stopped. A virtual {@code Playback} is not rendered,
+ * so no blocks are published for it.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class AudioTap implements Flow.Publisher<FloatBuffer> {
+
+	/**
+	 * The number of blocks the ring holds.
+	 */
+	private static final int SLOTS = 16;
+	/**
+	 * The number of channels per frame.
+	 */
+	private static final int CHANNELS = 2;
+	/**
+	 * The sample buffers of the ring.
+	 */
+	private final float[][] slots = new float[SLOTS][MixEngine.BLOCK_FRAMES
+			* CHANNELS];
+	/**
+	 * The number of samples held by each slot.
+	 */
+	private final int[] lengths = new int[SLOTS];
+	/**
+	 * The read-only views of the slots.
+	 */
+	private final FloatBuffer[] views = new FloatBuffer[SLOTS];
+	/**
+	 * The current subscriptions.
+	 */
+	private final CopyOnWriteArrayList<TapSubscription> subscriptions = new CopyOnWriteArrayList<TapSubscription>();
+	/**
+	 * The name of the delivery thread.
+	 */
+	private final String name;
+	/**
+	 * The number of blocks written to the ring by the render thread.
+	 */
+	private volatile long written;
+	/**
+	 * The number of blocks handed to the subscribers by the delivery thread.
+	 */
+	private volatile long delivered;
+	/**
+	 * The number of blocks dropped because the ring was full.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+	/**
+	 * Whether no more blocks will be published.
+	 */
+	private volatile boolean completed;
+	/**
+	 * The thread that delivers the blocks, or {@code null} before the first
+	 * subscription.
+	 */
+	private volatile Thread deliverer;
+	/**
+	 * {@code Logger} for the {@code AudioTap} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(AudioTap.class
+			.getName());
+
+	/**
+	 * A subscription to an {@code AudioTap}.
+	 */
+	private final class TapSubscription implements Flow.Subscription {
+
+		/**
+		 * The subscriber.
+		 */
+		final Flow.Subscriber<? super FloatBuffer> subscriber;
+		/**
+		 * The number of blocks requested and not yet delivered.
+		 */
+		final AtomicLong demand = new AtomicLong();
+		/**
+		 * Set once the subscription is cancelled or completed.
+		 */
+		volatile boolean done;
+		/**
+		 * Set by {@code request} with an invalid count, to be reported by
+		 * the delivery thread.
+		 */
+		volatile boolean invalidRequest;
+
+		/**
+		 * Creates a new {@code TapSubscription}.
+		 *
+		 * @param subscriber
+		 *            The subscriber.
+		 */
+		TapSubscription(Flow.Subscriber<? super FloatBuffer> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				invalidRequest = true;
+			} else {
+				long current;
+				long next;
+				do {
+					current = demand.get();
+					next = current + n;
+					if (next < 0) {
+						next = Long.MAX_VALUE;
+					}
+				} while (!demand.compareAndSet(current, next));
+			}
+			LockSupport.unpark(deliverer);
+		}
+
+		@Override
+		public void cancel() {
+			done = true;
+			subscriptions.remove(this);
+		}
+	}
+
+	/**
+	 * Creates a new {@code AudioTap}.
+	 *
+	 * @param name
+	 *            Describes what is tapped, used to name the delivery thread.
+	 */
+	AudioTap(String name) {
+		this.name = name;
+		for (int i = 0; i < SLOTS; i++) {
+			views[i] = FloatBuffer.wrap(slots[i]).asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Subscribe to the blocks published from now on. If the tap has already
+	 * completed, the subscriber is completed at once.
+	 *
+	 * @param subscriber
+	 *            The subscriber.
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super FloatBuffer> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		TapSubscription subscription = new TapSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		synchronized (this) {
+			if (completed) {
+				subscription.done = true;
+				subscriber.onComplete();
+				return;
+			}
+			subscriptions.add(subscription);
+			startDeliverer();
+		}
+	}
+
+	/**
+	 * Get the number of blocks dropped for all subscribers because they
+	 * could not keep up.
+	 *
+	 * @return The number of dropped blocks.
+	 */
+	public long getDroppedBlocks() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the sample rate of the published blocks.
+	 *
+	 * @return The number of frames per second.
+	 */
+	public float getSampleRate() {
+		return MixEngine.FORMAT.getSampleRate();
+	}
+
+	/**
+	 * Get the number of channels of the published blocks.
+	 *
+	 * @return The number of samples per frame.
+	 */
+	public int getChannels() {
+		return CHANNELS;
+	}
+
+	/**
+	 * Whether the tap has subscribers, i.e. whether blocks should be
+	 * offered.
+	 *
+	 * @return {@code true} if the tap has subscribers.
+	 */
+	boolean isActive() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Publish a block. Called by the render thread; never blocks, and
+	 * returns at once if the tap has no subscribers.
+	 *
+	 * @param block
+	 *            The interleaved stereo samples.
+	 * @param frames
+	 *            The number of frames in the block.
+	 * @param gain
+	 *            The factor the samples are scaled by as they are copied.
+	 */
+	void offer(float[] block, int frames, float gain) {
+		if (subscriptions.isEmpty() || frames <= 0) {
+			return;
+		}
+		long index = written;
+		if (index - delivered >= SLOTS) {
+			dropped.incrementAndGet();
+			return;
+		}
+		int slot = (int) (index % SLOTS);
+		float[] samples = slots[slot];
+		int length = frames * CHANNELS;
+		for (int i = 0; i < length; i++) {
+			samples[i] = block[i] * gain;
+		}
+		lengths[slot] = length;
+		written = index + 1;
+		LockSupport.unpark(deliverer);
+	}
+
+	/**
+	 * Complete the subscribers once the blocks published so far have been
+	 * delivered.
+	 */
+	void complete() {
+		completed = true;
+		LockSupport.unpark(deliverer);
+	}
+
+	/**
+	 * Start the delivery thread, if it is not running.
+	 */
+	private synchronized void startDeliverer() {
+		if (deliverer != null) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "QwickSound tap " + name);
+		thread.setDaemon(true);
+		deliverer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Hand the blocks in the ring to the subscribers until the tap has
+	 * completed.
+	 */
+	private void deliver() {
+		while (true) {
+			long index = delivered;
+			for (TapSubscription subscription : subscriptions) {
+				if (subscription.invalidRequest) {
+					subscription.cancel();
+					subscription.subscriber
+							.onError(new IllegalArgumentException(
+									"The number of requested blocks must be positive"));
+				}
+			}
+			if (index < written) {
+				int slot = (int) (index % SLOTS);
+				for (TapSubscription subscription : subscriptions) {
+					if (!subscription.done && take(subscription.demand)) {
+						FloatBuffer view = views[slot].duplicate();
+						view.limit(lengths[slot]);
+						try {
+							subscription.subscriber.onNext(view);
+						} catch (RuntimeException ex) {
+							logger.warning("A subscriber of the tap of " + name
+									+ " threw an exception and was cancelled.");
+							ex.printStackTrace();
+							subscription.cancel();
+						}
+					}
+				}
+				delivered = index + 1;
+				continue;
+			}
+			if (completed) {
+				synchronized (this) {
+					for (TapSubscription subscription : subscriptions) {
+						subscription.cancel();
+						subscription.subscriber.onComplete();
+					}
+				}
+				return;
+			}
+			LockSupport.park(this);
+		}
+	}
+
+	/**
+	 * Take one unit of demand, if there is any.
+	 *
+	 * @param demand
+	 *            The outstanding demand.
+	 *
+	 * @return {@code true} if a block may be delivered.
+	 */
+	private static boolean take(AtomicLong demand) {
+		long current;
+		do {
+			current = demand.get();
+			if (current == 0) {
+				return false;
+			}
+			if (current == Long.MAX_VALUE) {
+				// Unbounded demand.
+				return true;
+			}
+		} while (!demand.compareAndSet(current, current - 1));
+		return true;
+	}
+}
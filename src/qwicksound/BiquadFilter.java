@@ -0,0 +1,317 @@
+package qwicksound;
+
+/**
+ * A second-order IIR filter, using the coefficient formulas of Robert
+ * Bristow-Johnson's "Audio EQ Cookbook". It can be used e.g. to muffle a
+ * sound heard through a wall with a low-pass filter, instead of baking a
+ * filtered copy of the sound into a separate asset:
+ *
+ * <pre>
+ * playback.addProcessor(new BiquadFilter(BiquadFilter.Type.LOW_PASS, 800.0));
+ * </pre>
+ *
+ * The parameters may be changed from any thread while the filter is in use;
+ * the coefficients are recomputed at the start of the next block.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class BiquadFilter implements Processor {
+
+	/**
+	 * The shapes of filter.
+	 */
+	public enum Type {
+		/**
+		 * Passes frequencies below the cutoff.
+		 */
+		LOW_PASS,
+		/**
+		 * Passes frequencies above the cutoff.
+		 */
+		HIGH_PASS,
+		/**
+		 * Passes frequencies around the center frequency.
+		 */
+		BAND_PASS,
+		/**
+		 * Rejects frequencies around the center frequency.
+		 */
+		NOTCH,
+		/**
+		 * Boosts or cuts frequencies around the center frequency by
+		 * {@code gain} decibels.
+		 */
+		PEAK,
+		/**
+		 * Boosts or cuts frequencies below the corner frequency.
+		 */
+		LOW_SHELF,
+		/**
+		 * Boosts or cuts frequencies above the corner frequency.
+		 */
+		HIGH_SHELF
+	}
+
+	/**
+	 * The shape of this filter.
+	 */
+	private volatile Type type;
+	/**
+	 * The cutoff, center or corner frequency in Hz.
+	 */
+	private volatile double frequency;
+	/**
+	 * The quality factor.
+	 */
+	private volatile double q = Math.sqrt(0.5);
+	/**
+	 * The gain in decibels of peak and shelf filters.
+	 */
+	private volatile double gain;
+	/**
+	 * Set when a parameter changes so that the coefficients are recomputed.
+	 */
+	private volatile boolean dirty = true;
+	/**
+	 * The normalized coefficients.
+	 */
+	private float b0, b1, b2, a1, a2;
+	/**
+	 * The state of the left and right channels (transposed direct form II).
+	 */
+	private float z1L, z2L, z1R, z2R;
+
+	/**
+	 * Creates a new {@code BiquadFilter} with a Q of 0.707 (a Butterworth
+	 * response for low- and high-pass filters) and no gain.
+	 *
+	 * @param type
+	 *            The shape of the filter.
+	 * @param frequency
+	 *            The cutoff, center or corner frequency in Hz.
+	 */
+	public BiquadFilter(Type type, double frequency) {
+		this.type = type;
+		this.frequency = frequency;
+	}
+
+	/**
+	 * Creates a new {@code BiquadFilter}.
+	 *
+	 * @param type
+	 *            The shape of the filter.
+	 * @param frequency
+	 *            The cutoff, center or corner frequency in Hz.
+	 * @param q
+	 *            The quality factor. Higher values give a narrower band or a
+	 *            more resonant cutoff.
+	 * @param gain
+	 *            The gain in decibels of peak and shelf filters.
+	 */
+	public BiquadFilter(Type type, double frequency, double q, double gain) {
+		this.type = type;
+		this.frequency = frequency;
+		this.q = q;
+		this.gain = gain;
+	}
+
+	/**
+	 * Set the shape of this filter.
+	 *
+	 * @param type
+	 *            The shape.
+	 */
+	public void setType(Type type) {
+		this.type = type;
+		dirty = true;
+	}
+
+	/**
+	 * Get the shape of this filter.
+	 *
+	 * @return The shape.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Set the cutoff, center or corner frequency of this filter.
+	 *
+	 * @param frequency
+	 *            The frequency in Hz.
+	 */
+	public void setFrequency(double frequency) {
+		this.frequency = frequency;
+		dirty = true;
+	}
+
+	/**
+	 * Get the cutoff, center or corner frequency of this filter.
+	 *
+	 * @return The frequency in Hz.
+	 */
+	public double getFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * Set the quality factor of this filter.
+	 *
+	 * @param q
+	 *            The quality factor.
+	 */
+	public void setQ(double q) {
+		this.q = q;
+		dirty = true;
+	}
+
+	/**
+	 * Get the quality factor of this filter.
+	 *
+	 * @return The quality factor.
+	 */
+	public double getQ() {
+		return q;
+	}
+
+	/**
+	 * Set the gain of a peak or shelf filter.
+	 *
+	 * @param gain
+	 *            The gain in decibels.
+	 */
+	public void setGain(double gain) {
+		this.gain = gain;
+		dirty = true;
+	}
+
+	/**
+	 * Get the gain of a peak or shelf filter.
+	 *
+	 * @return The gain in decibels.
+	 */
+	public double getGain() {
+		return gain;
+	}
+
+	@Override
+	public void process(float[] samples, int frames) {
+		if (dirty) {
+			dirty = false;
+			computeCoefficients();
+		}
+		float b0 = this.b0, b1 = this.b1, b2 = this.b2;
+		float a1 = this.a1, a2 = this.a2;
+		float z1L = this.z1L, z2L = this.z2L, z1R = this.z1R, z2R = this.z2R;
+		for (int i = 0, j = 0; i < frames; i++, j += 2) {
+			float inL = samples[j];
+			float outL = b0 * inL + z1L;
+			z1L = b1 * inL - a1 * outL + z2L;
+			z2L = b2 * inL - a2 * outL;
+			samples[j] = outL;
+
+			float inR = samples[j + 1];
+			float outR = b0 * inR + z1R;
+			z1R = b1 * inR - a1 * outR + z2R;
+			z2R = b2 * inR - a2 * outR;
+			samples[j + 1] = outR;
+		}
+		// Flush denormals, which are very slow on some processors.
+		this.z1L = Math.abs(z1L) < 1.0e-20f ? 0.0f : z1L;
+		this.z2L = Math.abs(z2L) < 1.0e-20f ? 0.0f : z2L;
+		this.z1R = Math.abs(z1R) < 1.0e-20f ? 0.0f : z1R;
+		this.z2R = Math.abs(z2R) < 1.0e-20f ? 0.0f : z2R;
+	}
+
+	@Override
+	public void reset() {
+		z1L = z2L = z1R = z2R = 0.0f;
+	}
+
+	@Override
+	public String toString() {
+		return "BiquadFilter " + type + " " + frequency + " Hz";
+	}
+
+	/**
+	 * Compute the coefficients from the parameters.
+	 */
+	private void computeCoefficients() {
+		double sampleRate = MixEngine.FORMAT.getSampleRate();
+		double f = Math.max(1.0, Math.min(frequency, sampleRate * 0.49));
+		double w0 = 2.0 * Math.PI * f / sampleRate;
+		double cos = Math.cos(w0);
+		double alpha = Math.sin(w0) / (2.0 * Math.max(q, 0.01));
+		double a = Math.pow(10.0, gain / 40.0);
+		double nb0, nb1, nb2, na0, na1, na2;
+		switch (type) {
+		case LOW_PASS:
+			nb0 = (1.0 - cos) / 2.0;
+			nb1 = 1.0 - cos;
+			nb2 = nb0;
+			na0 = 1.0 + alpha;
+			na1 = -2.0 * cos;
+			na2 = 1.0 - alpha;
+			break;
+		case HIGH_PASS:
+			nb0 = (1.0 + cos) / 2.0;
+			nb1 = -(1.0 + cos);
+			nb2 = nb0;
+			na0 = 1.0 + alpha;
+			na1 = -2.0 * cos;
+			na2 = 1.0 - alpha;
+			break;
+		case BAND_PASS:
+			nb0 = alpha;
+			nb1 = 0.0;
+			nb2 = -alpha;
+			na0 = 1.0 + alpha;
+			na1 = -2.0 * cos;
+			na2 = 1.0 - alpha;
+			break;
+		case NOTCH:
+			nb0 = 1.0;
+			nb1 = -2.0 * cos;
+			nb2 = 1.0;
+			na0 = 1.0 + alpha;
+			na1 = -2.0 * cos;
+			na2 = 1.0 - alpha;
+			break;
+		case PEAK:
+			nb0 = 1.0 + alpha * a;
+			nb1 = -2.0 * cos;
+			nb2 = 1.0 - alpha * a;
+			na0 = 1.0 + alpha / a;
+			na1 = -2.0 * cos;
+			na2 = 1.0 - alpha / a;
+			break;
+		case LOW_SHELF: {
+			double s = 2.0 * Math.sqrt(a) * alpha;
+			nb0 = a * ((a + 1.0) - (a - 1.0) * cos + s);
+			nb1 = 2.0 * a * ((a - 1.0) - (a + 1.0) * cos);
+			nb2 = a * ((a + 1.0) - (a - 1.0) * cos - s);
+			na0 = (a + 1.0) + (a - 1.0) * cos + s;
+			na1 = -2.0 * ((a - 1.0) + (a + 1.0) * cos);
+			na2 = (a + 1.0) + (a - 1.0) * cos - s;
+			break;
+		}
+		default: {
+			double s = 2.0 * Math.sqrt(a) * alpha;
+			nb0 = a * ((a + 1.0) + (a - 1.0) * cos + s);
+			nb1 = -2.0 * a * ((a - 1.0) + (a + 1.0) * cos);
+			nb2 = a * ((a + 1.0) + (a - 1.0) * cos - s);
+			na0 = (a + 1.0) - (a - 1.0) * cos + s;
+			na1 = 2.0 * ((a - 1.0) - (a + 1.0) * cos);
+			na2 = (a + 1.0) - (a - 1.0) * cos - s;
+			break;
+		}
+		}
+		b0 = (float) (nb0 / na0);
+		b1 = (float) (nb1 / na0);
+		b2 = (float) (nb2 / na0);
+		a1 = (float) (na1 / na0);
+		a2 = (float) (na2 / na0);
+	}
+}
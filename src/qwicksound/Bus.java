@@ -0,0 +1,297 @@
+package qwicksound;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A named group in QwickSound's mix graph. Every {@code Audio} is assigned to
+ * a {@code Bus} (see {@link Audio#setBus}), and the playbacks of all
+ * {@code Audio}s on a bus are summed into the bus's own buffer before the
+ * bus's volume is applied, once per block rather than once per playback. The
+ * result is then summed into the parent bus, up to {@link #MASTER}, which
+ * feeds the output line.
+ * <p>
+ * Changing the volume of a bus therefore costs the same no matter how many
+ * playbacks are active on it, e.g. to turn down all sound effects:
+ *
+ * <pre>
+ * Bus.SFX.setVolume(0.5);
+ * </pre>
+ *
+ * or to duck the music under dialogue:
+ *
+ * <pre>
+ * Bus.MUSIC.setVolume(0.3);
+ * dialogue.play();
+ * </pre>
+ *
+ * Volume changes are ramped over one block to avoid clicks.
+ * <p>
+ * Effects inserted on a bus (see {@link #addProcessor}) process the sum of
+ * everything on the bus, before the bus's volume. A bus with effects keeps
+ * being processed for two seconds after its last sound ends, so that e.g. a
+ * reverb tail is not cut off.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class Bus {
+
+	/**
+	 * The root of the mix graph, which feeds the output line. {@code Audio}s
+	 * are assigned to it by default.
+	 */
+	public static final Bus MASTER = new Bus("master", null);
+	/**
+	 * A bus for music.
+	 */
+	public static final Bus MUSIC = new Bus("music", MASTER);
+	/**
+	 * A bus for sound effects.
+	 */
+	public static final Bus SFX = new Bus("sfx", MASTER);
+	/**
+	 * A bus for dialogue and voice-over.
+	 */
+	public static final Bus VOICE = new Bus("voice", MASTER);
+	/**
+	 * The name of this {@code Bus}.
+	 */
+	private final String name;
+	/**
+	 * The bus this {@code Bus} is summed into, or {@code null} for
+	 * {@code MASTER}.
+	 */
+	private final Bus parent;
+	/**
+	 * The number of buses between this {@code Bus} and {@code MASTER}.
+	 */
+	final int depth;
+	/**
+	 * The volume of this {@code Bus}.
+	 */
+	private volatile double volume = QwickSound.DEFAULT_VOLUME;
+	/**
+	 * Whether this {@code Bus} is muted.
+	 */
+	private volatile boolean muted;
+	/**
+	 * The interleaved stereo buffer the voices and child buses of this
+	 * {@code Bus} are summed into. Owned by the {@code MixEngine}.
+	 */
+	final float[] buffer = new float[MixEngine.BLOCK_FRAMES * 2];
+	/**
+	 * The number of the block {@code buffer} was last cleared for. Owned by
+	 * the {@code MixEngine}.
+	 */
+	long block = -1;
+	/**
+	 * The number of the last block in which a playback on this {@code Bus} or
+	 * one of its descendants was mixed. Owned by the {@code MixEngine}.
+	 */
+	long fedBlock = -1;
+	/**
+	 * Whether the {@code MixEngine} is keeping this {@code Bus} active for
+	 * the tails of its effects. Owned by the {@code MixEngine}.
+	 */
+	boolean tailing;
+	/**
+	 * The effects applied to this {@code Bus} before its volume.
+	 */
+	final ProcessorChain processors = new ProcessorChain();
+	/**
+	 * The gain applied at the end of the previous block, from which the next
+	 * block ramps. Owned by the {@code MixEngine}.
+	 */
+	private float appliedGain = (float) QwickSound.DEFAULT_VOLUME;
+
+	/**
+	 * Creates a new {@code Bus} that is summed into {@code MASTER}.
+	 *
+	 * @param name
+	 *            The name of the bus.
+	 */
+	public Bus(String name) {
+		this(name, MASTER);
+	}
+
+	/**
+	 * Creates a new {@code Bus} that is summed into the specified parent bus.
+	 *
+	 * @param name
+	 *            The name of the bus.
+	 * @param parent
+	 *            The parent bus.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If {@code parent} is {@code null}.
+	 */
+	public Bus(String name, Bus parent) {
+		// Only MASTER itself, created while MASTER is still null, is a root.
+		if (parent == null && MASTER != null) {
+			throw new IllegalArgumentException("A bus must have a parent");
+		}
+		this.name = name;
+		this.parent = parent;
+		this.depth = (parent == null) ? 0 : parent.depth + 1;
+	}
+
+	/**
+	 * Get the name of this {@code Bus}.
+	 *
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the bus this {@code Bus} is summed into.
+	 *
+	 * @return The parent bus, or {@code null} for {@code MASTER}.
+	 */
+	public Bus getParent() {
+		return parent;
+	}
+
+	/**
+	 * Set the volume of this {@code Bus}, which scales all playbacks on it and
+	 * on its child buses.
+	 *
+	 * @param newVolume
+	 *            The desired volume. Volume can range from 0 (muted) to 2.0.
+	 *            The default volume is 1.0. A non-finite volume is ignored.
+	 */
+	public void setVolume(double newVolume) {
+		if (Double.isNaN(newVolume) || Double.isInfinite(newVolume)) {
+			return;
+		}
+		newVolume = (newVolume < 0.0 ? 0.0 : newVolume);
+		newVolume = (newVolume > QwickSound.MAX_VOLUME ? QwickSound.MAX_VOLUME
+				: newVolume);
+		volume = newVolume;
+		// The change may make playbacks on this bus audible or inaudible.
+		MixEngine.getInstance().voicesChanged();
+	}
+
+	/**
+	 * Get the volume of this {@code Bus}.
+	 *
+	 * @return The volume.
+	 */
+	public double getVolume() {
+		return volume;
+	}
+
+	/**
+	 * Mute or unmute this {@code Bus}, keeping its volume.
+	 *
+	 * @param muted
+	 *            {@code true} to mute the bus.
+	 */
+	public void setMuted(boolean muted) {
+		this.muted = muted;
+		MixEngine.getInstance().voicesChanged();
+	}
+
+	/**
+	 * Whether this {@code Bus} is muted.
+	 *
+	 * @return {@code true} if the bus is muted.
+	 */
+	public boolean isMuted() {
+		return muted;
+	}
+
+	/**
+	 * Get the volume of this {@code Bus} combined with the volumes of all of
+	 * its ancestors, i.e. the factor by which a playback on this bus is
+	 * scaled on its way to the output line.
+	 *
+	 * @return The effective volume.
+	 */
+	public double getEffectiveVolume() {
+		double effective = 1.0;
+		for (Bus bus = this; bus != null; bus = bus.parent) {
+			if (bus.muted) {
+				return 0.0;
+			}
+			effective *= bus.volume;
+		}
+		return effective;
+	}
+
+	/**
+	 * Insert an effect on this {@code Bus}. Effects are applied in the order
+	 * they were added, to the sum of all playbacks and child buses, before
+	 * the volume of this {@code Bus}. Effects on {@code Bus.MASTER} process
+	 * the final output.
+	 *
+	 * @param processor
+	 *            The effect.
+	 */
+	public void addProcessor(Processor processor) {
+		processors.add(processor);
+	}
+
+	/**
+	 * Remove an effect from this {@code Bus}.
+	 *
+	 * @param processor
+	 *            The effect.
+	 *
+	 * @return {@code true} if the effect had been inserted on this
+	 *         {@code Bus}.
+	 */
+	public boolean removeProcessor(Processor processor) {
+		return processors.remove(processor);
+	}
+
+	/**
+	 * Get the effects inserted on this {@code Bus}.
+	 *
+	 * @return The effects, in the order they are applied.
+	 */
+	public List<Processor> getProcessors() {
+		return processors.toList();
+	}
+
+	@Override
+	public String toString() {
+		return "Bus " + name;
+	}
+
+	/**
+	 * Clear the buffer of this {@code Bus} for a new block.
+	 *
+	 * @param block
+	 *            The number of the block.
+	 */
+	void clear(long block) {
+		this.block = block;
+		Arrays.fill(buffer, 0.0f);
+	}
+
+	/**
+	 * Apply the effects and the volume of this {@code Bus} to its buffer and
+	 * sum the result into the specified buffer.
+	 *
+	 * @param dest
+	 *            The buffer of the parent bus, or the engine's output buffer.
+	 * @param frames
+	 *            The number of frames to process.
+	 */
+	void process(float[] dest, int frames) {
+		float[] buffer = this.buffer;
+		processors.process(buffer, frames);
+		float target = muted ? 0.0f : (float) volume;
+		float gain = appliedGain;
+		float delta = (target - gain) / frames;
+		for (int i = 0, j = 0; i < frames; i++, j += 2) {
+			gain += delta;
+			dest[j] += buffer[j] * gain;
+			dest[j + 1] += buffer[j + 1] * gain;
+		}
+		appliedGain = target;
+	}
+}
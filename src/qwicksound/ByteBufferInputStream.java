@@ -0,0 +1,80 @@
+package qwicksound;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@code InputStream} that reads from a {@code ByteBuffer} without copying
+ * it. Marking is supported, so the Java Sound readers can probe the data
+ * directly.
+ *
+ * @author Christian Holton
+ *
+ */
+final class ByteBufferInputStream extends InputStream {
+
+	/**
+	 * The buffer being read. Its position is the stream's position.
+	 */
+	private final ByteBuffer buffer;
+	/**
+	 * The marked position.
+	 */
+	private int mark;
+
+	/**
+	 * Creates a new {@code ByteBufferInputStream} that reads the remaining
+	 * bytes of the specified buffer. The buffer itself is not modified.
+	 *
+	 * @param buffer
+	 *            The buffer to read.
+	 */
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.slice();
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readLimit) {
+		mark = buffer.position();
+	}
+
+	@Override
+	public void reset() {
+		buffer.position(mark);
+	}
+}
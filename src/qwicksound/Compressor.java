@@ -0,0 +1,267 @@
+package qwicksound;
+
+/**
+ * A feed-forward dynamic range compressor with a stereo-linked peak detector.
+ * Levels above the threshold are reduced by the ratio, with the detector
+ * following the signal at the attack and release rates. The gain is computed
+ * every 16 frames and ramped in between, which keeps the cost per frame to
+ * a few multiplications. With an
+ * infinite ratio and a fast attack it acts as a limiter, which is useful on
+ * {@code Bus.MASTER} to keep many simultaneous sounds from clipping:
+ *
+ * <pre>
+ * Bus.MASTER.addProcessor(Compressor.limiter(-1.0));
+ * </pre>
+ *
+ * The parameters may be changed from any thread while the compressor is in
+ * use.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class Compressor implements Processor {
+
+	/**
+	 * The threshold in decibels relative to full scale.
+	 */
+	private volatile double threshold;
+	/**
+	 * The compression ratio, e.g. 4 for 4:1.
+	 */
+	private volatile double ratio;
+	/**
+	 * The attack time in seconds.
+	 */
+	private volatile double attack = 0.005;
+	/**
+	 * The release time in seconds.
+	 */
+	private volatile double release = 0.1;
+	/**
+	 * The gain in decibels applied after compression.
+	 */
+	private volatile double makeupGain;
+	/**
+	 * The number of frames between gain computations.
+	 */
+	private static final int CONTROL_FRAMES = 16;
+	/**
+	 * The detected peak level.
+	 */
+	private float envelope;
+	/**
+	 * The linear gain applied at the end of the previous segment.
+	 */
+	private float gain = 1.0f;
+	/**
+	 * The most recent gain reduction, for metering.
+	 */
+	private volatile float lastReduction;
+
+	/**
+	 * Creates a new {@code Compressor} with a 5 ms attack and a 100 ms
+	 * release.
+	 *
+	 * @param threshold
+	 *            The threshold in decibels relative to full scale, e.g. -12.
+	 * @param ratio
+	 *            The compression ratio, e.g. 4 for 4:1.
+	 */
+	public Compressor(double threshold, double ratio) {
+		this.threshold = threshold;
+		this.ratio = Math.max(1.0, ratio);
+	}
+
+	/**
+	 * Creates a limiter, i.e. a {@code Compressor} with an infinite ratio and
+	 * a near-instant attack.
+	 *
+	 * @param ceiling
+	 *            The level in decibels relative to full scale that the output
+	 *            is held below.
+	 *
+	 * @return The limiter.
+	 */
+	public static Compressor limiter(double ceiling) {
+		Compressor limiter = new Compressor(ceiling, Double.POSITIVE_INFINITY);
+		limiter.setAttack(0.0005);
+		limiter.setRelease(0.05);
+		return limiter;
+	}
+
+	/**
+	 * Set the threshold above which the signal is compressed.
+	 *
+	 * @param threshold
+	 *            The threshold in decibels relative to full scale.
+	 */
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Get the threshold above which the signal is compressed.
+	 *
+	 * @return The threshold in decibels relative to full scale.
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Set the compression ratio.
+	 *
+	 * @param ratio
+	 *            The ratio, at least 1. {@code Double.POSITIVE_INFINITY}
+	 *            limits.
+	 */
+	public void setRatio(double ratio) {
+		this.ratio = Math.max(1.0, ratio);
+	}
+
+	/**
+	 * Get the compression ratio.
+	 *
+	 * @return The ratio.
+	 */
+	public double getRatio() {
+		return ratio;
+	}
+
+	/**
+	 * Set how quickly the gain is reduced when the level rises.
+	 *
+	 * @param seconds
+	 *            The attack time.
+	 */
+	public void setAttack(double seconds) {
+		this.attack = Math.max(0.0, seconds);
+	}
+
+	/**
+	 * Get how quickly the gain is reduced when the level rises.
+	 *
+	 * @return The attack time in seconds.
+	 */
+	public double getAttack() {
+		return attack;
+	}
+
+	/**
+	 * Set how quickly the gain recovers when the level falls.
+	 *
+	 * @param seconds
+	 *            The release time.
+	 */
+	public void setRelease(double seconds) {
+		this.release = Math.max(0.0, seconds);
+	}
+
+	/**
+	 * Get how quickly the gain recovers when the level falls.
+	 *
+	 * @return The release time in seconds.
+	 */
+	public double getRelease() {
+		return release;
+	}
+
+	/**
+	 * Set the gain applied after compression.
+	 *
+	 * @param gain
+	 *            The makeup gain in decibels.
+	 */
+	public void setMakeupGain(double gain) {
+		this.makeupGain = gain;
+	}
+
+	/**
+	 * Get the gain applied after compression.
+	 *
+	 * @return The makeup gain in decibels.
+	 */
+	public double getMakeupGain() {
+		return makeupGain;
+	}
+
+	/**
+	 * Get the gain reduction at the end of the most recent block, e.g. for a
+	 * meter.
+	 *
+	 * @return The gain reduction in decibels, 0 or less.
+	 */
+	public double getGainReduction() {
+		return lastReduction;
+	}
+
+	@Override
+	public void process(float[] samples, int frames) {
+		float sampleRate = MixEngine.FORMAT.getSampleRate();
+		float threshold = (float) this.threshold;
+		float slope = (float) (1.0 / ratio - 1.0);
+		float attackCoeff = coefficient(attack, sampleRate);
+		float releaseCoeff = coefficient(release, sampleRate);
+		float makeup = (float) makeupGain;
+		float thresholdLinear = (float) Math.pow(10.0, threshold / 20.0);
+		float envelope = this.envelope;
+		float gain = this.gain;
+		float reduction = 0.0f;
+		for (int start = 0; start < frames; start += CONTROL_FRAMES) {
+			int end = Math.min(frames, start + CONTROL_FRAMES);
+			// Follow the peak level, attacking when it rises.
+			for (int i = start, j = start * 2; i < end; i++, j += 2) {
+				float peak = Math.max(Math.abs(samples[j]),
+						Math.abs(samples[j + 1]));
+				float coeff = (peak > envelope) ? attackCoeff : releaseCoeff;
+				envelope = peak + (envelope - peak) * coeff;
+			}
+			// Compute the gain once per segment and ramp to it.
+			reduction = 0.0f;
+			if (envelope > thresholdLinear) {
+				reduction = ((float) (20.0 * Math.log10(envelope)) - threshold)
+						* slope;
+			}
+			float target = (float) Math.pow(10.0, (reduction + makeup) / 20.0);
+			float delta = (target - gain) / (end - start);
+			for (int i = start, j = start * 2; i < end; i++, j += 2) {
+				gain += delta;
+				samples[j] *= gain;
+				samples[j + 1] *= gain;
+			}
+			gain = target;
+		}
+		this.envelope = (envelope < 1.0e-20f) ? 0.0f : envelope;
+		this.gain = gain;
+		lastReduction = reduction;
+	}
+
+	@Override
+	public void reset() {
+		envelope = 0.0f;
+		gain = (float) Math.pow(10.0, makeupGain / 20.0);
+		lastReduction = 0.0f;
+	}
+
+	@Override
+	public String toString() {
+		return "Compressor " + threshold + " dB " + ratio + ":1";
+	}
+
+	/**
+	 * Get the one-pole smoothing coefficient for a time constant.
+	 *
+	 * @param seconds
+	 *            The time constant.
+	 * @param sampleRate
+	 *            The sample rate.
+	 *
+	 * @return The coefficient, 0 for an instant response.
+	 */
+	private static float coefficient(double seconds, float sampleRate) {
+		if (seconds <= 0.0) {
+			return 0.0f;
+		}
+		return (float) Math.exp(-1.0 / (seconds * sampleRate));
+	}
+}
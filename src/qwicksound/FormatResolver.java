@@ -0,0 +1,459 @@
+package qwicksound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileReader;
+import javax.sound.sampled.spi.FormatConversionProvider;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Opens audio files through the Java Sound file readers and format
+ * converters, remembering which ones worked. {@code AudioSystem} probes every
+ * installed reader in turn whenever a file is opened, and every converter
+ * whenever a stream is converted; here, the reader that opened a file is
+ * remembered by the file's {@code URL} and by its extension, and the
+ * converter by the source and target formats, so that later opens, e.g. each
+ * play of a {@code StreamingAudio}, go straight to them. If a remembered
+ * provider fails, the others are probed again.
+ * <p>
+ * The order in which readers are probed is chosen explicitly rather than
+ * left to the classpath. The JAAD reader accepts data in any format, so it is
+ * probed first for AAC files (.m4a, .mp4 and .aac) and last for all others.
+ *
+ * @author Christian Holton
+ *
+ */
+final class FormatResolver {
+
+	/**
+	 * The number of bytes a reader may read while probing a stream before it
+	 * is reset for the next reader.
+	 */
+	private static final int PROBE_LIMIT = 1 << 20;
+	/**
+	 * The installed file readers, in the order they were found.
+	 */
+	private static volatile List<AudioFileReader> readers;
+	/**
+	 * The installed format converters.
+	 */
+	private static volatile List<FormatConversionProvider> converters;
+	/**
+	 * The reader that last opened each {@code URL}.
+	 */
+	private static final Map<String, AudioFileReader> readersByURL = new ConcurrentHashMap<String, AudioFileReader>();
+	/**
+	 * The reader that last opened a file with each extension.
+	 */
+	private static final Map<String, AudioFileReader> readersByExtension = new ConcurrentHashMap<String, AudioFileReader>();
+	/**
+	 * The file format of each {@code URL}.
+	 */
+	private static final Map<String, AudioFileFormat> fileFormats = new ConcurrentHashMap<String, AudioFileFormat>();
+	/**
+	 * The converter that last performed each conversion, keyed by the source
+	 * and target formats.
+	 */
+	private static final Map<String, FormatConversionProvider> convertersByFormat = new ConcurrentHashMap<String, FormatConversionProvider>();
+	/**
+	 * {@code Logger} for the {@code FormatResolver} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(FormatResolver.class
+			.getName());
+
+	/**
+	 * How a reader opens a file.
+	 */
+	private interface Opener {
+
+		/**
+		 * Open the file with a reader.
+		 *
+		 * @param reader
+		 *            The reader.
+		 *
+		 * @return The stream of the file.
+		 *
+		 * @throws UnsupportedAudioFileException
+		 *             If the reader does not recognize the file.
+		 * @throws IOException
+		 *             If the file could not be read.
+		 */
+		AudioInputStream open(AudioFileReader reader)
+				throws UnsupportedAudioFileException, IOException;
+	}
+
+	/**
+	 * This class is not meant to be instantiated.
+	 */
+	private FormatResolver() {
+	}
+
+	/**
+	 * Open the audio file with the specified {@code URL}.
+	 *
+	 * @param fileURL
+	 *            The file's {@code URL}.
+	 * @param name
+	 *            The name of the file, whose extension selects the readers
+	 *            to try first.
+	 *
+	 * @return The stream of the file, in the format it is stored in.
+	 *
+	 * @throws UnsupportedAudioFileException
+	 *             If no reader recognizes the file.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	static AudioInputStream open(final URL fileURL, String name)
+			throws UnsupportedAudioFileException, IOException {
+		return open(fileURL.toString(), name, new Opener() {
+			@Override
+			public AudioInputStream open(AudioFileReader reader)
+					throws UnsupportedAudioFileException, IOException {
+				return reader.getAudioInputStream(fileURL);
+			}
+		});
+	}
+
+	/**
+	 * Open the audio file at the specified location.
+	 *
+	 * @param file
+	 *            The file.
+	 *
+	 * @return The stream of the file, in the format it is stored in.
+	 *
+	 * @throws UnsupportedAudioFileException
+	 *             If no reader recognizes the file.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	static AudioInputStream open(final File file)
+			throws UnsupportedAudioFileException, IOException {
+		return open(file.toURI().toString(), file.getName(), new Opener() {
+			@Override
+			public AudioInputStream open(AudioFileReader reader)
+					throws UnsupportedAudioFileException, IOException {
+				return reader.getAudioInputStream(file);
+			}
+		});
+	}
+
+	/**
+	 * Open audio file data read from a stream. The stream must support
+	 * marking, so that it can be reset after each reader that does not
+	 * recognize it.
+	 *
+	 * @param in
+	 *            The stream of audio file data.
+	 * @param name
+	 *            The name of the audio, whose extension selects the readers
+	 *            to try first.
+	 *
+	 * @return The stream of the audio, in the format it is stored in.
+	 *
+	 * @throws UnsupportedAudioFileException
+	 *             If no reader recognizes the data.
+	 * @throws IOException
+	 *             If the data could not be read.
+	 */
+	static AudioInputStream open(final InputStream in, String name)
+			throws UnsupportedAudioFileException, IOException {
+		in.mark(PROBE_LIMIT);
+		return open(null, name, new Opener() {
+			@Override
+			public AudioInputStream open(AudioFileReader reader)
+					throws UnsupportedAudioFileException, IOException {
+				try {
+					return reader.getAudioInputStream(in);
+				} catch (UnsupportedAudioFileException ex) {
+					in.reset();
+					throw ex;
+				} catch (IOException ex) {
+					in.reset();
+					throw ex;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the file format of the audio file with the specified {@code URL},
+	 * which for some formats includes properties such as the duration.
+	 *
+	 * @param fileURL
+	 *            The file's {@code URL}.
+	 * @param name
+	 *            The name of the file.
+	 *
+	 * @return The file format.
+	 *
+	 * @throws UnsupportedAudioFileException
+	 *             If no reader recognizes the file.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	static AudioFileFormat getFileFormat(URL fileURL, String name)
+			throws UnsupportedAudioFileException, IOException {
+		String key = fileURL.toString();
+		AudioFileFormat format = fileFormats.get(key);
+		if (format != null) {
+			return format;
+		}
+		AudioFileReader reader = readersByURL.get(key);
+		if (reader != null) {
+			try {
+				format = reader.getAudioFileFormat(fileURL);
+			} catch (UnsupportedAudioFileException ex) {
+				// Probe all of the readers below.
+			}
+		}
+		if (format == null) {
+			for (AudioFileReader candidate : candidates(key, name)) {
+				try {
+					format = candidate.getAudioFileFormat(fileURL);
+					break;
+				} catch (UnsupportedAudioFileException ex) {
+					// Try the next reader.
+				} catch (RuntimeException ex) {
+					// Try the next reader.
+				}
+			}
+		}
+		if (format == null) {
+			throw new UnsupportedAudioFileException(
+					"No reader recognizes " + name);
+		}
+		fileFormats.put(key, format);
+		return format;
+	}
+
+	/**
+	 * Decode a stream to 16-bit signed little-endian PCM, unless it is PCM
+	 * already.
+	 *
+	 * @param audioInStream
+	 *            The stream.
+	 *
+	 * @return The PCM stream.
+	 */
+	static AudioInputStream toPCM(AudioInputStream audioInStream) {
+		AudioFormat format = audioInStream.getFormat();
+		AudioFormat.Encoding encoding = format.getEncoding();
+		if (encoding.equals(AudioFormat.Encoding.PCM_SIGNED)
+				|| encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED)
+				|| encoding.equals(AudioFormat.Encoding.PCM_FLOAT)) {
+			return audioInStream;
+		}
+		AudioFormat decodedFormat = new AudioFormat(
+				AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+				format.getChannels(), format.getChannels() * 2,
+				format.getSampleRate(), false);
+		return convert(decodedFormat, audioInStream);
+	}
+
+	/**
+	 * Convert a stream to another format.
+	 *
+	 * @param target
+	 *            The format to convert to.
+	 * @param audioInStream
+	 *            The stream.
+	 *
+	 * @return The converted stream.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If no converter supports the conversion.
+	 */
+	static AudioInputStream convert(AudioFormat target,
+			AudioInputStream audioInStream) {
+		AudioFormat source = audioInStream.getFormat();
+		String key = source + " > " + target;
+		FormatConversionProvider converter = convertersByFormat.get(key);
+		if (converter == null) {
+			for (FormatConversionProvider candidate : getConverters()) {
+				if (candidate.isConversionSupported(target, source)) {
+					converter = candidate;
+					break;
+				}
+			}
+			if (converter == null) {
+				// Let Java Sound decide, or throw.
+				return AudioSystem.getAudioInputStream(target, audioInStream);
+			}
+			convertersByFormat.put(key, converter);
+		}
+		return converter.getAudioInputStream(target, audioInStream);
+	}
+
+	/**
+	 * Open audio data with the remembered reader, or else with the first
+	 * reader that recognizes it.
+	 *
+	 * @param key
+	 *            The {@code URL} of the data, or {@code null}.
+	 * @param name
+	 *            The name of the audio.
+	 * @param opener
+	 *            Opens the data with a reader.
+	 *
+	 * @return The stream of the audio.
+	 *
+	 * @throws UnsupportedAudioFileException
+	 *             If no reader recognizes the data.
+	 * @throws IOException
+	 *             If the data could not be read.
+	 */
+	private static AudioInputStream open(String key, String name,
+			Opener opener) throws UnsupportedAudioFileException, IOException {
+		String extension = extension(name);
+		AudioFileReader known = (key != null) ? readersByURL.get(key) : null;
+		if (known == null) {
+			known = readersByExtension.get(extension);
+		}
+		if (known != null) {
+			try {
+				return opener.open(known);
+			} catch (UnsupportedAudioFileException ex) {
+				logger.info("The reader that opened \"" + name
+						+ "\" before no longer does. Probing all readers.");
+			}
+		}
+		IOException failure = null;
+		for (AudioFileReader reader : candidates(key, name)) {
+			if (reader == known) {
+				continue;
+			}
+			try {
+				AudioInputStream audioInStream = opener.open(reader);
+				if (key != null) {
+					readersByURL.put(key, reader);
+				}
+				readersByExtension.put(extension, reader);
+				return audioInStream;
+			} catch (UnsupportedAudioFileException ex) {
+				// Try the next reader.
+			} catch (IOException ex) {
+				failure = ex;
+			} catch (RuntimeException ex) {
+				// A broken reader must not keep the others from trying.
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		throw new UnsupportedAudioFileException("No reader recognizes " + name);
+	}
+
+	/**
+	 * Get the readers to probe for audio data, in order: the one remembered
+	 * for its {@code URL} or extension first, then the others, with the JAAD
+	 * reader first for AAC files and last for all others.
+	 *
+	 * @param key
+	 *            The {@code URL} of the data, or {@code null}.
+	 * @param name
+	 *            The name of the audio.
+	 *
+	 * @return The readers.
+	 */
+	private static List<AudioFileReader> candidates(String key, String name) {
+		String extension = extension(name);
+		boolean aac = extension.equals("m4a") || extension.equals("mp4")
+				|| extension.equals("aac");
+		List<AudioFileReader> preferred = new ArrayList<AudioFileReader>();
+		List<AudioFileReader> others = new ArrayList<AudioFileReader>();
+		for (AudioFileReader reader : getReaders()) {
+			boolean jaad = reader.getClass().getName()
+					.startsWith("net.sourceforge.jaad.");
+			if (jaad == aac) {
+				preferred.add(reader);
+			} else {
+				others.add(reader);
+			}
+		}
+		// For other files, JAAD goes last, since it accepts anything.
+		preferred.addAll(others);
+		AudioFileReader known = (key != null) ? readersByURL.get(key) : null;
+		if (known == null) {
+			known = readersByExtension.get(extension);
+		}
+		if (known != null && preferred.remove(known)) {
+			preferred.add(0, known);
+		}
+		return preferred;
+	}
+
+	/**
+	 * Get the installed file readers, discovering them on first use.
+	 *
+	 * @return The readers.
+	 */
+	private static List<AudioFileReader> getReaders() {
+		List<AudioFileReader> list = readers;
+		if (list == null) {
+			list = new ArrayList<AudioFileReader>();
+			for (AudioFileReader reader : ServiceLoader
+					.load(AudioFileReader.class)) {
+				list.add(reader);
+			}
+			list = Collections.unmodifiableList(list);
+			readers = list;
+		}
+		return list;
+	}
+
+	/**
+	 * Get the installed format converters, discovering them on first use.
+	 *
+	 * @return The converters.
+	 */
+	private static List<FormatConversionProvider> getConverters() {
+		List<FormatConversionProvider> list = converters;
+		if (list == null) {
+			list = new ArrayList<FormatConversionProvider>();
+			for (FormatConversionProvider converter : ServiceLoader
+					.load(FormatConversionProvider.class)) {
+				list.add(converter);
+			}
+			list = Collections.unmodifiableList(list);
+			converters = list;
+		}
+		return list;
+	}
+
+	/**
+	 * Get the extension of a file name.
+	 *
+	 * @param name
+	 *            The file name.
+	 *
+	 * @return The extension in lower case, without the dot, or an empty
+	 *         string.
+	 */
+	private static String extension(String name) {
+		int dot = name.lastIndexOf('.');
+		int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+		if (dot <= slash) {
+			return "";
+		}
+		return name.substring(dot + 1).toLowerCase();
+	}
+}
@@ -0,0 +1,542 @@
+package qwicksound;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * An audio file on an HTTP or HTTPS server. Each stream opened from an
+ * {@code HttpSource} is fed by a prefetch thread, which downloads ahead of
+ * the decoder into a bounded buffer, so that the decoder only waits for the
+ * network when the buffer is empty. When the connection stalls or drops, the
+ * prefetch thread reconnects and resumes with a {@code Range} request from
+ * the first byte it has not yet received.
+ * <p>
+ * If a spill cache directory is set (see
+ * {@link QwickSound#setStreamCacheDirectory}), every downloaded byte is also
+ * written to a file in it, and once a download completes, later streams of the
+ * same {@code URL}, e.g. further loops, are read from that file instead of
+ * the network.
+ *
+ * @author Christian Holton
+ *
+ */
+final class HttpSource extends AudioSource {
+
+	/**
+	 * The number of bytes the prefetch thread downloads ahead of the decoder.
+	 */
+	static final int PREFETCH_BYTES = 1 << 20;
+	/**
+	 * How long to wait for a connection, in milliseconds.
+	 */
+	private static final int CONNECT_TIMEOUT = 5000;
+	/**
+	 * How long a read may stall before the connection is reopened, in
+	 * milliseconds.
+	 */
+	private static final int READ_TIMEOUT = 5000;
+	/**
+	 * The number of consecutive failed attempts after which a download is
+	 * abandoned.
+	 */
+	private static final int MAX_RETRIES = 5;
+	/**
+	 * The directory of the spill cache, or {@code null} if it is disabled.
+	 */
+	private static volatile Path cacheDirectory;
+	/**
+	 * The audio file's {@code URL}.
+	 */
+	private final URL fileURL;
+	/**
+	 * {@code Logger} for the {@code HttpSource} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(HttpSource.class
+			.getName());
+
+	/**
+	 * Creates a new {@code HttpSource}.
+	 *
+	 * @param fileURL
+	 *            The audio file's {@code URL}.
+	 */
+	HttpSource(URL fileURL) {
+		this.fileURL = fileURL;
+	}
+
+	/**
+	 * Whether audio at the specified {@code URL} is read by an
+	 * {@code HttpSource}.
+	 *
+	 * @param fileURL
+	 *            The {@code URL}.
+	 *
+	 * @return {@code true} for HTTP and HTTPS {@code URL}s.
+	 */
+	static boolean handles(URL fileURL) {
+		String protocol = fileURL.getProtocol();
+		return protocol.equals("http") || protocol.equals("https");
+	}
+
+	/**
+	 * Set the directory of the spill cache.
+	 *
+	 * @param directory
+	 *            The directory, or {@code null} to disable the cache.
+	 */
+	static void setCacheDirectory(Path directory) {
+		cacheDirectory = directory;
+	}
+
+	/**
+	 * Get the directory of the spill cache.
+	 *
+	 * @return The directory, or {@code null} if the cache is disabled.
+	 */
+	static Path getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	@Override
+	String getName() {
+		String s = fileURL.getPath().substring(
+				fileURL.getPath().lastIndexOf('/') + 1);
+		return s.replaceAll("%20", " ");
+	}
+
+	@Override
+	URL getURL() {
+		return fileURL;
+	}
+
+	@Override
+	AudioInputStream open() {
+		InputStream in;
+		Path cacheFile = cacheFile();
+		try {
+			if (cacheFile != null && Files.isRegularFile(cacheFile)) {
+				in = new FileInputStream(cacheFile.toFile());
+			} else {
+				in = new PrefetchStream(cacheFile);
+			}
+		} catch (IOException ex) {
+			logger.warning("Could not open \"" + fileURL + "\"");
+			ex.printStackTrace();
+			return null;
+		}
+		AudioInputStream audioInStream = QwickSound.acquireAudioInputStream(in,
+				getName());
+		if (audioInStream == null) {
+			try {
+				in.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+		return audioInStream;
+	}
+
+	@Override
+	public String toString() {
+		return fileURL.toString();
+	}
+
+	/**
+	 * Get the file of the spill cache that holds the complete download of
+	 * this source.
+	 *
+	 * @return The file, which may not exist yet, or {@code null} if the cache
+	 *         is disabled.
+	 */
+	private Path cacheFile() {
+		Path directory = cacheDirectory;
+		if (directory == null) {
+			return null;
+		}
+		String key = Integer.toHexString(fileURL.toString().hashCode());
+		return directory.resolve(key + "-" + getName());
+	}
+
+	/**
+	 * The stream of a download, read by the decoder and filled by a prefetch
+	 * thread.
+	 */
+	private final class PrefetchStream extends InputStream implements Runnable {
+
+		/**
+		 * The downloaded bytes that have not yet been read.
+		 */
+		private final byte[] ring = new byte[PREFETCH_BYTES];
+		/**
+		 * The total number of bytes read by the decoder.
+		 */
+		private long readPos;
+		/**
+		 * The total number of bytes downloaded.
+		 */
+		private long writePos;
+		/**
+		 * The size of the file, or -1 while it is unknown.
+		 */
+		private long length = -1;
+		/**
+		 * Whether the download is complete.
+		 */
+		private boolean eof;
+		/**
+		 * Whether the stream has been closed by the decoder.
+		 */
+		private boolean closed;
+		/**
+		 * The error that ended the download, if any.
+		 */
+		private IOException failure;
+		/**
+		 * The complete download in the spill cache, or {@code null}.
+		 */
+		private final Path cacheFile;
+		/**
+		 * The file the download is spilled to while it is in progress, or
+		 * {@code null}.
+		 */
+		private Path partFile;
+		/**
+		 * Writes to {@code partFile}.
+		 */
+		private OutputStream spill;
+
+		/**
+		 * Creates a new {@code PrefetchStream} and starts its prefetch thread.
+		 *
+		 * @param cacheFile
+		 *            The file of the spill cache, or {@code null}.
+		 *
+		 * @throws IOException
+		 *             If the prefetch thread could not be started.
+		 */
+		PrefetchStream(Path cacheFile) throws IOException {
+			this.cacheFile = cacheFile;
+			if (cacheFile != null) {
+				try {
+					Files.createDirectories(cacheFile.getParent());
+					partFile = Files.createTempFile(cacheFile.getParent(),
+							cacheFile.getFileName().toString(), ".part");
+					spill = Files.newOutputStream(partFile);
+				} catch (IOException ex) {
+					logger.warning("Could not create a spill file for \""
+							+ fileURL + "\". Streaming without it.");
+					ex.printStackTrace();
+					partFile = null;
+				}
+			}
+			try {
+				Audio.exec.execute(this);
+			} catch (RejectedExecutionException ex) {
+				throw new IOException("The system is shutting down", ex);
+			}
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len)
+				throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (writePos == readPos) {
+				if (failure != null) {
+					throw failure;
+				}
+				if (eof || closed) {
+					return -1;
+				}
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					throw new InterruptedIOException();
+				}
+			}
+			int count = (int) Math.min(len, writePos - readPos);
+			int index = (int) (readPos % ring.length);
+			int first = Math.min(count, ring.length - index);
+			System.arraycopy(ring, index, b, off, first);
+			System.arraycopy(ring, 0, b, off + first, count - first);
+			readPos += count;
+			notifyAll();
+			return count;
+		}
+
+		@Override
+		public synchronized int available() {
+			return (int) (writePos - readPos);
+		}
+
+		@Override
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Run the prefetch thread, downloading until the file is complete,
+		 * the stream is closed, or too many attempts have failed.
+		 */
+		@Override
+		public void run() {
+			byte[] chunk = new byte[16384];
+			int retries = 0;
+			try {
+				while (!isClosed()) {
+					long offset = getWritePos();
+					HttpURLConnection connection = null;
+					try {
+						connection = connect(offset);
+						InputStream in = connection.getInputStream();
+						try {
+							int bytesRead;
+							while ((bytesRead = in.read(chunk)) != -1) {
+								if (!put(chunk, bytesRead)) {
+									return;
+								}
+								retries = 0;
+							}
+							if (length >= 0 && getWritePos() < length) {
+								throw new IOException("Connection closed early");
+							}
+						} finally {
+							in.close();
+						}
+						finish();
+						return;
+					} catch (IOException ex) {
+						if (++retries > MAX_RETRIES) {
+							fail(ex);
+							return;
+						}
+						logger.info("Download of \"" + fileURL + "\" stalled at "
+								+ getWritePos() + " bytes (" + ex
+								+ "). Resuming, attempt " + retries);
+						try {
+							Thread.sleep(250L << Math.min(retries, 4));
+						} catch (InterruptedException ie) {
+							fail(new InterruptedIOException());
+							return;
+						}
+					} finally {
+						if (connection != null) {
+							connection.disconnect();
+						}
+					}
+				}
+			} finally {
+				closeSpill();
+			}
+		}
+
+		/**
+		 * Open a connection that starts at the specified byte.
+		 *
+		 * @param offset
+		 *            The first byte to download.
+		 *
+		 * @return The connection, positioned at {@code offset}.
+		 *
+		 * @throws IOException
+		 *             If the connection failed or the server refused the
+		 *             request.
+		 */
+		private HttpURLConnection connect(long offset) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) fileURL
+					.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			if (offset > 0) {
+				connection.setRequestProperty("Range", "bytes=" + offset + "-");
+			}
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_OK && offset > 0) {
+				// The server ignored the range. Skip what we already have.
+				InputStream in = connection.getInputStream();
+				long skipped = 0;
+				while (skipped < offset) {
+					long n = in.skip(offset - skipped);
+					if (n <= 0) {
+						throw new IOException("Could not resume at " + offset);
+					}
+					skipped += n;
+				}
+			} else if (status != HttpURLConnection.HTTP_OK
+					&& status != HttpURLConnection.HTTP_PARTIAL) {
+				connection.disconnect();
+				throw new IOException("HTTP " + status + " for " + fileURL);
+			}
+			long remaining = connection.getContentLengthLong();
+			if (remaining >= 0 && length < 0) {
+				// A full response, whose start was skipped, has the length
+				// of the whole file.
+				length = (status == HttpURLConnection.HTTP_PARTIAL) ? offset
+						+ remaining : remaining;
+			}
+			return connection;
+		}
+
+		/**
+		 * Append downloaded bytes to the ring, waiting while it is full.
+		 *
+		 * @param chunk
+		 *            The bytes.
+		 * @param length
+		 *            The number of bytes.
+		 *
+		 * @return {@code false} if the stream was closed.
+		 *
+		 * @throws IOException
+		 *             If the bytes could not be spilled.
+		 */
+		private boolean put(byte[] chunk, int length) throws IOException {
+			spill(chunk, length);
+			int done = 0;
+			synchronized (this) {
+				while (done < length) {
+					while (writePos - readPos == ring.length && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException ex) {
+							throw new InterruptedIOException();
+						}
+					}
+					if (closed) {
+						return false;
+					}
+					int free = ring.length - (int) (writePos - readPos);
+					int count = Math.min(length - done, free);
+					int index = (int) (writePos % ring.length);
+					int first = Math.min(count, ring.length - index);
+					System.arraycopy(chunk, done, ring, index, first);
+					System.arraycopy(chunk, done + first, ring, 0, count
+							- first);
+					writePos += count;
+					done += count;
+					notifyAll();
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Write downloaded bytes to the spill file, if there is one. A write
+		 * error disables spilling but does not end the download.
+		 *
+		 * @param chunk
+		 *            The bytes.
+		 * @param length
+		 *            The number of bytes.
+		 */
+		private void spill(byte[] chunk, int length) {
+			if (spill == null) {
+				return;
+			}
+			try {
+				spill.write(chunk, 0, length);
+			} catch (IOException ex) {
+				logger.warning("Could not write the spill file of \""
+						+ fileURL + "\"");
+				ex.printStackTrace();
+				closeSpill();
+			}
+		}
+
+		/**
+		 * Mark the download complete and move the spill file into the cache.
+		 */
+		private void finish() {
+			if (spill != null) {
+				try {
+					spill.close();
+					spill = null;
+					Files.move(partFile, cacheFile,
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+					partFile = null;
+				} catch (IOException ex) {
+					logger.warning("Could not cache \"" + fileURL + "\"");
+					ex.printStackTrace();
+				}
+			}
+			synchronized (this) {
+				eof = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * End the download with an error, which is thrown to the decoder once
+		 * it has read everything downloaded so far.
+		 *
+		 * @param ex
+		 *            The error.
+		 */
+		private synchronized void fail(IOException ex) {
+			logger.warning("Download of \"" + fileURL + "\" failed after "
+					+ writePos + " bytes.");
+			failure = ex;
+			notifyAll();
+		}
+
+		/**
+		 * Close the spill file and delete it if the download did not
+		 * complete.
+		 */
+		private void closeSpill() {
+			try {
+				if (spill != null) {
+					spill.close();
+				}
+				if (partFile != null) {
+					Files.deleteIfExists(partFile);
+				}
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+			spill = null;
+			partFile = null;
+		}
+
+		/**
+		 * Whether the decoder has closed this stream.
+		 *
+		 * @return {@code true} if the stream is closed.
+		 */
+		private synchronized boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Get the total number of bytes downloaded.
+		 *
+		 * @return The number of bytes.
+		 */
+		private synchronized long getWritePos() {
+			return writePos;
+		}
+	}
+}
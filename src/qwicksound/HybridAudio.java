@@ -0,0 +1,239 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * {@code Audio} that keeps the head of its audio data in memory and streams
+ * the rest. It combines the strengths of {@code PreloadedAudio} and
+ * {@code StreamingAudio} for long assets that must start at once:
+ * <p>
+ * <ul>
+ * <li>Latency - A play starts from the head in memory as quickly as a play
+ * of {@code PreloadedAudio}. Meanwhile the stream is opened, the head is
+ * skipped and the ring buffer is filled, all on the decoding thread of the
+ * {@code StreamingPlayback}, so the head must last longer than that takes;
+ * otherwise silence is mixed until the stream catches up.</li>
+ * <li>Memory - Only the head is held in memory, and each playing instance
+ * needs a ring buffer like a {@code StreamingPlayback}. The head is kept as
+ * 16-bit PCM, the format of the stream it hands over to, so that no step is
+ * heard at the seam whatever the encoding of preloaded audio data (see
+ * {@link QwickSound#setSampleEncoding}). It counts against the memory budget
+ * (see {@link QwickSound#setMemoryBudget}) but is never evicted.</li>
+ * </ul>
+ * <p>
+ * Only the first loop of a {@code Playback} starts from the head; further
+ * loops are streamed from the start of the audio.
+ *
+ * @author Christian Holton
+ *
+ * @see StreamingPlayback
+ *
+ */
+public class HybridAudio extends Audio {
+
+	/**
+	 * The duration of the head in seconds if none is specified.
+	 */
+	public static final double DEFAULT_HEAD_LENGTH = 0.5;
+	/**
+	 * The head of the audio data, or {@code null} if it could not be read or
+	 * this {@code HybridAudio} has been closed.
+	 */
+	private volatile SampleData head;
+	/**
+	 * The registration of {@code head} with the {@code MemoryBudget}.
+	 */
+	private MemoryBudget.Entry budgetEntry;
+	/**
+	 * {@code Logger} for the {@code HybridAudio} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(HybridAudio.class
+			.getName());
+
+	/**
+	 * Creates a new {@code HybridAudio} that is based on the audio file with
+	 * the specified {@code URL}.
+	 *
+	 * @param fileURL
+	 *            The audio file's {@code URL}.
+	 * @param headLength
+	 *            The duration of the head kept in memory, in seconds.
+	 */
+	protected HybridAudio(URL fileURL, double headLength) {
+		this(AudioSource.of(fileURL), headLength);
+	}
+
+	/**
+	 * Creates a new {@code HybridAudio} that reads its head and streams the
+	 * rest of its audio data from the specified source, which must be
+	 * reopenable.
+	 *
+	 * @param source
+	 *            The source of the audio data.
+	 * @param headLength
+	 *            The duration of the head kept in memory, in seconds.
+	 */
+	HybridAudio(AudioSource source, double headLength) {
+		super(source);
+		head = loadHead(headLength);
+		if (head != null) {
+			budgetEntry = MemoryBudget.getInstance().register(this,
+					head.getByteCount());
+		}
+		Normalizer.measure(this);
+	}
+
+	@Override
+	public StreamingPlayback play() {
+		return startPlayback(QwickSound.DEFAULT_VOLUME,
+				QwickSound.DEFAULT_NUM_LOOPS);
+	}
+
+	@Override
+	public StreamingPlayback play(double volume) {
+		return startPlayback(volume, QwickSound.DEFAULT_NUM_LOOPS);
+	}
+
+	@Override
+	public StreamingPlayback play(int numLoops) {
+		return startPlayback(QwickSound.DEFAULT_VOLUME, numLoops);
+	}
+
+	@Override
+	public StreamingPlayback play(double volume, int numLoops) {
+		return startPlayback(volume, numLoops);
+	}
+
+	/**
+	 * Get the duration of the head kept in memory. It is shorter than
+	 * requested if the audio is.
+	 *
+	 * @return The duration in seconds, or 0 if the head could not be read.
+	 */
+	public double getHeadLength() {
+		SampleData head = this.head;
+		return (head == null) ? 0.0 : head.frameCount / head.sampleRate;
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		SampleData head = this.head;
+		return (head == null || !head.isOnHeap()) ? 0 : head.getByteCount();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		synchronized (this) {
+			head = null;
+			if (budgetEntry != null) {
+				MemoryBudget.getInstance().release(budgetEntry);
+				budgetEntry = null;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HybridAudio " + getFileName();
+	}
+
+	/**
+	 * Start a {@code StreamingPlayback} from the head. This method is called
+	 * by all the {@code play()} methods. It never opens the stream on the
+	 * calling thread.
+	 *
+	 * @param volume
+	 *            The volume that playback will occur at.
+	 * @param numLoops
+	 *            The number of times the audio data will be played in
+	 *            succession.
+	 *
+	 * @return The {@code StreamingPlayback} which is to be played, or
+	 *         {@code null} if the request was suppressed by the instance
+	 *         limits (see {@code checkTrigger}), the audio data could not be
+	 *         read or this {@code HybridAudio} has been closed.
+	 */
+	private StreamingPlayback startPlayback(double volume, int numLoops) {
+		if (!checkTrigger(volume)) {
+			return null;
+		}
+		SampleData head = this.head;
+		if (head == null) {
+			logger.warning("Cannot play \"" + getFileName() + "\" because "
+					+ (isClosed() ? "it has been closed."
+							: "its audio data could not be read."));
+			triggerRefused();
+			return null;
+		}
+		long instanceID;
+		synchronized (this) {
+			instanceID = ++numPlaybacks;
+		}
+		StreamingPlayback playback = new StreamingPlayback(this, head,
+				instanceID);
+		logger.info("Starting hybrid playback of \"" + getFileName()
+				+ "\" instance " + instanceID);
+		volume = playbackStarted(playback, volume);
+		playback.start(volume, numLoops, exec);
+		return playback;
+	}
+
+	/**
+	 * Decode the head of the audio data.
+	 *
+	 * @param seconds
+	 *            The duration of the head.
+	 *
+	 * @return The head as 16-bit PCM, or {@code null} if it could not be
+	 *         read.
+	 */
+	private PcmData loadHead(double seconds) {
+		AudioInputStream audioInStream = source.open();
+		if (audioInStream == null) {
+			logger.warning("Could not read \"" + getFileName() + "\"");
+			return null;
+		}
+		audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+		AudioFormat format = audioInStream.getFormat();
+		int frameSize = format.getFrameSize();
+		byte[] data = new byte[(int) Math.ceil(Math.max(0.0, seconds)
+				* format.getFrameRate())
+				* frameSize];
+		int length = 0;
+		try {
+			int bytesRead;
+			while (length < data.length
+					&& (bytesRead = audioInStream.read(data, length,
+							data.length - length)) != -1) {
+				length += bytesRead;
+			}
+		} catch (IOException ex) {
+			logger.warning("Could not read \"" + getFileName() + "\"");
+			ex.printStackTrace();
+			return null;
+		} finally {
+			try {
+				audioInStream.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+		length -= length % frameSize;
+		if (length < data.length) {
+			// The audio is shorter than the head.
+			data = Arrays.copyOf(data, length);
+		}
+		return new PcmData(ByteBuffer.wrap(data), format.getChannels(),
+				format.getSampleRate());
+	}
+}
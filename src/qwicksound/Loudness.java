@@ -0,0 +1,57 @@
+package qwicksound;
+
+/**
+ * The measured loudness of the audio data of an {@code Audio}.
+ *
+ * @author Christian Holton
+ *
+ */
+final class Loudness {
+
+	/**
+	 * The integrated loudness in LUFS.
+	 */
+	private final double integrated;
+	/**
+	 * The largest absolute sample value, from 0 to 1.
+	 */
+	private final double peak;
+
+	/**
+	 * Creates a new {@code Loudness}.
+	 *
+	 * @param integrated
+	 *            The integrated loudness in LUFS, or negative infinity for
+	 *            silence.
+	 * @param peak
+	 *            The largest absolute sample value.
+	 */
+	Loudness(double integrated, double peak) {
+		this.integrated = integrated;
+		this.peak = peak;
+	}
+
+	/**
+	 * Get the integrated loudness.
+	 *
+	 * @return The loudness in LUFS, or negative infinity for silence.
+	 */
+	double getIntegrated() {
+		return integrated;
+	}
+
+	/**
+	 * Get the sample peak.
+	 *
+	 * @return The largest absolute sample value, from 0 to 1.
+	 */
+	double getPeak() {
+		return peak;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.1f LUFS, peak %.1f dBFS", integrated,
+				20.0 * Math.log10(peak));
+	}
+}
@@ -0,0 +1,285 @@
+package qwicksound;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness and sample peak of audio data in the
+ * canonical PCM format, following ITU-R BS.1770-4. The data may be fed in
+ * pieces as it is decoded.
+ * <p>
+ * Each channel is K-weighted by a high-shelf and a high-pass filter, and the
+ * mean square of the weighted samples is taken over 400 ms blocks that
+ * overlap by 75%. The integrated loudness is the mean over the blocks that
+ * pass an absolute gate of -70 LUFS and a relative gate 10 LU below the
+ * loudness of the blocks that passed the first gate. Audio shorter than one
+ * block, such as most sound effects, is measured as a single block.
+ * <p>
+ * Mono audio is weighted as dual mono, since the mixer plays it on both
+ * channels.
+ *
+ * @author Christian Holton
+ *
+ */
+final class LoudnessMeter {
+
+	/**
+	 * The absolute gate in LUFS.
+	 */
+	private static final double ABSOLUTE_GATE = -70.0;
+	/**
+	 * The relative gate in LU below the loudness of the blocks that passed
+	 * the absolute gate.
+	 */
+	private static final double RELATIVE_GATE = -10.0;
+	/**
+	 * The number of sub-blocks, each 100 ms long, per gating block.
+	 */
+	private static final int SUB_BLOCKS = 4;
+	/**
+	 * Converts a 16-bit sample to a float in the range [-1.0, 1.0).
+	 */
+	private static final double SAMPLE_SCALE = 1.0 / 32768.0;
+	/**
+	 * The number of channels per frame.
+	 */
+	private final int channels;
+	/**
+	 * The weight of each channel's mean square.
+	 */
+	private final double weight;
+	/**
+	 * The coefficients of the high-shelf stage.
+	 */
+	private final double sb0, sb1, sb2, sa1, sa2;
+	/**
+	 * The coefficients of the high-pass stage.
+	 */
+	private final double hb0, hb1, hb2, ha1, ha2;
+	/**
+	 * The delay elements of both stages, four per channel.
+	 */
+	private final double[] state;
+	/**
+	 * The number of frames per sub-block.
+	 */
+	private final int subBlockFrames;
+	/**
+	 * The weighted sums of squares of the last {@code SUB_BLOCKS} sub-blocks.
+	 */
+	private final double[] subBlocks = new double[SUB_BLOCKS];
+	/**
+	 * The number of sub-blocks completed.
+	 */
+	private long subBlockCount;
+	/**
+	 * The weighted sum of squares of the current sub-block.
+	 */
+	private double sum;
+	/**
+	 * The number of frames in the current sub-block.
+	 */
+	private int frames;
+	/**
+	 * The weighted sum of squares of all frames.
+	 */
+	private double totalSum;
+	/**
+	 * The total number of frames.
+	 */
+	private long totalFrames;
+	/**
+	 * The mean squares of the gating blocks.
+	 */
+	private double[] blocks = new double[64];
+	/**
+	 * The number of gating blocks.
+	 */
+	private int blockCount;
+	/**
+	 * The largest absolute sample value.
+	 */
+	private double peak;
+
+	/**
+	 * Creates a new {@code LoudnessMeter}.
+	 *
+	 * @param channels
+	 *            The number of channels per frame.
+	 * @param sampleRate
+	 *            The number of frames per second.
+	 */
+	LoudnessMeter(int channels, float sampleRate) {
+		this.channels = channels;
+		// All channels are front channels, weighted 1. Mono counts twice.
+		this.weight = (channels == 1) ? 2.0 : 1.0;
+		this.state = new double[channels * 4];
+		this.subBlockFrames = Math.max(1, Math.round(sampleRate / 10.0f));
+		// The K-weighting filters of BS.1770, designed for the sample rate.
+		double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+		double q = 0.7071752369554196;
+		double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1.0 + k / q + k * k;
+		sb0 = (vh + vb * k / q + k * k) / a0;
+		sb1 = 2.0 * (k * k - vh) / a0;
+		sb2 = (vh - vb * k / q + k * k) / a0;
+		sa1 = 2.0 * (k * k - 1.0) / a0;
+		sa2 = (1.0 - k / q + k * k) / a0;
+		k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+		q = 0.5003270373238773;
+		a0 = 1.0 + k / q + k * k;
+		hb0 = 1.0;
+		hb1 = -2.0;
+		hb2 = 1.0;
+		ha1 = 2.0 * (k * k - 1.0) / a0;
+		ha2 = (1.0 - k / q + k * k) / a0;
+	}
+
+	/**
+	 * Measure audio data in the canonical PCM format.
+	 *
+	 * @param data
+	 *            The data, a whole number of frames between its position and
+	 *            limit. Its position is not changed.
+	 */
+	void process(ByteBuffer data) {
+		ByteBuffer samples = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int end = samples.limit() - channels * 2 + 1;
+		for (int index = samples.position(); index < end; index += channels * 2) {
+			double square = 0.0;
+			for (int c = 0; c < channels; c++) {
+				double x = samples.getShort(index + c * 2) * SAMPLE_SCALE;
+				double abs = Math.abs(x);
+				if (abs > peak) {
+					peak = abs;
+				}
+				// Transposed direct form II, both stages.
+				int s = c * 4;
+				double y = sb0 * x + state[s];
+				state[s] = sb1 * x - sa1 * y + state[s + 1];
+				state[s + 1] = sb2 * x - sa2 * y;
+				double z = hb0 * y + state[s + 2];
+				state[s + 2] = hb1 * y - ha1 * z + state[s + 3];
+				state[s + 3] = hb2 * y - ha2 * z;
+				square += z * z;
+			}
+			sum += square * weight;
+			if (++frames == subBlockFrames) {
+				endSubBlock();
+			}
+		}
+	}
+
+	/**
+	 * Measure audio data in the canonical PCM format.
+	 *
+	 * @param data
+	 *            The array holding the data.
+	 * @param offset
+	 *            The offset of the first byte.
+	 * @param length
+	 *            The number of bytes, a whole number of frames.
+	 */
+	void process(byte[] data, int offset, int length) {
+		process(ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Get the measurements of the data so far.
+	 *
+	 * @return The integrated loudness and sample peak.
+	 */
+	Loudness getLoudness() {
+		double integrated;
+		if (blockCount == 0) {
+			// Shorter than one gating block.
+			long count = totalFrames + frames;
+			integrated = (count == 0) ? Double.NEGATIVE_INFINITY
+					: toLufs((totalSum + sum) / count);
+		} else {
+			integrated = gatedLoudness();
+		}
+		return new Loudness(integrated, peak);
+	}
+
+	/**
+	 * Complete the current sub-block, and the gating block that ends with
+	 * it.
+	 */
+	private void endSubBlock() {
+		subBlocks[(int) (subBlockCount % SUB_BLOCKS)] = sum;
+		subBlockCount++;
+		totalSum += sum;
+		totalFrames += frames;
+		sum = 0.0;
+		frames = 0;
+		if (subBlockCount >= SUB_BLOCKS) {
+			double blockSum = 0.0;
+			for (double subBlock : subBlocks) {
+				blockSum += subBlock;
+			}
+			if (blockCount == blocks.length) {
+				blocks = Arrays.copyOf(blocks, blockCount * 2);
+			}
+			blocks[blockCount++] = blockSum
+					/ ((double) SUB_BLOCKS * subBlockFrames);
+		}
+	}
+
+	/**
+	 * Get the loudness of the gating blocks that pass both gates.
+	 *
+	 * @return The loudness in LUFS, or negative infinity if no block passes.
+	 */
+	private double gatedLoudness() {
+		double absolute = fromLufs(ABSOLUTE_GATE);
+		double sum = 0.0;
+		int count = 0;
+		for (int i = 0; i < blockCount; i++) {
+			if (blocks[i] > absolute) {
+				sum += blocks[i];
+				count++;
+			}
+		}
+		if (count == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		double relative = fromLufs(toLufs(sum / count) + RELATIVE_GATE);
+		double gate = Math.max(absolute, relative);
+		sum = 0.0;
+		count = 0;
+		for (int i = 0; i < blockCount; i++) {
+			if (blocks[i] > gate) {
+				sum += blocks[i];
+				count++;
+			}
+		}
+		return (count == 0) ? Double.NEGATIVE_INFINITY : toLufs(sum / count);
+	}
+
+	/**
+	 * Convert a weighted mean square to loudness.
+	 *
+	 * @param meanSquare
+	 *            The mean square.
+	 *
+	 * @return The loudness in LUFS.
+	 */
+	private static double toLufs(double meanSquare) {
+		return -0.691 + 10.0 * Math.log10(meanSquare);
+	}
+
+	/**
+	 * Convert loudness to a weighted mean square.
+	 *
+	 * @param lufs
+	 *            The loudness in LUFS.
+	 *
+	 * @return The mean square.
+	 */
+	private static double fromLufs(double lufs) {
+		return Math.pow(10.0, (lufs + 0.691) / 10.0);
+	}
+}
@@ -0,0 +1,237 @@
+package qwicksound;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Tracks the decoded audio data held by all {@code PreloadedAudio} instances,
+ * by {@code AdaptiveAudio} instances while they are preloaded, and by the
+ * heads of {@code HybridAudio} instances, against a global byte budget.
+ * When room is needed, the least recently played idle assets are evicted
+ * (see {@link Audio#evict}); an evicted {@code PreloadedAudio} streams the
+ * next time it is played while its data is reloaded in the background,
+ * while an evicted {@code AdaptiveAudio} streams from then on. The heads of
+ * {@code HybridAudio} instances are never evicted.
+ * <p>
+ * Assets are referenced weakly, so an unreachable asset stops counting
+ * against the budget once it has been garbage collected.
+ *
+ * @author Christian Holton
+ *
+ */
+final class MemoryBudget {
+
+	/**
+	 * The single budget instance.
+	 */
+	private static final MemoryBudget instance = new MemoryBudget();
+	/**
+	 * The registered assets.
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+	/**
+	 * Receives the entries of assets that have been garbage collected.
+	 */
+	private final ReferenceQueue<Audio> collected = new ReferenceQueue<Audio>();
+	/**
+	 * The maximum number of bytes of decoded audio data.
+	 */
+	private long budget = Long.MAX_VALUE;
+	/**
+	 * The number of bytes of decoded audio data currently registered.
+	 */
+	private long used;
+	/**
+	 * {@code Logger} for the {@code MemoryBudget} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(MemoryBudget.class
+			.getName());
+
+	/**
+	 * Get the budget.
+	 *
+	 * @return The single {@code MemoryBudget}.
+	 */
+	static MemoryBudget getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the maximum number of bytes of decoded audio data. If the new
+	 * budget is smaller than current usage, idle assets are evicted.
+	 *
+	 * @param bytes
+	 *            The budget in bytes.
+	 */
+	synchronized void setBudget(long bytes) {
+		budget = Math.max(0, bytes);
+		makeRoom(0);
+	}
+
+	/**
+	 * Get the maximum number of bytes of decoded audio data.
+	 *
+	 * @return The budget in bytes.
+	 */
+	synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Get the number of bytes of decoded audio data currently held.
+	 *
+	 * @return The usage in bytes.
+	 */
+	synchronized long getUsed() {
+		purge();
+		return used;
+	}
+
+	/**
+	 * Get the number of bytes that could be made available by evicting every
+	 * idle asset.
+	 *
+	 * @return The reclaimable space in bytes.
+	 */
+	synchronized long getReclaimable() {
+		purge();
+		if (budget == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		long free = budget - used;
+		for (Entry entry : entries) {
+			Audio audio = entry.get();
+			if (audio != null && audio.getNumActivePlaybacks() == 0) {
+				free += entry.bytes;
+			}
+		}
+		return free;
+	}
+
+	/**
+	 * Evict idle assets, least recently played first, until the specified
+	 * number of bytes fits within the budget.
+	 *
+	 * @param bytes
+	 *            The number of bytes needed.
+	 *
+	 * @return {@code true} if the bytes now fit.
+	 */
+	synchronized boolean makeRoom(long bytes) {
+		purge();
+		if (used + bytes <= budget) {
+			return true;
+		}
+		List<Entry> candidates = new ArrayList<Entry>(entries);
+		Collections.sort(candidates, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.lastUsed, b.lastUsed);
+			}
+		});
+		for (Entry entry : candidates) {
+			if (used + bytes <= budget) {
+				break;
+			}
+			Audio audio = entry.get();
+			if (audio != null && audio.evict()) {
+				logger.info("Evicted " + audio + " (" + entry.bytes
+						+ " bytes) to stay within the memory budget");
+			}
+		}
+		return used + bytes <= budget;
+	}
+
+	/**
+	 * Register the decoded audio data of an asset, evicting other assets if
+	 * necessary. Assets that can reopen their source only load data that fits
+	 * (see {@link #getReclaimable}) and stream otherwise, so the budget is
+	 * only overcommitted by data that could not be read again, such as audio
+	 * read from an {@code InputStream}.
+	 *
+	 * @param audio
+	 *            The asset.
+	 * @param bytes
+	 *            The size of its decoded audio data.
+	 *
+	 * @return The entry to pass to {@code release} and {@code touch}.
+	 */
+	synchronized Entry register(Audio audio, long bytes) {
+		if (!makeRoom(bytes)) {
+			logger.warning(audio + " (" + bytes + " bytes) exceeds the "
+					+ "memory budget of " + budget + " bytes. Its source cannot be "
+					+ "reopened, so it is kept in memory anyway.");
+		}
+		Entry entry = new Entry(audio, bytes, collected);
+		entries.add(entry);
+		used += bytes;
+		return entry;
+	}
+
+	/**
+	 * Release the decoded audio data of an asset.
+	 *
+	 * @param entry
+	 *            The entry returned by {@code register}.
+	 */
+	synchronized void release(Entry entry) {
+		if (entries.remove(entry)) {
+			used -= entry.bytes;
+		}
+	}
+
+	/**
+	 * Remove the entries of assets that have been garbage collected.
+	 */
+	private void purge() {
+		Object ref;
+		while ((ref = collected.poll()) != null) {
+			release((Entry) ref);
+		}
+	}
+
+	/**
+	 * The registration of one asset's decoded audio data.
+	 */
+	static final class Entry extends WeakReference<Audio> {
+
+		/**
+		 * The size of the decoded audio data.
+		 */
+		final long bytes;
+		/**
+		 * The time, from {@code System.nanoTime()}, the asset was last
+		 * played.
+		 */
+		volatile long lastUsed = System.nanoTime();
+
+		/**
+		 * Creates a new {@code Entry}.
+		 *
+		 * @param audio
+		 *            The asset.
+		 * @param bytes
+		 *            The size of its decoded audio data.
+		 * @param queue
+		 *            Receives the entry once the asset is collected.
+		 */
+		Entry(Audio audio, long bytes, ReferenceQueue<Audio> queue) {
+			super(audio, queue);
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Record that the asset has been played.
+		 */
+		void touch() {
+			lastUsed = System.nanoTime();
+		}
+	}
+}
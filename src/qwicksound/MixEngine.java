@@ -0,0 +1,714 @@
+package qwicksound;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Mixes the active {@code Voice}s into a single output line. The engine runs
+ * in its own {@code RenderThread} while there are voices to play, and exits
+ * once it has been idle for a short time.
+ * <p>
+ * The rendering loop is driven by the line's deadlines: before each block it
+ * sleeps until the line has room for the block, then mixes and writes it.
+ * The time spent mixing each block and how late the thread woke up are
+ * recorded in {@code TimingHistogram}s.
+ * <p>
+ * Each voice is rendered into the buffer of its {@code Audio}'s {@code Bus}.
+ * Once all voices have been rendered, the buses that received audio in the
+ * block are processed deepest first, each summing into its parent, and
+ * {@code Bus.MASTER} sums into the output.
+ * <p>
+ * At most {@code maxVoices} voices are rendered per block. Voices that are
+ * inaudible, or that fall outside the budget because louder voices are
+ * playing, become virtual: they hold no mix slot and their position is
+ * advanced by clock arithmetic until they are audible again.
+ *
+ * @author Christian Holton
+ *
+ */
+final class MixEngine implements Runnable {
+
+	/**
+	 * The format of the output line.
+	 */
+	static final AudioFormat FORMAT = new AudioFormat(44100.0f, 16, 2, true,
+			false);
+	/**
+	 * The number of frames mixed per block.
+	 */
+	static final int BLOCK_FRAMES = 256;
+	/**
+	 * The duration of one block in nanoseconds.
+	 */
+	static final long BLOCK_NANOS = (long) (BLOCK_FRAMES * 1.0e9 / FORMAT
+			.getSampleRate());
+	/**
+	 * How long the engine keeps its line open after the last voice ends.
+	 */
+	private static final long IDLE_LINGER_NANOS = 2000000000L;
+	/**
+	 * The number of blocks a bus with effects stays active after its last
+	 * playback, so that effect tails are heard.
+	 */
+	private static final int BUS_TAIL_BLOCKS = (int) (2.0 * 44100.0 / BLOCK_FRAMES);
+	/**
+	 * The default number of voices rendered at once.
+	 */
+	static final int DEFAULT_MAX_VOICES = 32;
+	/**
+	 * The single engine instance.
+	 */
+	private static final MixEngine instance = new MixEngine();
+	/**
+	 * Voices added by other threads, waiting to be picked up by the engine.
+	 */
+	private final ConcurrentLinkedQueue<Voice> pending = new ConcurrentLinkedQueue<Voice>();
+	/**
+	 * The voices being mixed. Only accessed by the engine thread.
+	 */
+	private final ArrayList<Voice> voices = new ArrayList<Voice>();
+	/**
+	 * The buses that have received audio in the current block. Only accessed
+	 * by the engine thread.
+	 */
+	private final ArrayList<Bus> activeBuses = new ArrayList<Bus>();
+	/**
+	 * The buses with effects that are kept active for the effects' tails.
+	 * Only accessed by the engine thread.
+	 */
+	private final ArrayList<Bus> tailBuses = new ArrayList<Bus>();
+	/**
+	 * The number of the current block.
+	 */
+	private long block;
+	/**
+	 * Reusable array used to rank voices by volume.
+	 */
+	private Voice[] ranked = new Voice[DEFAULT_MAX_VOICES];
+	/**
+	 * Whether the engine is scheduled or running.
+	 */
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	/**
+	 * Set when voices or volumes change so that the virtual/real assignment
+	 * is recomputed.
+	 */
+	private volatile boolean dirty;
+	/**
+	 * The maximum number of voices rendered at once.
+	 */
+	private volatile int maxVoices = DEFAULT_MAX_VOICES;
+	/**
+	 * Voices at or below this volume are virtualized.
+	 */
+	private volatile double audibilityThreshold = QwickSound.MIN_VOLUME;
+	/**
+	 * The number of voices rendered in the last block.
+	 */
+	private volatile int realCount;
+	/**
+	 * The number of virtual voices in the last block.
+	 */
+	private volatile int virtualCount;
+	/**
+	 * The interleaved stereo mix buffer.
+	 */
+	private final float[] mix = new float[BLOCK_FRAMES * 2];
+	/**
+	 * Holds one voice while the effects of its {@code Playback} are applied.
+	 */
+	private final float[] voiceMix = new float[BLOCK_FRAMES * 2];
+	/**
+	 * The mix buffer converted to the output format.
+	 */
+	private final byte[] out = new byte[BLOCK_FRAMES * 4];
+	/**
+	 * Publishes the mix as it is written to the output line.
+	 */
+	private final AudioTap outputTap = new AudioTap("output");
+	/**
+	 * The output line.
+	 */
+	private OutputLine line;
+	/**
+	 * The latency of the output line in seconds, or 0 if it is not open.
+	 */
+	private volatile double latency;
+	/**
+	 * The time spent mixing each block.
+	 */
+	private final TimingHistogram processingTime = new TimingHistogram();
+	/**
+	 * How late the engine thread woke up to mix a block.
+	 */
+	private final TimingHistogram wakeUpJitter = new TimingHistogram();
+	/**
+	 * {@code Logger} for the {@code MixEngine} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(MixEngine.class
+			.getName());
+
+	/**
+	 * Get the engine.
+	 *
+	 * @return The single {@code MixEngine}.
+	 */
+	static MixEngine getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Add a voice to the mix, starting the engine if necessary.
+	 *
+	 * @param voice
+	 *            The voice to add.
+	 *
+	 * @throws RejectedExecutionException
+	 *             If the system is shutting down.
+	 */
+	void add(Voice voice) {
+		if (Audio.exec.isShutdown()) {
+			throw new RejectedExecutionException();
+		}
+		pending.add(voice);
+		dirty = true;
+		if (running.compareAndSet(false, true)) {
+			try {
+				RenderThread.start(this);
+			} catch (OutOfMemoryError ex) {
+				// The thread could not be created.
+				running.set(false);
+				pending.remove(voice);
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Request that the virtual/real assignment of voices be recomputed, e.g.
+	 * because a volume has changed.
+	 */
+	void voicesChanged() {
+		dirty = true;
+	}
+
+	/**
+	 * Set the maximum number of voices rendered at once.
+	 *
+	 * @param maxVoices
+	 *            The polyphony budget. Values below 1 are treated as 1.
+	 */
+	void setMaxVoices(int maxVoices) {
+		this.maxVoices = Math.max(1, maxVoices);
+		dirty = true;
+	}
+
+	/**
+	 * Get the maximum number of voices rendered at once.
+	 *
+	 * @return The polyphony budget.
+	 */
+	int getMaxVoices() {
+		return maxVoices;
+	}
+
+	/**
+	 * Set the volume at or below which voices are virtualized.
+	 *
+	 * @param threshold
+	 *            The audibility threshold.
+	 */
+	void setAudibilityThreshold(double threshold) {
+		this.audibilityThreshold = threshold;
+		dirty = true;
+	}
+
+	/**
+	 * Get the volume at or below which voices are virtualized.
+	 *
+	 * @return The audibility threshold.
+	 */
+	double getAudibilityThreshold() {
+		return audibilityThreshold;
+	}
+
+	/**
+	 * Get the number of voices rendered in the most recent block.
+	 *
+	 * @return The number of real voices.
+	 */
+	int getRealVoiceCount() {
+		return realCount;
+	}
+
+	/**
+	 * Get the number of voices tracked virtually in the most recent block.
+	 *
+	 * @return The number of virtual voices.
+	 */
+	int getVirtualVoiceCount() {
+		return virtualCount;
+	}
+
+	/**
+	 * Get the latency of the output line, including any growth of its buffer
+	 * after underruns.
+	 *
+	 * @return The latency in seconds, or 0 if the line is not open.
+	 */
+	double getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Get the tap that publishes the mix.
+	 *
+	 * @return The output tap.
+	 */
+	AudioTap getOutputTap() {
+		return outputTap;
+	}
+
+	/**
+	 * Get the timing of the rendering loop since the system started or the
+	 * statistics were last reset.
+	 *
+	 * @return A snapshot of the statistics.
+	 */
+	RenderStats getRenderStats() {
+		return new RenderStats(BLOCK_NANOS / 1.0e9, processingTime.copy(),
+				wakeUpJitter.copy(), OutputLine.getTotalUnderruns());
+	}
+
+	/**
+	 * Discard the timing of the rendering loop recorded so far.
+	 */
+	void resetRenderStats() {
+		processingTime.reset();
+		wakeUpJitter.reset();
+	}
+
+	/**
+	 * Run the code that renders a voice and converts the mix to the output
+	 * format, so that the JIT compiles it before the first real block is
+	 * mixed. Only local buffers are used; the engine's state is not touched,
+	 * so this may be called from any thread.
+	 *
+	 * @param voice
+	 *            A voice that never runs dry and is not in the engine.
+	 * @param blocks
+	 *            The number of blocks to render.
+	 */
+	static void warmUp(Voice voice, int blocks) {
+		float[] mix = new float[BLOCK_FRAMES * 2];
+		byte[] out = new byte[BLOCK_FRAMES * 4];
+		for (int i = 0; i < blocks; i++) {
+			Arrays.fill(mix, 0.0f);
+			voice.render(mix, BLOCK_FRAMES, 0.5f);
+			toBytes(mix, out);
+		}
+	}
+
+	/**
+	 * Run the mixing loop until there are no voices left and the engine has
+	 * been idle for {@code IDLE_LINGER_NANOS}, or until the system is shut
+	 * down.
+	 */
+	@Override
+	public void run() {
+		if (!openLine()) {
+			abandonVoices();
+			running.set(false);
+			return;
+		}
+		long idleSince = System.nanoTime();
+		boolean released = false;
+		try {
+			while (true) {
+				Voice voice;
+				while ((voice = pending.poll()) != null) {
+					voices.add(voice);
+				}
+				if (voices.isEmpty()) {
+					if (Audio.exec.isShutdown()
+							|| System.nanoTime() - idleSince > IDLE_LINGER_NANOS) {
+						// The line is closed before the engine may be
+						// restarted, since the next render thread opens its
+						// own.
+						released = true;
+						closeLine(true);
+						running.set(false);
+						// A voice may have been added after the poll above.
+						if (pending.isEmpty()
+								|| !running.compareAndSet(false, true)) {
+							break;
+						}
+						if (!openLine()) {
+							abandonVoices();
+							running.set(false);
+							break;
+						}
+						released = false;
+						idleSince = System.nanoTime();
+						continue;
+					}
+				} else {
+					idleSince = System.nanoTime();
+				}
+				awaitRoom();
+				long start = System.nanoTime();
+				mixBlock(start);
+				processingTime.record(System.nanoTime() - start);
+				line.write(out, 0, out.length);
+				latency = line.getLatency();
+			}
+		} finally {
+			if (!released) {
+				// The render loop failed. Its voices are stopped and the
+				// engine is released, so that the next voice added starts a
+				// new render thread.
+				logger.warning("The render thread failed; stopping "
+						+ voices.size() + " voices.");
+				if (line != null) {
+					closeLine(false);
+				}
+				for (int i = 0; i < voices.size(); i++) {
+					voices.get(i).playback.setStopped();
+				}
+				voices.clear();
+				dirty = true;
+				abandonVoices();
+				running.set(false);
+				// Voices added before running was cleared found the engine
+				// running, so they are stopped too.
+				abandonVoices();
+			}
+		}
+	}
+
+	/**
+	 * Close the output line.
+	 *
+	 * @param drain
+	 *            Whether to wait until the data written to the line has been
+	 *            played.
+	 */
+	private void closeLine(boolean drain) {
+		if (drain) {
+			line.drain();
+		}
+		line.close();
+		line = null;
+		latency = 0.0;
+	}
+
+	/**
+	 * Sleep until the output line has room for a block, recording how late
+	 * the thread woke up. If the line already has room, the block is mixed
+	 * at once and no wake-up is recorded.
+	 */
+	private void awaitRoom() {
+		int missing = out.length - line.available();
+		if (missing <= 0) {
+			return;
+		}
+		long deadline = System.nanoTime() + missing * BLOCK_NANOS
+				/ out.length;
+		long now;
+		while ((now = System.nanoTime()) < deadline) {
+			LockSupport.parkNanos(deadline - now);
+		}
+		wakeUpJitter.record(now - deadline);
+	}
+
+	/**
+	 * Open the output line.
+	 *
+	 * @return Success
+	 */
+	private boolean openLine() {
+		try {
+			line = new OutputLine(FORMAT);
+			line.start();
+			latency = line.getLatency();
+			return true;
+		} catch (LineUnavailableException ex) {
+			logger.warning("Could not open an output line.");
+			ex.printStackTrace();
+		} catch (IllegalArgumentException ex) {
+			logger.warning("No output line supports " + FORMAT + ".");
+			ex.printStackTrace();
+		}
+		line = null;
+		return false;
+	}
+
+	/**
+	 * Stop all voices when the output line could not be opened.
+	 */
+	private void abandonVoices() {
+		Voice voice;
+		while ((voice = pending.poll()) != null) {
+			voice.playback.setStopped();
+		}
+	}
+
+	/**
+	 * Mix one block of all active voices into {@code out}.
+	 *
+	 * @param startTime
+	 *            When mixing the block began, from {@code System.nanoTime()}.
+	 */
+	private void mixBlock(long startTime) {
+		float[] mix = this.mix;
+		Arrays.fill(mix, 0.0f);
+		block++;
+		if (dirty) {
+			dirty = false;
+			assignVoices();
+		}
+		int real = 0;
+		int virtual = 0;
+		for (int i = voices.size() - 1; i >= 0; i--) {
+			Voice voice = voices.get(i);
+			Playback.State state = voice.playback.state;
+			if (state == Playback.State.STOPPED) {
+				remove(i);
+				continue;
+			}
+			if (state != Playback.State.PLAYING) {
+				continue;
+			}
+			if (voice.playback.firstBlockTime == 0L) {
+				voice.playback.firstBlockTime = startTime;
+			}
+			voice.prepare();
+			boolean more;
+			if (voice.virtual) {
+				more = voice.advance(BLOCK_FRAMES);
+				virtual++;
+			} else {
+				more = renderVoice(voice) == BLOCK_FRAMES;
+				real++;
+			}
+			if (!more) {
+				voice.playback.setStopped();
+				remove(i);
+			}
+		}
+		realCount = real;
+		virtualCount = virtual;
+		keepTails();
+		processBuses(mix);
+		outputTap.offer(mix, BLOCK_FRAMES, 1.0f);
+		toBytes(mix, out);
+	}
+
+	/**
+	 * Render a voice into the buffer of its bus, applying the effects of its
+	 * {@code Playback} if it has any.
+	 *
+	 * @param voice
+	 *            The voice.
+	 *
+	 * @return The number of frames rendered.
+	 */
+	private int renderVoice(Voice voice) {
+		float[] target = busBuffer(voice.playback.audio.getBus());
+		ProcessorChain processors = voice.playback.processors;
+		AudioTap tap = voice.playback.tap;
+		boolean tapped = tap != null && tap.isActive();
+		if (processors.isEmpty() && !tapped) {
+			return voice.render(target, BLOCK_FRAMES);
+		}
+		float[] voiceMix = this.voiceMix;
+		Arrays.fill(voiceMix, 0.0f);
+		// Normalize before the effects, so that they see consistent levels.
+		int rendered = voice.render(voiceMix, BLOCK_FRAMES,
+				(float) voice.playback.normalizationGain);
+		if (!processors.isEmpty()) {
+			processors.process(voiceMix, BLOCK_FRAMES);
+		}
+		float gain = (float) voice.playback.volume;
+		for (int i = 0; i < voiceMix.length; i++) {
+			target[i] += voiceMix[i] * gain;
+		}
+		if (tapped) {
+			tap.offer(voiceMix, rendered, gain);
+		}
+		return rendered;
+	}
+
+	/**
+	 * Keep buses with effects active, fed with silence, for a while after
+	 * their last playback, and stop tracking them once their tails are over.
+	 */
+	private void keepTails() {
+		for (int i = tailBuses.size() - 1; i >= 0; i--) {
+			Bus bus = tailBuses.get(i);
+			if (block - bus.fedBlock > BUS_TAIL_BLOCKS
+					|| bus.processors.isEmpty()) {
+				bus.tailing = false;
+				int last = tailBuses.size() - 1;
+				tailBuses.set(i, tailBuses.get(last));
+				tailBuses.remove(last);
+			} else {
+				activate(bus);
+			}
+		}
+	}
+
+	/**
+	 * Get the buffer of a bus for the current block, clearing it and marking
+	 * the bus and its ancestors active and fed if this is the first use in
+	 * the block.
+	 *
+	 * @param bus
+	 *            The bus.
+	 *
+	 * @return The bus's buffer.
+	 */
+	private float[] busBuffer(Bus bus) {
+		if (bus.fedBlock != block) {
+			for (Bus b = bus; b != null && b.fedBlock != block; b = b.getParent()) {
+				b.fedBlock = block;
+				if (!b.tailing && !b.processors.isEmpty()) {
+					b.tailing = true;
+					tailBuses.add(b);
+				}
+			}
+			activate(bus);
+		}
+		return bus.buffer;
+	}
+
+	/**
+	 * Clear the buffer of a bus and mark it and its ancestors active, if that
+	 * has not yet been done in the current block.
+	 *
+	 * @param bus
+	 *            The bus.
+	 */
+	private void activate(Bus bus) {
+		if (bus.block != block) {
+			bus.clear(block);
+			activeBuses.add(bus);
+			if (bus.getParent() != null) {
+				activate(bus.getParent());
+			}
+		}
+	}
+
+	/**
+	 * Process the active buses, deepest first, so that each bus is complete
+	 * before it is summed into its parent.
+	 *
+	 * @param mix
+	 *            The output buffer, which receives {@code Bus.MASTER}.
+	 */
+	private void processBuses(float[] mix) {
+		ArrayList<Bus> buses = activeBuses;
+		int size = buses.size();
+		// Insertion sort by depth, deepest first. There are few buses.
+		for (int i = 1; i < size; i++) {
+			Bus bus = buses.get(i);
+			int j = i;
+			while (j > 0 && buses.get(j - 1).depth < bus.depth) {
+				buses.set(j, buses.get(j - 1));
+				j--;
+			}
+			buses.set(j, bus);
+		}
+		for (int i = 0; i < size; i++) {
+			Bus bus = buses.get(i);
+			Bus parent = bus.getParent();
+			bus.process((parent == null) ? mix : parent.buffer, BLOCK_FRAMES);
+		}
+		buses.clear();
+	}
+
+	/**
+	 * Remove the voice at the specified index.
+	 *
+	 * @param index
+	 *            The index of the voice.
+	 */
+	private void remove(int index) {
+		int last = voices.size() - 1;
+		voices.set(index, voices.get(last));
+		voices.remove(last);
+		dirty = true;
+	}
+
+	/**
+	 * Decide which voices are rendered and which are virtual. Voices that
+	 * cannot be virtualized always take a slot. The remaining slots go to the
+	 * loudest audible voices, taking the volume of their buses into account.
+	 */
+	private void assignVoices() {
+		int size = voices.size();
+		if (ranked.length < size) {
+			ranked = new Voice[size * 2];
+		}
+		int slots = maxVoices;
+		double threshold = audibilityThreshold;
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			Voice voice = voices.get(i);
+			voice.loudness = voice.playback.volume
+					* voice.playback.normalizationGain
+					* voice.playback.audio.getBus().getEffectiveVolume();
+			if (!voice.isVirtualizable()) {
+				voice.virtual = false;
+				slots--;
+			} else if (voice.loudness <= threshold) {
+				voice.virtual = true;
+			} else {
+				// Insertion sort, loudest first.
+				int j = n++;
+				while (j > 0 && ranked[j - 1].loudness < voice.loudness) {
+					ranked[j] = ranked[j - 1];
+					j--;
+				}
+				ranked[j] = voice;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			ranked[i].virtual = (i >= slots);
+			ranked[i] = null;
+		}
+	}
+
+	/**
+	 * Convert the float mix to the output format, clipping any samples that
+	 * are out of range.
+	 *
+	 * @param mix
+	 *            The interleaved float samples.
+	 * @param out
+	 *            Receives the 16-bit little-endian samples.
+	 */
+	private static void toBytes(float[] mix, byte[] out) {
+		for (int i = 0, j = 0; i < mix.length; i++, j += 2) {
+			float s = mix[i];
+			int v = (int) (s * 32767.0f);
+			if (v > 32767) {
+				v = 32767;
+			} else if (v < -32768) {
+				v = -32768;
+			}
+			out[j] = (byte) v;
+			out[j + 1] = (byte) (v >> 8);
+		}
+	}
+}
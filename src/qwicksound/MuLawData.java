@@ -0,0 +1,119 @@
+package qwicksound;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Audio data stored as 8-bit G.711 mu-law samples, half the size of 16-bit
+ * PCM. Samples are decoded with a table lookup, so any frame can be read
+ * directly.
+ *
+ * @author Christian Holton
+ *
+ */
+final class MuLawData extends SampleData {
+
+	/**
+	 * The bias added to magnitudes before encoding.
+	 */
+	private static final int BIAS = 0x84;
+	/**
+	 * The largest magnitude that can be encoded.
+	 */
+	private static final int CLIP = 32635;
+	/**
+	 * The decoded value of each code, scaled to the range [-1.0, 1.0).
+	 */
+	private static final float[] DECODED = new float[256];
+	static {
+		for (int code = 0; code < 256; code++) {
+			int u = ~code & 0xff;
+			int magnitude = ((((u & 0x0f) << 3) + BIAS) << ((u & 0x70) >> 4))
+					- BIAS;
+			DECODED[code] = (((u & 0x80) != 0) ? -magnitude : magnitude)
+					* SAMPLE_SCALE;
+		}
+	}
+	/**
+	 * The interleaved codes.
+	 */
+	private final byte[] data;
+
+	/**
+	 * Creates a new {@code MuLawData}.
+	 *
+	 * @param data
+	 *            The interleaved codes.
+	 * @param channels
+	 *            The number of channels per frame.
+	 * @param sampleRate
+	 *            The number of frames per second.
+	 */
+	private MuLawData(byte[] data, int channels, float sampleRate) {
+		super(channels, sampleRate, data.length / channels);
+		this.data = data;
+	}
+
+	/**
+	 * Encode 16-bit PCM data.
+	 *
+	 * @param pcm
+	 *            The data.
+	 *
+	 * @return The encoded data.
+	 */
+	static MuLawData encode(PcmData pcm) {
+		ByteBuffer samples = pcm.getData();
+		byte[] data = new byte[pcm.getFrameCount() * pcm.getChannels()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = encode(samples.getShort(i * 2));
+		}
+		return new MuLawData(data, pcm.getChannels(), pcm.getSampleRate());
+	}
+
+	/**
+	 * Encode a sample.
+	 *
+	 * @param sample
+	 *            The 16-bit sample.
+	 *
+	 * @return The mu-law code.
+	 */
+	private static byte encode(int sample) {
+		int sign = (sample >> 8) & 0x80;
+		int magnitude = Math.min(CLIP, Math.abs(sample)) + BIAS;
+		// The segment is the position of the highest set bit above bit 7.
+		int exponent = 31 - Integer.numberOfLeadingZeros(magnitude) - 7;
+		int mantissa = (magnitude >> (exponent + 3)) & 0x0f;
+		return (byte) ~(sign | (exponent << 4) | mantissa);
+	}
+
+	@Override
+	Reader newReader() {
+		return new Reader() {
+			@Override
+			void read(int frame, int count, float[] dest, int offset) {
+				byte[] data = MuLawData.this.data;
+				int index = frame * channels;
+				int end = offset + count * channels;
+				for (int i = offset; i < end; i++, index++) {
+					dest[i] = DECODED[data[index] & 0xff];
+				}
+			}
+		};
+	}
+
+	@Override
+	SampleEncoding getSampleEncoding() {
+		return SampleEncoding.MU_LAW;
+	}
+
+	@Override
+	boolean isOnHeap() {
+		return true;
+	}
+
+	@Override
+	long getByteCount() {
+		return data.length;
+	}
+}
@@ -0,0 +1,255 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Keeps the loudness measurements of {@code Audio}s and turns them into the
+ * gains that bring each to the normalization target.
+ * <p>
+ * Preloaded audio is measured while it is decoded. Audio that could not be
+ * measured then, such as streaming audio, audio decoded in parallel segments
+ * and {@code SoundBank} entries, is measured by a background pass on a
+ * single low-priority thread, so that play requests never wait for it. Until
+ * the measurement is done, playbacks start at unity gain. Measurements are
+ * kept by the {@code Audio}, so reloading evicted audio data does not measure
+ * it again, and by the file's {@code URL}, so other {@code Audio}s of the
+ * same file share them.
+ *
+ * @author Christian Holton
+ *
+ */
+final class Normalizer {
+
+	/**
+	 * The default target loudness in LUFS.
+	 */
+	static final double DEFAULT_TARGET = -16.0;
+	/**
+	 * The largest gain applied, in decibels, so that quiet noise is not
+	 * turned into loud noise.
+	 */
+	private static final double MAX_BOOST = 12.0;
+	/**
+	 * Whether playbacks are normalized.
+	 */
+	private static volatile boolean enabled = true;
+	/**
+	 * The target loudness in LUFS.
+	 */
+	private static volatile double target = DEFAULT_TARGET;
+	/**
+	 * The measurements of files, by {@code URL}.
+	 */
+	private static final ConcurrentHashMap<String, Loudness> measurements = new ConcurrentHashMap<String, Loudness>();
+	/**
+	 * Runs the background passes, one at a time.
+	 */
+	private static final ExecutorService analyzer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "QwickSound loudness");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+	/**
+	 * {@code Logger} for the {@code Normalizer} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(Normalizer.class
+			.getName());
+
+	/**
+	 * This class is not meant to be instantiated.
+	 */
+	private Normalizer() {
+	}
+
+	/**
+	 * Set whether playbacks are normalized.
+	 *
+	 * @param enabled
+	 *            {@code false} to play all audio at unity gain.
+	 */
+	static void setEnabled(boolean enabled) {
+		Normalizer.enabled = enabled;
+	}
+
+	/**
+	 * Whether playbacks are normalized.
+	 *
+	 * @return {@code true} if they are.
+	 */
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Set the loudness that audio is normalized to.
+	 *
+	 * @param lufs
+	 *            The target in LUFS.
+	 */
+	static void setTarget(double lufs) {
+		target = lufs;
+	}
+
+	/**
+	 * Get the loudness that audio is normalized to.
+	 *
+	 * @return The target in LUFS.
+	 */
+	static double getTarget() {
+		return target;
+	}
+
+	/**
+	 * Get the gain that brings audio to the target loudness. Gains above 1
+	 * are limited so that the peak does not clip, and to {@code MAX_BOOST}.
+	 *
+	 * @param loudness
+	 *            The measurement of the audio, or {@code null} if it is not
+	 *            known yet.
+	 *
+	 * @return The gain, or 1 if normalization is disabled or the loudness is
+	 *         unknown.
+	 */
+	static double gain(Loudness loudness) {
+		if (!enabled || loudness == null
+				|| Double.isInfinite(loudness.getIntegrated())
+				|| loudness.getPeak() <= 0.0) {
+			return 1.0;
+		}
+		double dB = Math.min(MAX_BOOST, target - loudness.getIntegrated());
+		double gain = Math.pow(10.0, dB / 20.0);
+		if (gain > 1.0) {
+			gain = Math.max(1.0, Math.min(gain, 1.0 / loudness.getPeak()));
+		}
+		return gain;
+	}
+
+	/**
+	 * Give preloaded audio its loudness, measuring its audio data in the
+	 * background if it was not measured while it was decoded.
+	 *
+	 * @param audio
+	 *            The audio.
+	 * @param pcm
+	 *            Its audio data.
+	 */
+	static void measure(final Audio audio, final PcmData pcm) {
+		if (audio.loudness != null || lookUp(audio)) {
+			return;
+		}
+		if (pcm.getLoudness() != null) {
+			store(audio, pcm.getLoudness());
+			return;
+		}
+		analyzer.execute(new Runnable() {
+			@Override
+			public void run() {
+				LoudnessMeter meter = new LoudnessMeter(pcm.getChannels(),
+						pcm.getSampleRate());
+				meter.process(pcm.getData());
+				store(audio, meter.getLoudness());
+			}
+		});
+	}
+
+	/**
+	 * Give streaming audio its loudness, decoding its source once in the
+	 * background. Sources that cannot be reopened, and HTTP sources, which
+	 * would be downloaded a second time, are not measured.
+	 *
+	 * @param audio
+	 *            The audio.
+	 */
+	static void measure(final Audio audio) {
+		final AudioSource source = audio.source;
+		if (audio.loudness != null || lookUp(audio) || !source.isReopenable()
+				|| source instanceof HttpSource) {
+			return;
+		}
+		analyzer.execute(new Runnable() {
+			@Override
+			public void run() {
+				AudioInputStream audioInStream = source.open();
+				if (audioInStream == null) {
+					return;
+				}
+				audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+				LoudnessMeter meter = new LoudnessMeter(audioInStream
+						.getFormat().getChannels(), audioInStream.getFormat()
+						.getSampleRate());
+				byte[] buffer = new byte[4096 * audioInStream.getFormat()
+						.getFrameSize()];
+				try {
+					int bytesRead;
+					while ((bytesRead = audioInStream.read(buffer)) != -1) {
+						meter.process(buffer, 0, bytesRead);
+					}
+				} catch (IOException ex) {
+					logger.warning("Could not measure the loudness of \""
+							+ audio.getFileName() + "\"");
+					ex.printStackTrace();
+					return;
+				} finally {
+					try {
+						audioInStream.close();
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					}
+				}
+				store(audio, meter.getLoudness());
+			}
+		});
+	}
+
+	/**
+	 * Give audio the measurement of its file, if the file has been measured.
+	 *
+	 * @param audio
+	 *            The audio.
+	 *
+	 * @return {@code true} if a measurement was found.
+	 */
+	private static boolean lookUp(Audio audio) {
+		URL fileURL = audio.source.getURL();
+		Loudness loudness = (fileURL == null) ? null : measurements
+				.get(fileURL.toString());
+		if (loudness == null) {
+			return false;
+		}
+		audio.loudness = loudness;
+		return true;
+	}
+
+	/**
+	 * Keep a measurement with audio and its file.
+	 *
+	 * @param audio
+	 *            The audio.
+	 * @param loudness
+	 *            The measurement.
+	 */
+	private static void store(Audio audio, Loudness loudness) {
+		audio.loudness = loudness;
+		URL fileURL = audio.source.getURL();
+		if (fileURL != null) {
+			measurements.put(fileURL.toString(), loudness);
+		}
+		logger.info("Loudness of \"" + audio.getFileName() + "\": "
+				+ loudness);
+	}
+}
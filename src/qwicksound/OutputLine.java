@@ -0,0 +1,397 @@
+package qwicksound;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * A {@code SourceDataLine} whose buffer is sized from the target latency (see
+ * {@link QwickSound#setTargetLatency}) rather than the platform default. The
+ * mixer writes one block of {@code MixEngine.BLOCK_FRAMES} frames at a time,
+ * as soon as the line has room for it, so the line is refilled many times
+ * per buffer period.
+ * <p>
+ * An underrun is detected when a write finds the line's buffer completely
+ * empty while the line is running. Each underrun doubles the buffer, up to
+ * {@code MAX_LATENCY}, by reopening the line; the achieved latency is
+ * available from {@link #getLatency()}.
+ * <p>
+ * In headless mode (see {@link QwickSound#setHeadless}) no device line is
+ * opened. The data is discarded instead, at the pace a device would play it,
+ * so that the rendering loop runs exactly as it would with a device,
+ * including its underruns.
+ *
+ * @author Christian Holton
+ *
+ */
+final class OutputLine {
+
+	/**
+	 * The default target latency in seconds.
+	 */
+	static final double DEFAULT_LATENCY = 0.05;
+	/**
+	 * The smallest target latency in seconds.
+	 */
+	static final double MIN_LATENCY = 0.01;
+	/**
+	 * The largest latency in seconds the buffer grows to after underruns.
+	 */
+	static final double MAX_LATENCY = 0.5;
+	/**
+	 * The target latency of newly opened lines, in seconds.
+	 */
+	private static volatile double targetLatency = DEFAULT_LATENCY;
+	/**
+	 * The total number of underruns of all lines.
+	 */
+	private static final AtomicInteger totalUnderruns = new AtomicInteger();
+	/**
+	 * Whether lines opened from now on discard their data instead of playing
+	 * it on a device.
+	 */
+	private static volatile boolean headless;
+	/**
+	 * The format of the line.
+	 */
+	private final AudioFormat format;
+	/**
+	 * The line being written, or {@code null} if the data is discarded.
+	 */
+	private SourceDataLine line;
+	/**
+	 * The number of bytes written to a headless line.
+	 */
+	private long discarded;
+	/**
+	 * The number of bytes a headless line had played when its clock was last
+	 * set.
+	 */
+	private long clockBase;
+	/**
+	 * When the clock of a headless line was last set, from
+	 * {@code System.nanoTime()}.
+	 */
+	private long clockStart;
+	/**
+	 * Whether a headless line is running.
+	 */
+	private boolean running;
+	/**
+	 * The size of the line's buffer in bytes.
+	 */
+	private volatile int bufferSize;
+	/**
+	 * The number of bytes written since the line was last started. Underruns
+	 * are only counted once the buffer has been filled.
+	 */
+	private long writtenSinceStart;
+	/**
+	 * {@code Logger} for the {@code OutputLine} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(OutputLine.class
+			.getName());
+
+	/**
+	 * Opens a new {@code OutputLine} with a buffer sized for the current
+	 * target latency. The line is not started.
+	 *
+	 * @param format
+	 *            The format of the audio data to be written.
+	 *
+	 * @throws LineUnavailableException
+	 *             If no line could be opened.
+	 * @throws IllegalArgumentException
+	 *             If no line supports the format.
+	 */
+	OutputLine(AudioFormat format) throws LineUnavailableException {
+		this.format = format;
+		if (headless) {
+			resize(bytesFor(targetLatency));
+		} else {
+			open(bytesFor(targetLatency));
+		}
+	}
+
+	/**
+	 * Set the target latency of lines opened from now on.
+	 *
+	 * @param seconds
+	 *            The target latency. It is clamped to the range
+	 *            {@code MIN_LATENCY} to {@code MAX_LATENCY}.
+	 */
+	static void setTargetLatency(double seconds) {
+		targetLatency = Math.min(MAX_LATENCY, Math.max(MIN_LATENCY, seconds));
+	}
+
+	/**
+	 * Get the target latency of newly opened lines.
+	 *
+	 * @return The target latency in seconds.
+	 */
+	static double getTargetLatency() {
+		return targetLatency;
+	}
+
+	/**
+	 * Set whether lines opened from now on discard their data instead of
+	 * playing it on a device.
+	 *
+	 * @param headless
+	 *            {@code true} to discard the data.
+	 */
+	static void setHeadless(boolean headless) {
+		OutputLine.headless = headless;
+	}
+
+	/**
+	 * Whether lines opened from now on discard their data.
+	 *
+	 * @return {@code true} if they discard it.
+	 */
+	static boolean isHeadless() {
+		return headless;
+	}
+
+	/**
+	 * Get the total number of underruns of all lines.
+	 *
+	 * @return The number of underruns.
+	 */
+	static int getTotalUnderruns() {
+		return totalUnderruns.get();
+	}
+
+	/**
+	 * Get the latency of this line, i.e. the duration of its buffer.
+	 *
+	 * @return The latency in seconds.
+	 */
+	double getLatency() {
+		return (double) bufferSize / format.getFrameSize()
+				/ format.getFrameRate();
+	}
+
+	/**
+	 * Write audio data to the line, blocking until it has all been queued. If
+	 * the line ran dry since the last write, its buffer is grown first.
+	 *
+	 * @param data
+	 *            The audio data.
+	 * @param offset
+	 *            The offset of the first byte.
+	 * @param length
+	 *            The number of bytes to write, a whole number of frames.
+	 */
+	void write(byte[] data, int offset, int length) {
+		if (writtenSinceStart >= bufferSize && isRunning()
+				&& available() >= bufferSize) {
+			underrun();
+		}
+		if (line == null) {
+			discard(length);
+		} else {
+			line.write(data, offset, length);
+		}
+		writtenSinceStart += length;
+	}
+
+	/**
+	 * Get the number of bytes that can be written without blocking.
+	 *
+	 * @return The free space in the line's buffer, in bytes.
+	 */
+	int available() {
+		if (line == null) {
+			long queued = discarded - played();
+			return (int) Math.max(0L, Math.min(bufferSize, bufferSize - queued));
+		}
+		return line.available();
+	}
+
+	/**
+	 * Start the line.
+	 */
+	void start() {
+		if (!isRunning()) {
+			writtenSinceStart = 0;
+			if (line == null) {
+				clockStart = System.nanoTime();
+				running = true;
+			} else {
+				line.start();
+			}
+		}
+	}
+
+	/**
+	 * Whether the line is running.
+	 *
+	 * @return {@code true} if the line has been started and not stopped.
+	 */
+	boolean isRunning() {
+		return line == null ? running : line.isRunning();
+	}
+
+	/**
+	 * Block until all queued data has been played.
+	 */
+	void drain() {
+		if (line == null) {
+			long queued;
+			while (running && (queued = discarded - played()) > 0) {
+				LockSupport.parkNanos(nanosFor(queued));
+			}
+		} else {
+			line.drain();
+		}
+	}
+
+	/**
+	 * Close the line, releasing its resources.
+	 */
+	void close() {
+		if (line == null) {
+			if (running) {
+				clockBase = Math.min(played(), discarded);
+				running = false;
+			}
+		} else {
+			line.close();
+		}
+	}
+
+	/**
+	 * Discard data written to a headless line, blocking while its buffer is
+	 * full as a device line would. If the line ran dry, its clock is set
+	 * back to the end of the data, since a device stops playing while it has
+	 * nothing to play rather than catching up later.
+	 *
+	 * @param length
+	 *            The number of bytes written.
+	 */
+	private void discard(int length) {
+		long played = played();
+		if (played > discarded) {
+			clockBase = discarded;
+			clockStart = System.nanoTime();
+		}
+		int missing;
+		while (running && (missing = length - available()) > 0) {
+			LockSupport.parkNanos(nanosFor(missing));
+		}
+		discarded += length;
+	}
+
+	/**
+	 * Get the number of bytes a headless line has played according to its
+	 * clock, which may be more than has been written to it.
+	 *
+	 * @return The number of bytes, a whole number of frames.
+	 */
+	private long played() {
+		if (!running) {
+			return clockBase;
+		}
+		long frames = (long) ((System.nanoTime() - clockStart)
+				* (double) format.getFrameRate() / 1.0e9);
+		return clockBase + frames * format.getFrameSize();
+	}
+
+	/**
+	 * Get the time it takes to play the specified number of bytes.
+	 *
+	 * @param bytes
+	 *            The number of bytes.
+	 *
+	 * @return The duration in nanoseconds.
+	 */
+	private long nanosFor(long bytes) {
+		return (long) (bytes / format.getFrameSize() * 1.0e9 / format
+				.getFrameRate());
+	}
+
+	/**
+	 * Handle an underrun by reopening the line with a buffer twice the size.
+	 */
+	private void underrun() {
+		totalUnderruns.incrementAndGet();
+		int maxSize = bytesFor(MAX_LATENCY);
+		if (bufferSize >= maxSize) {
+			return;
+		}
+		int newSize = Math.min(maxSize, bufferSize * 2);
+		if (line == null) {
+			resize(newSize);
+			logger.info("Output underrun. Latency is now "
+					+ Math.round(getLatency() * 1000.0) + " ms");
+			return;
+		}
+		SourceDataLine oldLine = line;
+		try {
+			// Open the new line before closing the old one, so that the old
+			// one can be kept if the new one is unavailable.
+			open(newSize);
+		} catch (LineUnavailableException ex) {
+			logger.warning("Could not reopen the output line after an "
+					+ "underrun.");
+			ex.printStackTrace();
+			return;
+		}
+		oldLine.close();
+		start();
+		logger.info("Output underrun. Latency is now "
+				+ Math.round(getLatency() * 1000.0) + " ms");
+	}
+
+	/**
+	 * Open a line with the specified buffer size.
+	 *
+	 * @param size
+	 *            The requested buffer size in bytes.
+	 *
+	 * @throws LineUnavailableException
+	 *             If no line could be opened.
+	 */
+	private void open(int size) throws LineUnavailableException {
+		DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+		SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+		line.open(format, size);
+		this.line = line;
+		// The line may not grant the requested size.
+		resize(line.getBufferSize());
+	}
+
+	/**
+	 * Set the buffer size, and restart the detection of underruns.
+	 *
+	 * @param size
+	 *            The buffer size in bytes.
+	 */
+	private void resize(int size) {
+		writtenSinceStart = 0;
+		int frameSize = format.getFrameSize();
+		bufferSize = size / frameSize * frameSize;
+	}
+
+	/**
+	 * Get the buffer size in bytes that holds the specified duration.
+	 *
+	 * @param seconds
+	 *            The duration.
+	 *
+	 * @return The size in bytes, a whole number of frames.
+	 */
+	private int bytesFor(double seconds) {
+		return (int) Math.ceil(seconds * format.getFrameRate())
+				* format.getFrameSize();
+	}
+}
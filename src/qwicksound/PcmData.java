@@ -0,0 +1,131 @@
+package qwicksound;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Decoded audio data held in memory in QwickSound's canonical PCM format
+ * (signed, 16-bit, little-endian samples). A single {@code PcmData} is shared,
+ * read-only, by all of the {@code PreloadedPlayback} instances of its
+ * {@code PreloadedAudio}.
+ *
+ * @author Christian Holton
+ *
+ */
+final class PcmData extends SampleData {
+
+	/**
+	 * The interleaved sample data.
+	 */
+	private final ByteBuffer data;
+	/**
+	 * The loudness measured while the data was decoded, or {@code null}.
+	 */
+	private volatile Loudness loudness;
+
+	/**
+	 * Creates a new {@code PcmData} backed by the specified bytes.
+	 *
+	 * @param audioBytes
+	 *            The audio data, which must be in the canonical format.
+	 * @param format
+	 *            Describes the channels and sample rate of the data.
+	 */
+	PcmData(byte[] audioBytes, AudioFormat format) {
+		this(ByteBuffer.wrap(audioBytes), format.getChannels(), format
+				.getSampleRate());
+	}
+
+	/**
+	 * Creates a new {@code PcmData} that is a view of the specified buffer.
+	 * The buffer's contents are not copied.
+	 *
+	 * @param data
+	 *            The audio data, which must be in the canonical format. Its
+	 *            position and limit delimit the data.
+	 * @param channels
+	 *            The number of channels per frame.
+	 * @param sampleRate
+	 *            The number of frames per second.
+	 */
+	PcmData(ByteBuffer data, int channels, float sampleRate) {
+		super(channels, sampleRate, data.remaining() / (channels * 2));
+		this.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Read frames as floats into the destination array. Samples are written
+	 * interleaved, {@code getChannels()} per frame.
+	 *
+	 * @param frame
+	 *            The index of the first frame to read.
+	 * @param count
+	 *            The number of frames to read.
+	 * @param dest
+	 *            The array that receives the samples.
+	 * @param offset
+	 *            The index in {@code dest} of the first sample written.
+	 */
+	void read(int frame, int count, float[] dest, int offset) {
+		int index = frame * channels * 2;
+		int end = offset + count * channels;
+		for (int i = offset; i < end; i++, index += 2) {
+			dest[i] = data.getShort(index) * SAMPLE_SCALE;
+		}
+	}
+
+	@Override
+	Reader newReader() {
+		return new Reader() {
+			@Override
+			void read(int frame, int count, float[] dest, int offset) {
+				PcmData.this.read(frame, count, dest, offset);
+			}
+		};
+	}
+
+	@Override
+	SampleEncoding getSampleEncoding() {
+		return SampleEncoding.PCM_16;
+	}
+
+	@Override
+	boolean isOnHeap() {
+		return !data.isDirect();
+	}
+
+	/**
+	 * Get a read-only view of the audio data.
+	 *
+	 * @return The audio data.
+	 */
+	ByteBuffer getData() {
+		return data.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Get the loudness measured while the data was decoded.
+	 *
+	 * @return The loudness, or {@code null} if it was not measured.
+	 */
+	Loudness getLoudness() {
+		return loudness;
+	}
+
+	/**
+	 * Set the loudness measured while the data was decoded.
+	 *
+	 * @param loudness
+	 *            The loudness.
+	 */
+	void setLoudness(Loudness loudness) {
+		this.loudness = loudness;
+	}
+
+	@Override
+	long getByteCount() {
+		return data.capacity();
+	}
+}
@@ -0,0 +1,309 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads uncompressed WAV and AIFF files without going through Java Sound. The
+ * header is parsed directly to find the format and the location and frame
+ * length of the sample data, which is then used in place when it is already
+ * in the canonical PCM format, or converted in a single pass into a
+ * right-sized buffer otherwise.
+ *
+ * @author Christian Holton
+ *
+ */
+final class PcmFileReader {
+
+	/**
+	 * WAV format tag of integer PCM data.
+	 */
+	private static final int WAVE_FORMAT_PCM = 1;
+	/**
+	 * WAV format tag of data whose format is given by a sub-format GUID.
+	 */
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+	/**
+	 * Cannot be instantiated.
+	 */
+	private PcmFileReader() {
+	}
+
+	/**
+	 * Read the audio data of a WAV or AIFF file. The file is memory-mapped;
+	 * if its samples are in the canonical format the returned data is a view
+	 * of the mapping.
+	 *
+	 * @param channel
+	 *            The open file.
+	 * @param limit
+	 *            The maximum number of bytes of decoded audio data.
+	 *
+	 * @return The audio data, or {@code null} if the file is not an
+	 *         uncompressed WAV or AIFF file, or its data is larger than
+	 *         {@code limit}.
+	 *
+	 * @throws IOException
+	 *             If the file could not be mapped.
+	 */
+	static PcmData read(FileChannel channel, long limit) throws IOException {
+		if (channel.size() > Integer.MAX_VALUE) {
+			return null;
+		}
+		return read(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				channel.size()), limit);
+	}
+
+	/**
+	 * Read the audio data of a WAV or AIFF file held in a buffer. If its
+	 * samples are in the canonical format the returned data is a view of the
+	 * buffer.
+	 *
+	 * @param file
+	 *            The file data, between the buffer's position and limit.
+	 * @param limit
+	 *            The maximum number of bytes of decoded audio data.
+	 *
+	 * @return The audio data, or {@code null} if the file is not an
+	 *         uncompressed WAV or AIFF file, or its data is larger than
+	 *         {@code limit}.
+	 */
+	static PcmData read(ByteBuffer file, long limit) {
+		ByteBuffer buffer = file.slice();
+		Layout layout;
+		try {
+			layout = parseWave(buffer);
+			if (layout == null) {
+				layout = parseAiff(buffer);
+			}
+		} catch (RuntimeException ex) {
+			// Truncated or malformed header. Let Java Sound deal with it.
+			return null;
+		}
+		if (layout == null
+				|| (long) layout.frames * layout.channels * 2 > limit) {
+			return null;
+		}
+		return layout.toPcm();
+	}
+
+	/**
+	 * Parse the header of a RIFF WAVE file.
+	 *
+	 * @param buffer
+	 *            The file data.
+	 *
+	 * @return The layout, or {@code null} if the data is not an uncompressed
+	 *         WAV file.
+	 */
+	private static Layout parseWave(ByteBuffer buffer) {
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (b.remaining() < 12 || b.getInt(0) != 0x46464952 // "RIFF"
+				|| b.getInt(8) != 0x45564157) { // "WAVE"
+			return null;
+		}
+		Layout layout = null;
+		int pos = 12;
+		while (pos + 8 <= b.limit()) {
+			int id = b.getInt(pos);
+			long size = b.getInt(pos + 4) & 0xffffffffL;
+			int body = pos + 8;
+			if (id == 0x20746D66) { // "fmt "
+				int tag = b.getShort(body) & 0xffff;
+				if (tag == WAVE_FORMAT_EXTENSIBLE && size >= 40) {
+					tag = b.getShort(body + 24) & 0xffff;
+				}
+				if (tag != WAVE_FORMAT_PCM) {
+					return null;
+				}
+				layout = new Layout();
+				layout.channels = b.getShort(body + 2);
+				layout.sampleRate = b.getInt(body + 4);
+				layout.bits = b.getShort(body + 14);
+				layout.bigEndian = false;
+			} else if (id == 0x61746164) { // "data"
+				if (layout == null) {
+					return null;
+				}
+				size = Math.min(size, b.limit() - body);
+				return layout.setData(b, body, size);
+			}
+			// Chunks are padded to an even size.
+			pos = (int) Math.min(Integer.MAX_VALUE, body + size + (size & 1));
+		}
+		return null;
+	}
+
+	/**
+	 * Parse the header of an AIFF or uncompressed AIFF-C file.
+	 *
+	 * @param buffer
+	 *            The file data.
+	 *
+	 * @return The layout, or {@code null} if the data is not an uncompressed
+	 *         AIFF file.
+	 */
+	private static Layout parseAiff(ByteBuffer buffer) {
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		if (b.remaining() < 12 || b.getInt(0) != 0x464F524D) { // "FORM"
+			return null;
+		}
+		int type = b.getInt(8);
+		boolean aifc = (type == 0x41494643); // "AIFC"
+		if (type != 0x41494646 && !aifc) { // "AIFF"
+			return null;
+		}
+		Layout layout = null;
+		int pos = 12;
+		while (pos + 8 <= b.limit()) {
+			int id = b.getInt(pos);
+			long size = b.getInt(pos + 4) & 0xffffffffL;
+			int body = pos + 8;
+			if (id == 0x434F4D4D) { // "COMM"
+				layout = new Layout();
+				layout.channels = b.getShort(body);
+				layout.bits = b.getShort(body + 6);
+				layout.sampleRate = readExtended(b, body + 8);
+				layout.bigEndian = true;
+				if (aifc) {
+					int compression = b.getInt(body + 18);
+					if (compression == 0x736F7774) { // "sowt"
+						layout.bigEndian = false;
+					} else if (compression != 0x4E4F4E45) { // "NONE"
+						return null;
+					}
+				}
+			} else if (id == 0x53534E44) { // "SSND"
+				if (layout == null) {
+					return null;
+				}
+				int start = body + 8 + b.getInt(body);
+				size = Math.min(size - 8 - b.getInt(body), b.limit() - start);
+				return layout.setData(b, start, size);
+			}
+			pos = (int) Math.min(Integer.MAX_VALUE, body + size + (size & 1));
+		}
+		return null;
+	}
+
+	/**
+	 * Read an 80-bit IEEE 754 extended precision number, as used for the
+	 * sample rate of AIFF files.
+	 *
+	 * @param b
+	 *            The buffer.
+	 * @param index
+	 *            The index of the number.
+	 *
+	 * @return The number.
+	 */
+	private static float readExtended(ByteBuffer b, int index) {
+		int exponent = (b.getShort(index) & 0x7fff) - 16383;
+		long mantissa = b.getLong(index + 2);
+		return (float) ((mantissa >>> 11) * Math.pow(2.0, exponent - 52));
+	}
+
+	/**
+	 * The format and location of the sample data of a file.
+	 */
+	private static final class Layout {
+
+		/**
+		 * The number of channels per frame.
+		 */
+		int channels;
+		/**
+		 * The number of frames per second.
+		 */
+		float sampleRate;
+		/**
+		 * The number of bits per sample.
+		 */
+		int bits;
+		/**
+		 * The byte order of the samples.
+		 */
+		boolean bigEndian;
+		/**
+		 * The sample data.
+		 */
+		ByteBuffer data;
+		/**
+		 * The number of frames of sample data.
+		 */
+		int frames;
+
+		/**
+		 * Locate the sample data.
+		 *
+		 * @param b
+		 *            The file data.
+		 * @param start
+		 *            The index of the first sample.
+		 * @param size
+		 *            The size of the sample data in bytes.
+		 *
+		 * @return This layout, or {@code null} if its format is not
+		 *         supported.
+		 */
+		Layout setData(ByteBuffer b, int start, long size) {
+			if (channels < 1 || sampleRate <= 0
+					|| (bits != 8 && bits != 16 && bits != 24 && bits != 32)) {
+				return null;
+			}
+			int frameSize = channels * (bits / 8);
+			frames = (int) (size / frameSize);
+			ByteBuffer view = b.duplicate();
+			view.limit(start + frames * frameSize);
+			view.position(start);
+			data = view.slice();
+			return this;
+		}
+
+		/**
+		 * Get the sample data in the canonical format, converting it if
+		 * necessary.
+		 *
+		 * @return The audio data.
+		 */
+		PcmData toPcm() {
+			if (bits == 16 && !bigEndian) {
+				// Already canonical: use the data in place.
+				return new PcmData(data, channels, sampleRate);
+			}
+			int samples = frames * channels;
+			MemoryBudget.getInstance().makeRoom(samples * 2L);
+			byte[] out = new byte[samples * 2];
+			ByteBuffer in = data.duplicate().order(
+					bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			int bytes = bits / 8;
+			for (int i = 0, j = 0; i < samples; i++, j += 2) {
+				int index = i * bytes;
+				int sample;
+				switch (bits) {
+				case 8:
+					// 8-bit WAV is unsigned, 8-bit AIFF is signed.
+					sample = bigEndian ? in.get(index) << 8
+							: ((in.get(index) & 0xff) - 128) << 8;
+					break;
+				case 16:
+					sample = in.getShort(index);
+					break;
+				case 24:
+					sample = bigEndian ? in.getShort(index)
+							: in.getShort(index + 1);
+					break;
+				default:
+					sample = in.getInt(index) >> 16;
+					break;
+				}
+				out[j] = (byte) sample;
+				out[j + 1] = (byte) (sample >> 8);
+			}
+			return new PcmData(ByteBuffer.wrap(out), channels, sampleRate);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package qwicksound;
+
+/**
+ * Selects how preloaded audio data is reduced after it is decoded (see
+ * {@link QwickSound#setPcmOptimization(PcmOptimization)}):
+ * <ul>
+ * <li><b>Trim silence:</b> leading and trailing frames below the silence
+ * threshold are dropped, so that playback reaches the audible onset at once.
+ * </li>
+ * <li><b>Fold to mono:</b> stereo data whose channels are identical, as is
+ * common for effects encoded as joint-stereo MP3s, is stored as mono. The
+ * mixer plays mono data on both channels, so it sounds the same at half the
+ * memory.</li>
+ * <li><b>Downsample:</b> data without content in the upper half of its
+ * frequency range is halved in sample rate, repeatedly, down to the minimum
+ * sample rate. This is off by default.</li>
+ * </ul>
+ * How much memory each {@code PreloadedAudio} saved is reported by
+ * {@link PreloadedAudio#getMemorySaved()}.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class PcmOptimization {
+
+	/**
+	 * The default silence threshold in dBFS.
+	 */
+	public static final double DEFAULT_SILENCE_THRESHOLD = -60.0;
+	/**
+	 * The default lowest sample rate that data is downsampled to, in Hz.
+	 */
+	public static final float DEFAULT_MIN_SAMPLE_RATE = 11025.0f;
+	/**
+	 * Whether to trim leading and trailing silence.
+	 */
+	private volatile boolean trimSilence = true;
+	/**
+	 * The level below which frames are silent, in dBFS.
+	 */
+	private volatile double silenceThreshold = DEFAULT_SILENCE_THRESHOLD;
+	/**
+	 * Whether to fold identical stereo channels to mono.
+	 */
+	private volatile boolean foldMono = true;
+	/**
+	 * Whether to downsample data without high-frequency content.
+	 */
+	private volatile boolean downsample;
+	/**
+	 * The lowest sample rate that data is downsampled to, in Hz.
+	 */
+	private volatile float minSampleRate = DEFAULT_MIN_SAMPLE_RATE;
+
+	/**
+	 * Creates a new {@code PcmOptimization} that trims silence and folds
+	 * identical channels to mono, but does not downsample.
+	 */
+	public PcmOptimization() {
+	}
+
+	/**
+	 * Set whether leading and trailing silence is trimmed.
+	 *
+	 * @param trimSilence
+	 *            {@code true} to trim silence.
+	 */
+	public void setTrimSilence(boolean trimSilence) {
+		this.trimSilence = trimSilence;
+	}
+
+	/**
+	 * Whether leading and trailing silence is trimmed.
+	 *
+	 * @return {@code true} if silence is trimmed.
+	 */
+	public boolean isTrimSilence() {
+		return trimSilence;
+	}
+
+	/**
+	 * Set the level below which frames count as silent.
+	 *
+	 * @param dBFS
+	 *            The threshold in dB relative to full scale. The default is
+	 *            -60 dBFS.
+	 */
+	public void setSilenceThreshold(double dBFS) {
+		this.silenceThreshold = dBFS;
+	}
+
+	/**
+	 * Get the level below which frames count as silent.
+	 *
+	 * @return The threshold in dBFS.
+	 */
+	public double getSilenceThreshold() {
+		return silenceThreshold;
+	}
+
+	/**
+	 * Set whether stereo data with identical channels is folded to mono.
+	 *
+	 * @param foldMono
+	 *            {@code true} to fold identical channels.
+	 */
+	public void setFoldMono(boolean foldMono) {
+		this.foldMono = foldMono;
+	}
+
+	/**
+	 * Whether stereo data with identical channels is folded to mono.
+	 *
+	 * @return {@code true} if identical channels are folded.
+	 */
+	public boolean isFoldMono() {
+		return foldMono;
+	}
+
+	/**
+	 * Set whether data without high-frequency content is downsampled.
+	 *
+	 * @param downsample
+	 *            {@code true} to downsample.
+	 */
+	public void setDownsample(boolean downsample) {
+		this.downsample = downsample;
+	}
+
+	/**
+	 * Whether data without high-frequency content is downsampled.
+	 *
+	 * @return {@code true} if data is downsampled.
+	 */
+	public boolean isDownsample() {
+		return downsample;
+	}
+
+	/**
+	 * Set the lowest sample rate that data is downsampled to.
+	 *
+	 * @param sampleRate
+	 *            The sample rate in Hz. The default is 11025 Hz.
+	 */
+	public void setMinSampleRate(float sampleRate) {
+		this.minSampleRate = sampleRate;
+	}
+
+	/**
+	 * Get the lowest sample rate that data is downsampled to.
+	 *
+	 * @return The sample rate in Hz.
+	 */
+	public float getMinSampleRate() {
+		return minSampleRate;
+	}
+}
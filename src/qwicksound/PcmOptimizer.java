@@ -0,0 +1,319 @@
+package qwicksound;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Applies the {@code PcmOptimization} selected with
+ * {@link QwickSound#setPcmOptimization} to audio data that has been
+ * preloaded onto the heap. Data mapped from a {@code SoundBank} is left as
+ * it is.
+ * <p>
+ * Downsampling low-pass filters the data with a 127-tap windowed-sinc filter
+ * cutting off at 90% of the new Nyquist frequency and keeps every other
+ * frame. It is only done if the energy the filter removes is at least 60 dB
+ * below the energy of the data, so that nothing audible is lost.
+ *
+ * @author Christian Holton
+ *
+ */
+final class PcmOptimizer {
+
+	/**
+	 * The largest difference, in 16-bit steps, between the channels of a
+	 * frame whose channels count as identical.
+	 */
+	private static final int MONO_TOLERANCE = 2;
+	/**
+	 * The largest share of the energy that may lie above the new Nyquist
+	 * frequency for data to be downsampled, -60 dB.
+	 */
+	private static final double HIGH_BAND_LIMIT = 1.0e-6;
+	/**
+	 * The coefficients of the decimation filter.
+	 */
+	private static final float[] FILTER = designFilter(127, 0.225);
+	/**
+	 * The optimization applied to preloaded data, or {@code null} for none.
+	 */
+	private static volatile PcmOptimization optimization;
+	/**
+	 * {@code Logger} for the {@code PcmOptimizer} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(PcmOptimizer.class
+			.getName());
+
+	/**
+	 * This class is not meant to be instantiated.
+	 */
+	private PcmOptimizer() {
+	}
+
+	/**
+	 * Set the optimization applied to data preloaded from now on.
+	 *
+	 * @param optimization
+	 *            The optimization, or {@code null} to keep data as decoded.
+	 */
+	static void setOptimization(PcmOptimization optimization) {
+		PcmOptimizer.optimization = optimization;
+	}
+
+	/**
+	 * Get the optimization applied to preloaded data.
+	 *
+	 * @return The optimization, or {@code null} if data is kept as decoded.
+	 */
+	static PcmOptimization getOptimization() {
+		return optimization;
+	}
+
+	/**
+	 * Optimize decoded audio data.
+	 *
+	 * @param pcm
+	 *            The data.
+	 * @param name
+	 *            The name of the audio, for logging.
+	 *
+	 * @return The optimized data, or {@code pcm} itself if no optimization
+	 *         is selected, the data is not on the heap or nothing could be
+	 *         saved.
+	 */
+	static PcmData optimize(PcmData pcm, String name) {
+		PcmOptimization optimization = PcmOptimizer.optimization;
+		if (optimization == null || !pcm.isOnHeap()
+				|| pcm.getFrameCount() == 0) {
+			return pcm;
+		}
+		ByteBuffer data = pcm.getData();
+		int channels = pcm.getChannels();
+		int first = 0;
+		int end = pcm.getFrameCount();
+		if (optimization.isTrimSilence()) {
+			int threshold = (int) (32768.0 * Math.pow(10.0,
+					optimization.getSilenceThreshold() / 20.0));
+			while (first < end && isSilent(data, first, channels, threshold)) {
+				first++;
+			}
+			if (first == end) {
+				// Keep silence that is meant to be played.
+				first = 0;
+			}
+			while (end > first + 1
+					&& isSilent(data, end - 1, channels, threshold)) {
+				end--;
+			}
+		}
+		boolean fold = optimization.isFoldMono() && channels == 2
+				&& isDualMono(data, first, end);
+		int outChannels = fold ? 1 : channels;
+		float[][] samples = toChannels(data, channels, first, end, fold);
+		float sampleRate = pcm.getSampleRate();
+		while (optimization.isDownsample()
+				&& sampleRate / 2.0f >= optimization.getMinSampleRate()) {
+			float[][] filtered = lowPass(samples);
+			if (filtered == null) {
+				break;
+			}
+			samples = decimate(filtered);
+			sampleRate /= 2.0f;
+		}
+		int frames = samples[0].length;
+		if (frames == pcm.getFrameCount() && outChannels == channels) {
+			return pcm;
+		}
+		ByteBuffer out = ByteBuffer.allocate(frames * outChannels * 2).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < frames; i++) {
+			for (int c = 0; c < outChannels; c++) {
+				int sample = Math.round(samples[c][i]);
+				out.putShort((short) Math.max(Short.MIN_VALUE,
+						Math.min(Short.MAX_VALUE, sample)));
+			}
+		}
+		out.flip();
+		PcmData optimized = new PcmData(out, outChannels, sampleRate);
+		logger.info(String.format("Optimized \"%s\": trimmed %.0f ms of "
+				+ "silence, %d to %d channels, %.0f to %.0f Hz, saved %d bytes",
+				name, (pcm.getFrameCount() - (end - first)) * 1000.0
+						/ pcm.getSampleRate(), channels, outChannels,
+				pcm.getSampleRate(), sampleRate, pcm.getByteCount()
+						- optimized.getByteCount()));
+		return optimized;
+	}
+
+	/**
+	 * Whether all samples of a frame are below a threshold.
+	 *
+	 * @param data
+	 *            The audio data.
+	 * @param frame
+	 *            The index of the frame.
+	 * @param channels
+	 *            The number of channels per frame.
+	 * @param threshold
+	 *            The threshold as a 16-bit sample value.
+	 *
+	 * @return {@code true} if the frame is silent.
+	 */
+	private static boolean isSilent(ByteBuffer data, int frame, int channels,
+			int threshold) {
+		int index = frame * channels * 2;
+		for (int c = 0; c < channels; c++, index += 2) {
+			if (Math.abs(data.getShort(index)) > threshold) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the two channels of stereo data are identical.
+	 *
+	 * @param data
+	 *            The audio data.
+	 * @param first
+	 *            The index of the first frame to compare.
+	 * @param end
+	 *            The index after the last frame to compare.
+	 *
+	 * @return {@code true} if no samples differ by more than
+	 *         {@code MONO_TOLERANCE}.
+	 */
+	private static boolean isDualMono(ByteBuffer data, int first, int end) {
+		for (int index = first * 4; index < end * 4; index += 4) {
+			if (Math.abs(data.getShort(index) - data.getShort(index + 2)) > MONO_TOLERANCE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Split a range of frames into one array per channel.
+	 *
+	 * @param data
+	 *            The audio data.
+	 * @param channels
+	 *            The number of channels per frame.
+	 * @param first
+	 *            The index of the first frame.
+	 * @param end
+	 *            The index after the last frame.
+	 * @param fold
+	 *            Whether to average stereo data into a single channel.
+	 *
+	 * @return The samples, as 16-bit values.
+	 */
+	private static float[][] toChannels(ByteBuffer data, int channels,
+			int first, int end, boolean fold) {
+		float[][] samples = new float[fold ? 1 : channels][end - first];
+		for (int i = 0, index = first * channels * 2; i < end - first; i++) {
+			if (fold) {
+				samples[0][i] = (data.getShort(index) + data
+						.getShort(index + 2)) * 0.5f;
+				index += 4;
+				continue;
+			}
+			for (int c = 0; c < channels; c++, index += 2) {
+				samples[c][i] = data.getShort(index);
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Low-pass filter samples below half their Nyquist frequency, if that
+	 * removes no audible content.
+	 *
+	 * @param samples
+	 *            The samples of each channel.
+	 *
+	 * @return The filtered samples, or {@code null} if the filter would
+	 *         remove more than {@code HIGH_BAND_LIMIT} of the energy.
+	 */
+	private static float[][] lowPass(float[][] samples) {
+		int half = FILTER.length / 2;
+		double energy = 0.0;
+		double removed = 0.0;
+		float[][] filtered = new float[samples.length][];
+		for (int c = 0; c < samples.length; c++) {
+			float[] x = samples[c];
+			float[] y = new float[x.length];
+			for (int i = 0; i < x.length; i++) {
+				int from = Math.max(0, i - half);
+				int to = Math.min(x.length - 1, i + half);
+				float sum = 0.0f;
+				for (int j = from; j <= to; j++) {
+					sum += FILTER[j - i + half] * x[j];
+				}
+				y[i] = sum;
+				double residue = x[i] - sum;
+				energy += (double) x[i] * x[i];
+				removed += residue * residue;
+			}
+			filtered[c] = y;
+		}
+		if (energy == 0.0 || removed > energy * HIGH_BAND_LIMIT) {
+			return null;
+		}
+		return filtered;
+	}
+
+	/**
+	 * Keep every other sample.
+	 *
+	 * @param samples
+	 *            The samples of each channel.
+	 *
+	 * @return The decimated samples.
+	 */
+	private static float[][] decimate(float[][] samples) {
+		float[][] decimated = new float[samples.length][];
+		for (int c = 0; c < samples.length; c++) {
+			float[] x = samples[c];
+			float[] y = new float[(x.length + 1) / 2];
+			for (int i = 0; i < y.length; i++) {
+				y[i] = x[i * 2];
+			}
+			decimated[c] = y;
+		}
+		return decimated;
+	}
+
+	/**
+	 * Design a low-pass filter as a sinc function shaped by a Blackman window.
+	 *
+	 * @param taps
+	 *            The number of coefficients, an odd number.
+	 * @param cutoff
+	 *            The cutoff frequency as a fraction of the sample rate.
+	 *
+	 * @return The coefficients, which sum to 1.
+	 */
+	private static float[] designFilter(int taps, double cutoff) {
+		double[] h = new double[taps];
+		int half = taps / 2;
+		double sum = 0.0;
+		for (int i = 0; i < taps; i++) {
+			int k = i - half;
+			double sinc = (k == 0) ? 2.0 * cutoff : Math.sin(2.0 * Math.PI
+					* cutoff * k)
+					/ (Math.PI * k);
+			double window = 0.42 - 0.5
+					* Math.cos(2.0 * Math.PI * i / (taps - 1)) + 0.08
+					* Math.cos(4.0 * Math.PI * i / (taps - 1));
+			h[i] = sinc * window;
+			sum += h[i];
+		}
+		float[] filter = new float[taps];
+		for (int i = 0; i < taps; i++) {
+			filter[i] = (float) (h[i] / sum);
+		}
+		return filter;
+	}
+}
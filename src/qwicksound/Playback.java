@@ -1,6 +1,16 @@
 package qwicksound;
 
-import javax.sound.sampled.FloatControl;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
 
 /**
  * Represents a single instance of playback, which occurs when audio data is
@@ -17,6 +27,13 @@ import javax.sound.sampled.FloatControl;
  * <p>
  * There is a many-to-one relationship between {@code Playback} object(s) and
  * the {@code Audio} object that spawned them.
+ * <p>
+ * Instead of polling {@code getState()}, code can be notified when a
+ * {@code Playback} completes or starts another loop with {@code onComplete}
+ * and {@code onLoop}, or wait on the future returned by {@code completion()}.
+ * Listeners are called on a single event thread shared by all
+ * {@code Playback}s, never on the thread that mixes the audio, so they should
+ * return promptly but may safely block briefly or start other playbacks.
  *
  * @author Christian Holton
  * 
@@ -30,15 +47,27 @@ public abstract class Playback {
 	/**
 	 * The current state of this {@code Playback}.
 	 */
-	protected Playback.State state = Playback.State.PRE;
+	protected volatile Playback.State state = Playback.State.PRE;
 	/**
-	 * Allows control of the volume over a range of floating-point values.
+	 * The value of the master-gain/volume for this {@code Playback}.
 	 */
-	protected FloatControl volCtrl;
+	protected volatile double volume;
 	/**
-	 * The value of the master-gain/volume for this {@code Playback}.
+	 * The speed of this {@code Playback} relative to the audio's own speed,
+	 * which also scales its pitch.
+	 */
+	volatile double rate = 1.0;
+	/**
+	 * The gain that brings the audio to the normalization target, fixed when
+	 * this {@code Playback} starts so that it does not jump while playing.
+	 */
+	volatile double normalizationGain = 1.0;
+	/**
+	 * How source frames are interpolated when the rate of this
+	 * {@code Playback} or the sample rate of its audio differ from the
+	 * output's.
 	 */
-	protected double volume;
+	volatile Playback.Interpolation interpolation = Playback.Interpolation.LINEAR;
 	/**
 	 * The number of times the audio file will be played in succession.
 	 */
@@ -49,6 +78,59 @@ public abstract class Playback {
 	 * associated {@code Audio}.
 	 */
 	protected long instanceID;
+	/**
+	 * The effects applied to this {@code Playback} before its volume.
+	 */
+	final ProcessorChain processors = new ProcessorChain();
+	/**
+	 * The listeners notified when this {@code Playback} stops, or
+	 * {@code null} if there are none. Guarded by {@code this}.
+	 */
+	private List<Consumer<? super Playback>> completeListeners;
+	/**
+	 * The listeners notified when this {@code Playback} starts another loop,
+	 * or {@code null} if there are none.
+	 */
+	private volatile List<Consumer<? super Playback>> loopListeners;
+	/**
+	 * The future returned by {@code completion()}, or {@code null} if it has
+	 * not been requested. Guarded by {@code this}.
+	 */
+	private CompletableFuture<Playback> completion;
+	/**
+	 * Publishes the rendered audio of this {@code Playback}, or {@code null}
+	 * if {@code tap()} has not been called.
+	 */
+	volatile AudioTap tap;
+	/**
+	 * When this {@code Playback} was started by a call to one of the
+	 * {@code play} methods, from {@code System.nanoTime()}, or 0 if it has
+	 * not been started.
+	 */
+	volatile long triggerTime;
+	/**
+	 * When the mixer began the first block of this {@code Playback}, from
+	 * {@code System.nanoTime()}, or 0 if it has not mixed any.
+	 */
+	volatile long firstBlockTime;
+	/**
+	 * Runs the listeners of all {@code Playback}s, so that they are never
+	 * called on the render thread.
+	 */
+	private static final ExecutorService events = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "QwickSound events");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	/**
+	 * {@code Logger} for the {@code Playback} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(Playback.class
+			.getName());
 
 	/**
 	 * Creates a new {@code Playback}.
@@ -112,18 +194,302 @@ public abstract class Playback {
 	 * 
 	 * @param newVolume
 	 *            The new volume for this {@code Playback}. Volume can range
-	 *            from 0 (muted) to 2.0. The default volume is 1.0.
+	 *            from 0 (muted) to 2.0. The default volume is 1.0. A
+	 *            non-finite volume is ignored.
 	 */
 	public void setVolume(double newVolume) {
+		if (Double.isNaN(newVolume) || Double.isInfinite(newVolume)) {
+			return;
+		}
 		newVolume = (newVolume < QwickSound.MIN_VOLUME ? QwickSound.MIN_VOLUME
 				: newVolume);
 		newVolume = (newVolume > QwickSound.MAX_VOLUME ? QwickSound.MAX_VOLUME
 				: newVolume);
 		volume = newVolume;
-		float dB = (float) (Math.log(volume) / Math.log(10.0) * 20.0);
-		if (volCtrl != null) {
-			volCtrl.setValue(dB);
+		// A volume change may make this Playback audible or inaudible.
+		MixEngine.getInstance().voicesChanged();
+	}
+
+	/**
+	 * Get the playback rate of this {@code Playback}.
+	 * 
+	 * @return The rate, where 1.0 is the audio's own speed and pitch.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Set the playback rate of this {@code Playback}, which changes its speed
+	 * and pitch together, like a tape played faster or slower. A rate of 2.0
+	 * plays the audio an octave higher in half the time. The change applies
+	 * from the next block the mixer renders, so the rate can be varied
+	 * continuously, and several {@code Playback}s of the same {@code Audio}
+	 * can play at different rates, e.g. to vary a sound effect without
+	 * loading pitched copies of it.
+	 * 
+	 * @param newRate
+	 *            The new rate, from {@code QwickSound.MIN_RATE} to
+	 *            {@code QwickSound.MAX_RATE}. The default rate is 1.0. A
+	 *            non-finite rate is ignored.
+	 */
+	public void setRate(double newRate) {
+		if (Double.isNaN(newRate) || Double.isInfinite(newRate)) {
+			return;
+		}
+		newRate = (newRate < QwickSound.MIN_RATE ? QwickSound.MIN_RATE
+				: newRate);
+		newRate = (newRate > QwickSound.MAX_RATE ? QwickSound.MAX_RATE
+				: newRate);
+		rate = newRate;
+	}
+
+	/**
+	 * Get how the frames of this {@code Playback} are interpolated.
+	 * 
+	 * @return The interpolation.
+	 */
+	public Playback.Interpolation getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * Set how the frames of this {@code Playback} are interpolated when its
+	 * rate or the sample rate of its audio differ from the output's.
+	 * 
+	 * @param interpolation
+	 *            The interpolation. The default is
+	 *            {@code Playback.Interpolation.LINEAR}.
+	 */
+	public void setInterpolation(Playback.Interpolation interpolation) {
+		if (interpolation == null) {
+			throw new NullPointerException();
+		}
+		this.interpolation = interpolation;
+	}
+
+	/**
+	 * Get the time from the call to one of the {@code play} methods that
+	 * started this {@code Playback} to the mixing of its first sample, i.e.
+	 * its start latency within the library. A {@code StreamingPlayback}
+	 * includes the time to open and buffer its stream. It takes the latency
+	 * of the output line (see {@link QwickSound#getOutputLatency}) for the
+	 * sample to be heard. A {@code Playback} that starts virtual, because it
+	 * is inaudible or over the polyphony budget, counts from when the mixer
+	 * first tracked it.
+	 * 
+	 * @return The latency in seconds, or {@code NaN} if no sample has been
+	 *         mixed yet, e.g. because this {@code Playback} stopped before it
+	 *         could start.
+	 */
+	public double getStartLatency() {
+		long firstBlockTime = this.firstBlockTime;
+		long triggerTime = this.triggerTime;
+		if (firstBlockTime == 0L || triggerTime == 0L) {
+			return Double.NaN;
 		}
+		return Math.max(0L, firstBlockTime - triggerTime) / 1.0e9;
+	}
+
+	/**
+	 * Permanently set the state of this {@code Playback} to
+	 * {@code Playback.State.STOPPED}. The associated {@code Audio} is notified
+	 * the first time this occurs.
+	 */
+	protected void setStopped() {
+		boolean first;
+		List<Consumer<? super Playback>> listeners;
+		CompletableFuture<Playback> future;
+		synchronized (this) {
+			first = (state != Playback.State.STOPPED);
+			state = Playback.State.STOPPED;
+			listeners = completeListeners;
+			completeListeners = null;
+			future = completion;
+		}
+		if (first) {
+			audio.playbackStopped(this);
+			AudioTap tap = this.tap;
+			if (tap != null) {
+				tap.complete();
+			}
+			if (listeners != null || future != null) {
+				dispatch(listeners, future);
+			}
+		}
+	}
+
+	/**
+	 * Register a listener that is called once this {@code Playback} has
+	 * stopped, either because it played to the end or because it was
+	 * stopped. If it has already stopped, the listener is called at once, on
+	 * the event thread.
+	 * 
+	 * @param listener
+	 *            The listener, which receives this {@code Playback}.
+	 */
+	public void onComplete(Consumer<? super Playback> listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			if (state != Playback.State.STOPPED) {
+				if (completeListeners == null) {
+					completeListeners = new ArrayList<Consumer<? super Playback>>(
+							2);
+				}
+				completeListeners.add(listener);
+				return;
+			}
+		}
+		List<Consumer<? super Playback>> listeners = new ArrayList<Consumer<? super Playback>>(
+				1);
+		listeners.add(listener);
+		dispatch(listeners, null);
+	}
+
+	/**
+	 * Register a listener that is called each time this {@code Playback}
+	 * reaches the end of its audio and starts playing it again, i.e. at each
+	 * boundary between two of its loops. It is not called at the end of the
+	 * last loop; see {@code onComplete}.
+	 * 
+	 * @param listener
+	 *            The listener, which receives this {@code Playback}.
+	 */
+	public void onLoop(Consumer<? super Playback> listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			if (loopListeners == null) {
+				loopListeners = new CopyOnWriteArrayList<Consumer<? super Playback>>();
+			}
+			loopListeners.add(listener);
+		}
+	}
+
+	/**
+	 * Get a future that is completed with this {@code Playback} once it has
+	 * stopped, either because it played to the end or because it was
+	 * stopped. Dependent actions run on the event thread unless an executor
+	 * is given for them.
+	 * 
+	 * @return The future, which is already completed if this
+	 *         {@code Playback} has stopped.
+	 */
+	public CompletableFuture<Playback> completion() {
+		synchronized (this) {
+			if (completion == null) {
+				completion = new CompletableFuture<Playback>();
+				if (state == Playback.State.STOPPED) {
+					completion.complete(this);
+				}
+			}
+			return completion;
+		}
+	}
+
+	/**
+	 * Get the tap that publishes the audio of this {@code Playback} as it is
+	 * rendered, after its effects and volume and before its bus, for
+	 * analysis. See {@link AudioTap}.
+	 * 
+	 * @return The tap, which completes its subscribers once this
+	 *         {@code Playback} has stopped.
+	 */
+	public AudioTap tap() {
+		AudioTap tap = this.tap;
+		if (tap == null) {
+			synchronized (this) {
+				tap = this.tap;
+				if (tap == null) {
+					tap = new AudioTap(audio.getFileName() + " " + instanceID);
+					if (state == Playback.State.STOPPED) {
+						tap.complete();
+					}
+					this.tap = tap;
+				}
+			}
+		}
+		return tap;
+	}
+
+	/**
+	 * Notify the loop listeners that this {@code Playback} has started
+	 * another loop. Called by its {@code Voice}, so the listeners are handed
+	 * to the event thread.
+	 */
+	void loopCompleted() {
+		List<Consumer<? super Playback>> listeners = loopListeners;
+		if (listeners != null) {
+			dispatch(listeners, null);
+		}
+	}
+
+	/**
+	 * Call listeners, and complete a future, on the event thread.
+	 * 
+	 * @param listeners
+	 *            The listeners, or {@code null}.
+	 * @param future
+	 *            The future, or {@code null}.
+	 */
+	private void dispatch(final List<Consumer<? super Playback>> listeners,
+			final CompletableFuture<Playback> future) {
+		events.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (listeners != null) {
+					for (Consumer<? super Playback> listener : listeners) {
+						try {
+							listener.accept(Playback.this);
+						} catch (RuntimeException ex) {
+							logger.warning("A listener of " + Playback.this
+									+ " threw an exception.");
+							ex.printStackTrace();
+						}
+					}
+				}
+				if (future != null) {
+					future.complete(Playback.this);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Insert an effect on this {@code Playback}. Effects are applied in the
+	 * order they were added, before the volume of this {@code Playback}. They
+	 * are not applied while this {@code Playback} is a virtual voice.
+	 * 
+	 * @param processor
+	 *            The effect.
+	 */
+	public void addProcessor(Processor processor) {
+		processors.add(processor);
+	}
+
+	/**
+	 * Remove an effect from this {@code Playback}.
+	 * 
+	 * @param processor
+	 *            The effect.
+	 * 
+	 * @return {@code true} if the effect had been inserted on this
+	 *         {@code Playback}.
+	 */
+	public boolean removeProcessor(Processor processor) {
+		return processors.remove(processor);
+	}
+
+	/**
+	 * Get the effects inserted on this {@code Playback}.
+	 * 
+	 * @return The effects, in the order they are applied.
+	 */
+	public List<Processor> getProcessors() {
+		return processors.toList();
 	}
 
 	/**
@@ -176,4 +542,23 @@ public abstract class Playback {
 		 */
 		STOPPED
 	}
+
+	/**
+	 * The ways source frames can be interpolated when a {@code Playback} is
+	 * resampled to the output's sample rate.
+	 */
+	public enum Interpolation {
+		/**
+		 * Straight lines between neighbouring frames. This is the cheapest,
+		 * but dulls high frequencies and lets some alias through, which is
+		 * most audible at rates far from 1.0.
+		 */
+		LINEAR,
+		/**
+		 * Cubic Hermite curves through four neighbouring frames, which keep
+		 * more of the high frequencies and alias less, at a somewhat higher
+		 * cost.
+		 */
+		CUBIC
+	}
 }
@@ -3,10 +3,14 @@ package qwicksound;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 
 import qwicksound.util.logging.LoggerConfig;
 
@@ -32,6 +36,15 @@ import qwicksound.util.logging.LoggerConfig;
  * its read buffer to be filled. In practice, any difference in latency is
  * rarely noticeable.</li>
  * </ul>
+ * <p>
+ * The decoded audio data of all {@code PreloadedAudio} instances counts
+ * against QwickSound's memory budget (see {@link QwickSound#setMemoryBudget}).
+ * When the budget is exceeded, the least recently played idle instances are
+ * evicted, i.e. their audio data is released. The next time an evicted
+ * instance is played, it streams its audio data while the data is reloaded
+ * in the background. An instance whose audio data does not fit within the
+ * budget even after evicting every idle instance streams instead of
+ * preloading, and is loaded in the background once room has been made.
  * 
  * @author Christian Holton
  * 
@@ -46,20 +59,44 @@ public class PreloadedAudio extends Audio {
 	 */
 	private static final int BUFFER_SIZE = 4096;
 	/**
-	 * An input stream with a specified audio format and length. The length is
-	 * expressed in sample frames, not bytes.
+	 * The decoded audio data, or {@code null} if it has been evicted. This
+	 * will hold the data that will be shared by every
+	 * {@code PreloadedPlayback} started by the {@code startPlayback} method.
+	 */
+	private volatile SampleData pcm;
+	/**
+	 * The registration of {@code pcm} with the {@code MemoryBudget}.
+	 */
+	private MemoryBudget.Entry budgetEntry;
+	/**
+	 * The length of the audio data in seconds.
+	 */
+	private volatile double length;
+	/**
+	 * The canonical format of the audio data as the source decodes it, before
+	 * the optimization pass, or {@code null} if it is not known. Used while
+	 * the audio data is streamed.
+	 */
+	private volatile AudioFormat streamFormat;
+	/**
+	 * The size in bytes of the audio data as the source decodes it, known
+	 * from its last load or estimated, or -1 if it is unknown. Guarded by
+	 * {@code loadLock}.
+	 */
+	private long decodedBytes = -1;
+	/**
+	 * Whether the audio data is being loaded in the background. Guarded by
+	 * {@code loadLock}.
 	 */
-	private AudioInputStream audioInStream;
+	private boolean reloading;
 	/**
-	 * Specifies the particular arrangement of data in audioInStream.
+	 * The number of bytes the optimization pass saved on the decoded data.
 	 */
-	private AudioFormat audioFormat;
+	private volatile long memorySaved;
 	/**
-	 * An array of converted bytes from a {@code ByteArrayOutputStream}. This
-	 * will hold the data that will be used by a {@code PreloadedPlayback} at
-	 * each call to the {@code startPlayback} method.
+	 * Guards loading and eviction of the audio data.
 	 */
-	private byte[] audioBytes;
+	private final ReentrantLock loadLock = new ReentrantLock();
 	/**
 	 * When one of the {@code play} methods is called, there will be a small
 	 * amount of latency that occurs before the playback of audio actually
@@ -83,10 +120,49 @@ public class PreloadedAudio extends Audio {
 	 *            The audio file's {@code URL}.
 	 */
 	protected PreloadedAudio(URL fileURL) {
-		this.fileURL = fileURL;
-		audioInStream = QwickSound.acquireAudioInputStream(fileURL);
-		audioFormat = audioInStream.getFormat();
-		loadDataAndPrep();
+		this(AudioSource.of(fileURL));
+	}
+
+	/**
+	 * Creates a new {@code PreloadedAudio} that loads its audio data from the
+	 * specified source.
+	 *
+	 * @param source
+	 *            The source of the audio data.
+	 */
+	PreloadedAudio(AudioSource source) {
+		super(source);
+		long limit = source.isReopenable() ? MemoryBudget.getInstance()
+				.getReclaimable() : Long.MAX_VALUE;
+		PcmData pcm = source.loadPcm(limit);
+		if (pcm != null || limit == Long.MAX_VALUE) {
+			setData(pcm);
+			return;
+		}
+		// Too large for the memory budget, or unreadable.
+		streamFormat = readFormat();
+		if (streamFormat != null) {
+			logger.warning("\"" + getFileName() + "\" does not fit within "
+					+ "the memory budget. Streaming it instead.");
+			Normalizer.measure(this);
+			nextPlay = new PreloadedPlayback(this, streamFormat, length,
+					++numPlaybacks);
+		}
+	}
+
+	/**
+	 * Creates a new {@code PreloadedAudio} from audio data that has already
+	 * been loaded from the specified source.
+	 *
+	 * @param source
+	 *            The source of the audio data, used to reload it after
+	 *            eviction.
+	 * @param pcm
+	 *            The decoded audio data.
+	 */
+	PreloadedAudio(AudioSource source, PcmData pcm) {
+		super(source);
+		setData(pcm);
 	}
 
 	@Override
@@ -118,7 +194,14 @@ public class PreloadedAudio extends Audio {
 	 *            The desired position in seconds.
 	 */
 	public void setPosition(double seconds) {
-		nextPlay.setPosition(seconds);
+		loadLock.lock();
+		try {
+			if (nextPlay != null) {
+				nextPlay.setPosition(seconds);
+			}
+		} finally {
+			loadLock.unlock();
+		}
 	}
 
 	/**
@@ -127,7 +210,45 @@ public class PreloadedAudio extends Audio {
 	 * @return The length in seconds.
 	 */
 	public double getLength() {
-		return nextPlay.getLength();
+		return length;
+	}
+
+	/**
+	 * Get the number of bytes of decoded audio data held on the heap by this
+	 * {@code PreloadedAudio}. This is 0 while the data is evicted, and for
+	 * audio data that is mapped from a {@code SoundBank}.
+	 * 
+	 * @return The memory usage in bytes.
+	 */
+	@Override
+	public long getMemoryUsage() {
+		SampleData data = pcm;
+		return (data == null || !data.isOnHeap()) ? 0 : data.getByteCount();
+	}
+
+	/**
+	 * Get the number of bytes of decoded audio data that the optimization
+	 * pass (see {@link QwickSound#setPcmOptimization}) saved when this
+	 * {@code PreloadedAudio} was last loaded, by trimming silence, folding
+	 * identical channels to mono and downsampling, plus the bytes saved by
+	 * storing the data in a compact encoding (see
+	 * {@link QwickSound#setSampleEncoding}).
+	 * 
+	 * @return The memory saved in bytes, or 0 if the data was not optimized.
+	 */
+	public long getMemorySaved() {
+		return memorySaved;
+	}
+
+	/**
+	 * Whether the decoded audio data of this {@code PreloadedAudio} is in
+	 * memory, i.e. has not been evicted to stay within the memory budget.
+	 * While it is not, plays stream the audio data.
+	 * 
+	 * @return {@code true} if the audio data is in memory.
+	 */
+	public boolean isLoaded() {
+		return pcm != null;
 	}
 
 	@Override
@@ -136,29 +257,244 @@ public class PreloadedAudio extends Audio {
 	}
 
 	/**
-	 * Read the audio data from the {@code AudioInputStream} in chunks and write
-	 * it to a {@code ByteArrayOutputStream} which will then be converted into a
-	 * byte array.
-	 *
-	 * @return Success
-	 */
-	private boolean loadDataAndPrep() {
-		ByteArrayOutputStream byteOutStream = new ByteArrayOutputStream();
-		byte[] inBuffer = new byte[BUFFER_SIZE
-				* audioInStream.getFormat().getFrameSize()];
-		// Read all the data from the AudioInputStream in chunks until there
-		// is no more to read.
+	 * Close this {@code PreloadedAudio}: stop all of its {@code Playbacks}
+	 * and release its decoded audio data from the memory budget. Further play
+	 * requests return {@code null}.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		loadLock.lock();
+		try {
+			pcm = null;
+			nextPlay = null;
+			if (budgetEntry != null) {
+				MemoryBudget.getInstance().release(budgetEntry);
+				budgetEntry = null;
+			}
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	/**
+	 * Release the decoded audio data if this {@code PreloadedAudio} is idle.
+	 * Called by the {@code MemoryBudget}; never blocks.
+	 * 
+	 * @return {@code true} if the data was released.
+	 */
+	@Override
+	boolean evict() {
+		if (!loadLock.tryLock()) {
+			return false;
+		}
+		try {
+			if (pcm == null || budgetEntry == null || !source.isReopenable()
+					|| getNumActivePlaybacks() > 0) {
+				return false;
+			}
+			pcm = null;
+			double position = nextPlay.getPosition();
+			nextPlay = new PreloadedPlayback(this, streamFormat, length,
+					++numPlaybacks);
+			nextPlay.setPosition(position);
+			MemoryBudget.getInstance().release(budgetEntry);
+			budgetEntry = null;
+			return true;
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	/**
+	 * Install decoded audio data, and prep for the next playback, keeping
+	 * the position set for it. Data held on the heap is optimized, its
+	 * loudness measured, then encoded and registered with the
+	 * {@code MemoryBudget}. Called by the constructor or with
+	 * {@code loadLock} held.
+	 * 
+	 * @param data
+	 *            The decoded audio data.
+	 */
+	private void setData(PcmData data) {
+		if (data == null) {
+			logger.warning("Could not load the audio data of \""
+					+ getFileName() + "\"");
+			return;
+		}
+		streamFormat = new AudioFormat(data.getSampleRate(), 16,
+				data.getChannels(), true, false);
+		decodedBytes = data.getByteCount();
+		SampleData stored = data;
+		if (data.isOnHeap()) {
+			PcmData optimized = PcmOptimizer.optimize(data, getFileName());
+			Normalizer.measure(this, optimized);
+			stored = SampleData.encode(optimized);
+			memorySaved = data.getByteCount() - stored.getByteCount();
+			budgetEntry = MemoryBudget.getInstance().register(this,
+					stored.getByteCount());
+		} else {
+			Normalizer.measure(this, data);
+		}
+		length = stored.getFrameCount() / stored.getSampleRate();
+		pcm = stored;
+		// Prep for the initial playback.
+		double position = (nextPlay != null) ? nextPlay.getPosition() : 0.0;
+		nextPlay = new PreloadedPlayback(this, stored, ++numPlaybacks);
+		if (position > 0.0) {
+			nextPlay.setPosition(position);
+		}
+	}
+
+	/**
+	 * Whether the audio data should be loaded in the background: it is not
+	 * in memory, not being loaded, and is known to fit within the memory
+	 * budget. Must be called with {@code loadLock} held.
+	 * 
+	 * @return {@code true} if the caller should start the load.
+	 */
+	private boolean needsReload() {
+		if (pcm != null || reloading || !source.isReopenable()
+				|| decodedBytes < 0
+				|| decodedBytes > MemoryBudget.getInstance().getReclaimable()) {
+			return false;
+		}
+		reloading = true;
+		return true;
+	}
+
+	/**
+	 * Load the audio data in the background. Plays stream it until it is in
+	 * memory.
+	 */
+	private void reload() {
+		logger.info("Reloading the audio data of \"" + getFileName() + "\"");
 		try {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					PcmData data = isClosed() ? null : source
+							.loadPcm(MemoryBudget.getInstance()
+									.getReclaimable());
+					loadLock.lock();
+					try {
+						if (data != null && pcm == null && !isClosed()) {
+							setData(data);
+						}
+						reloading = false;
+					} finally {
+						loadLock.unlock();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// The system is shutting down.
+			loadLock.lock();
+			try {
+				reloading = false;
+			} finally {
+				loadLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Open the source to find the canonical format of its audio data, and
+	 * estimate its length and size.
+	 * 
+	 * @return The format, or {@code null} if the source could not be opened.
+	 */
+	private AudioFormat readFormat() {
+		AudioInputStream audioInStream = source.open();
+		if (audioInStream == null) {
+			logger.warning("Could not read \"" + getFileName() + "\"");
+			return null;
+		}
+		audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+		AudioFormat format = audioInStream.getFormat();
+		decodedBytes = source.estimateDecodedSize(audioInStream);
+		if (decodedBytes > 0) {
+			length = decodedBytes / format.getFrameSize()
+					/ (double) format.getSampleRate();
+		}
+		try {
+			audioInStream.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		return format;
+	}
+
+	/**
+	 * Read the audio data from the {@code AudioInputStream}. If the length of
+	 * the stream is known, the data is read straight into a right-sized byte
+	 * array. Otherwise it is read in chunks and written to a
+	 * {@code ByteArrayOutputStream} which will then be converted into a byte
+	 * array. The loudness of the data is measured as it is read. The stream is
+	 * closed afterwards.
+	 * 
+	 * @param audioInStream
+	 *            The stream, which must be in the canonical PCM format.
+	 * @param estimate
+	 *            The estimated size of the data in bytes, or -1 if unknown.
+	 * @param limit
+	 *            The maximum number of bytes to decode.
+	 * 
+	 * @return The decoded audio data, or {@code null} if it is larger than
+	 *         {@code limit} or could not be read.
+	 */
+	static PcmData readData(AudioInputStream audioInStream, long estimate,
+			long limit) {
+		AudioFormat audioFormat = audioInStream.getFormat();
+		long frameLength = audioInStream.getFrameLength();
+		LoudnessMeter meter = new LoudnessMeter(audioFormat.getChannels(),
+				audioFormat.getSampleRate());
+		try {
+			if (estimate > limit) {
+				return null;
+			}
+			MemoryBudget.getInstance().makeRoom(Math.max(0, estimate));
+			if (frameLength != AudioSystem.NOT_SPECIFIED
+					&& frameLength * audioFormat.getFrameSize() <= Integer.MAX_VALUE) {
+				byte[] audioBytes = new byte[(int) frameLength
+						* audioFormat.getFrameSize()];
+				int total = 0;
+				while (total < audioBytes.length) {
+					int bytesRead = audioInStream.read(audioBytes, total,
+							audioBytes.length - total);
+					if (bytesRead == -1) {
+						// Shorter than the header claimed.
+						audioBytes = Arrays.copyOf(audioBytes, total);
+						break;
+					}
+					meter.process(audioBytes, total, bytesRead);
+					total += bytesRead;
+				}
+				PcmData pcm = new PcmData(audioBytes, audioFormat);
+				pcm.setLoudness(meter.getLoudness());
+				return pcm;
+			}
+			ByteArrayOutputStream byteOutStream = new ByteArrayOutputStream();
+			byte[] inBuffer = new byte[BUFFER_SIZE * audioFormat.getFrameSize()];
+			// Read all the data from the AudioInputStream in chunks until
+			// there is no more to read.
 			while (true) {
 				int bytesRead = audioInStream.read(inBuffer);
 				if (bytesRead == -1) {
 					break;
 				}
 				byteOutStream.write(inBuffer, 0, bytesRead);
+				if (byteOutStream.size() > limit) {
+					return null;
+				}
+				meter.process(inBuffer, 0, bytesRead);
 			}
+			PcmData pcm = new PcmData(byteOutStream.toByteArray(), audioFormat);
+			pcm.setLoudness(meter.getLoudness());
+			return pcm;
 		} catch (IOException ex) {
 			ex.printStackTrace();
-			return false;
+			return null;
 		} finally {
 			try {
 				// Release system resources.
@@ -167,11 +503,6 @@ public class PreloadedAudio extends Audio {
 				ex.printStackTrace();
 			}
 		}
-		audioBytes = byteOutStream.toByteArray();
-		// Prep for the initial playback.
-		nextPlay = new PreloadedPlayback(this, audioFormat, audioBytes,
-				++numPlaybacks);
-		return true;
 	}
 
 	/**
@@ -185,17 +516,56 @@ public class PreloadedAudio extends Audio {
 	 *            The number of times the audio data will be played in
 	 *            succession.
 	 * 
-	 * @return The {@code PreloadedPlayback} which is to be played.
+	 * If the audio data is not in memory, the playback streams it, and the
+	 * audio data is loaded in the background when it fits within the memory
+	 * budget, so the caller never waits for it to be decoded.
+	 * 
+	 * @return The {@code PreloadedPlayback} which is to be played, or
+	 *         {@code null} if the request was suppressed by the instance
+	 *         limits (see {@code checkTrigger}), the audio data could not be
+	 *         read or this {@code PreloadedAudio} has been closed.
 	 */
 	private PreloadedPlayback startPlayback(double volume, int numLoops) {
-		PreloadedPlayback currentPlay = nextPlay;
-		logger.info("Starting preloaded playback of \"" + getFileName()
-				+ "\" instance " + currentPlay.getInstanceID());
-		currentPlay.start(volume, numLoops, exec);
+		if (!checkTrigger(volume)) {
+			return null;
+		}
+		boolean reload = false;
+		loadLock.lock();
+		try {
+			if (isClosed()) {
+				logger.warning("Cannot play \"" + getFileName()
+						+ "\" because it has been closed.");
+				triggerRefused();
+				return null;
+			}
+			PreloadedPlayback currentPlay = nextPlay;
+			if (currentPlay == null) {
+				triggerRefused();
+				return null;
+			}
+			logger.info("Starting " + ((pcm == null) ? "streamed " : "")
+					+ "preloaded playback of \"" + getFileName()
+					+ "\" instance " + currentPlay.getInstanceID());
+			volume = playbackStarted(currentPlay, volume);
+			if (budgetEntry != null) {
+				budgetEntry.touch();
+			}
+			currentPlay.start(volume, numLoops);
 
-		// "Prep" for the next call to one of the play methods.
-		nextPlay = new PreloadedPlayback(this, audioFormat, audioBytes,
-				++numPlaybacks);
-		return currentPlay;
+			// "Prep" for the next call to one of the play methods.
+			if (pcm != null) {
+				nextPlay = new PreloadedPlayback(this, pcm, ++numPlaybacks);
+			} else {
+				nextPlay = new PreloadedPlayback(this, streamFormat, length,
+						++numPlaybacks);
+				reload = needsReload();
+			}
+			return currentPlay;
+		} finally {
+			loadLock.unlock();
+			if (reload) {
+				reload();
+			}
+		}
 	}
-}
\ No newline at end of file
+}
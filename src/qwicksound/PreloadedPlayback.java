@@ -1,44 +1,69 @@
 package qwicksound;
 
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.FloatControl;
-import javax.sound.sampled.LineEvent;
-import javax.sound.sampled.LineListener;
-import javax.sound.sampled.LineUnavailableException;
 
 import qwicksound.util.logging.LoggerConfig;
 
 /**
  * A {@code Playback} that preloads its audio data and is created by its
  * associated {@code PreloadedAudio}.
- * 
+ * <p>
+ * A {@code PreloadedPlayback} does not hold a line or a thread of its own.
+ * Its frames are read from the audio data shared with its
+ * {@code PreloadedAudio} and mixed into QwickSound's output line. When the
+ * playback is inaudible (see {@link QwickSound#setAudibilityThreshold}) or
+ * more playbacks are active than the polyphony budget allows (see
+ * {@link QwickSound#setMaxVoices}), it becomes a virtual voice: it is no
+ * longer mixed, but its position keeps advancing, so that it resumes at the
+ * right offset once it is audible again.
+ * <p>
+ * While the audio data of its {@code PreloadedAudio} is not in memory,
+ * because it has been evicted or does not fit within the memory budget, a
+ * {@code PreloadedPlayback} streams it instead, like a
+ * {@code StreamingPlayback}. Such a playback is never virtualized, and its
+ * position can only be set before it starts.
+ *
  * @author Christian Holton
- * 
+ *
  * @see PreloadedAudio
- * 
+ *
  */
-public class PreloadedPlayback extends Playback implements Runnable,
-		LineListener {
+public class PreloadedPlayback extends Playback {
 
 	/**
-	 * Holds the preloaded audio data.
+	 * Holds the preloaded audio data, or {@code null} if it is streamed.
 	 */
-	public Clip clip;
+	private final SampleData pcm;
 	/**
-	 * Used as a synchronization lock.
+	 * Mixes the audio data into the output line, or {@code null} if it is
+	 * streamed.
 	 */
-	private final Object lock = new Object();
+	private final PreloadedVoice voice;
 	/**
-	 * Flag for continuous looping.
+	 * Streams the audio data, or {@code null} if it is preloaded.
 	 */
-	private boolean loopContinuously = false;
+	private final StreamFeed feed;
+	/**
+	 * The length of the audio data in seconds.
+	 */
+	private final double length;
+	/**
+	 * The index of the next frame to be read from {@code pcm}.
+	 */
+	private volatile int cursor;
+	/**
+	 * The number of times the audio data will be repeated after the current
+	 * loop, or -1 to loop continuously.
+	 */
+	private int loopsRemaining;
+	/**
+	 * A frame position requested by {@code setPosition} that has yet to be
+	 * applied by the mixing thread, or -1 if there is none.
+	 */
+	private volatile int pendingSeek = -1;
 	/**
 	 * {@code Logger} for the {@code PreloadedPlayback} class.
 	 */
@@ -48,67 +73,61 @@ public class PreloadedPlayback extends Playback implements Runnable,
 	/**
 	 * Creates a new {@code PreloadedPlayback}. PreloadedPlayback objects will
 	 * always be created by their associated PreloadedAudio object.
-	 * <p>
-	 * IMPLEMENTATION NOTE: Originally, the fetching of a new {@code Line} was
-	 * done in the {@code run} method, however testing revealed that latency is
-	 * decreased if a {@code Line} is acquired ahead of time, here in the
-	 * constructor.
-	 * 
+	 *
 	 * @param audio
 	 *            The {@code Audio} that created this {@code PreloadedPlayback}.
-	 * @param audioFormat
-	 *            Specifies the particular arrangement of audio data.
-	 * @param audioBytes
-	 *            Holds the audio data from which a {@code Clip} will be
-	 *            created.
+	 * @param pcm
+	 *            Holds the audio data that will be played.
 	 * @param instanceID
 	 *            The {@code instanceID} of this {@code PreloadedPlayback}.
 	 */
-	protected PreloadedPlayback(Audio audio, AudioFormat audioFormat,
-			byte[] audioBytes, long instanceID) {
+	protected PreloadedPlayback(Audio audio, SampleData pcm, long instanceID) {
 		super(audio, instanceID);
-		DataLine.Info info = new DataLine.Info(Clip.class, audioFormat);
-		try {
-			clip = (Clip) AudioSystem.getLine(info);
-			clip.open(audioFormat, audioBytes, 0, audioBytes.length);
-			if (clip.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-				volCtrl = (FloatControl) clip
-						.getControl(FloatControl.Type.MASTER_GAIN);
-			} else {
-				logger.warning("Master-Gain control is not supported."
-						+ " Volume will be fixed at the default level.");
-			}
-		} catch (LineUnavailableException ex) {
-			ex.printStackTrace();
-		}
-		clip.addLineListener(this);
+		this.pcm = pcm;
+		this.voice = new PreloadedVoice();
+		this.feed = null;
+		this.length = pcm.getFrameCount() / pcm.getSampleRate();
+	}
+
+	/**
+	 * Creates a new {@code PreloadedPlayback} that streams its audio data,
+	 * because the audio data of its {@code PreloadedAudio} is not in memory.
+	 * The stream is opened when it starts, on its own decoding thread.
+	 *
+	 * @param audio
+	 *            The {@code Audio} that created this {@code PreloadedPlayback}.
+	 * @param format
+	 *            The canonical format of the audio data, or {@code null} if
+	 *            it is not known.
+	 * @param length
+	 *            The length of the audio data in seconds.
+	 * @param instanceID
+	 *            The {@code instanceID} of this {@code PreloadedPlayback}.
+	 */
+	PreloadedPlayback(Audio audio, AudioFormat format, double length,
+			long instanceID) {
+		super(audio, instanceID);
+		this.pcm = null;
+		this.voice = null;
+		this.feed = new StreamFeed(this, format);
+		this.length = length;
 	}
 
 	@Override
 	public void pause() {
-		if (clip.isRunning() && getState() == Playback.State.PLAYING) {
+		if (getState() == Playback.State.PLAYING) {
 			logger.info("Pausing playback of \"" + audio.getFileName()
 					+ "\" instance " + instanceID);
-			state = Playback.State.PAUSED; // This must be before clip.stop().
-			clip.stop();
+			state = Playback.State.PAUSED;
 		}
 	}
 
 	@Override
 	public void resume() {
-		if (!clip.isRunning() && getState() == Playback.State.PAUSED) {
+		if (getState() == Playback.State.PAUSED) {
 			logger.info("Resuming playback of \"" + audio.getFileName()
 					+ "\" instance " + instanceID);
-			long loopsPlayed = clip.getMicrosecondPosition()
-					/ clip.getMicrosecondLength();
-			int loopsToGo = (numLoops - (int) loopsPlayed);
-			if (loopsToGo <= 0 && !loopContinuously) {
-				loopsToGo = 1;
-			} else if (loopContinuously) {
-				loopsToGo = Clip.LOOP_CONTINUOUSLY;
-			}
 			state = Playback.State.PLAYING;
-			clip.loop(loopsToGo);
 		}
 	}
 
@@ -116,19 +135,33 @@ public class PreloadedPlayback extends Playback implements Runnable,
 	public void stop() {
 		logger.info("Stopping playback of \"" + audio.getFileName()
 				+ "\" instance " + instanceID);
-		state = Playback.State.STOPPED;
-		clip.stop();
-		clip.close();
+		setStopped();
+		if (feed != null) {
+			// Wake the decoding thread so that it can exit.
+			feed.end();
+		}
 	}
 
 	@Override
 	public double getPosition() {
-		return clip.getMicrosecondPosition() / 1000000.0;
+		if (feed != null) {
+			return feed.getPosition();
+		}
+		int frame = pendingSeek;
+		if (frame < 0) {
+			frame = cursor - voice.pendingFrames();
+			if (frame < 0) {
+				frame += pcm.getFrameCount();
+			}
+		}
+		return frame / pcm.getSampleRate();
 	}
 
 	/**
-	 * Set the position of this {@code PreloadedPlayback} in seconds.
-	 * 
+	 * Set the position of this {@code PreloadedPlayback} in seconds. A
+	 * {@code PreloadedPlayback} that streams its audio data ignores this
+	 * once it has started.
+	 *
 	 * @param seconds
 	 *            The desired position in seconds.
 	 */
@@ -138,28 +171,37 @@ public class PreloadedPlayback extends Playback implements Runnable,
 		} else if (seconds > getLength()) {
 			seconds = getLength() - 0.01;
 		}
-		clip.setMicrosecondPosition((long) (seconds * 1000000.0));
+		if (feed != null) {
+			if (state == Playback.State.PRE) {
+				feed.setStartPosition(seconds);
+			}
+			return;
+		}
+		int frame = (int) (seconds * pcm.getSampleRate());
+		if (state == Playback.State.PRE) {
+			cursor = frame;
+		} else {
+			pendingSeek = frame;
+		}
 	}
 
 	/**
 	 * Get the length of this {@code PreloadedPlayback} in seconds.
-	 * 
+	 *
 	 * @return The length in seconds.
 	 */
 	public double getLength() {
-		return clip.getMicrosecondLength() / 1000000.0;
+		return length;
 	}
 
 	/**
-	 * Run the thread that will effectively initiate playback of the audio data.
+	 * Whether this {@code PreloadedPlayback} is currently a virtual voice,
+	 * i.e. tracked by clock arithmetic instead of being mixed.
+	 *
+	 * @return {@code true} if this {@code PreloadedPlayback} is virtual.
 	 */
-	@Override
-	public void run() {
-		state = Playback.State.PLAYING;
-		clip.loop(numLoops);
-		// IMPORTANT: drain() works like a flush on an output stream.
-		clip.drain();
-		doWait();
+	public boolean isVirtual() {
+		return (feed != null) ? feed.isVirtual() : voice.virtual;
 	}
 
 	@Override
@@ -167,90 +209,116 @@ public class PreloadedPlayback extends Playback implements Runnable,
 		return "PreloadedPlayback " + audio.getFileName() + " " + instanceID;
 	}
 
-	/**
-	 * Make the current thread wait for the audio data to finish playing. This
-	 * is necessary because {@code clip.loop()} starts its own daemon thread
-	 * (when called in the {@code run} method above) and the current thread (the
-	 * thread that {@code PreloadedPlayback} is running in) will return. The
-	 * current thread is managed by an {@code Executor} and if
-	 * {@code Executor.shutdown()} has been called, and the current thread has
-	 * returned, the {@code clip.loop()} thread will not stop the
-	 * {@code Executor} from shutting down, and not stop the QwickSound system
-	 * from exiting, therefore prematurely terminating the {@code clip.loop()}
-	 * playback. To remedy this, the current thread must be forced to wait until
-	 * it is notified that the {@code Clip} is closed. This method will be
-	 * called when the {@code update()} method receives a {@code LineEvent} of
-	 * type CLOSE.
-	 * 
-	 */
-	private void doWait() {
-		synchronized (lock) {
-			try {
-				lock.wait();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-
-	/**
-	 * Notify the current thread to stop waiting.This method will be called when
-	 * the {@code clip.loop()} thread (see the {@code doWait} method for more
-	 * info) has finished.
-	 */
-	private void doNotify() {
-		synchronized (lock) {
-			lock.notify();
-		}
-	}
-
-	/**
-	 * Implements the {@code LineListener} interface. This method is called
-	 * whenever the {@code Clip} has a line event.
-	 *
-	 * @param event
-	 *            Encapsulates the line event information sent from the
-	 *            {@code Clip}.
-	 */
-	@Override
-	public void update(LineEvent event) {
-		if (event.getType() == LineEvent.Type.CLOSE) {
-			doNotify();
-		}
-		if ((event.getType() == LineEvent.Type.STOP)
-				&& (state != Playback.State.PAUSED)) {
-			// Only called when the clip is done playing its media.
-			state = Playback.State.STOPPED;
-			clip.stop();
-			clip.close();
-		}
-	}
-
 	/**
 	 * Start playback of this {@code PreloadedPlayback}.
-	 * 
+	 *
 	 * @param volume
 	 *            The desired volume.
 	 * @param numLoops
 	 *            The number of times the audio data will be played in
 	 *            succession.
-	 * @param exec
-	 *            Manages the thread that this {@code PreloadedPlayback} runs
-	 *            in.
 	 */
-	protected void start(double volume, int numLoops, final ExecutorService exec) {
-		this.numLoops = numLoops - 1; // By definition, loop(0) plays once.
-		if (numLoops < 0) {
-			this.numLoops = Clip.LOOP_CONTINUOUSLY; // (-1)
-			loopContinuously = true;
-		}
+	protected void start(double volume, int numLoops) {
+		this.numLoops = numLoops;
+		loopsRemaining = (numLoops < 0) ? -1 : Math.max(0, numLoops - 1);
 		setVolume(volume);
+		normalizationGain = audio.getNormalizationGain();
+		state = Playback.State.PLAYING;
+		if (feed != null) {
+			feed.start((numLoops == 0) ? 1 : numLoops, Audio.exec);
+			return;
+		}
 		try {
-			exec.execute(this);
+			MixEngine.getInstance().add(voice);
 		} catch (RejectedExecutionException e) {
+			setStopped();
 			logger.warning("A play request was received "
 					+ "but the system is shutting down."
 					+ " Cannot perform the play request.");
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Reads the frames of a {@code PreloadedPlayback} for the
+	 * {@code MixEngine}, wrapping around the audio data as it loops.
+	 */
+	private final class PreloadedVoice extends Voice {
+
+		/**
+		 * Reads the audio data, decoding it if it is stored in a compact
+		 * encoding.
+		 */
+		private final SampleData.Reader reader = pcm.newReader();
+
+		/**
+		 * Creates a new {@code PreloadedVoice}.
+		 */
+		PreloadedVoice() {
+			super(PreloadedPlayback.this, pcm.getChannels(), pcm
+					.getSampleRate());
+		}
+
+		@Override
+		void prepare() {
+			int seek = pendingSeek;
+			if (seek >= 0) {
+				pendingSeek = -1;
+				cursor = seek;
+				seekReset();
+			}
+		}
+
+		@Override
+		int fetch(float[] dest, int frames) {
+			int frameCount = pcm.getFrameCount();
+			int read = 0;
+			while (read < frames && frameCount > 0) {
+				if (cursor >= frameCount) {
+					if (loopsRemaining == 0) {
+						break;
+					}
+					if (loopsRemaining > 0) {
+						loopsRemaining--;
+					}
+					cursor = 0;
+					loopCompleted();
+				}
+				int count = Math.min(frames - read, frameCount - cursor);
+				reader.read(cursor, count, dest, read * channels);
+				cursor += count;
+				read += count;
+			}
+			return read;
+		}
+
+		@Override
+		boolean skip(long frames) {
+			long frameCount = pcm.getFrameCount();
+			long position = cursor + frames;
+			long loops = Math.floorDiv(position, frameCount);
+			position = Math.floorMod(position, frameCount);
+			if (loopsRemaining >= 0) {
+				long remaining = loopsRemaining - loops;
+				if (remaining < 0) {
+					for (int i = 0; i < loopsRemaining; i++) {
+						loopCompleted();
+					}
+					cursor = (int) frameCount;
+					loopsRemaining = 0;
+					return false;
+				}
+				loopsRemaining = (int) remaining;
+			}
+			for (long i = 0; i < loops; i++) {
+				loopCompleted();
+			}
+			cursor = (int) position;
+			return true;
+		}
+
+		@Override
+		boolean isVirtualizable() {
+			return pcm.getFrameCount() > 0;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package qwicksound;
+
+/**
+ * An audio effect that processes blocks of interleaved stereo float samples
+ * in place, at the sample rate of QwickSound's output line (see
+ * {@link QwickSound#getOutputSampleRate}). A {@code Processor} can be inserted
+ * on a single {@code Playback} (see {@link Playback#addProcessor}) or on a
+ * {@code Bus} (see {@link Bus#addProcessor}), where it processes the sum of
+ * everything on the bus once per block; processors on {@code Bus.MASTER}
+ * process the final output.
+ * <p>
+ * {@code process} is called from the mixing thread for every block, so it
+ * must not allocate, block or take locks. Parameters changed from other
+ * threads should be stored in volatile fields and picked up at the start of
+ * the next block. A {@code Processor} keeps state between blocks and must
+ * only be inserted in one place at a time. A {@code Processor} that throws a
+ * {@code RuntimeException} is removed from where it was inserted.
+ * <p>
+ * The built-in processors are {@link BiquadFilter}, {@link Reverb} and
+ * {@link Compressor}.
+ *
+ * @author Christian Holton
+ *
+ */
+public interface Processor {
+
+	/**
+	 * Process a block of samples in place.
+	 *
+	 * @param samples
+	 *            The interleaved stereo samples, left first. Full scale is
+	 *            -1.0 to 1.0.
+	 * @param frames
+	 *            The number of frames in the block.
+	 */
+	void process(float[] samples, int frames);
+
+	/**
+	 * Clear any state carried between blocks, such as filter memory or
+	 * reverb tails. Called when the {@code Processor} is inserted.
+	 */
+	void reset();
+}
@@ -0,0 +1,114 @@
+package qwicksound;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * The {@code Processor}s inserted on a {@code Playback} or a {@code Bus}, in
+ * the order they are applied. The chain is copied on write, so that the
+ * mixing thread can run it without locking or allocating while other threads
+ * change it.
+ *
+ * @author Christian Holton
+ *
+ */
+final class ProcessorChain {
+
+	/**
+	 * The empty chain.
+	 */
+	private static final Processor[] EMPTY = new Processor[0];
+	/**
+	 * The processors, replaced as a whole on every change.
+	 */
+	private volatile Processor[] processors = EMPTY;
+	/**
+	 * {@code Logger} for the {@code ProcessorChain} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(ProcessorChain.class
+			.getName());
+
+	/**
+	 * Append a processor to the end of the chain, clearing its state.
+	 *
+	 * @param processor
+	 *            The processor.
+	 */
+	synchronized void add(Processor processor) {
+		if (processor == null) {
+			throw new NullPointerException("processor");
+		}
+		processor.reset();
+		Processor[] copy = Arrays.copyOf(processors, processors.length + 1);
+		copy[copy.length - 1] = processor;
+		processors = copy;
+	}
+
+	/**
+	 * Remove a processor from the chain.
+	 *
+	 * @param processor
+	 *            The processor.
+	 *
+	 * @return {@code true} if the processor was in the chain.
+	 */
+	synchronized boolean remove(Processor processor) {
+		Processor[] old = processors;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] == processor) {
+				Processor[] copy = new Processor[old.length - 1];
+				System.arraycopy(old, 0, copy, 0, i);
+				System.arraycopy(old, i + 1, copy, i, old.length - i - 1);
+				processors = copy;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the processors in the chain.
+	 *
+	 * @return An unmodifiable snapshot of the chain.
+	 */
+	List<Processor> toList() {
+		return Collections.unmodifiableList(Arrays.asList(processors));
+	}
+
+	/**
+	 * Whether the chain has no processors.
+	 *
+	 * @return {@code true} if the chain is empty.
+	 */
+	boolean isEmpty() {
+		return processors.length == 0;
+	}
+
+	/**
+	 * Run a block through every processor in the chain. A processor that
+	 * throws a {@code RuntimeException} is removed from the chain, so that it
+	 * cannot stop the mixing thread; the rest of the chain still runs.
+	 *
+	 * @param samples
+	 *            The interleaved stereo samples.
+	 * @param frames
+	 *            The number of frames.
+	 */
+	void process(float[] samples, int frames) {
+		Processor[] processors = this.processors;
+		for (int i = 0; i < processors.length; i++) {
+			try {
+				processors[i].process(samples, frames);
+			} catch (RuntimeException ex) {
+				logger.warning("Removed the processor " + processors[i]
+						+ " because it failed.");
+				ex.printStackTrace();
+				remove(processors[i]);
+			}
+		}
+	}
+}
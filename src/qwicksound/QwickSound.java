@@ -1,9 +1,18 @@
 package qwicksound;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -32,6 +41,16 @@ public class QwickSound {
 	 * loudest volume.
 	 */
 	public static final double MAX_VOLUME = 2.0;
+	/**
+	 * The minimum playback rate, which plays audio two octaves lower at a
+	 * quarter of its speed.
+	 */
+	public static final double MIN_RATE = 0.25;
+	/**
+	 * The maximum playback rate, which plays audio two octaves higher at four
+	 * times its speed.
+	 */
+	public static final double MAX_RATE = 4.0;
 	/**
 	 * The default value of master-gain/volume used in absence of a
 	 * user-supplied volume value.
@@ -51,8 +70,10 @@ public class QwickSound {
 	/**
 	 * Creates a new {@code PreloadedAudio} instance from the specified file
 	 * name. The file associated with the new {@code PreloadedAudio} instance
-	 * will be loaded completely into memory prior to being played. See
-	 * {@link PreloadedAudio} for more information.
+	 * will be loaded completely into memory prior to being played, unless it
+	 * does not fit within the memory budget (see {@link #setMemoryBudget}),
+	 * in which case it is streamed. See {@link PreloadedAudio} for more
+	 * information.
 	 * <p>
 	 * Note that the file's containing directory must be on the classpath.
 	 * 
@@ -65,6 +86,60 @@ public class QwickSound {
 		return new PreloadedAudio(loadFile(fileName));
 	}
 
+	/**
+	 * Creates a new {@code PreloadedAudio} instance from the audio file at the
+	 * specified path. Uncompressed WAV and AIFF files are read through a
+	 * {@code FileChannel} straight into a right-sized buffer, using the frame
+	 * length from the file's header; 16-bit little-endian WAV files are
+	 * memory-mapped and used in place.
+	 * 
+	 * @param path
+	 *            The path of the audio file to load.
+	 * 
+	 * @return A new {@code PreloadedAudio} based on the specified file.
+	 */
+	public static PreloadedAudio createPreloadedAudio(Path path) {
+		return new PreloadedAudio(AudioSource.of(path));
+	}
+
+	/**
+	 * Creates a new {@code PreloadedAudio} instance from audio file data held
+	 * in a buffer. The buffer is not copied and must not be modified
+	 * afterwards. Uncompressed WAV and AIFF data in the canonical format is
+	 * used in place.
+	 * 
+	 * @param data
+	 *            The audio file data, between the buffer's position and limit.
+	 * @param name
+	 *            The name of the audio, including the file extension, which
+	 *            is used to recognize MP3 and Ogg data.
+	 * 
+	 * @return A new {@code PreloadedAudio} based on the specified data.
+	 */
+	public static PreloadedAudio createPreloadedAudio(ByteBuffer data,
+			String name) {
+		return new PreloadedAudio(AudioSource.of(data, name));
+	}
+
+	/**
+	 * Creates a new {@code PreloadedAudio} instance from audio file data read
+	 * from a stream. The stream is decoded as it is read. Because the stream
+	 * cannot be read again, the audio data is never evicted to stay within
+	 * the memory budget.
+	 * 
+	 * @param in
+	 *            The stream of audio file data.
+	 * @param name
+	 *            The name of the audio, including the file extension, which
+	 *            is used to recognize MP3 and Ogg data.
+	 * 
+	 * @return A new {@code PreloadedAudio} based on the specified stream.
+	 */
+	public static PreloadedAudio createPreloadedAudio(InputStream in,
+			String name) {
+		return new PreloadedAudio(AudioSource.of(in, name));
+	}
+
 	/**
 	 * Creates a new {@code StreamingAudio} instance from the specified file
 	 * name. The file associated with the new {@code StreamingAudio} instance
@@ -82,6 +157,626 @@ public class QwickSound {
 		return new StreamingAudio(loadFile(fileName));
 	}
 
+	/**
+	 * Creates a new {@code StreamingAudio} instance from the audio file with
+	 * the specified {@code URL}, which may be on an HTTP or HTTPS server. Such
+	 * a file is downloaded by a background thread ahead of the decoder, and a
+	 * download that stalls or drops is resumed where it left off with a
+	 * {@code Range} request. Network delays therefore only starve the decoder;
+	 * the output line is never kept waiting. See
+	 * {@link #setStreamCacheDirectory} to keep downloaded files for replays.
+	 * 
+	 * @param fileURL
+	 *            The {@code URL} of the audio file to stream.
+	 * 
+	 * @return A new {@code StreamingAudio} based on the specified file.
+	 */
+	public static StreamingAudio createStreamingAudio(URL fileURL) {
+		return new StreamingAudio(AudioSource.of(fileURL));
+	}
+
+	/**
+	 * Creates a new {@code StreamingAudio} instance from the audio file at the
+	 * specified path.
+	 * 
+	 * @param path
+	 *            The path of the audio file to stream.
+	 * 
+	 * @return A new {@code StreamingAudio} based on the specified file.
+	 */
+	public static StreamingAudio createStreamingAudio(Path path) {
+		return new StreamingAudio(AudioSource.of(path));
+	}
+
+	/**
+	 * Creates a new {@code StreamingAudio} instance from audio file data held
+	 * in a buffer, e.g. compressed audio kept in memory and decoded as it is
+	 * played. The buffer is not copied and must not be modified afterwards.
+	 * 
+	 * @param data
+	 *            The audio file data, between the buffer's position and limit.
+	 * @param name
+	 *            The name of the audio, including the file extension, which
+	 *            is used to recognize MP3 and Ogg data.
+	 * 
+	 * @return A new {@code StreamingAudio} based on the specified data.
+	 */
+	public static StreamingAudio createStreamingAudio(ByteBuffer data,
+			String name) {
+		return new StreamingAudio(AudioSource.of(data, name));
+	}
+
+	/**
+	 * Creates a new {@code StreamingAudio} instance from audio file data read
+	 * from a stream. So that the audio can be played more than once, the
+	 * encoded data is read into memory once, and the stream is closed.
+	 * 
+	 * @param in
+	 *            The stream of audio file data.
+	 * @param name
+	 *            The name of the audio, including the file extension, which
+	 *            is used to recognize MP3 and Ogg data.
+	 * 
+	 * @return A new {@code StreamingAudio} based on the specified stream, or
+	 *         {@code null} if the stream could not be read.
+	 */
+	public static StreamingAudio createStreamingAudio(InputStream in,
+			String name) {
+		ByteArrayOutputStream byteOutStream = new ByteArrayOutputStream();
+		try {
+			try {
+				byte[] buffer = new byte[8192];
+				int bytesRead;
+				while ((bytesRead = in.read(buffer)) != -1) {
+					byteOutStream.write(buffer, 0, bytesRead);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			logger.warning("Could not read the stream of \"" + name + "\"");
+			ex.printStackTrace();
+			return null;
+		}
+		return new StreamingAudio(AudioSource.of(
+				ByteBuffer.wrap(byteOutStream.toByteArray()), name));
+	}
+
+	/**
+	 * Creates a new {@code HybridAudio} instance from the specified file
+	 * name. The head of the file is decoded into memory, so that plays start
+	 * as quickly as those of {@code PreloadedAudio}, and the rest is streamed.
+	 * See {@link HybridAudio} for more information.
+	 * <p>
+	 * Note that the file's containing directory must be on the classpath.
+	 *
+	 * @param fileName
+	 *            The name of the audio file to load.
+	 * @param headLength
+	 *            The duration of the head kept in memory, in seconds, e.g.
+	 *            {@code HybridAudio.DEFAULT_HEAD_LENGTH}.
+	 *
+	 * @return A new {@code HybridAudio} based on the specified file.
+	 */
+	public static HybridAudio createHybridAudio(String fileName,
+			double headLength) {
+		return new HybridAudio(loadFile(fileName), headLength);
+	}
+
+	/**
+	 * Creates a new {@code HybridAudio} instance from the audio file with the
+	 * specified {@code URL}, which may be on an HTTP or HTTPS server. The
+	 * head then also covers the time it takes to reconnect on each play.
+	 *
+	 * @param fileURL
+	 *            The {@code URL} of the audio file.
+	 * @param headLength
+	 *            The duration of the head kept in memory, in seconds.
+	 *
+	 * @return A new {@code HybridAudio} based on the specified file.
+	 */
+	public static HybridAudio createHybridAudio(URL fileURL, double headLength) {
+		return new HybridAudio(AudioSource.of(fileURL), headLength);
+	}
+
+	/**
+	 * Creates a new {@code HybridAudio} instance from the audio file at the
+	 * specified path.
+	 *
+	 * @param path
+	 *            The path of the audio file.
+	 * @param headLength
+	 *            The duration of the head kept in memory, in seconds.
+	 *
+	 * @return A new {@code HybridAudio} based on the specified file.
+	 */
+	public static HybridAudio createHybridAudio(Path path, double headLength) {
+		return new HybridAudio(AudioSource.of(path), headLength);
+	}
+
+	/**
+	 * Opens the sound-bank file at the specified path. The file is
+	 * memory-mapped once, and {@code PreloadedAudio} instances can then be
+	 * created from its entries without further file access. See
+	 * {@link SoundBank} for more information.
+	 * 
+	 * @param path
+	 *            The path of a file created by {@code SoundBankBuilder}.
+	 * 
+	 * @return The opened {@code SoundBank}, or {@code null} if the file could
+	 *         not be opened.
+	 */
+	public static SoundBank openSoundBank(Path path) {
+		try {
+			return new SoundBank(path);
+		} catch (IOException ex) {
+			logger.warning("Could not open the sound bank \"" + path + "\"");
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Get the asset set with the specified name, e.g. the sounds of a level,
+	 * declaring an empty one if it does not exist yet. The audio files of a
+	 * set are declared with its {@code add} methods, loaded in the background
+	 * when it is acquired and unloaded when it is released; files shared by
+	 * several sets are loaded once and reference counted. See
+	 * {@link AssetSet} for more information.
+	 *
+	 * @param name
+	 *            The name of the set.
+	 *
+	 * @return The {@code AssetSet}.
+	 */
+	public static AssetSet getAssetSet(String name) {
+		return AssetSet.named(name);
+	}
+
+	/**
+	 * Creates a new {@code AdaptiveAudio} instance from the specified file
+	 * name, which chooses between preloading and streaming by itself: it
+	 * preloads small audio, promotes streamed audio that is played often to
+	 * preloaded, and demotes preloaded audio that is rarely played when
+	 * room is needed within the memory budget (see {@link #setMemoryBudget}).
+	 * See {@link AdaptiveAudio} for more information.
+	 * <p>
+	 * Note that the file's containing directory must be on the classpath.
+	 * 
+	 * @param fileName
+	 *            The name of the audio file to load.
+	 * 
+	 * @return A new {@code AdaptiveAudio} based on the specified file.
+	 */
+	public static AdaptiveAudio createAudio(String fileName) {
+		return new AdaptiveAudio(AudioSource.of(loadFile(fileName)));
+	}
+
+	/**
+	 * Creates a new {@code AdaptiveAudio} instance from the audio file at the
+	 * specified path. See {@link #createAudio(String)}.
+	 * 
+	 * @param path
+	 *            The path of the audio file.
+	 * 
+	 * @return A new {@code AdaptiveAudio} based on the specified file.
+	 */
+	public static AdaptiveAudio createAudio(Path path) {
+		return new AdaptiveAudio(AudioSource.of(path));
+	}
+
+	/**
+	 * Set the maximum number of bytes of decoded audio data that all
+	 * {@code PreloadedAudio} instances, preloaded {@code AdaptiveAudio}
+	 * instances and the heads of {@code HybridAudio} instances together may
+	 * hold. When a new one would exceed the budget, the least recently played
+	 * idle instances are evicted; an evicted {@code PreloadedAudio} streams
+	 * its audio data the next time it is played while the data is reloaded
+	 * in the background, and an evicted {@code AdaptiveAudio} streams it. A
+	 * {@code PreloadedAudio} whose audio data does not fit at all streams
+	 * until room has been made. The heads of {@code HybridAudio} instances
+	 * are never evicted. The default is unlimited.
+	 * 
+	 * @param bytes
+	 *            The budget in bytes.
+	 */
+	public static void setMemoryBudget(long bytes) {
+		MemoryBudget.getInstance().setBudget(bytes);
+	}
+
+	/**
+	 * Get the maximum number of bytes of decoded audio data that all
+	 * {@code PreloadedAudio} instances together may hold.
+	 * 
+	 * @return The budget in bytes.
+	 */
+	public static long getMemoryBudget() {
+		return MemoryBudget.getInstance().getBudget();
+	}
+
+	/**
+	 * Get the number of bytes of decoded audio data currently held against
+	 * the memory budget by all {@code PreloadedAudio} and preloaded
+	 * {@code AdaptiveAudio} instances. The usage of an individual asset is
+	 * available from {@link Audio#getMemoryUsage()}.
+	 * 
+	 * @return The memory usage in bytes.
+	 */
+	public static long getMemoryUsage() {
+		return MemoryBudget.getInstance().getUsed();
+	}
+
+	/**
+	 * Set the maximum number of {@code PreloadedPlayback}s that are mixed at
+	 * the same time. When more are active, the quietest become virtual
+	 * voices: they release their mix slot, but their positions keep
+	 * advancing so that they resume at the right offset once a slot is free.
+	 * The default is 32.
+	 * 
+	 * @param maxVoices
+	 *            The polyphony budget.
+	 */
+	public static void setMaxVoices(int maxVoices) {
+		MixEngine.getInstance().setMaxVoices(maxVoices);
+	}
+
+	/**
+	 * Get the maximum number of {@code PreloadedPlayback}s that are mixed at
+	 * the same time.
+	 * 
+	 * @return The polyphony budget.
+	 */
+	public static int getMaxVoices() {
+		return MixEngine.getInstance().getMaxVoices();
+	}
+
+	/**
+	 * Set the volume at or below which a {@code PreloadedPlayback} is
+	 * considered inaudible and becomes a virtual voice. The default is
+	 * {@code MIN_VOLUME}, i.e. only muted playbacks are virtualized.
+	 * 
+	 * @param volume
+	 *            The audibility threshold.
+	 */
+	public static void setAudibilityThreshold(double volume) {
+		MixEngine.getInstance().setAudibilityThreshold(volume);
+	}
+
+	/**
+	 * Get the volume at or below which a {@code PreloadedPlayback} becomes a
+	 * virtual voice.
+	 * 
+	 * @return The audibility threshold.
+	 */
+	public static double getAudibilityThreshold() {
+		return MixEngine.getInstance().getAudibilityThreshold();
+	}
+
+	/**
+	 * Get the number of {@code PreloadedPlayback}s that are currently virtual
+	 * voices.
+	 * 
+	 * @return The number of virtual voices.
+	 */
+	public static int getVirtualVoiceCount() {
+		return MixEngine.getInstance().getVirtualVoiceCount();
+	}
+
+	/**
+	 * Get the sample rate of QwickSound's output line, at which all
+	 * {@code Processor}s run.
+	 *
+	 * @return The sample rate in Hz.
+	 */
+	public static float getOutputSampleRate() {
+		return MixEngine.FORMAT.getSampleRate();
+	}
+
+	/**
+	 * Set the target output latency, which sizes the buffer of each output
+	 * line. Lower latencies make playback more
+	 * responsive but more prone to underruns; whenever a line runs dry, its
+	 * buffer is doubled automatically, up to half a second. The setting
+	 * applies to lines opened from now on. The default is 50 ms.
+	 *
+	 * @param seconds
+	 *            The target latency, at least 10 ms.
+	 */
+	public static void setTargetLatency(double seconds) {
+		OutputLine.setTargetLatency(seconds);
+	}
+
+	/**
+	 * Get the target output latency.
+	 *
+	 * @return The target latency in seconds.
+	 */
+	public static double getTargetLatency() {
+		return OutputLine.getTargetLatency();
+	}
+
+	/**
+	 * Get the latency actually achieved by the output line that
+	 * {@code PreloadedPlayback}s are mixed into. This is at least the target
+	 * latency, and more if the line's buffer has grown after underruns or the
+	 * line did not grant the requested buffer size.
+	 *
+	 * @return The latency in seconds, or 0 if the line is not open.
+	 */
+	public static double getOutputLatency() {
+		return MixEngine.getInstance().getLatency();
+	}
+
+	/**
+	 * Get the number of times an output line has run out of audio data since
+	 * the system started.
+	 *
+	 * @return The number of underruns.
+	 */
+	public static int getUnderrunCount() {
+		return OutputLine.getTotalUnderruns();
+	}
+
+	/**
+	 * Set whether the mix is rendered without an audio device. In headless
+	 * mode the mix is discarded at the pace a device would play it, so that
+	 * playbacks start, loop and complete in real time on machines without
+	 * audio hardware, e.g. for load tests or on servers. The setting applies
+	 * to output lines opened from now on; the mixer opens its line when it
+	 * starts rendering after being idle. The default is {@code false}.
+	 *
+	 * @param headless
+	 *            {@code true} to render without an audio device.
+	 */
+	public static void setHeadless(boolean headless) {
+		OutputLine.setHeadless(headless);
+	}
+
+	/**
+	 * Whether the mix is rendered without an audio device.
+	 *
+	 * @return {@code true} if headless mode is enabled.
+	 */
+	public static boolean isHeadless() {
+		return OutputLine.isHeadless();
+	}
+
+	/**
+	 * Set how the audio data of {@code PreloadedAudio} is reduced after it is
+	 * decoded: trimming leading and trailing silence, folding identical
+	 * stereo channels to mono, and downsampling audio without high-frequency
+	 * content. Note that trimming leading silence moves the start of the
+	 * audio, and with it all positions, to its audible onset. It applies to
+	 * audio data loaded from now on, including evicted data that is
+	 * reloaded. By default the data is kept as decoded.
+	 * 
+	 * @param optimization
+	 *            The optimization, or {@code null} to keep data as decoded.
+	 */
+	public static void setPcmOptimization(PcmOptimization optimization) {
+		PcmOptimizer.setOptimization(optimization);
+	}
+
+	/**
+	 * Get how the audio data of {@code PreloadedAudio} is reduced after it is
+	 * decoded.
+	 * 
+	 * @return The optimization, or {@code null} if data is kept as decoded.
+	 */
+	public static PcmOptimization getPcmOptimization() {
+		return PcmOptimizer.getOptimization();
+	}
+
+	/**
+	 * Set the encoding that the audio data of {@code PreloadedAudio} is
+	 * stored in. {@code SampleEncoding.MU_LAW} halves and
+	 * {@code SampleEncoding.IMA_ADPCM} roughly quarters the memory used, at
+	 * the cost of some quality and of decoding the data as each voice plays
+	 * it. It applies to audio data loaded from now on, including evicted
+	 * data that is reloaded; data mapped from a {@code SoundBank} is always
+	 * 16-bit PCM. The default is {@code SampleEncoding.PCM_16}.
+	 *
+	 * @param encoding
+	 *            The encoding.
+	 */
+	public static void setSampleEncoding(SampleEncoding encoding) {
+		SampleData.setEncoding(encoding);
+	}
+
+	/**
+	 * Get the encoding that the audio data of {@code PreloadedAudio} is
+	 * stored in.
+	 *
+	 * @return The encoding.
+	 */
+	public static SampleEncoding getSampleEncoding() {
+		return SampleData.getEncoding();
+	}
+
+	/**
+	 * Set whether audio is normalized to a common loudness, so that assets
+	 * mastered at different levels play at comparable levels at the same
+	 * volume. Each {@code Audio}'s integrated loudness is measured when it is
+	 * decoded, or for streaming audio by a background pass, and its
+	 * {@code Playback}s are scaled by the gain that brings it to the target
+	 * (see {@link Audio#getNormalizationGain()}). Gains are limited to +12 dB,
+	 * and no further than the audio's peak allows without clipping.
+	 * Playbacks started before the measurement is done play at unity gain.
+	 * It is enabled by default, and applies to {@code Playback}s started from
+	 * now on.
+	 * 
+	 * @param enabled
+	 *            {@code false} to play all audio at its own level.
+	 */
+	public static void setNormalization(boolean enabled) {
+		Normalizer.setEnabled(enabled);
+	}
+
+	/**
+	 * Whether audio is normalized to a common loudness.
+	 * 
+	 * @return {@code true} if it is.
+	 */
+	public static boolean isNormalization() {
+		return Normalizer.isEnabled();
+	}
+
+	/**
+	 * Set the loudness that audio is normalized to. It applies to
+	 * {@code Playback}s started from now on. The default is -16 LUFS.
+	 * 
+	 * @param lufs
+	 *            The target in LUFS.
+	 */
+	public static void setNormalizationTarget(double lufs) {
+		Normalizer.setTarget(lufs);
+	}
+
+	/**
+	 * Get the loudness that audio is normalized to.
+	 * 
+	 * @return The target in LUFS.
+	 */
+	public static double getNormalizationTarget() {
+		return Normalizer.getTarget();
+	}
+
+	/**
+	 * Get the tap that publishes the mix of all playbacks, after the master
+	 * bus, as it is written to the output line, for analysis such as level
+	 * meters. See {@link AudioTap}. Blocks are only published while audio is
+	 * playing.
+	 *
+	 * @return The output tap.
+	 */
+	public static AudioTap getOutputTap() {
+		return MixEngine.getInstance().getOutputTap();
+	}
+
+	/**
+	 * Get the timing of the render thread that mixes preloaded audio into the
+	 * output line: histograms of the time spent mixing each block and of how
+	 * late the thread woke up, which show whether the mixer keeps up with the
+	 * line under load.
+	 *
+	 * @return A snapshot of the statistics since the system started or they
+	 *         were last reset.
+	 */
+	public static RenderStats getRenderStats() {
+		return MixEngine.getInstance().getRenderStats();
+	}
+
+	/**
+	 * Discard the render thread's timing recorded so far, e.g. once the
+	 * system has warmed up.
+	 */
+	public static void resetRenderStats() {
+		MixEngine.getInstance().resetRenderStats();
+	}
+
+	/**
+	 * Set the priority of the render thread. It applies at once if the thread
+	 * is running. The default is {@code Thread.MAX_PRIORITY}.
+	 * <p>
+	 * Note that on Linux the JVM only applies thread priorities when started
+	 * with {@code -XX:ThreadPriorityPolicy=1}, and raising them requires
+	 * privileges.
+	 *
+	 * @param priority
+	 *            The priority, from {@code Thread.MIN_PRIORITY} to
+	 *            {@code Thread.MAX_PRIORITY}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the priority is out of range.
+	 */
+	public static void setRenderThreadPriority(int priority) {
+		RenderThread.setPriority(priority);
+	}
+
+	/**
+	 * Get the priority of the render thread.
+	 *
+	 * @return The priority.
+	 */
+	public static int getRenderThreadPriority() {
+		return RenderThread.getPriority();
+	}
+
+	/**
+	 * Set the CPUs the render thread may run on, e.g. one that the
+	 * application's other busy threads are kept off. It applies at once if
+	 * the thread is running. By default the thread may run on any CPU.
+	 * <p>
+	 * Note that affinity is only supported on Linux, where the
+	 * {@code taskset} command must be available. Elsewhere it is ignored.
+	 *
+	 * @param cpus
+	 *            The numbers of the CPUs, starting at 0, or none to allow any
+	 *            CPU.
+	 */
+	public static void setRenderThreadAffinity(int... cpus) {
+		RenderThread.setAffinity(cpus);
+	}
+
+	/**
+	 * Get the CPUs the render thread may run on.
+	 *
+	 * @return The numbers of the CPUs, or an empty array if any CPU is
+	 *         allowed.
+	 */
+	public static int[] getRenderThreadAffinity() {
+		return RenderThread.getAffinity();
+	}
+
+	/**
+	 * Set whether long MP3, Ogg and MP4 files are decoded on several cores
+	 * when they are preloaded. Such a file is split into segments at frame or
+	 * page boundaries, and the segments are decoded in parallel by the common
+	 * fork-join pool, which yields the same samples as decoding the file in
+	 * one piece. Only files at hand as a whole, i.e. classpath resources,
+	 * files and buffers, are split. It is enabled by default, and has no
+	 * effect on single-core machines.
+	 * 
+	 * @param enabled
+	 *            {@code false} to decode every file on the calling thread.
+	 */
+	public static void setParallelDecoding(boolean enabled) {
+		SegmentedDecoder.setEnabled(enabled);
+	}
+
+	/**
+	 * Whether long MP3, Ogg and MP4 files are decoded on several cores when
+	 * they are preloaded.
+	 * 
+	 * @return {@code true} if parallel decoding is enabled.
+	 */
+	public static boolean isParallelDecoding() {
+		return SegmentedDecoder.isEnabled();
+	}
+
+	/**
+	 * Set the directory in which audio streamed over HTTP is cached. While a
+	 * file is downloaded, it is spilled to a file in this directory, and once
+	 * the download completes, the audio is streamed from that file instead of
+	 * the network, e.g. when it loops or is played again.
+	 * 
+	 * @param directory
+	 *            The directory, which is created if needed, or {@code null}
+	 *            to disable the cache. It is disabled by default.
+	 */
+	public static void setStreamCacheDirectory(Path directory) {
+		HttpSource.setCacheDirectory(directory);
+	}
+
+	/**
+	 * Get the directory in which audio streamed over HTTP is cached.
+	 * 
+	 * @return The directory, or {@code null} if the cache is disabled.
+	 */
+	public static Path getStreamCacheDirectory() {
+		return HttpSource.getCacheDirectory();
+	}
+
 	/**
 	 * Initialize the QwickSound system.
 	 */
@@ -95,6 +790,24 @@ public class QwickSound {
 		logger.info("Initializing ...");
 	}
 
+	/**
+	 * Initialize the QwickSound system and warm it up, so that the first
+	 * sound plays without the delays of loading the Java Sound providers and
+	 * codecs, opening the output line and compiling the decoding and mixing
+	 * code. The warm-up blocks until it is done, which typically takes a few
+	 * hundred milliseconds; call it while the application is loading. See
+	 * {@link WarmupConfig} for the stages.
+	 * 
+	 * @param config
+	 *            The stages of the warm-up to run.
+	 * 
+	 * @return How long each stage took. The report is also logged.
+	 */
+	public static WarmupReport init(WarmupConfig config) {
+		init();
+		return Warmup.run(config);
+	}
+
 	/**
 	 * Shutdown the QwickSound system in an orderly manner, allowing any
 	 * currently playing audio to finish before the system exits. More
@@ -110,6 +823,52 @@ public class QwickSound {
 		Audio.shutdown();
 	}
 
+	/**
+	 * Shutdown the QwickSound system without waiting for audio to finish.
+	 * New play requests are refused, every {@code Audio} that has not been
+	 * closed is closed, which stops all of its {@code Playbacks} and releases
+	 * the streams it holds open, and then this method waits for the
+	 * streaming threads and the render thread to terminate.
+	 * 
+	 * @param timeout
+	 *            How long to wait for the threads to terminate.
+	 * 
+	 * @return {@code true} if all threads terminated within the timeout.
+	 */
+	public static boolean shutdown(Duration timeout) {
+		logger.info("shutdown(" + timeout + ") called. Stopping all "
+				+ "playbacks ...");
+		long deadline = System.nanoTime() + timeout.toNanos();
+		Audio.shutdown();
+		AudioResources.closeAll();
+		boolean terminated = Audio.awaitTermination(deadline);
+		if (!terminated) {
+			logger.warning("QwickSound did not terminate within " + timeout);
+		}
+		return terminated;
+	}
+
+	/**
+	 * List what every {@code Audio} that has not been closed holds open, to
+	 * help track down {@code Audio} that is never closed. Each entry names
+	 * an {@code Audio} and gives its number of active {@code Playbacks} and
+	 * of open streams, i.e. streams being decoded by its
+	 * {@code StreamingPlaybacks} and the stream a {@code StreamingAudio}
+	 * opens ahead of its next play. If the mixer's output line is open, it
+	 * is listed first.
+	 * 
+	 * @return One line per open {@code Audio}.
+	 */
+	public static List<String> getOpenResources() {
+		List<String> report = AudioResources.report();
+		double latency = MixEngine.getInstance().getLatency();
+		if (latency > 0.0) {
+			report.add(0, String.format("Output line %s: open, %.1f ms "
+					+ "latency", MixEngine.FORMAT, latency * 1000.0));
+		}
+		return report;
+	}
+
 	/**
 	 * Load the specified file.
 	 * 
@@ -121,7 +880,7 @@ public class QwickSound {
 	 * 
 	 * @return The {@code URL} of the file.
 	 */
-	private static URL loadFile(String fileName) {
+	protected static URL loadFile(String fileName) {
 		URL fileURL = ClassLoader.getSystemResource(fileName);
 		if (fileURL == null) {
 			logger.warning("Could not load file \"" + fileName + "\". Make"
@@ -134,61 +893,130 @@ public class QwickSound {
 
 	/**
 	 * Acquire an {@code AudioInputStream} based on the audio file data from the
-	 * file {@code URL}. If the audio file is in MP3 or Ogg format, a call to
-	 * {@code decodeToPCM} will be made and the {@code AudioInputStream} will be
-	 * based on the new audio data.
+	 * file {@code URL}. If the audio data is encoded, e.g. in MP3 or Ogg
+	 * format, it is decoded to PCM. The Java Sound reader and decoder that
+	 * handled the file are remembered, so that opening it again does not
+	 * probe every installed reader.
 	 * 
 	 * @param fileURL
 	 *            The specified file's URL.
 	 * 
-	 * @return The {@code AudioInputStream} based on the file's {@code URL}.
+	 * @return The {@code AudioInputStream} based on the file's {@code URL},
+	 *         or {@code null} if the file could not be read.
 	 */
 	protected static AudioInputStream acquireAudioInputStream(URL fileURL) {
 		AudioInputStream audioInStream = null;
 		String fileName = fileURL.getFile();
 		try {
-			// URL fileURL = ClassLoader.getSystemResource(fileName);
-			audioInStream = AudioSystem.getAudioInputStream(fileURL);
+			audioInStream = FormatResolver.open(fileURL, fileName);
 		} catch (UnsupportedAudioFileException ex) {
 			logger.warning("The audio format of the file \"" + fileName
 					+ "\" could not be recognized.");
 			ex.printStackTrace();
+			return null;
 		} catch (IOException ex) {
 			logger.warning("Could not aquire an AudioInputStream for the file \""
 					+ fileName + "\"");
 			ex.printStackTrace();
+			return null;
 		}
-		// If we have an encoded mp3 or ogg file, decode AudioInputStream to
-		// PCM.
-		if (fileName.endsWith(".mp3") || fileName.endsWith(".ogg")) {
-			audioInStream = decodeToPCM(audioInStream);
+		return FormatResolver.toPCM(audioInStream);
+	}
+
+	/**
+	 * Acquire an {@code AudioInputStream} based on encoded audio file data
+	 * read from an {@code InputStream}. As with the {@code URL} version of
+	 * this method, encoded data is decoded to PCM.
+	 * 
+	 * @param in
+	 *            The stream of audio file data.
+	 * @param fileName
+	 *            The name of the audio file, used to recognize its format.
+	 * 
+	 * @return The {@code AudioInputStream}, or {@code null} if the data could
+	 *         not be read.
+	 */
+	protected static AudioInputStream acquireAudioInputStream(InputStream in,
+			String fileName) {
+		AudioInputStream audioInStream = null;
+		try {
+			// The readers need mark/reset support to probe the format.
+			if (!in.markSupported()) {
+				in = new BufferedInputStream(in);
+			}
+			audioInStream = FormatResolver.open(in, fileName);
+		} catch (UnsupportedAudioFileException ex) {
+			logger.warning("The audio format of the file \"" + fileName
+					+ "\" could not be recognized.");
+			ex.printStackTrace();
+			return null;
+		} catch (IOException ex) {
+			logger.warning("Could not aquire an AudioInputStream for the file \""
+					+ fileName + "\"");
+			ex.printStackTrace();
+			return null;
 		}
-		return audioInStream;
+		return FormatResolver.toPCM(audioInStream);
 	}
 
 	/**
-	 * Convert the MP3 or Ogg {@code AudioInputStream} to PCM. This method is
-	 * the only code that pertains specifically to MP3 or Ogg files.
-	 *
-	 * From the {@code AudioInputStream}, i.e. from the audio file, we fetch
-	 * information about the format of the audio data. This information includes
-	 * the sampling frequency, the number of channels, and the size of the
-	 * samples. This information is needed to ask Java Audio for a suitable
-	 * output line for this {@code AudioInputStream}.
+	 * Estimate the number of bytes the decoded audio data of a file will
+	 * occupy. The frame length of the stream is used when it is known;
+	 * otherwise the duration reported by the file's reader (e.g. for MP3 and
+	 * Ogg files) is used.
+	 * 
+	 * @param fileURL
+	 *            The audio file's {@code URL}.
+	 * @param audioInStream
+	 *            The decoded stream of the file.
+	 * 
+	 * @return The estimated size in bytes, or -1 if it is unknown.
+	 */
+	protected static long estimateDecodedSize(URL fileURL,
+			AudioInputStream audioInStream) {
+		AudioFormat format = audioInStream.getFormat();
+		long frameLength = audioInStream.getFrameLength();
+		if (frameLength != AudioSystem.NOT_SPECIFIED) {
+			return frameLength * format.getFrameSize();
+		}
+		try {
+			AudioFileFormat fileFormat = FormatResolver.getFileFormat(
+					fileURL, fileURL.getFile());
+			Map<String, Object> properties = fileFormat.properties();
+			Object duration = (properties == null) ? null : properties
+					.get("duration");
+			if (duration instanceof Long) {
+				double seconds = (Long) duration / 1000000.0;
+				return (long) (seconds * format.getSampleRate())
+						* format.getFrameSize();
+			}
+		} catch (UnsupportedAudioFileException ex) {
+			// Fall through. The size is unknown.
+		} catch (IOException ex) {
+			// Fall through. The size is unknown.
+		}
+		return -1;
+	}
+
+	/**
+	 * Convert a PCM {@code AudioInputStream} to the canonical format that
+	 * preloaded audio is held in: signed, 16-bit, little-endian samples at the
+	 * stream's own sample rate and channel count.
 	 * 
 	 * @param audioInStream
-	 * @return The decoded, PCM-based {@code AudioInputStream}.
-	 */
-	private static AudioInputStream decodeToPCM(AudioInputStream audioInStream) {
-		AudioFormat baseFormat = audioInStream.getFormat();
-		// Create an AudioFormat with PCM encoding
-		AudioFormat decodedFormat = new AudioFormat(
-				AudioFormat.Encoding.PCM_SIGNED, baseFormat.getSampleRate(),
-				16, baseFormat.getChannels(), baseFormat.getChannels() * 2,
-				baseFormat.getSampleRate(), false);
-		// Convert.
-		audioInStream = AudioSystem.getAudioInputStream(decodedFormat,
-				audioInStream);
-		return audioInStream;
+	 *            The PCM stream to convert.
+	 * @return The stream itself if it is already in the canonical format,
+	 *         otherwise a converted stream.
+	 */
+	protected static AudioInputStream toCanonicalPCM(
+			AudioInputStream audioInStream) {
+		AudioFormat format = audioInStream.getFormat();
+		if (format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+				&& format.getSampleSizeInBits() == 16 && !format.isBigEndian()) {
+			return audioInStream;
+		}
+		AudioFormat canonicalFormat = new AudioFormat(format.getSampleRate(),
+				16, format.getChannels(), true, false);
+		return FormatResolver.convert(canonicalFormat, audioInStream);
 	}
 }
@@ -0,0 +1,124 @@
+package qwicksound;
+
+/**
+ * Timing of the render thread, which mixes each block of 256 frames and
+ * writes it to the output line.
+ * Each block has a budget of one block period, about 5.8 ms: if mixing takes
+ * longer, the render thread falls behind the line and, once the line's
+ * buffer is used up, the line runs dry.
+ * <p>
+ * Two histograms are kept:
+ * <ul>
+ * <li><b>Processing time:</b> how long mixing each block took.</li>
+ * <li><b>Wake-up jitter:</b> how late the render thread woke up after
+ * waiting for room in the line's buffer, i.e. how much the scheduler
+ * delayed it.</li>
+ * </ul>
+ * A block meets its deadline if its wake-up jitter plus processing time fit
+ * in the line's buffer; both should stay well below the block period.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class RenderStats {
+
+	/**
+	 * The duration of one block in seconds.
+	 */
+	private final double blockPeriod;
+	/**
+	 * The time spent mixing each block.
+	 */
+	private final TimingHistogram processingTime;
+	/**
+	 * How late the render thread woke up.
+	 */
+	private final TimingHistogram wakeUpJitter;
+	/**
+	 * The number of underruns of the output lines.
+	 */
+	private final int underruns;
+
+	/**
+	 * Creates a new {@code RenderStats}.
+	 *
+	 * @param blockPeriod
+	 *            The duration of one block in seconds.
+	 * @param processingTime
+	 *            A copy of the processing time histogram.
+	 * @param wakeUpJitter
+	 *            A copy of the wake-up jitter histogram.
+	 * @param underruns
+	 *            The number of underruns of the output lines.
+	 */
+	RenderStats(double blockPeriod, TimingHistogram processingTime,
+			TimingHistogram wakeUpJitter, int underruns) {
+		this.blockPeriod = blockPeriod;
+		this.processingTime = processingTime;
+		this.wakeUpJitter = wakeUpJitter;
+		this.underruns = underruns;
+	}
+
+	/**
+	 * Get the duration of one block, the budget for mixing it.
+	 *
+	 * @return The duration in seconds.
+	 */
+	public double getBlockPeriod() {
+		return blockPeriod;
+	}
+
+	/**
+	 * Get the number of blocks rendered.
+	 *
+	 * @return The number of blocks.
+	 */
+	public long getBlockCount() {
+		return processingTime.getCount();
+	}
+
+	/**
+	 * Get the number of blocks that took longer than a block period to mix.
+	 *
+	 * @return The number of blocks over budget.
+	 */
+	public long getLateBlockCount() {
+		return processingTime.getCountAbove(blockPeriod);
+	}
+
+	/**
+	 * Get the histogram of the time spent mixing each block.
+	 *
+	 * @return The histogram.
+	 */
+	public TimingHistogram getProcessingTime() {
+		return processingTime;
+	}
+
+	/**
+	 * Get the histogram of how late the render thread woke up.
+	 *
+	 * @return The histogram.
+	 */
+	public TimingHistogram getWakeUpJitter() {
+		return wakeUpJitter;
+	}
+
+	/**
+	 * Get the number of times an output line has run out of audio data since
+	 * the system started.
+	 *
+	 * @return The number of underruns.
+	 */
+	public int getUnderruns() {
+		return underruns;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d blocks of %.2f ms, %d late, %d underruns%n"
+				+ "  processing: %s%n  wake-up jitter: %s", getBlockCount(),
+				blockPeriod * 1000.0, getLateBlockCount(), underruns,
+				processingTime, wakeUpJitter);
+	}
+}
@@ -0,0 +1,242 @@
+package qwicksound;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Starts the thread that runs the {@code MixEngine}, apart from the pool of
+ * {@code Audio.exec} so that it does not wait behind decoding and streaming
+ * work. The thread's priority and CPU affinity can be configured, and apply
+ * to the running thread at once.
+ * <p>
+ * Java thread priorities map to the operating system's on Windows and macOS;
+ * on Linux the JVM ignores them unless started with
+ * {@code -XX:ThreadPriorityPolicy=1} and the privileges to raise priorities.
+ * Affinity is only supported on Linux, where it is set with {@code taskset};
+ * elsewhere it is ignored with a warning.
+ *
+ * @author Christian Holton
+ *
+ */
+final class RenderThread {
+
+	/**
+	 * The name of the render thread.
+	 */
+	static final String NAME = "QwickSound render";
+	/**
+	 * The path that links to the calling thread's directory in procfs on
+	 * Linux.
+	 */
+	private static final Path THREAD_SELF = Paths.get("/proc/thread-self");
+	/**
+	 * The priority of the render thread.
+	 */
+	private static volatile int priority = Thread.MAX_PRIORITY;
+	/**
+	 * The CPUs the render thread may run on, or an empty array for any.
+	 */
+	private static volatile int[] affinity = new int[0];
+	/**
+	 * The running render thread, or {@code null}.
+	 */
+	private static volatile Thread thread;
+	/**
+	 * The operating system's ID of the running render thread on Linux, or
+	 * {@code null}.
+	 */
+	private static volatile String nativeId;
+	/**
+	 * {@code Logger} for the {@code RenderThread} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(RenderThread.class
+			.getName());
+
+	/**
+	 * This class is not meant to be instantiated.
+	 */
+	private RenderThread() {
+	}
+
+	/**
+	 * Start a render thread. Only one may run at a time.
+	 *
+	 * @param task
+	 *            The rendering loop.
+	 */
+	static void start(final Runnable task) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					bind();
+					task.run();
+				} finally {
+					// The next render thread may already have started.
+					if (RenderThread.thread == Thread.currentThread()) {
+						nativeId = null;
+						RenderThread.thread = null;
+					}
+				}
+			}
+		}, NAME);
+		thread.setPriority(priority);
+		RenderThread.thread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Wait for the running render thread, if any, to exit.
+	 *
+	 * @param deadline
+	 *            The time, from {@code System.nanoTime()}, at which to give
+	 *            up.
+	 *
+	 * @return {@code true} if no render thread is running.
+	 *
+	 * @throws InterruptedException
+	 *             If the calling thread was interrupted while waiting.
+	 */
+	static boolean join(long deadline) throws InterruptedException {
+		Thread thread = RenderThread.thread;
+		if (thread == null) {
+			return true;
+		}
+		long remaining = deadline - System.nanoTime();
+		if (remaining > 0) {
+			thread.join(remaining / 1000000L, (int) (remaining % 1000000L));
+		}
+		return !thread.isAlive();
+	}
+
+	/**
+	 * Set the priority of the render thread.
+	 *
+	 * @param priority
+	 *            The priority, from {@code Thread.MIN_PRIORITY} to
+	 *            {@code Thread.MAX_PRIORITY}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the priority is out of range.
+	 */
+	static void setPriority(int priority) {
+		if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+			throw new IllegalArgumentException("Priority " + priority
+					+ " is out of range.");
+		}
+		RenderThread.priority = priority;
+		Thread thread = RenderThread.thread;
+		if (thread != null) {
+			thread.setPriority(priority);
+		}
+	}
+
+	/**
+	 * Get the priority of the render thread.
+	 *
+	 * @return The priority.
+	 */
+	static int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Set the CPUs the render thread may run on.
+	 *
+	 * @param cpus
+	 *            The numbers of the CPUs, starting at 0, or none to let it run
+	 *            on any CPU.
+	 */
+	static void setAffinity(int... cpus) {
+		affinity = cpus.clone();
+		String nativeId = RenderThread.nativeId;
+		if (nativeId != null) {
+			applyAffinity(nativeId);
+		}
+	}
+
+	/**
+	 * Get the CPUs the render thread may run on.
+	 *
+	 * @return The numbers of the CPUs, or an empty array for any.
+	 */
+	static int[] getAffinity() {
+		return affinity.clone();
+	}
+
+	/**
+	 * Find the operating system's ID of the calling render thread and apply
+	 * the affinity to it.
+	 */
+	private static void bind() {
+		if (!Files.isSymbolicLink(THREAD_SELF)) {
+			if (affinity.length > 0) {
+				logger.warning("CPU affinity is not supported on this "
+						+ "system.");
+			}
+			return;
+		}
+		try {
+			// The link reads "<pid>/task/<tid>".
+			nativeId = Files.readSymbolicLink(THREAD_SELF).getFileName()
+					.toString();
+		} catch (IOException ex) {
+			logger.warning("Could not find the ID of the render thread.");
+			ex.printStackTrace();
+			return;
+		}
+		if (affinity.length > 0) {
+			applyAffinity(nativeId);
+		}
+	}
+
+	/**
+	 * Set the affinity of a thread with {@code taskset}.
+	 *
+	 * @param nativeId
+	 *            The operating system's ID of the thread.
+	 */
+	private static void applyAffinity(String nativeId) {
+		int[] cpus = affinity;
+		StringBuilder list = new StringBuilder();
+		if (cpus.length == 0) {
+			list.append("0-").append(
+					Runtime.getRuntime().availableProcessors() - 1);
+		}
+		for (int cpu : cpus) {
+			if (list.length() > 0) {
+				list.append(',');
+			}
+			list.append(cpu);
+		}
+		try {
+			Process process = new ProcessBuilder("taskset", "-p", "-c",
+					list.toString(), nativeId).redirectErrorStream(true)
+					.start();
+			InputStream output = process.getInputStream();
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			int read;
+			while ((read = output.read(buffer)) != -1) {
+				message.write(buffer, 0, read);
+			}
+			if (process.waitFor() != 0) {
+				logger.warning("Could not set the CPU affinity of the render "
+						+ "thread: " + message.toString().trim());
+			}
+		} catch (IOException ex) {
+			logger.warning("Could not set the CPU affinity of the render "
+					+ "thread.");
+			ex.printStackTrace();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
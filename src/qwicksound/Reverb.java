@@ -0,0 +1,300 @@
+package qwicksound;
+
+import java.util.Arrays;
+
+/**
+ * A simple stereo reverb in the style of Jezar's Freeverb: eight parallel
+ * low-pass-feedback comb filters followed by four series all-pass filters
+ * per channel, with slightly different delays for the right channel to
+ * widen the image. All delay lines are allocated when the {@code Reverb} is
+ * created.
+ * <p>
+ * A {@code Reverb} is usually inserted on a {@code Bus}, so that one instance
+ * serves every sound on it:
+ *
+ * <pre>
+ * Bus cave = new Bus(&quot;cave&quot;, Bus.SFX);
+ * cave.addProcessor(new Reverb(0.8, 0.3, 0.35));
+ * footsteps.setBus(cave);
+ * </pre>
+ *
+ * @author Christian Holton
+ *
+ */
+public final class Reverb implements Processor {
+
+	/**
+	 * The comb filter delays in frames at 44.1 kHz.
+	 */
+	private static final int[] COMB_TUNING = { 1116, 1188, 1277, 1356, 1422,
+			1491, 1557, 1617 };
+	/**
+	 * The all-pass filter delays in frames at 44.1 kHz.
+	 */
+	private static final int[] ALLPASS_TUNING = { 556, 441, 341, 225 };
+	/**
+	 * The additional delay of the right channel in frames.
+	 */
+	private static final int STEREO_SPREAD = 23;
+	/**
+	 * The feedback of the all-pass filters.
+	 */
+	private static final float ALLPASS_FEEDBACK = 0.5f;
+	/**
+	 * Scales the input into the comb filters.
+	 */
+	private static final float INPUT_GAIN = 0.015f;
+	/**
+	 * The size of the simulated room, from 0 to 1.
+	 */
+	private volatile double roomSize;
+	/**
+	 * The damping of high frequencies, from 0 to 1.
+	 */
+	private volatile double damping;
+	/**
+	 * The level of the reverberated signal, from 0 to 1.
+	 */
+	private volatile double wet;
+	/**
+	 * The level of the original signal, from 0 to 1.
+	 */
+	private volatile double dry = 1.0;
+	/**
+	 * The delay lines of the comb filters, left channel first.
+	 */
+	private final float[][] combs;
+	/**
+	 * The read/write index of each comb filter.
+	 */
+	private final int[] combIndex;
+	/**
+	 * The low-pass state of each comb filter.
+	 */
+	private final float[] combStore;
+	/**
+	 * The delay lines of the all-pass filters, left channel first.
+	 */
+	private final float[][] allpasses;
+	/**
+	 * The read/write index of each all-pass filter.
+	 */
+	private final int[] allpassIndex;
+
+	/**
+	 * Creates a new {@code Reverb}.
+	 *
+	 * @param roomSize
+	 *            The size of the simulated room, from 0 to 1. Larger rooms
+	 *            have longer tails.
+	 * @param damping
+	 *            The damping of high frequencies, from 0 (bright) to 1
+	 *            (dull).
+	 * @param wet
+	 *            The level of the reverberated signal, from 0 to 1.
+	 */
+	public Reverb(double roomSize, double damping, double wet) {
+		this.roomSize = clamp(roomSize);
+		this.damping = clamp(damping);
+		this.wet = clamp(wet);
+		double scale = MixEngine.FORMAT.getSampleRate() / 44100.0;
+		int n = COMB_TUNING.length;
+		combs = new float[n * 2][];
+		combIndex = new int[n * 2];
+		combStore = new float[n * 2];
+		for (int i = 0; i < n; i++) {
+			int length = COMB_TUNING[i];
+			combs[i] = new float[(int) (length * scale)];
+			combs[n + i] = new float[(int) ((length + STEREO_SPREAD) * scale)];
+		}
+		n = ALLPASS_TUNING.length;
+		allpasses = new float[n * 2][];
+		allpassIndex = new int[n * 2];
+		for (int i = 0; i < n; i++) {
+			int length = ALLPASS_TUNING[i];
+			allpasses[i] = new float[(int) (length * scale)];
+			allpasses[n + i] = new float[(int) ((length + STEREO_SPREAD) * scale)];
+		}
+	}
+
+	/**
+	 * Set the size of the simulated room.
+	 *
+	 * @param roomSize
+	 *            The room size, from 0 to 1.
+	 */
+	public void setRoomSize(double roomSize) {
+		this.roomSize = clamp(roomSize);
+	}
+
+	/**
+	 * Get the size of the simulated room.
+	 *
+	 * @return The room size, from 0 to 1.
+	 */
+	public double getRoomSize() {
+		return roomSize;
+	}
+
+	/**
+	 * Set the damping of high frequencies.
+	 *
+	 * @param damping
+	 *            The damping, from 0 to 1.
+	 */
+	public void setDamping(double damping) {
+		this.damping = clamp(damping);
+	}
+
+	/**
+	 * Get the damping of high frequencies.
+	 *
+	 * @return The damping, from 0 to 1.
+	 */
+	public double getDamping() {
+		return damping;
+	}
+
+	/**
+	 * Set the level of the reverberated signal.
+	 *
+	 * @param wet
+	 *            The wet level, from 0 to 1.
+	 */
+	public void setWet(double wet) {
+		this.wet = clamp(wet);
+	}
+
+	/**
+	 * Get the level of the reverberated signal.
+	 *
+	 * @return The wet level, from 0 to 1.
+	 */
+	public double getWet() {
+		return wet;
+	}
+
+	/**
+	 * Set the level of the original signal. Set it to 0 when the
+	 * {@code Reverb} is used as a send effect.
+	 *
+	 * @param dry
+	 *            The dry level, from 0 to 1. The default is 1.
+	 */
+	public void setDry(double dry) {
+		this.dry = clamp(dry);
+	}
+
+	/**
+	 * Get the level of the original signal.
+	 *
+	 * @return The dry level, from 0 to 1.
+	 */
+	public double getDry() {
+		return dry;
+	}
+
+	@Override
+	public void process(float[] samples, int frames) {
+		float feedback = (float) (0.7 + 0.28 * roomSize);
+		float damp = (float) (damping * 0.4);
+		float wet = (float) (this.wet * 3.0);
+		float dry = (float) this.dry;
+		int n = COMB_TUNING.length;
+		for (int i = 0, j = 0; i < frames; i++, j += 2) {
+			float inL = samples[j];
+			float inR = samples[j + 1];
+			float input = (inL + inR) * INPUT_GAIN;
+			float outL = 0.0f;
+			float outR = 0.0f;
+			for (int c = 0; c < n; c++) {
+				outL += comb(c, input, feedback, damp);
+				outR += comb(n + c, input, feedback, damp);
+			}
+			for (int a = 0, m = ALLPASS_TUNING.length; a < m; a++) {
+				outL = allpass(a, outL);
+				outR = allpass(m + a, outR);
+			}
+			samples[j] = inL * dry + outL * wet;
+			samples[j + 1] = inR * dry + outR * wet;
+		}
+		// Flush denormals in the feedback paths.
+		for (int c = 0; c < combStore.length; c++) {
+			if (Math.abs(combStore[c]) < 1.0e-20f) {
+				combStore[c] = 0.0f;
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		for (float[] line : combs) {
+			Arrays.fill(line, 0.0f);
+		}
+		for (float[] line : allpasses) {
+			Arrays.fill(line, 0.0f);
+		}
+		Arrays.fill(combStore, 0.0f);
+	}
+
+	@Override
+	public String toString() {
+		return "Reverb room " + roomSize;
+	}
+
+	/**
+	 * Run one sample through a comb filter.
+	 *
+	 * @param c
+	 *            The index of the comb filter.
+	 * @param input
+	 *            The input sample.
+	 * @param feedback
+	 *            The feedback gain.
+	 * @param damp
+	 *            The damping of the feedback low-pass filter.
+	 *
+	 * @return The output sample.
+	 */
+	private float comb(int c, float input, float feedback, float damp) {
+		float[] line = combs[c];
+		int index = combIndex[c];
+		float output = line[index];
+		float store = output * (1.0f - damp) + combStore[c] * damp;
+		combStore[c] = store;
+		line[index] = input + store * feedback;
+		combIndex[c] = (index + 1 == line.length) ? 0 : index + 1;
+		return output;
+	}
+
+	/**
+	 * Run one sample through an all-pass filter.
+	 *
+	 * @param a
+	 *            The index of the all-pass filter.
+	 * @param input
+	 *            The input sample.
+	 *
+	 * @return The output sample.
+	 */
+	private float allpass(int a, float input) {
+		float[] line = allpasses[a];
+		int index = allpassIndex[a];
+		float delayed = line[index];
+		line[index] = input + delayed * ALLPASS_FEEDBACK;
+		allpassIndex[a] = (index + 1 == line.length) ? 0 : index + 1;
+		return delayed - input;
+	}
+
+	/**
+	 * Clamp a parameter to the range 0 to 1.
+	 *
+	 * @param value
+	 *            The value.
+	 *
+	 * @return The clamped value.
+	 */
+	private static double clamp(double value) {
+		return Math.max(0.0, Math.min(1.0, value));
+	}
+}
@@ -0,0 +1,174 @@
+package qwicksound;
+
+/**
+ * Decoded audio data held in memory by a {@code PreloadedAudio} and shared,
+ * read-only, by all of its {@code PreloadedPlayback}s. The data is stored
+ * either as 16-bit PCM ({@code PcmData}) or in a compact encoding that is
+ * decoded while it is played (see {@link QwickSound#setSampleEncoding}).
+ * <p>
+ * Since compact encodings are decoded block by block, each reader of the
+ * data has its own {@code Reader}, which keeps the most recently decoded
+ * block.
+ *
+ * @author Christian Holton
+ *
+ */
+abstract class SampleData {
+
+	/**
+	 * Converts a 16-bit sample to a float in the range [-1.0, 1.0).
+	 */
+	static final float SAMPLE_SCALE = 1.0f / 32768.0f;
+	/**
+	 * The encoding that preloaded data is stored in.
+	 */
+	private static volatile SampleEncoding encoding = SampleEncoding.PCM_16;
+	/**
+	 * The number of channels per frame.
+	 */
+	final int channels;
+	/**
+	 * The number of frames per second.
+	 */
+	final float sampleRate;
+	/**
+	 * The total number of frames.
+	 */
+	final int frameCount;
+
+	/**
+	 * Reads frames of {@code SampleData} as floats. A {@code Reader} may only
+	 * be used by one thread at a time.
+	 */
+	abstract static class Reader {
+
+		/**
+		 * Read frames into the destination array. Samples are written
+		 * interleaved, {@code getChannels()} per frame.
+		 *
+		 * @param frame
+		 *            The index of the first frame to read.
+		 * @param count
+		 *            The number of frames to read.
+		 * @param dest
+		 *            The array that receives the samples.
+		 * @param offset
+		 *            The index in {@code dest} of the first sample written.
+		 */
+		abstract void read(int frame, int count, float[] dest, int offset);
+	}
+
+	/**
+	 * Creates a new {@code SampleData}.
+	 *
+	 * @param channels
+	 *            The number of channels per frame.
+	 * @param sampleRate
+	 *            The number of frames per second.
+	 * @param frameCount
+	 *            The total number of frames.
+	 */
+	SampleData(int channels, float sampleRate, int frameCount) {
+		this.channels = channels;
+		this.sampleRate = sampleRate;
+		this.frameCount = frameCount;
+	}
+
+	/**
+	 * Set the encoding that audio data preloaded from now on is stored in.
+	 *
+	 * @param encoding
+	 *            The encoding.
+	 */
+	static void setEncoding(SampleEncoding encoding) {
+		if (encoding == null) {
+			throw new NullPointerException();
+		}
+		SampleData.encoding = encoding;
+	}
+
+	/**
+	 * Get the encoding that preloaded audio data is stored in.
+	 *
+	 * @return The encoding.
+	 */
+	static SampleEncoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Store 16-bit PCM data in the current encoding.
+	 *
+	 * @param pcm
+	 *            The data, which must be on the heap.
+	 *
+	 * @return The encoded data, or {@code pcm} itself if the encoding is
+	 *         {@code SampleEncoding.PCM_16}.
+	 */
+	static SampleData encode(PcmData pcm) {
+		switch (encoding) {
+		case MU_LAW:
+			return MuLawData.encode(pcm);
+		case IMA_ADPCM:
+			return AdpcmData.encode(pcm);
+		default:
+			return pcm;
+		}
+	}
+
+	/**
+	 * Create a reader of this data.
+	 *
+	 * @return A new {@code Reader}.
+	 */
+	abstract Reader newReader();
+
+	/**
+	 * Get the encoding this data is stored in.
+	 *
+	 * @return The encoding.
+	 */
+	abstract SampleEncoding getSampleEncoding();
+
+	/**
+	 * Whether the data is held on the Java heap, as opposed to e.g. a
+	 * memory-mapped file.
+	 *
+	 * @return {@code true} if the data is on the heap.
+	 */
+	abstract boolean isOnHeap();
+
+	/**
+	 * Get the number of bytes the data occupies.
+	 *
+	 * @return The size of the data in bytes.
+	 */
+	abstract long getByteCount();
+
+	/**
+	 * Get the number of channels per frame.
+	 *
+	 * @return The number of channels.
+	 */
+	int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Get the number of frames per second.
+	 *
+	 * @return The sample rate.
+	 */
+	float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Get the total number of frames.
+	 *
+	 * @return The number of frames.
+	 */
+	int getFrameCount() {
+		return frameCount;
+	}
+}
@@ -0,0 +1,30 @@
+package qwicksound;
+
+/**
+ * The ways the audio data of a {@code PreloadedAudio} can be stored in
+ * memory (see {@link QwickSound#setSampleEncoding}). Compact encodings are
+ * decoded block by block as the data is played, which costs a little CPU per
+ * voice.
+ *
+ * @author Christian Holton
+ *
+ */
+public enum SampleEncoding {
+	/**
+	 * Signed 16-bit PCM, as decoded. The largest, but needs no decoding.
+	 */
+	PCM_16,
+	/**
+	 * 8-bit G.711 mu-law, half the size of 16-bit PCM. Each sample is
+	 * decoded with a table lookup. Quantization noise follows the signal
+	 * level, about 38 dB below it.
+	 */
+	MU_LAW,
+	/**
+	 * IMA ADPCM, 4 bits per sample in blocks of 257 frames, about a quarter
+	 * of the size of 16-bit PCM. Each block starts with an exact sample, so
+	 * the data can be read from any block. Suited to sound effects; its noise
+	 * can be audible on quiet, tonal music.
+	 */
+	IMA_ADPCM
+}
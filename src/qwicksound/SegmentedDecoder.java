@@ -0,0 +1,1089 @@
+package qwicksound;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Decodes long MP3, Ogg Vorbis and MP4/AAC files on several cores at once.
+ * The encoded file is split at points where decoding can start, i.e. MP3
+ * frames, Ogg pages and MP4 samples, and each segment is decoded by a
+ * fork-join task through Java Sound, the same way the whole file would be.
+ * <p>
+ * A decoder cannot start cold in the middle of a file and produce the same
+ * samples as it would have there: MP3 frames borrow bits from the frames
+ * before them, and Vorbis and AAC blocks overlap their neighbours. Each
+ * segment is therefore preceded by a few frames of warm-up data. The number
+ * of samples the warm-up data decodes to is measured by decoding it alone,
+ * and that many samples are dropped from the front of the segment. The
+ * segments are then joined into one buffer.
+ *
+ * @author Christian Holton
+ *
+ */
+final class SegmentedDecoder {
+
+	/**
+	 * The minimum number of encoded bytes in a segment. Files shorter than
+	 * two segments are decoded on one thread.
+	 */
+	static final int MIN_SEGMENT_BYTES = 64 * 1024;
+	/**
+	 * Returned by {@code decode} for a file that decodes to more bytes than
+	 * the limit. It holds no audio data.
+	 */
+	static final PcmData TOO_LARGE = new PcmData(ByteBuffer.allocate(0), 2,
+			44100.0f);
+	/**
+	 * The number of MP3 frames decoded before a segment, which covers the
+	 * bit reservoir and the overlap of the filter banks.
+	 */
+	private static final int MP3_WARMUP_FRAMES = 4;
+	/**
+	 * The minimum number of bytes of MP3 warm-up data, so that low-bitrate
+	 * frames still cover the largest bit reservoir.
+	 */
+	private static final int MP3_WARMUP_BYTES = 1024;
+	/**
+	 * The number of AAC frames decoded before a segment.
+	 */
+	private static final int AAC_WARMUP_FRAMES = 3;
+	/**
+	 * MP3 bitrates in kbps for MPEG-1 Layer III, by bitrate index.
+	 */
+	private static final int[] MPEG1_BITRATES = { 0, 32, 40, 48, 56, 64, 80,
+			96, 112, 128, 160, 192, 224, 256, 320 };
+	/**
+	 * MP3 bitrates in kbps for MPEG-2 and MPEG-2.5 Layer III, by bitrate
+	 * index.
+	 */
+	private static final int[] MPEG2_BITRATES = { 0, 8, 16, 24, 32, 40, 48,
+			56, 64, 80, 96, 112, 128, 144, 160 };
+	/**
+	 * MPEG-1 sample rates by sample rate index.
+	 */
+	private static final int[] MPEG1_SAMPLE_RATES = { 44100, 48000, 32000 };
+	/**
+	 * Whether long files are decoded in segments.
+	 */
+	private static volatile boolean enabled = true;
+	/**
+	 * {@code Logger} for the {@code SegmentedDecoder} class.
+	 */
+	private static Logger logger = LoggerConfig
+			.getLogger(SegmentedDecoder.class.getName());
+
+	/**
+	 * A part of an encoded file that can be decoded on its own.
+	 */
+	private static final class Segment {
+
+		/**
+		 * The encoded data: the warm-up data, if any, followed by the
+		 * segment itself.
+		 */
+		final byte[] data;
+		/**
+		 * The warm-up data alone, or {@code null} if there is none.
+		 */
+		final byte[] warmup;
+
+		/**
+		 * Creates a new {@code Segment}.
+		 *
+		 * @param data
+		 *            The encoded data.
+		 * @param warmup
+		 *            The warm-up data alone, or {@code null}.
+		 */
+		Segment(byte[] data, byte[] warmup) {
+			this.data = data;
+			this.warmup = warmup;
+		}
+	}
+
+	/**
+	 * Holds decoded audio data, and gives access to it without copying.
+	 */
+	private static final class PcmBuffer extends ByteArrayOutputStream {
+
+		/**
+		 * Creates a new {@code PcmBuffer}.
+		 *
+		 * @param size
+		 *            The initial capacity.
+		 */
+		PcmBuffer(int size) {
+			super(size);
+		}
+
+		/**
+		 * Copy the data from an offset to the end.
+		 *
+		 * @param from
+		 *            The offset.
+		 *
+		 * @return The copy.
+		 */
+		byte[] copyFrom(int from) {
+			return Arrays.copyOfRange(buf, from, count);
+		}
+	}
+
+	/**
+	 * Decodes one segment. Every task of a file adds the bytes it decodes to
+	 * a shared total, and all of them stop once the total exceeds the limit.
+	 */
+	private static final class SegmentTask extends RecursiveAction {
+
+		/**
+		 * Tasks are never serialized.
+		 */
+		private static final long serialVersionUID = 1L;
+		/**
+		 * Returned by {@code decode} when the limit has been exceeded.
+		 */
+		private static final long OVER_LIMIT = -2;
+		/**
+		 * The segment.
+		 */
+		private final Segment segment;
+		/**
+		 * The name of the audio, whose extension selects the decoder.
+		 */
+		private final String name;
+		/**
+		 * The number of bytes decoded by all tasks of the file, not counting
+		 * warm-up data.
+		 */
+		private final AtomicLong decoded;
+		/**
+		 * The maximum number of decoded bytes of the file.
+		 */
+		private final long limit;
+		/**
+		 * The format of the decoded segment.
+		 */
+		AudioFormat format;
+		/**
+		 * The decoded segment, or {@code null} if it could not be decoded or
+		 * the limit was exceeded.
+		 */
+		byte[] pcm;
+
+		/**
+		 * Creates a new {@code SegmentTask}.
+		 *
+		 * @param segment
+		 *            The segment.
+		 * @param name
+		 *            The name of the audio.
+		 * @param decoded
+		 *            The number of bytes decoded by all tasks of the file.
+		 * @param limit
+		 *            The maximum number of decoded bytes of the file.
+		 */
+		SegmentTask(Segment segment, String name, AtomicLong decoded,
+				long limit) {
+			this.segment = segment;
+			this.name = name;
+			this.decoded = decoded;
+			this.limit = limit;
+		}
+
+		@Override
+		protected void compute() {
+			if (decoded.get() > limit) {
+				return;
+			}
+			long skip = 0;
+			if (segment.warmup != null) {
+				skip = decode(ByteBuffer.wrap(segment.warmup), null, 0);
+				if (skip < 0) {
+					return;
+				}
+			}
+			PcmBuffer out = new PcmBuffer(segment.data.length * 8);
+			if (decode(ByteBuffer.wrap(segment.data), out, skip) < 0
+					|| skip > out.size()) {
+				return;
+			}
+			pcm = out.copyFrom((int) skip);
+		}
+
+		/**
+		 * Decode encoded data to canonical PCM.
+		 *
+		 * @param data
+		 *            The encoded data.
+		 * @param out
+		 *            Where to write the decoded data, or {@code null} to
+		 *            only count it.
+		 * @param skip
+		 *            The number of bytes of warm-up data at the start of the
+		 *            decoded data, which do not count against the limit.
+		 *
+		 * @return The number of decoded bytes, -1 if the data could not be
+		 *         decoded, or {@code OVER_LIMIT}.
+		 */
+		private long decode(ByteBuffer data, ByteArrayOutputStream out,
+				long skip) {
+			AudioInputStream audioInStream = QwickSound
+					.acquireAudioInputStream(new ByteBufferInputStream(data),
+							name);
+			if (audioInStream == null) {
+				return -1;
+			}
+			audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+			format = audioInStream.getFormat();
+			long total = 0;
+			try {
+				try {
+					byte[] buffer = new byte[16384];
+					int bytesRead;
+					while ((bytesRead = audioInStream.read(buffer)) != -1) {
+						if (out != null) {
+							long counted = Math.min(bytesRead, total
+									+ bytesRead - skip);
+							if (counted > 0) {
+								decoded.addAndGet(counted);
+							}
+							if (decoded.get() > limit) {
+								// This or another segment exceeded it.
+								return OVER_LIMIT;
+							}
+							out.write(buffer, 0, bytesRead);
+						}
+						total += bytesRead;
+					}
+				} finally {
+					audioInStream.close();
+				}
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				return -1;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * This class is not meant to be instantiated.
+	 */
+	private SegmentedDecoder() {
+	}
+
+	/**
+	 * Set whether long files are decoded in segments.
+	 *
+	 * @param enabled
+	 *            {@code false} to decode every file on one thread.
+	 */
+	static void setEnabled(boolean enabled) {
+		SegmentedDecoder.enabled = enabled;
+	}
+
+	/**
+	 * Whether long files are decoded in segments.
+	 *
+	 * @return {@code true} if they are.
+	 */
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Whether audio with the specified name is in a format that can be
+	 * decoded in segments.
+	 *
+	 * @param name
+	 *            The name of the audio, including its file extension.
+	 *
+	 * @return {@code true} for MP3, Ogg and MP4 audio.
+	 */
+	static boolean handles(String name) {
+		String lower = name.toLowerCase();
+		return lower.endsWith(".mp3") || lower.endsWith(".ogg")
+				|| lower.endsWith(".m4a") || lower.endsWith(".mp4");
+	}
+
+	/**
+	 * Decode an encoded audio file in parallel segments.
+	 *
+	 * @param data
+	 *            The encoded file, between the buffer's position and limit.
+	 * @param name
+	 *            The name of the audio, including its file extension.
+	 * @param limit
+	 *            The maximum number of decoded bytes.
+	 *
+	 * @return The decoded audio data, {@code TOO_LARGE} if it decodes to
+	 *         more than {@code limit} bytes, or {@code null} if the file is
+	 *         too short to split or could not be split or decoded. The caller
+	 *         should then decode the file on one thread.
+	 */
+	static PcmData decode(ByteBuffer data, String name, long limit) {
+		return decode(data, name, limit, segmentCount(data.remaining()));
+	}
+
+	/**
+	 * Decode an encoded audio file in a specified number of parallel
+	 * segments.
+	 *
+	 * @param data
+	 *            The encoded file, between the buffer's position and limit.
+	 * @param name
+	 *            The name of the audio, including its file extension.
+	 * @param limit
+	 *            The maximum number of decoded bytes.
+	 * @param count
+	 *            The number of segments.
+	 *
+	 * @return The decoded audio data, {@code TOO_LARGE} or {@code null} as
+	 *         for {@link #decode(ByteBuffer, String, long)}.
+	 */
+	static PcmData decode(ByteBuffer data, String name, long limit, int count) {
+		if (count < 2) {
+			return null;
+		}
+		data = data.slice().order(ByteOrder.BIG_ENDIAN);
+		String lower = name.toLowerCase();
+		List<Segment> segments;
+		try {
+			if (lower.endsWith(".mp3")) {
+				segments = splitMp3(data, count);
+			} else if (lower.endsWith(".ogg")) {
+				segments = splitOgg(data, count);
+			} else {
+				segments = splitMp4(data, count);
+			}
+		} catch (RuntimeException ex) {
+			// Malformed headers, e.g. a length that runs past the buffer.
+			logger.info("Could not split \"" + name + "\": " + ex);
+			return null;
+		}
+		if (segments == null || segments.size() < 2) {
+			return null;
+		}
+		AtomicLong decoded = new AtomicLong();
+		limit = Math.min(limit, Integer.MAX_VALUE);
+		List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+		for (Segment segment : segments) {
+			tasks.add(new SegmentTask(segment, name, decoded, limit));
+		}
+		try {
+			RecursiveAction.invokeAll(tasks);
+		} catch (RuntimeException ex) {
+			logger.warning("Could not decode \"" + name + "\" in segments.");
+			ex.printStackTrace();
+			return null;
+		}
+		if (decoded.get() > limit) {
+			return TOO_LARGE;
+		}
+		AudioFormat format = tasks.get(0).format;
+		long total = 0;
+		for (SegmentTask task : tasks) {
+			if (task.pcm == null || !matches(format, task.format)) {
+				logger.warning("Could not decode \"" + name
+						+ "\" in segments.");
+				return null;
+			}
+			total += task.pcm.length;
+		}
+		MemoryBudget.getInstance().makeRoom(total);
+		byte[] audioBytes = new byte[(int) total];
+		int offset = 0;
+		for (SegmentTask task : tasks) {
+			System.arraycopy(task.pcm, 0, audioBytes, offset, task.pcm.length);
+			offset += task.pcm.length;
+			// Each segment is released as soon as it has been joined.
+			task.pcm = null;
+		}
+		return new PcmData(audioBytes, format);
+	}
+
+	/**
+	 * Get the number of segments to split a file into, two per core but no
+	 * shorter than {@link #MIN_SEGMENT_BYTES}.
+	 *
+	 * @param length
+	 *            The length of the encoded file in bytes.
+	 *
+	 * @return The number of segments.
+	 */
+	static int segmentCount(long length) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (cores < 2) {
+			return 1;
+		}
+		return (int) Math.min(cores * 2, length / MIN_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Whether two decoded formats are the same.
+	 *
+	 * @param a
+	 *            The first format.
+	 * @param b
+	 *            The second format.
+	 *
+	 * @return {@code true} if they match.
+	 */
+	private static boolean matches(AudioFormat a, AudioFormat b) {
+		return a != null && b != null && a.matches(b)
+				&& a.getChannels() == b.getChannels();
+	}
+
+	/**
+	 * Choose the frames at which segments start, evenly spread by byte
+	 * offset.
+	 *
+	 * @param offsets
+	 *            The byte offsets of the frames at which a segment may
+	 *            start, in increasing order.
+	 * @param length
+	 *            The length of the file.
+	 * @param count
+	 *            The number of segments.
+	 * @param minIndex
+	 *            The first frame at which a segment other than the first
+	 *            may start.
+	 *
+	 * @return The indices of the frames, starting with 0.
+	 */
+	private static List<Integer> chooseSplits(List<Integer> offsets,
+			int length, int count, int minIndex) {
+		List<Integer> splits = new ArrayList<Integer>();
+		splits.add(0);
+		int index = minIndex;
+		for (int i = 1; i < count; i++) {
+			long target = (long) length * i / count;
+			while (index < offsets.size() && offsets.get(index) < target) {
+				index++;
+			}
+			if (index >= offsets.size()) {
+				break;
+			}
+			if (index > splits.get(splits.size() - 1)) {
+				splits.add(index);
+			}
+		}
+		return splits;
+	}
+
+	/**
+	 * Copy ranges of a buffer into one array.
+	 *
+	 * @param data
+	 *            The buffer.
+	 * @param ranges
+	 *            Pairs of start and end offsets.
+	 *
+	 * @return The concatenated ranges.
+	 */
+	private static byte[] copy(ByteBuffer data, int... ranges) {
+		int length = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			length += ranges[i + 1] - ranges[i];
+		}
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			ByteBuffer range = data.duplicate();
+			range.limit(ranges[i + 1]).position(ranges[i]);
+			range.get(bytes, offset, ranges[i + 1] - ranges[i]);
+			offset += ranges[i + 1] - ranges[i];
+		}
+		return bytes;
+	}
+
+	/**
+	 * Split an MP3 file at frame headers.
+	 *
+	 * @param data
+	 *            The file.
+	 * @param count
+	 *            The number of segments.
+	 *
+	 * @return The segments, or {@code null} if the file could not be parsed.
+	 */
+	private static List<Segment> splitMp3(ByteBuffer data, int count) {
+		int length = data.limit();
+		int pos = 0;
+		// Skip an ID3v2 tag.
+		if (length > 10 && data.get(0) == 'I' && data.get(1) == 'D'
+				&& data.get(2) == '3') {
+			int size = ((data.get(6) & 0x7f) << 21)
+					| ((data.get(7) & 0x7f) << 14)
+					| ((data.get(8) & 0x7f) << 7) | (data.get(9) & 0x7f);
+			pos = 10 + size + (((data.get(5) & 0x10) != 0) ? 10 : 0);
+		}
+		// Find the first frame, then follow the frames until the data no
+		// longer looks like one, e.g. at an ID3v1 tag.
+		while (pos + 4 <= length && mp3FrameLength(data.getInt(pos), 0) <= 0) {
+			pos++;
+		}
+		if (pos + 4 > length) {
+			return null;
+		}
+		int first = data.getInt(pos);
+		List<Integer> offsets = new ArrayList<Integer>();
+		while (pos + 4 <= length) {
+			int frameLength = mp3FrameLength(data.getInt(pos), first);
+			if (frameLength <= 0) {
+				break;
+			}
+			offsets.add(pos);
+			pos += frameLength;
+		}
+		int minIndex = MP3_WARMUP_FRAMES;
+		List<Integer> splits = chooseSplits(offsets, length, count, minIndex);
+		List<Segment> segments = new ArrayList<Segment>();
+		for (int i = 0; i < splits.size(); i++) {
+			int start = offsets.get(splits.get(i));
+			int end = (i + 1 < splits.size()) ? offsets
+					.get(splits.get(i + 1)) : length;
+			if (i == 0) {
+				// The first segment includes any tag before the first frame.
+				segments.add(new Segment(copy(data, 0, end), null));
+				continue;
+			}
+			int warmupIndex = splits.get(i) - MP3_WARMUP_FRAMES;
+			while (warmupIndex > 0
+					&& start - offsets.get(warmupIndex) < MP3_WARMUP_BYTES) {
+				warmupIndex--;
+			}
+			int warmupStart = offsets.get(warmupIndex);
+			segments.add(new Segment(copy(data, warmupStart, end), copy(data,
+					warmupStart, start)));
+		}
+		return segments;
+	}
+
+	/**
+	 * Get the length of an MPEG audio Layer III frame from its header.
+	 *
+	 * @param header
+	 *            The four header bytes, big-endian.
+	 * @param first
+	 *            The header of the first frame, whose version and sample
+	 *            rate every frame must share, or 0 to accept any.
+	 *
+	 * @return The length in bytes, or 0 if the bytes are not a frame header.
+	 */
+	private static int mp3FrameLength(int header, int first) {
+		if ((header & 0xffe00000) != 0xffe00000) {
+			return 0;
+		}
+		int version = (header >> 19) & 3;
+		int layer = (header >> 17) & 3;
+		int bitrateIndex = (header >> 12) & 15;
+		int sampleRateIndex = (header >> 10) & 3;
+		int padding = (header >> 9) & 1;
+		if (version == 1 || layer != 1 || bitrateIndex == 0
+				|| bitrateIndex == 15 || sampleRateIndex == 3) {
+			return 0;
+		}
+		if (first != 0 && (header & 0xfffe0c00) != (first & 0xfffe0c00)) {
+			return 0;
+		}
+		int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex];
+		if (version == 3) {
+			return 144000 * MPEG1_BITRATES[bitrateIndex] / sampleRate
+					+ padding;
+		}
+		// MPEG-2 halves the sample rate and MPEG-2.5 quarters it.
+		sampleRate /= (version == 2) ? 2 : 4;
+		return 72000 * MPEG2_BITRATES[bitrateIndex] / sampleRate + padding;
+	}
+
+	/**
+	 * Split an Ogg Vorbis file at page boundaries. Every segment starts with
+	 * the header pages of the file, followed by warm-up pages holding at
+	 * least one complete packet.
+	 *
+	 * @param data
+	 *            The file.
+	 * @param count
+	 *            The number of segments.
+	 *
+	 * @return The segments, or {@code null} if the file could not be parsed.
+	 */
+	private static List<Segment> splitOgg(ByteBuffer data, int count) {
+		int length = data.limit();
+		List<Integer> offsets = new ArrayList<Integer>();
+		List<Boolean> fresh = new ArrayList<Boolean>();
+		int headerEnd = -1;
+		int serial = 0;
+		int pos = 0;
+		while (pos + 27 <= length) {
+			if (data.getInt(pos) != 0x4f676753) { // "OggS"
+				return null;
+			}
+			int segmentCount = data.get(pos + 26) & 0xff;
+			int pageLength = 27 + segmentCount;
+			for (int i = 0; i < segmentCount; i++) {
+				pageLength += data.get(pos + 27 + i) & 0xff;
+			}
+			int pageSerial = data.order(ByteOrder.LITTLE_ENDIAN).getInt(
+					pos + 14);
+			long granule = data.getLong(pos + 6);
+			data.order(ByteOrder.BIG_ENDIAN);
+			if (pos == 0) {
+				serial = pageSerial;
+			} else if (pageSerial != serial) {
+				// Chained or multiplexed streams are decoded on one thread.
+				return null;
+			}
+			boolean continued = (data.get(pos + 5) & 1) != 0;
+			if (headerEnd < 0 && granule != 0) {
+				// The audio starts on a fresh page after the headers.
+				if (continued) {
+					return null;
+				}
+				headerEnd = pos;
+			}
+			if (headerEnd >= 0) {
+				offsets.add(pos);
+				fresh.add(!continued);
+			}
+			pos += pageLength;
+		}
+		if (headerEnd < 0 || pos > length) {
+			return null;
+		}
+		// A segment may start on a fresh page that follows another fresh
+		// page, from which the warm-up packets are decoded.
+		List<Integer> starts = new ArrayList<Integer>();
+		List<Integer> warmups = new ArrayList<Integer>();
+		int lastFresh = -1;
+		for (int i = 0; i < offsets.size(); i++) {
+			if (fresh.get(i)) {
+				if (lastFresh >= 0) {
+					starts.add(offsets.get(i));
+					warmups.add(offsets.get(lastFresh));
+				}
+				lastFresh = i;
+			}
+		}
+		List<Integer> splits = chooseSplits(starts, length, count, 0);
+		List<Segment> segments = new ArrayList<Segment>();
+		for (int i = 0; i < splits.size(); i++) {
+			int end = (i + 1 < splits.size()) ? starts.get(splits
+					.get(i + 1)) : length;
+			if (i == 0) {
+				segments.add(new Segment(copy(data, 0, end), null));
+				continue;
+			}
+			int start = starts.get(splits.get(i));
+			int warmupStart = warmups.get(splits.get(i));
+			byte[] bytes = copy(data, 0, headerEnd, warmupStart, end);
+			renumberPages(bytes);
+			segments.add(new Segment(bytes, Arrays.copyOf(bytes, headerEnd
+					+ start - warmupStart)));
+		}
+		// The first segment must end after its first split point.
+		if (splits.size() > 1 && splits.get(1) == 0) {
+			return null;
+		}
+		return segments;
+	}
+
+	/**
+	 * Number the pages of an Ogg stream consecutively, so that the decoder
+	 * does not see the pages left out between the headers and a segment as
+	 * lost data. The checksum of every page is updated.
+	 *
+	 * @param bytes
+	 *            The pages.
+	 */
+	private static void renumberPages(byte[] bytes) {
+		ByteBuffer pages = ByteBuffer.wrap(bytes).order(
+				ByteOrder.LITTLE_ENDIAN);
+		int pos = 0;
+		for (int sequence = 0; pos + 27 <= bytes.length; sequence++) {
+			int segmentCount = bytes[pos + 26] & 0xff;
+			int pageLength = 27 + segmentCount;
+			for (int i = 0; i < segmentCount; i++) {
+				pageLength += bytes[pos + 27 + i] & 0xff;
+			}
+			pages.putInt(pos + 18, sequence);
+			pages.putInt(pos + 22, 0);
+			pages.putInt(pos + 22, oggCrc(bytes, pos, pageLength));
+			pos += pageLength;
+		}
+	}
+
+	/**
+	 * Compute the checksum of an Ogg page, a CRC-32 with the polynomial
+	 * 0x04c11db7, no reflection and an initial value of 0.
+	 *
+	 * @param bytes
+	 *            The buffer holding the page, whose checksum field is 0.
+	 * @param offset
+	 *            The offset of the page.
+	 * @param length
+	 *            The length of the page.
+	 *
+	 * @return The checksum.
+	 */
+	private static int oggCrc(byte[] bytes, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= (bytes[i] & 0xff) << 24;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc < 0) ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+			}
+		}
+		return crc;
+	}
+
+	/**
+	 * Split the audio track of an MP4 file at samples. Each segment is
+	 * written as an MP4 file of its own, holding a copy of the track's
+	 * description and just the segment's samples.
+	 *
+	 * @param data
+	 *            The file.
+	 * @param count
+	 *            The number of segments.
+	 *
+	 * @return The segments, or {@code null} if the file could not be parsed.
+	 */
+	private static List<Segment> splitMp4(ByteBuffer data, int count) {
+		ByteBuffer ftyp = child(data, "ftyp");
+		ByteBuffer moov = child(data, "moov");
+		if (ftyp == null || moov == null || child(moov, "mvex") != null) {
+			// Missing, or a fragmented file.
+			return null;
+		}
+		for (ByteBuffer trak : children(moov, "trak")) {
+			ByteBuffer hdlr = child(trak, "mdia", "hdlr");
+			if (hdlr != null && hdlr.getInt(8) == 0x736f756e) { // "soun"
+				return splitTrack(data, ftyp, moov, trak, count);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Split the samples of an MP4 audio track into segments.
+	 *
+	 * @param data
+	 *            The file.
+	 * @param ftyp
+	 *            The contents of the file type box.
+	 * @param moov
+	 *            The contents of the movie box.
+	 * @param trak
+	 *            The contents of the track box.
+	 * @param count
+	 *            The number of segments.
+	 *
+	 * @return The segments, or {@code null} if the track's tables are
+	 *         missing or inconsistent.
+	 */
+	private static List<Segment> splitTrack(ByteBuffer data, ByteBuffer ftyp,
+			ByteBuffer moov, ByteBuffer trak, int count) {
+		ByteBuffer stbl = child(trak, "mdia", "minf", "stbl");
+		ByteBuffer stsd = (stbl == null) ? null : child(stbl, "stsd");
+		ByteBuffer stts = (stbl == null) ? null : child(stbl, "stts");
+		long[] offsets = (stbl == null) ? null : sampleOffsets(stbl);
+		if (offsets == null || stsd == null || stts == null
+				|| stts.getInt(4) < 1
+				|| child(range(stsd, 8, stsd.limit()), "mp4a") == null) {
+			return null;
+		}
+		ByteBuffer stsz = child(stbl, "stsz");
+		int sampleSize = stsz.getInt(4);
+		int[] sizes = new int[offsets.length];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = (sampleSize != 0) ? sampleSize : stsz.getInt(12 + 4 * i);
+			if (sizes[i] < 0 || offsets[i] + sizes[i] > data.limit()) {
+				return null;
+			}
+		}
+		List<Segment> segments = new ArrayList<Segment>();
+		for (int i = 0; i < count; i++) {
+			int start = (int) ((long) sizes.length * i / count);
+			int end = (int) ((long) sizes.length * (i + 1) / count);
+			int warmupStart = Math.max(0, start - AAC_WARMUP_FRAMES);
+			byte[] file = mp4File(data, ftyp, moov, trak, offsets, sizes,
+					warmupStart, end);
+			byte[] warmup = (warmupStart == start) ? null : mp4File(data,
+					ftyp, moov, trak, offsets, sizes, warmupStart, start);
+			segments.add(new Segment(file, warmup));
+		}
+		return segments;
+	}
+
+	/**
+	 * Write an MP4 file holding a range of the samples of an audio track.
+	 * The file has one track, described by copies of the original boxes, and
+	 * one chunk of samples.
+	 *
+	 * @param data
+	 *            The original file.
+	 * @param ftyp
+	 *            The contents of the file type box.
+	 * @param moov
+	 *            The contents of the movie box.
+	 * @param trak
+	 *            The contents of the track box.
+	 * @param offsets
+	 *            The offset of every sample.
+	 * @param sizes
+	 *            The size of every sample.
+	 * @param start
+	 *            The first sample.
+	 * @param end
+	 *            The sample after the last.
+	 *
+	 * @return The file.
+	 */
+	private static byte[] mp4File(ByteBuffer data, ByteBuffer ftyp,
+			ByteBuffer moov, ByteBuffer trak, long[] offsets, int[] sizes,
+			int start, int end) {
+		ByteBuffer mdia = child(trak, "mdia");
+		ByteBuffer minf = child(mdia, "minf");
+		ByteBuffer stbl = child(minf, "stbl");
+		// Every sample of an AAC track lasts the same time.
+		int delta = child(stbl, "stts").getInt(12);
+		int n = end - start;
+		ByteBuffer table = ByteBuffer.allocate(12 + 4 * n);
+		table.putInt(0).putInt(0).putInt(n);
+		int mdatLength = 0;
+		for (int i = start; i < end; i++) {
+			table.putInt(sizes[i]);
+			mdatLength += sizes[i];
+		}
+		byte[] head = box("ftyp", bytes(ftyp));
+		byte[] movie = null;
+		// The chunk offset depends on the size of the movie box, but the size
+		// does not depend on the offset.
+		for (int pass = 0; pass < 2; pass++) {
+			int chunkOffset = (movie == null) ? 0 : head.length + movie.length
+					+ 8;
+			byte[] sampleTable = box("stbl",
+					box("stsd", bytes(child(stbl, "stsd"))),
+					box("stts", ints(0, 1, n, delta)),
+					box("stsc", ints(0, 1, 1, n, 1)),
+					box("stsz", table.array()),
+					box("stco", ints(0, 1, chunkOffset)));
+			byte[] media = box("mdia", box("mdhd", bytes(child(mdia, "mdhd"))),
+					box("hdlr", bytes(child(mdia, "hdlr"))), box("minf",
+							box("smhd", bytes(child(minf, "smhd"))),
+							box("dinf", bytes(child(minf, "dinf"))),
+							sampleTable));
+			movie = box("moov", box("mvhd", bytes(child(moov, "mvhd"))), box(
+					"trak", box("tkhd", bytes(child(trak, "tkhd"))), media));
+		}
+		ByteBuffer file = ByteBuffer.allocate(head.length + movie.length + 8
+				+ mdatLength);
+		file.put(head).put(movie).putInt(8 + mdatLength).putInt(0x6d646174); // "mdat"
+		for (int i = start; i < end; i++) {
+			ByteBuffer sample = data.duplicate();
+			sample.limit((int) offsets[i] + sizes[i]).position((int) offsets[i]);
+			file.put(sample);
+		}
+		return file.array();
+	}
+
+	/**
+	 * Write a box.
+	 *
+	 * @param type
+	 *            The type of the box.
+	 * @param contents
+	 *            The parts of the contents, of which {@code null} parts are
+	 *            left out.
+	 *
+	 * @return The box, or {@code null} if its only part is {@code null},
+	 *         i.e. a copy of a box that does not exist.
+	 */
+	private static byte[] box(String type, byte[]... contents) {
+		if (contents.length == 1 && contents[0] == null) {
+			return null;
+		}
+		int length = 8;
+		for (byte[] part : contents) {
+			length += (part != null) ? part.length : 0;
+		}
+		ByteBuffer box = ByteBuffer.allocate(length);
+		box.putInt(length);
+		for (int i = 0; i < 4; i++) {
+			box.put((byte) type.charAt(i));
+		}
+		for (byte[] part : contents) {
+			if (part != null) {
+				box.put(part);
+			}
+		}
+		return box.array();
+	}
+
+	/**
+	 * Get the contents of a buffer as an array.
+	 *
+	 * @param buffer
+	 *            The buffer, or {@code null}.
+	 *
+	 * @return The contents, or {@code null}.
+	 */
+	private static byte[] bytes(ByteBuffer buffer) {
+		if (buffer == null) {
+			return null;
+		}
+		byte[] bytes = new byte[buffer.limit()];
+		ByteBuffer copy = buffer.duplicate();
+		copy.position(0);
+		copy.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Get integers as big-endian bytes.
+	 *
+	 * @param values
+	 *            The integers.
+	 *
+	 * @return The bytes.
+	 */
+	private static byte[] ints(int... values) {
+		ByteBuffer bytes = ByteBuffer.allocate(4 * values.length);
+		for (int value : values) {
+			bytes.putInt(value);
+		}
+		return bytes.array();
+	}
+
+	/**
+	 * Get the file offset of every sample of a track.
+	 *
+	 * @param stbl
+	 *            The track's sample table box.
+	 *
+	 * @return The offsets, or {@code null} if the tables are missing or
+	 *         inconsistent.
+	 */
+	private static long[] sampleOffsets(ByteBuffer stbl) {
+		ByteBuffer stsz = child(stbl, "stsz");
+		ByteBuffer stsc = child(stbl, "stsc");
+		ByteBuffer stco = child(stbl, "stco");
+		ByteBuffer co64 = child(stbl, "co64");
+		if (stsz == null || stsc == null || (stco == null && co64 == null)) {
+			return null;
+		}
+		int sampleSize = stsz.getInt(4);
+		long[] offsets = new long[stsz.getInt(8)];
+		int entryCount = stsc.getInt(4);
+		int chunkCount = (stco != null) ? stco.getInt(4) : co64.getInt(4);
+		int entry = 0;
+		int sample = 0;
+		for (int chunk = 0; chunk < chunkCount && sample < offsets.length; chunk++) {
+			while (entry + 1 < entryCount
+					&& stsc.getInt(8 + 12 * (entry + 1)) <= chunk + 1) {
+				entry++;
+			}
+			int perChunk = stsc.getInt(8 + 12 * entry + 4);
+			long offset = (stco != null) ? (stco.getInt(8 + 4 * chunk) & 0xffffffffL)
+					: co64.getLong(8 + 8 * chunk);
+			for (int i = 0; i < perChunk && sample < offsets.length; i++) {
+				offsets[sample] = offset;
+				offset += (sampleSize != 0) ? sampleSize : stsz.getInt(12 + 4 * sample);
+				sample++;
+			}
+		}
+		return (sample == offsets.length && sample > 0) ? offsets : null;
+	}
+
+	/**
+	 * Find a box nested in another box.
+	 *
+	 * @param parent
+	 *            The contents of the outer box.
+	 * @param path
+	 *            The types of the boxes on the way to the wanted box.
+	 *
+	 * @return The contents of the first box on the path, or {@code null} if
+	 *         there is none.
+	 */
+	private static ByteBuffer child(ByteBuffer parent, String... path) {
+		ByteBuffer box = parent;
+		for (String type : path) {
+			List<ByteBuffer> boxes = children(box, type);
+			if (boxes.isEmpty()) {
+				return null;
+			}
+			box = boxes.get(0);
+		}
+		return box;
+	}
+
+	/**
+	 * Find the boxes of a type directly inside another box.
+	 *
+	 * @param parent
+	 *            The contents of the outer box.
+	 * @param type
+	 *            The type of the boxes, e.g. {@code "trak"}.
+	 *
+	 * @return The contents of the boxes.
+	 */
+	private static List<ByteBuffer> children(ByteBuffer parent, String type) {
+		int code = (type.charAt(0) << 24) | (type.charAt(1) << 16)
+				| (type.charAt(2) << 8) | type.charAt(3);
+		List<ByteBuffer> boxes = new ArrayList<ByteBuffer>();
+		int pos = 0;
+		int end = parent.limit();
+		while (pos + 8 <= end) {
+			long size = parent.getInt(pos) & 0xffffffffL;
+			int headerLength = 8;
+			if (size == 1) {
+				size = parent.getLong(pos + 8);
+				headerLength = 16;
+			} else if (size == 0) {
+				size = end - pos;
+			}
+			if (size < headerLength || pos + size > end) {
+				break;
+			}
+			if (parent.getInt(pos + 4) == code) {
+				boxes.add(range(parent, pos + headerLength, (int) (pos + size)));
+			}
+			pos += size;
+		}
+		return boxes;
+	}
+
+	/**
+	 * Get a part of a buffer as a buffer of its own.
+	 *
+	 * @param buffer
+	 *            The buffer.
+	 * @param start
+	 *            The offset of the part.
+	 * @param end
+	 *            The offset after the part.
+	 *
+	 * @return The part, starting at offset 0.
+	 */
+	private static ByteBuffer range(ByteBuffer buffer, int start, int end) {
+		ByteBuffer part = buffer.duplicate();
+		part.limit(end).position(start);
+		return part.slice();
+	}
+}
@@ -0,0 +1,292 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * A packed file of many audio assets, created by {@link SoundBankBuilder}. The
+ * file is memory-mapped once when the {@code SoundBank} is opened (see
+ * {@link QwickSound#openSoundBank}), and its header index is read into memory.
+ * Creating a {@code PreloadedAudio} from an entry then requires no resource
+ * lookup, no format probing and no decoding: the audio data of a pre-decoded
+ * entry is used in place, as a zero-copy view of the mapped file.
+ * <p>
+ * Entries may also hold the original, encoded file data (see
+ * {@link SoundBankBuilder#addEncoded}). These are decoded onto the heap when
+ * their {@code PreloadedAudio} is created, but still avoid the per-file
+ * resource lookup.
+ * <p>
+ * The file format, with all numbers little-endian, is:
+ *
+ * <pre>
+ * header:  magic "QSBK", int version, int entryCount
+ * entry:   short nameLength, byte[nameLength] name (UTF-8),
+ *          byte encoding (0 = canonical PCM, 1 = encoded file data),
+ *          float sampleRate, short channels, long offset, long length
+ * data:    the audio data of each entry at its offset from the file start
+ * </pre>
+ *
+ * @author Christian Holton
+ *
+ * @see SoundBankBuilder
+ *
+ */
+public class SoundBank {
+
+	/**
+	 * Identifies a sound-bank file.
+	 */
+	static final int MAGIC = 0x4B425351; // "QSBK" read little-endian
+	/**
+	 * The version of the file format.
+	 */
+	static final int VERSION = 1;
+	/**
+	 * Entry encoding of canonical PCM data (signed, 16-bit, little-endian).
+	 */
+	static final byte ENCODING_PCM = 0;
+	/**
+	 * Entry encoding of the original, encoded audio file data.
+	 */
+	static final byte ENCODING_FILE = 1;
+	/**
+	 * The alignment of each entry's data within the file.
+	 */
+	static final int ALIGNMENT = 16;
+	/**
+	 * The largest bank file that can be mapped, in bytes.
+	 */
+	static final long MAX_SIZE = Integer.MAX_VALUE;
+	/**
+	 * The longest entry name, in bytes of UTF-8.
+	 */
+	static final int MAX_NAME_LENGTH = 0xffff;
+	/**
+	 * The path of the bank file.
+	 */
+	private final Path path;
+	/**
+	 * The whole bank file, mapped read-only.
+	 */
+	private final MappedByteBuffer buffer;
+	/**
+	 * The header index, by entry name, in file order.
+	 */
+	private final Map<String, Entry> index = new LinkedHashMap<String, Entry>();
+	/**
+	 * {@code Logger} for the {@code SoundBank} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(SoundBank.class
+			.getName());
+
+	/**
+	 * Opens the sound-bank file at the specified path, mapping it into
+	 * memory and reading its index.
+	 *
+	 * @param path
+	 *            The path of the bank file.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read, is not a sound bank or is
+	 *             larger than 2 GB.
+	 */
+	protected SoundBank(Path path) throws IOException {
+		this.path = path;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			if (channel.size() > MAX_SIZE) {
+				throw new IOException(path + " is larger than 2 GB");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			// The mapping remains valid after the channel is closed.
+			channel.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		readIndex();
+		logger.info("Opened sound bank \"" + path.getFileName() + "\" with "
+				+ index.size() + " entries");
+	}
+
+	/**
+	 * Creates a new {@code PreloadedAudio} from the entry with the specified
+	 * name. The audio data of a pre-decoded entry is not copied.
+	 *
+	 * @param name
+	 *            The name of the entry.
+	 *
+	 * @return A new {@code PreloadedAudio} based on the entry, or
+	 *         {@code null} if the bank has no such entry or its data could not
+	 *         be decoded.
+	 */
+	public PreloadedAudio createPreloadedAudio(final String name) {
+		Entry entry = index.get(name);
+		if (entry == null) {
+			logger.warning("Sound bank \"" + path.getFileName()
+					+ "\" has no entry \"" + name + "\"");
+			return null;
+		}
+		final ByteBuffer data = slice(entry);
+		if (entry.encoding == ENCODING_PCM) {
+			final PcmData pcm = new PcmData(data, entry.channels,
+					entry.sampleRate);
+			// The data is mapped, so it never needs to be reloaded; the
+			// source only serves streams of it.
+			AudioSource source = new AudioSource() {
+				@Override
+				String getName() {
+					return name;
+				}
+
+				@Override
+				AudioInputStream open() {
+					AudioFormat format = new AudioFormat(pcm.getSampleRate(),
+							16, pcm.getChannels(), true, false);
+					return new AudioInputStream(new ByteBufferInputStream(
+							data), format, pcm.getFrameCount());
+				}
+
+				@Override
+				PcmData loadPcm(long limit) {
+					return pcm;
+				}
+			};
+			return new PreloadedAudio(source, pcm);
+		}
+		AudioSource source = AudioSource.of(data, name);
+		PcmData pcm = source.loadPcm(Long.MAX_VALUE);
+		return (pcm == null) ? null : new PreloadedAudio(source, pcm);
+	}
+
+	/**
+	 * Whether this {@code SoundBank} has an entry with the specified name.
+	 *
+	 * @param name
+	 *            The name of the entry.
+	 *
+	 * @return {@code true} if the entry exists.
+	 */
+	public boolean contains(String name) {
+		return index.containsKey(name);
+	}
+
+	/**
+	 * Get the names of the entries of this {@code SoundBank}, in file order.
+	 *
+	 * @return The entry names.
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	/**
+	 * Get the path of the bank file.
+	 *
+	 * @return The path.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		return "SoundBank " + path.getFileName();
+	}
+
+	/**
+	 * Get a view of an entry's data.
+	 *
+	 * @param entry
+	 *            The entry.
+	 *
+	 * @return The view, positioned at the start of the data.
+	 */
+	private ByteBuffer slice(Entry entry) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit((int) (entry.offset + entry.length));
+		view.position((int) entry.offset);
+		return view.slice();
+	}
+
+	/**
+	 * Read the header index.
+	 *
+	 * @throws IOException
+	 *             If the file is not a valid sound bank.
+	 */
+	private void readIndex() throws IOException {
+		ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			if (header.getInt() != MAGIC) {
+				throw new IOException(path + " is not a sound bank");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + " has unsupported version "
+						+ version);
+			}
+			int count = header.getInt();
+			for (int i = 0; i < count; i++) {
+				byte[] nameBytes = new byte[header.getShort() & 0xffff];
+				header.get(nameBytes);
+				Entry entry = new Entry();
+				entry.encoding = header.get();
+				entry.sampleRate = header.getFloat();
+				entry.channels = header.getShort();
+				entry.offset = header.getLong();
+				entry.length = header.getLong();
+				if (entry.offset < 0 || entry.length < 0
+						|| entry.offset + entry.length > buffer.capacity()) {
+					throw new IOException(path + " is truncated");
+				}
+				index.put(new String(nameBytes, StandardCharsets.UTF_8), entry);
+			}
+		} catch (RuntimeException ex) {
+			throw new IOException(path + " has a corrupt header", ex);
+		}
+	}
+
+	/**
+	 * One entry of the header index.
+	 */
+	private static final class Entry {
+
+		/**
+		 * {@code ENCODING_PCM} or {@code ENCODING_FILE}.
+		 */
+		byte encoding;
+		/**
+		 * The sample rate of PCM data.
+		 */
+		float sampleRate;
+		/**
+		 * The number of channels of PCM data.
+		 */
+		int channels;
+		/**
+		 * The offset of the data from the start of the file.
+		 */
+		long offset;
+		/**
+		 * The length of the data in bytes.
+		 */
+		long length;
+	}
+}
@@ -0,0 +1,313 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Packs many audio files into a single {@link SoundBank} file. Each file is
+ * either decoded ahead of time and stored as canonical PCM, which lets the
+ * {@code SoundBank} use the data in place, or stored as its original,
+ * encoded bytes, which keeps the bank small.
+ * <p>
+ * The builder can be used from code:
+ *
+ * <pre>
+ * SoundBankBuilder builder = new SoundBankBuilder();
+ * builder.add(Paths.get(&quot;media/lightsaber.mp3&quot;));
+ * builder.addEncoded(Paths.get(&quot;media/scifi_music.m4a&quot;));
+ * builder.write(Paths.get(&quot;effects.qsb&quot;));
+ * </pre>
+ *
+ * or from the command line:
+ *
+ * <pre>
+ * java qwicksound.SoundBankBuilder [-encoded] out.qsb file ...
+ * </pre>
+ *
+ * Entries are named after the file name of each audio file.
+ *
+ * @author Christian Holton
+ *
+ * @see SoundBank
+ *
+ */
+public class SoundBankBuilder {
+
+	/**
+	 * The entries added so far.
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+	/**
+	 * {@code Logger} for the {@code SoundBankBuilder} class.
+	 */
+	private static Logger logger = LoggerConfig
+			.getLogger(SoundBankBuilder.class.getName());
+
+	/**
+	 * Add an audio file, decoding it now so that it is stored as PCM.
+	 *
+	 * @param file
+	 *            The audio file.
+	 *
+	 * @throws IOException
+	 *             If the file could not be decoded.
+	 * @throws IllegalArgumentException
+	 *             If the file name is longer than 65535 bytes of UTF-8.
+	 */
+	public void add(Path file) throws IOException {
+		add(file.getFileName().toString(), file.toUri().toURL());
+	}
+
+	/**
+	 * Add an audio file under the specified name, decoding it now so that it
+	 * is stored as PCM.
+	 *
+	 * @param name
+	 *            The name of the entry.
+	 * @param fileURL
+	 *            The audio file's {@code URL}.
+	 *
+	 * @throws IOException
+	 *             If the file could not be decoded.
+	 * @throws IllegalArgumentException
+	 *             If the name is longer than 65535 bytes of UTF-8.
+	 */
+	public void add(String name, URL fileURL) throws IOException {
+		checkName(name);
+		PcmData pcm = AudioSource.of(fileURL).loadPcm(Long.MAX_VALUE);
+		if (pcm == null) {
+			throw new IOException("Could not decode " + fileURL);
+		}
+		Entry entry = new Entry(name, SoundBank.ENCODING_PCM, pcm.getData());
+		entry.sampleRate = pcm.getSampleRate();
+		entry.channels = pcm.getChannels();
+		entries.add(entry);
+	}
+
+	/**
+	 * Add an audio file as its original, encoded bytes. The file is decoded
+	 * when a {@code PreloadedAudio} is created from its entry.
+	 *
+	 * @param file
+	 *            The audio file.
+	 *
+	 * @throws IOException
+	 *             If the file could not be read.
+	 * @throws IllegalArgumentException
+	 *             If the file name is longer than 65535 bytes of UTF-8.
+	 */
+	public void addEncoded(Path file) throws IOException {
+		checkName(file.getFileName().toString());
+		entries.add(new Entry(file.getFileName().toString(),
+				SoundBank.ENCODING_FILE, ByteBuffer.wrap(Files
+						.readAllBytes(file))));
+	}
+
+	/**
+	 * Write the sound bank.
+	 *
+	 * @param out
+	 *            The path of the bank file to create or replace.
+	 *
+	 * @throws IOException
+	 *             If the file could not be written, or the bank would be
+	 *             larger than 2 GB, which {@code SoundBank} cannot map.
+	 */
+	public void write(Path out) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(headerSize()).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.putInt(SoundBank.MAGIC);
+		header.putInt(SoundBank.VERSION);
+		header.putInt(entries.size());
+		long offset = align(header.capacity());
+		for (Entry entry : entries) {
+			byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+			header.putShort((short) nameBytes.length);
+			header.put(nameBytes);
+			header.put(entry.encoding);
+			header.putFloat(entry.sampleRate);
+			header.putShort((short) entry.channels);
+			header.putLong(offset);
+			header.putLong(entry.data.remaining());
+			entry.offset = offset;
+			offset = align(offset + entry.data.remaining());
+		}
+		if (offset > SoundBank.MAX_SIZE) {
+			throw new IOException("The sound bank would be larger than 2 GB");
+		}
+		header.flip();
+		FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		long size;
+		try {
+			writeFully(channel, header, 0);
+			for (Entry entry : entries) {
+				writeFully(channel, entry.data.duplicate(), entry.offset);
+			}
+			size = channel.size();
+		} finally {
+			channel.close();
+		}
+		logger.info("Wrote sound bank \"" + out.getFileName() + "\" with "
+				+ entries.size() + " entries (" + size + " bytes)");
+	}
+
+	/**
+	 * Build a sound bank from the command line.
+	 *
+	 * @param args
+	 *            {@code [-encoded] out.qsb file ...}
+	 */
+	public static void main(String[] args) {
+		int arg = 0;
+		boolean encoded = false;
+		if (args.length > 0 && args[0].equals("-encoded")) {
+			encoded = true;
+			arg++;
+		}
+		if (args.length - arg < 2) {
+			System.err.println("Usage: java qwicksound.SoundBankBuilder "
+					+ "[-encoded] out.qsb file ...");
+			System.exit(1);
+		}
+		Path out = Paths.get(args[arg++]);
+		SoundBankBuilder builder = new SoundBankBuilder();
+		try {
+			for (; arg < args.length; arg++) {
+				Path file = Paths.get(args[arg]);
+				if (encoded) {
+					builder.addEncoded(file);
+				} else {
+					builder.add(file);
+				}
+			}
+			builder.write(out);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Get the size of the header index.
+	 *
+	 * @return The size in bytes.
+	 */
+	private int headerSize() {
+		int size = 12;
+		for (Entry entry : entries) {
+			size += 2 + entry.name.getBytes(StandardCharsets.UTF_8).length
+					+ 1 + 4 + 2 + 8 + 8;
+		}
+		return size;
+	}
+
+	/**
+	 * Check that an entry name fits the header index.
+	 *
+	 * @param name
+	 *            The name of the entry.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the name is longer than 65535 bytes of UTF-8.
+	 */
+	private static void checkName(String name) {
+		if (name.getBytes(StandardCharsets.UTF_8).length > SoundBank.MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("The entry name \""
+					+ name.substring(0, 32) + "...\" is longer than "
+					+ SoundBank.MAX_NAME_LENGTH + " bytes");
+		}
+	}
+
+	/**
+	 * Round an offset up to the entry alignment.
+	 *
+	 * @param offset
+	 *            The offset.
+	 *
+	 * @return The aligned offset.
+	 */
+	private static long align(long offset) {
+		return (offset + SoundBank.ALIGNMENT - 1) & -SoundBank.ALIGNMENT;
+	}
+
+	/**
+	 * Write all remaining bytes of a buffer at the specified file position.
+	 *
+	 * @param channel
+	 *            The file.
+	 * @param data
+	 *            The bytes to write.
+	 * @param position
+	 *            The file position.
+	 *
+	 * @throws IOException
+	 *             If the bytes could not be written.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer data,
+			long position) throws IOException {
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+	}
+
+	/**
+	 * An entry to be written.
+	 */
+	private static final class Entry {
+
+		/**
+		 * The name of the entry.
+		 */
+		final String name;
+		/**
+		 * {@code SoundBank.ENCODING_PCM} or {@code SoundBank.ENCODING_FILE}.
+		 */
+		final byte encoding;
+		/**
+		 * The audio data.
+		 */
+		final ByteBuffer data;
+		/**
+		 * The sample rate of PCM data.
+		 */
+		float sampleRate;
+		/**
+		 * The number of channels of PCM data.
+		 */
+		int channels;
+		/**
+		 * The offset of the data in the file, assigned by {@code write}.
+		 */
+		long offset;
+
+		/**
+		 * Creates a new {@code Entry}.
+		 *
+		 * @param name
+		 *            The name of the entry.
+		 * @param encoding
+		 *            The encoding of the data.
+		 * @param data
+		 *            The audio data.
+		 */
+		Entry(String name, byte encoding, ByteBuffer data) {
+			this.name = name;
+			this.encoding = encoding;
+			this.data = data;
+		}
+	}
+}
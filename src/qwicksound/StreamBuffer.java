@@ -0,0 +1,167 @@
+package qwicksound;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer ring of interleaved float samples that
+ * carries decoded audio from the decoding thread of a
+ * {@code StreamingPlayback} to the {@code MixEngine}. Neither side takes a
+ * lock: the producer parks briefly while the ring is full and is woken as the
+ * consumer frees space, and the consumer never waits.
+ * <p>
+ * Samples are always written and read in whole frames.
+ *
+ * @author Christian Holton
+ *
+ */
+final class StreamBuffer {
+
+	/**
+	 * The longest time the producer parks before checking for space again.
+	 */
+	private static final long PARK_NANOS = 10000000L;
+	/**
+	 * The samples.
+	 */
+	private final float[] data;
+	/**
+	 * The number of channels per frame.
+	 */
+	private final int channels;
+	/**
+	 * The total number of samples written.
+	 */
+	private volatile long writePos;
+	/**
+	 * The total number of samples read.
+	 */
+	private volatile long readPos;
+	/**
+	 * Whether the producer has written its last samples.
+	 */
+	private volatile boolean ended;
+	/**
+	 * The producer thread while it is waiting for space, otherwise
+	 * {@code null}.
+	 */
+	private volatile Thread waiter;
+
+	/**
+	 * Creates a new {@code StreamBuffer}.
+	 *
+	 * @param frames
+	 *            The capacity in frames.
+	 * @param channels
+	 *            The number of channels per frame.
+	 */
+	StreamBuffer(int frames, int channels) {
+		this.channels = channels;
+		this.data = new float[frames * channels];
+	}
+
+	/**
+	 * Get the capacity of this {@code StreamBuffer}.
+	 *
+	 * @return The capacity in frames.
+	 */
+	int getCapacity() {
+		return data.length / channels;
+	}
+
+	/**
+	 * Get the number of frames that have been written and not yet read.
+	 *
+	 * @return The number of buffered frames.
+	 */
+	int available() {
+		return (int) (writePos - readPos) / channels;
+	}
+
+	/**
+	 * Write as many whole frames as there is space for. Called only by the
+	 * producer.
+	 *
+	 * @param src
+	 *            The interleaved samples.
+	 * @param offset
+	 *            The index of the first sample.
+	 * @param length
+	 *            The number of samples, a whole number of frames.
+	 *
+	 * @return The number of samples written.
+	 */
+	int write(float[] src, int offset, int length) {
+		long w = writePos;
+		int free = data.length - (int) (w - readPos);
+		int count = Math.min(length, free) / channels * channels;
+		int index = (int) (w % data.length);
+		int first = Math.min(count, data.length - index);
+		System.arraycopy(src, offset, data, index, first);
+		System.arraycopy(src, offset + first, data, 0, count - first);
+		writePos = w + count;
+		return count;
+	}
+
+	/**
+	 * Wait until some space is free, the wait times out, or the consumer
+	 * closes this {@code StreamBuffer}. Called only by the producer.
+	 */
+	void awaitSpace() {
+		waiter = Thread.currentThread();
+		if (writePos - readPos >= data.length && !ended) {
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+		waiter = null;
+	}
+
+	/**
+	 * Read up to the specified number of frames. Called only by the
+	 * consumer.
+	 *
+	 * @param dest
+	 *            Receives the interleaved samples.
+	 * @param offset
+	 *            The index at which to store the first sample.
+	 * @param frames
+	 *            The maximum number of frames to read.
+	 *
+	 * @return The number of frames read.
+	 */
+	int read(float[] dest, int offset, int frames) {
+		long r = readPos;
+		int count = Math.min(frames * channels, (int) (writePos - r));
+		int index = (int) (r % data.length);
+		int first = Math.min(count, data.length - index);
+		System.arraycopy(data, index, dest, offset, first);
+		System.arraycopy(data, 0, dest, offset + first, count - first);
+		readPos = r + count;
+		if (count > 0) {
+			Thread thread = waiter;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+		return count / channels;
+	}
+
+	/**
+	 * Mark the end of the stream, after which no more samples are written,
+	 * and wake the producer if it is waiting.
+	 */
+	void end() {
+		ended = true;
+		Thread thread = waiter;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Whether the end of the stream has been marked.
+	 *
+	 * @return {@code true} if no more samples will be written.
+	 */
+	boolean isEnded() {
+		return ended;
+	}
+}
@@ -0,0 +1,505 @@
+package qwicksound;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Streams the audio data of a {@code Playback}: decodes it on a thread of its
+ * own into a small ring buffer, from which its {@code Voice} is mixed into
+ * QwickSound's output line along with all other playbacks. Slow reads
+ * therefore never stall the output; if the ring buffer runs dry, silence is
+ * mixed until more data arrives.
+ * <p>
+ * A {@code StreamFeed} may start with the head of the audio held in memory,
+ * which is mixed at once, while the decoding thread opens the stream, skips
+ * the head and fills the ring buffer with the rest.
+ * <p>
+ * Every {@code StreamingPlayback} streams through a {@code StreamFeed}, and
+ * so does a {@code PreloadedPlayback} whose audio data is not in memory.
+ *
+ * @author Christian Holton
+ *
+ */
+final class StreamFeed implements Runnable {
+
+	/**
+	 * The duration of audio held by the ring buffer, in seconds.
+	 */
+	private static final double BUFFER_SECONDS = 0.5;
+	/**
+	 * The number of frames decoded at a time.
+	 */
+	private static final int READ_FRAMES = 1024;
+	/**
+	 * The {@code Playback} whose audio data is streamed.
+	 */
+	private final Playback playback;
+	/**
+	 * The {@code Audio} of {@code playback}.
+	 */
+	private final Audio audio;
+	/**
+	 * The stream passed in, or {@code null} if it is opened by the decoding
+	 * thread or could not be acquired.
+	 */
+	private final AudioInputStream audioInStream;
+	/**
+	 * Whether the stream is opened by the decoding thread rather than passed
+	 * in.
+	 */
+	private final boolean deferred;
+	/**
+	 * The number of channels per frame. Like {@code sampleRate},
+	 * {@code buffer} and {@code voice}, it is replaced if a deferred stream
+	 * turns out to have a different format than expected.
+	 */
+	private volatile int channels;
+	/**
+	 * The number of frames per second.
+	 */
+	private volatile float sampleRate;
+	/**
+	 * Carries decoded frames to the {@code MixEngine}.
+	 */
+	private volatile StreamBuffer buffer;
+	/**
+	 * Mixes the decoded frames into the output line.
+	 */
+	private volatile FeedVoice voice;
+	/**
+	 * The number of times the audio data is played in succession.
+	 */
+	private int numLoops = 1;
+	/**
+	 * The position, in seconds, the first loop starts at.
+	 */
+	private volatile double startPosition;
+	/**
+	 * The number of frames taken from {@code buffer} by the mixer.
+	 */
+	private volatile long framesConsumed;
+	/**
+	 * The number of frames written to {@code buffer} at the end of each loop
+	 * but the last, so that the mixer can tell when the next loop starts to
+	 * be heard.
+	 */
+	private final ConcurrentLinkedQueue<Long> loopEnds = new ConcurrentLinkedQueue<Long>();
+	/**
+	 * The preloaded head of the audio data, played before the first loop
+	 * continues from the stream, or {@code null}.
+	 */
+	private final SampleData head;
+	/**
+	 * Reads {@code head} for the mixer, or {@code null}.
+	 */
+	private final SampleData.Reader headReader;
+	/**
+	 * {@code Logger} for the {@code StreamFeed} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(StreamFeed.class
+			.getName());
+
+	/**
+	 * Creates a new {@code StreamFeed} that decodes a stream that has been
+	 * opened already.
+	 *
+	 * @param playback
+	 *            The {@code Playback} whose audio data is streamed.
+	 * @param audioInStream
+	 *            The stream, or {@code null} if it could not be acquired.
+	 */
+	StreamFeed(Playback playback, AudioInputStream audioInStream) {
+		this.playback = playback;
+		this.audio = playback.audio;
+		if (audioInStream != null) {
+			audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+		}
+		this.audioInStream = audioInStream;
+		this.deferred = false;
+		this.head = null;
+		this.headReader = null;
+		setFormat((audioInStream != null) ? audioInStream.getFormat()
+				: MixEngine.FORMAT);
+	}
+
+	/**
+	 * Creates a new {@code StreamFeed} that opens its stream when it starts,
+	 * on its own decoding thread.
+	 *
+	 * @param playback
+	 *            The {@code Playback} whose audio data is streamed.
+	 * @param format
+	 *            The canonical format of the audio data, or {@code null} if
+	 *            it is not known yet. If the stream turns out to have another
+	 *            format, the feed adapts to it when the stream is opened.
+	 */
+	StreamFeed(Playback playback, AudioFormat format) {
+		this.playback = playback;
+		this.audio = playback.audio;
+		this.audioInStream = null;
+		this.deferred = true;
+		this.head = null;
+		this.headReader = null;
+		setFormat((format != null) ? format : MixEngine.FORMAT);
+	}
+
+	/**
+	 * Creates a new {@code StreamFeed} that plays the preloaded head of its
+	 * audio data as soon as it starts, and opens its stream on its own
+	 * decoding thread to continue after the head.
+	 *
+	 * @param playback
+	 *            The {@code Playback} whose audio data is streamed.
+	 * @param head
+	 *            The head of the audio data in the canonical format.
+	 */
+	StreamFeed(Playback playback, SampleData head) {
+		this.playback = playback;
+		this.audio = playback.audio;
+		this.audioInStream = null;
+		this.deferred = true;
+		this.head = head;
+		this.headReader = head.newReader();
+		setFormat(new AudioFormat(head.sampleRate, 16, head.channels, true,
+				false));
+	}
+
+	/**
+	 * Set the position the first loop starts at. Must be called before
+	 * {@code start}. A feed with a head always starts at the beginning.
+	 *
+	 * @param seconds
+	 *            The position in seconds.
+	 */
+	void setStartPosition(double seconds) {
+		startPosition = Math.max(0.0, seconds);
+	}
+
+	/**
+	 * Get the position of the mixer in the audio data.
+	 *
+	 * @return The position in seconds.
+	 */
+	double getPosition() {
+		long frame = framesConsumed - voice.pendingFrames();
+		return startPosition + Math.max(0, frame) / sampleRate;
+	}
+
+	/**
+	 * Get the stream this {@code StreamFeed} will decode.
+	 *
+	 * @return The stream, or {@code null} if it is opened by the decoding
+	 *         thread or could not be acquired.
+	 */
+	AudioInputStream getStream() {
+		return audioInStream;
+	}
+
+	/**
+	 * Whether the {@code Voice} of this {@code StreamFeed} is currently a
+	 * virtual voice.
+	 *
+	 * @return {@code true} if the voice is virtual.
+	 */
+	boolean isVirtual() {
+		return voice.virtual;
+	}
+
+	/**
+	 * Start decoding. The {@code Playback} must already be playing.
+	 *
+	 * @param numLoops
+	 *            The number of times the audio data will be played in
+	 *            succession, or 0 or less to loop continuously.
+	 * @param exec
+	 *            Manages the decoding thread.
+	 */
+	void start(int numLoops, ExecutorService exec) {
+		this.numLoops = (numLoops <= 0) ? Integer.MAX_VALUE : numLoops;
+		if (audioInStream == null && !deferred) {
+			playback.setStopped();
+			logger.warning("Cannot play \"" + audio.getFileName()
+					+ "\" because its audio data could not be read.");
+			return;
+		}
+		if (head != null) {
+			addVoice();
+		}
+		try {
+			exec.execute(this);
+		} catch (RejectedExecutionException e) {
+			playback.setStopped();
+			logger.warning("A play request was received "
+					+ "but the system is shutting down."
+					+ " Cannot perform the play request.");
+		}
+	}
+
+	/**
+	 * Wake the decoding thread so that it can exit once the
+	 * {@code Playback} has been stopped.
+	 */
+	void end() {
+		buffer.end();
+	}
+
+	/**
+	 * Run the thread that decodes the audio data into the ring buffer. The
+	 * {@code Voice} of this {@code StreamFeed} is added to the mix once the
+	 * ring buffer has been filled, so that playback does not start with an
+	 * underrun, unless it has a head, which it starts from instead.
+	 */
+	@Override
+	public void run() {
+		AudioInputStream in = audioInStream;
+		boolean added = (head != null);
+		long framesWritten = 0;
+		audio.resources.decodingStarted();
+		try {
+			if (deferred) {
+				in = openDeferred();
+			}
+			// Sized after a deferred open, which may change the format.
+			byte[] audioData = new byte[READ_FRAMES * channels * 2];
+			float[] samples = new float[READ_FRAMES * channels];
+			if (in != null && head != null) {
+				// The head is played from memory.
+				skip(in, (long) head.frameCount * channels * 2, audioData);
+				framesWritten = head.frameCount;
+			} else if (in != null && startPosition > 0.0) {
+				skip(in, (long) (startPosition * sampleRate) * channels * 2,
+						audioData);
+			}
+			for (int i = 0; i < numLoops && in != null; i++) {
+				if (i > 0) {
+					// Reopen the source for the next loop.
+					in.close();
+					in = audio.source.open();
+					if (in == null) {
+						break;
+					}
+					in = QwickSound.toCanonicalPCM(in);
+					loopEnds.add(framesWritten);
+				}
+				int bytesRead;
+				while (playback.state != Playback.State.STOPPED
+						&& (bytesRead = in.read(audioData)) != -1) {
+					int count = bytesRead / 2;
+					toFloats(audioData, samples, count);
+					int written = 0;
+					while (playback.state != Playback.State.STOPPED) {
+						written += buffer.write(samples, written, count
+								- written);
+						if (written == count) {
+							framesWritten += count / channels;
+							break;
+						}
+						if (!added) {
+							added = addVoice();
+						}
+						buffer.awaitSpace();
+					}
+				}
+				if (playback.state == Playback.State.STOPPED) {
+					break;
+				}
+			}
+		} catch (IOException ex) {
+			logger.warning("Could not read \"" + audio.getFileName() + "\"");
+			ex.printStackTrace();
+		} finally {
+			buffer.end();
+			if (!added) {
+				// Shorter than the ring buffer, or the read failed: play
+				// whatever has been decoded.
+				addVoice();
+			}
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			audio.resources.decodingStopped();
+		}
+	}
+
+	/**
+	 * Open the stream of a deferred {@code StreamFeed}. If the format of the
+	 * stream differs from the one the feed was created for, the ring buffer
+	 * and {@code Voice} are replaced to suit it, which is safe since the
+	 * {@code Voice} is not mixed yet. A feed with a head cannot adapt, as the
+	 * head is already playing. The {@code Playback} is stopped if the stream
+	 * cannot be opened or cannot be played.
+	 *
+	 * @return The stream in the canonical format, or {@code null}.
+	 */
+	private AudioInputStream openDeferred() {
+		AudioInputStream in = audio.source.open();
+		if (in != null) {
+			in = QwickSound.toCanonicalPCM(in);
+			AudioFormat format = in.getFormat();
+			if (format.getChannels() == channels
+					&& format.getSampleRate() == sampleRate) {
+				return in;
+			}
+			if (head == null) {
+				setFormat(format);
+				if (playback.state == Playback.State.STOPPED) {
+					// Stopped while the old buffer was being replaced.
+					buffer.end();
+				}
+				return in;
+			}
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		logger.warning("Cannot play \"" + audio.getFileName()
+				+ "\" because its audio data could not be read.");
+		playback.setStopped();
+		return null;
+	}
+
+	/**
+	 * Set the format of the audio data, creating a ring buffer and
+	 * {@code Voice} for it.
+	 *
+	 * @param format
+	 *            The canonical format of the audio data.
+	 */
+	private void setFormat(AudioFormat format) {
+		int channels = format.getChannels();
+		float sampleRate = format.getSampleRate();
+		buffer = new StreamBuffer((int) (sampleRate * BUFFER_SECONDS),
+				channels);
+		voice = new FeedVoice(channels, sampleRate);
+		this.channels = channels;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Skip audio data of a stream by reading it. Decoded streams do not all
+	 * skip exactly, so the data is decoded and discarded.
+	 *
+	 * @param in
+	 *            The stream.
+	 * @param bytes
+	 *            The number of bytes to skip, a whole number of frames.
+	 * @param scratch
+	 *            Receives the skipped audio data.
+	 *
+	 * @throws IOException
+	 *             If the stream could not be read.
+	 */
+	private void skip(AudioInputStream in, long bytes, byte[] scratch)
+			throws IOException {
+		int bytesRead;
+		while (bytes > 0
+				&& playback.state != Playback.State.STOPPED
+				&& (bytesRead = in.read(scratch, 0,
+						(int) Math.min(scratch.length, bytes))) != -1) {
+			bytes -= bytesRead;
+		}
+	}
+
+	/**
+	 * Convert canonical PCM samples to floats.
+	 *
+	 * @param src
+	 *            The 16-bit little-endian samples.
+	 * @param dest
+	 *            Receives the float samples.
+	 * @param count
+	 *            The number of samples.
+	 */
+	private static void toFloats(byte[] src, float[] dest, int count) {
+		for (int i = 0, j = 0; i < count; i++, j += 2) {
+			dest[i] = (short) ((src[j + 1] << 8) | (src[j] & 0xff)) / 32768.0f;
+		}
+	}
+
+	/**
+	 * Add the {@code Voice} of this {@code StreamFeed} to the mix.
+	 *
+	 * @return {@code true}, meaning that no further attempt should be made.
+	 */
+	private boolean addVoice() {
+		if (playback.state == Playback.State.STOPPED) {
+			return true;
+		}
+		try {
+			MixEngine.getInstance().add(voice);
+		} catch (RejectedExecutionException e) {
+			playback.setStopped();
+			buffer.end();
+			logger.warning("Playback of \"" + audio.getFileName()
+					+ "\" was rejected because the system is shutting down.");
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the decoded frames of a {@code StreamFeed} for the
+	 * {@code MixEngine}.
+	 */
+	private final class FeedVoice extends Voice {
+
+		/**
+		 * The number of frames of the head that have been fetched.
+		 */
+		private int headFrames;
+
+		/**
+		 * Creates a new {@code FeedVoice}.
+		 *
+		 * @param channels
+		 *            The number of channels per frame.
+		 * @param sampleRate
+		 *            The number of frames per second.
+		 */
+		FeedVoice(int channels, float sampleRate) {
+			super(StreamFeed.this.playback, channels, sampleRate);
+		}
+
+		@Override
+		int fetch(float[] dest, int frames) {
+			if (head != null && headFrames < head.frameCount) {
+				int count = Math.min(frames, head.frameCount - headFrames);
+				headReader.read(headFrames, count, dest, 0);
+				headFrames += count;
+				framesConsumed += count;
+				return count;
+			}
+			int read = buffer.read(dest, 0, frames);
+			if (read > 0) {
+				long consumed = framesConsumed + read;
+				framesConsumed = consumed;
+				Long loopEnd = loopEnds.peek();
+				if (loopEnd != null && consumed >= loopEnd) {
+					loopEnds.poll();
+					playback.loopCompleted();
+				}
+				return read;
+			}
+			if (buffer.isEnded() && buffer.available() == 0) {
+				return 0;
+			}
+			// The decoder has fallen behind. Play silence rather than end.
+			Arrays.fill(dest, 0, frames * channels, 0.0f);
+			return frames;
+		}
+	}
+}
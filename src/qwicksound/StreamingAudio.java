@@ -1,8 +1,12 @@
 package qwicksound;
 
 import java.net.URL;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
 import qwicksound.util.logging.LoggerConfig;
 
 /**
@@ -27,6 +31,10 @@ import qwicksound.util.logging.LoggerConfig;
  * its read buffer to be filled. In practice, any difference in latency is
  * rarely noticeable.</li>
  * </ul>
+ * <p>
+ * A {@code StreamingAudio} keeps the stream of its next
+ * {@code StreamingPlayback} open between plays, so it should be closed (see
+ * {@link Audio#close}) once it is no longer needed.
  * 
  * @author Christian Holton
  * 
@@ -40,10 +48,21 @@ public class StreamingAudio extends Audio {
 	 * amount of latency that occurs before the playback of audio actually
 	 * begins. In an effort to minimize this latency, a
 	 * {@code StreamingPlayback} object is "prepped" by creating it ahead of
-	 * time, before it is needed, and saving it for the next call to a
-	 * {@code play} method.
+	 * time, in the background, and saving it for the next call to a
+	 * {@code play} method. It is {@code null} while it is being prepped.
+	 * Guarded by {@code this}.
 	 */
 	private StreamingPlayback nextPlay;
+	/**
+	 * Whether a {@code StreamingPlayback} is being prepped in the background.
+	 * Guarded by {@code this}.
+	 */
+	private boolean prepping;
+	/**
+	 * The canonical format of the audio data, known once the source has been
+	 * opened, or {@code null}.
+	 */
+	private volatile AudioFormat format;
 	/**
 	 * {@code Logger} for the {@code StreamingAudio} class.
 	 */
@@ -58,9 +77,22 @@ public class StreamingAudio extends Audio {
 	 *            The audio file's {@code URL}.
 	 */
 	protected StreamingAudio(URL fileURL) {
-		this.fileURL = fileURL;
-		nextPlay = new StreamingPlayback(this,
-				QwickSound.acquireAudioInputStream(fileURL), ++numPlaybacks);
+		this(AudioSource.of(fileURL));
+	}
+
+	/**
+	 * Creates a new {@code StreamingAudio} that streams its audio data from
+	 * the specified source.
+	 *
+	 * @param source
+	 *            The source of the audio data.
+	 */
+	StreamingAudio(AudioSource source) {
+		super(source);
+		// The first playback is prepped at once, so that it is ready for the
+		// first play.
+		nextPlay = prep(++numPlaybacks);
+		Normalizer.measure(this);
 	}
 
 	@Override
@@ -90,9 +122,13 @@ public class StreamingAudio extends Audio {
 	}
 
 	/**
-	 * Call the current {@code StreamingPlayback} to begin playback and create a
-	 * {@code StreamingPlayback} for the next playback. This method is called by
-	 * all the {@code play()} methods.
+	 * Call the current {@code StreamingPlayback} to begin playback and have a
+	 * {@code StreamingPlayback} for the next playback prepped in the
+	 * background. This method is called by all the {@code play()} methods.
+	 * Its cost is bounded: the stream is never opened on the calling thread.
+	 * If the prepped {@code StreamingPlayback} is not ready yet, e.g. because
+	 * of rapid repeated plays, a {@code StreamingPlayback} that opens its
+	 * stream on its own decoding thread is started instead.
 	 *
 	 * @param volume
 	 *            The volume that playback will occur at.
@@ -100,17 +136,98 @@ public class StreamingAudio extends Audio {
 	 *            The number of times the audio data will be played in
 	 *            succession.
 	 * 
-	 * @return The {@code StreamingPlayback} which is to be played.
+	 * @return The {@code StreamingPlayback} which is to be played, or
+	 *         {@code null} if the request was suppressed by the instance
+	 *         limits (see {@code checkTrigger}) or this
+	 *         {@code StreamingAudio} has been closed.
 	 */
 	private StreamingPlayback startPlayback(double volume, int numLoops) {
-		StreamingPlayback currentPlayback = nextPlay;
+		if (!checkTrigger(volume)) {
+			return null;
+		}
+		if (isClosed()) {
+			logger.warning("Cannot play \"" + getFileName()
+					+ "\" because it has been closed.");
+			triggerRefused();
+			return null;
+		}
+		StreamingPlayback currentPlayback;
+		long instanceID = 0;
+		synchronized (this) {
+			currentPlayback = nextPlay;
+			nextPlay = null;
+			if (currentPlayback != null) {
+				// The stream now belongs to the playback, which closes it.
+				resources.setPreparedStream(null);
+			} else {
+				instanceID = ++numPlaybacks;
+			}
+		}
+		if (currentPlayback == null) {
+			currentPlayback = new StreamingPlayback(this, format, instanceID);
+		}
 		logger.info("Starting streaming playback of \"" + getFileName()
 				+ "\" instance " + currentPlayback.getInstanceID());
+		volume = playbackStarted(currentPlayback, volume);
 		currentPlayback.start(volume, numLoops, exec);
 
 		// "Prep" for the next call to one of the play methods.
-		nextPlay = new StreamingPlayback(this,
-				QwickSound.acquireAudioInputStream(fileURL), ++numPlaybacks);
+		prepNext();
 		return currentPlayback;
 	}
+
+	/**
+	 * Prep the {@code StreamingPlayback} for the next call to one of the
+	 * {@code play} methods in the background, unless it is ready or already
+	 * being prepped.
+	 */
+	private void prepNext() {
+		final long instanceID;
+		synchronized (this) {
+			if (nextPlay != null || prepping) {
+				return;
+			}
+			prepping = true;
+			instanceID = ++numPlaybacks;
+		}
+		try {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					StreamingPlayback playback = prep(instanceID);
+					synchronized (StreamingAudio.this) {
+						nextPlay = playback;
+						prepping = false;
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// The system is shutting down; there is no next play.
+			synchronized (this) {
+				prepping = false;
+			}
+		}
+	}
+
+	/**
+	 * Create a {@code StreamingPlayback} for a call to one of the
+	 * {@code play} methods, opening its stream ahead of time. The stream is
+	 * handed to the resources of this {@code StreamingAudio}, so that it is
+	 * closed if this {@code StreamingAudio} is closed before it is played.
+	 *
+	 * @param instanceID
+	 *            The {@code instanceID} of the {@code StreamingPlayback}.
+	 *
+	 * @return The {@code StreamingPlayback}.
+	 */
+	private StreamingPlayback prep(long instanceID) {
+		StreamingPlayback playback = new StreamingPlayback(this,
+				source.open(), instanceID);
+		AudioInputStream stream = playback.getStream();
+		if (stream != null) {
+			format = stream.getFormat();
+		}
+		resources.setPreparedStream(stream);
+		return playback;
+	}
 }
@@ -1,51 +1,39 @@
 package qwicksound;
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.FloatControl;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
 
 import qwicksound.util.logging.LoggerConfig;
 
 /**
  * A {@code Playback} that streams its audio data and is created by its
  * associated {@code StreamingAudio}.
- * 
+ * <p>
+ * A {@code StreamingPlayback} decodes its audio data in a thread of its own
+ * into a small ring buffer, from which it is mixed into QwickSound's output
+ * line along with all other playbacks. Slow reads therefore never stall the
+ * output; if the ring buffer runs dry, silence is mixed until more data
+ * arrives.
+ * <p>
+ * A {@code StreamingPlayback} of a {@code HybridAudio} starts with the head
+ * of the audio held in memory, which is mixed at once, while the decoding
+ * thread opens the stream, skips the head and fills the ring buffer with
+ * the rest.
+ *
  * @author Christian Holton
- * 
+ *
  * @see StreamingAudio
- * 
+ *
  */
 public class StreamingPlayback extends Playback implements Runnable {
 
 	/**
-	 * The size of the input buffer that will temporarily hold data read from
-	 * the {@code AudioInStream}.
+	 * Decodes the audio data and mixes it.
 	 */
-	private static final int BUFFER_SIZE = 4096;
-	/**
-	 * An input stream with a specified audio format and length. The length is
-	 * expressed in sample frames, not bytes.
-	 */
-	private AudioInputStream audioInStream;
-	/**
-	 * A {@code DataLine} that receives audio data for playback.
-	 */
-	private SourceDataLine line;
-	/**
-	 * A synchronization lock.
-	 */
-	private final ReentrantLock lock = new ReentrantLock();
+	private final StreamFeed feed;
 	/**
 	 * {@code Logger} for the {@code StreamingPlayback} class.
 	 */
@@ -60,7 +48,8 @@ public class StreamingPlayback extends Playback implements Runnable {
 	 *            The {@code Audio} that created this {@code StreamingPlayback}.
 	 * @param audioInStream
 	 *            The {@code AudioInputStream} used by this
-	 *            {@code StreamingPlayback}.
+	 *            {@code StreamingPlayback}, or {@code null} if it could not be
+	 *            acquired.
 	 * @param instanceID
 	 *            The {@code instanceID} of this {@code StreamingPlayback}.
 	 */
@@ -68,44 +57,59 @@ public class StreamingPlayback extends Playback implements Runnable {
 			long instanceID) {
 
 		super(audio, instanceID);
-		this.audioInStream = audioInStream;
-
-		AudioFormat audioFormat = audioInStream.getFormat();
-		DataLine.Info info = new DataLine.Info(SourceDataLine.class,
-				audioFormat);
-		try {
-			line = (SourceDataLine) AudioSystem.getLine(info);
-			if (line != null) {
-				line.open(audioFormat);
-			}
-			if (line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-				volCtrl = (FloatControl) line
-						.getControl(FloatControl.Type.MASTER_GAIN);
-			} else {
-				logger.warning("Master-Gain control is not supported."
-						+ " Volume will be fixed at the default level.");
-			}
-		} catch (LineUnavailableException ex) {
-			ex.printStackTrace();
-		}
+		feed = new StreamFeed(this, audioInStream);
+	}
+
+	/**
+	 * Creates a new {@code StreamingPlayback} that opens its stream when it
+	 * starts, on its own decoding thread, so that creating and starting it
+	 * costs the caller next to nothing.
+	 *
+	 * @param audio
+	 *            The {@code Audio} that created this {@code StreamingPlayback}.
+	 * @param format
+	 *            The canonical format of the audio data, or {@code null} if
+	 *            it is not known yet. If the stream turns out to have another
+	 *            format, the playback adapts to it when the stream is opened.
+	 * @param instanceID
+	 *            The {@code instanceID} of this {@code StreamingPlayback}.
+	 */
+	StreamingPlayback(Audio audio, AudioFormat format, long instanceID) {
+		super(audio, instanceID);
+		feed = new StreamFeed(this, format);
+	}
+
+	/**
+	 * Creates a new {@code StreamingPlayback} that plays the preloaded head
+	 * of its audio data as soon as it starts, and opens its stream on its
+	 * own decoding thread to continue after the head.
+	 *
+	 * @param audio
+	 *            The {@code Audio} that created this {@code StreamingPlayback}.
+	 * @param head
+	 *            The head of the audio data in the canonical format.
+	 * @param instanceID
+	 *            The {@code instanceID} of this {@code StreamingPlayback}.
+	 */
+	StreamingPlayback(Audio audio, SampleData head, long instanceID) {
+		super(audio, instanceID);
+		feed = new StreamFeed(this, head);
 	}
 
 	@Override
 	public void pause() {
-		if (line.isRunning() && getState() == Playback.State.PLAYING) {
+		if (getState() == Playback.State.PLAYING) {
 			logger.info("Pausing playback of \"" + audio.getFileName()
 					+ "\" instance " + instanceID);
-			lock.lock();
 			state = Playback.State.PAUSED;
 		}
 	}
 
 	@Override
 	public void resume() {
-		if (!line.isRunning() && getState() == Playback.State.PAUSED) {
+		if (getState() == Playback.State.PAUSED) {
 			logger.info("Resuming playback of \"" + audio.getFileName()
 					+ "\" instance " + instanceID);
-			lock.unlock();
 			state = Playback.State.PLAYING;
 		}
 	}
@@ -114,70 +118,23 @@ public class StreamingPlayback extends Playback implements Runnable {
 	public void stop() {
 		logger.info("Stopping playback of \"" + audio.getFileName()
 				+ "\" instance " + instanceID);
-		line.stop();
-		state = Playback.State.STOPPED;
-		// Release system resources.
-		line.close();
+		setStopped();
+		// Wake the decoding thread so that it can exit.
+		feed.end();
 	}
 
 	@Override
 	public double getPosition() {
-		return line.getMicrosecondPosition() / 1000000.0;
+		return feed.getPosition();
 	}
 
 	/**
-	 * Run the thread that will effectively start playback of the audio data.
+	 * Run the thread that decodes the audio data into the ring buffer (see
+	 * {@link StreamFeed#run}).
 	 */
 	@Override
 	public void run() {
-		setVolume(volume);
-		int bytesRead;
-		byte[] audioData = new byte[BUFFER_SIZE];
-		line.start();
-
-		BufferedInputStream bufferedIn = new BufferedInputStream(audioInStream);
-		bufferedIn.mark(Integer.MAX_VALUE);
-
-		try {
-			for (int i = 0; i < numLoops; i++) {
-				if (state == Playback.State.STOPPED) {
-					break;
-				}
-				bytesRead = 0;
-				while ((bytesRead = bufferedIn.read(audioData, 0,
-						audioData.length)) != -1) {
-					if (state == Playback.State.PAUSED) {
-						if (line.isRunning()) {
-							line.stop();
-						}
-						// Block.
-						lock.lock();
-						lock.unlock();
-					}
-					if (!line.isRunning()) {
-						line.start();
-					}
-					// Playback.
-					if (state != Playback.State.STOPPED) {
-						state = Playback.State.PLAYING;
-						line.write(audioData, 0, bytesRead);
-					}
-				}
-				bufferedIn.reset();
-			}
-			// Important: drain() works like a flush on an output stream.
-			line.drain();
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		} finally {
-			stop();
-			try {
-				bufferedIn.close();
-				audioInStream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		feed.run();
 	}
 
 	@Override
@@ -187,7 +144,7 @@ public class StreamingPlayback extends Playback implements Runnable {
 
 	/**
 	 * Start playback of this {@code StreamingPlayback}.
-	 * 
+	 *
 	 * @param volume
 	 *            The desired volume.
 	 * @param numLoops
@@ -200,12 +157,17 @@ public class StreamingPlayback extends Playback implements Runnable {
 	protected void start(double volume, int numLoops, final ExecutorService exec) {
 		this.numLoops = (numLoops <= 0) ? Integer.MAX_VALUE : numLoops;
 		setVolume(volume);
-		try {
-			exec.execute(this);
-		} catch (RejectedExecutionException e) {
-			logger.warning("A play request was received "
-					+ "but the system is shutting down."
-					+ " Cannot perform the play request.");
-		}
+		normalizationGain = audio.getNormalizationGain();
+		state = Playback.State.PLAYING;
+		feed.start(numLoops, exec);
+	}
+
+	/**
+	 * Get the stream this {@code StreamingPlayback} will decode.
+	 *
+	 * @return The stream, or {@code null} if it could not be acquired.
+	 */
+	AudioInputStream getStream() {
+		return feed.getStream();
 	}
 }
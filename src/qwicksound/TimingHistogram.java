@@ -0,0 +1,234 @@
+package qwicksound;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with a bounded relative error, laid out like an
+ * HdrHistogram: durations below 64 ns each have their own bucket, and every
+ * power of two above that is split into 32 linear sub-buckets, so a recorded
+ * value is off by at most about 3%. Durations up to about 18 minutes are
+ * told apart; longer ones are counted in the last bucket.
+ * <p>
+ * Recording is allocation-free and meant for a single writer, the render
+ * thread; any thread may read. The histograms handed out by
+ * {@link QwickSound#getRenderStats()} are copies that no longer change.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class TimingHistogram {
+
+	/**
+	 * The number of bits of a value that select its sub-bucket.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	/**
+	 * The number of sub-buckets per power of two.
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	/**
+	 * The largest power of two, in nanoseconds, that is told apart.
+	 */
+	private static final int MAX_EXPONENT = 40;
+	/**
+	 * The number of buckets.
+	 */
+	private static final int BUCKET_COUNT = 2 * SUB_BUCKET_COUNT
+			+ (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+	/**
+	 * The number of values in each bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	/**
+	 * The number of values recorded.
+	 */
+	private volatile long count;
+	/**
+	 * The sum of the values recorded, in nanoseconds.
+	 */
+	private volatile long total;
+	/**
+	 * The largest value recorded, in nanoseconds.
+	 */
+	private volatile long max;
+
+	/**
+	 * Creates a new, empty {@code TimingHistogram}.
+	 */
+	TimingHistogram() {
+	}
+
+	/**
+	 * Record a duration. Only one thread may record at a time.
+	 *
+	 * @param nanos
+	 *            The duration in nanoseconds. Negative values are recorded
+	 *            as 0.
+	 */
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(indexOf(nanos));
+		total += nanos;
+		if (nanos > max) {
+			max = nanos;
+		}
+		count++;
+	}
+
+	/**
+	 * Discard all recorded values. Values recorded while the histogram is
+	 * being reset may be lost.
+	 */
+	void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	/**
+	 * Get a copy of this histogram.
+	 *
+	 * @return A new histogram holding the values recorded so far.
+	 */
+	TimingHistogram copy() {
+		TimingHistogram copy = new TimingHistogram();
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long n = counts.get(i);
+			copy.counts.set(i, n);
+			count += n;
+		}
+		// Keep the copy consistent even if values were recorded meanwhile.
+		copy.count = count;
+		copy.total = total;
+		copy.max = max;
+		return copy;
+	}
+
+	/**
+	 * Get the number of values recorded.
+	 *
+	 * @return The number of values.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the mean of the values recorded.
+	 *
+	 * @return The mean in seconds, or 0 if no values were recorded.
+	 */
+	public double getMean() {
+		long count = this.count;
+		return (count == 0) ? 0.0 : total / 1.0e9 / count;
+	}
+
+	/**
+	 * Get the largest value recorded.
+	 *
+	 * @return The largest value in seconds, or 0 if no values were recorded.
+	 */
+	public double getMax() {
+		return max / 1.0e9;
+	}
+
+	/**
+	 * Get the value below or at which the specified percentage of the
+	 * recorded values lie, e.g. 99 for the 99th percentile.
+	 *
+	 * @param percentile
+	 *            The percentage, from 0 to 100.
+	 *
+	 * @return The value in seconds, or 0 if no values were recorded.
+	 */
+	public double getValueAtPercentile(double percentile) {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += counts.get(i);
+		}
+		if (count == 0) {
+			return 0.0;
+		}
+		double fraction = Math.min(100.0, Math.max(0.0, percentile)) / 100.0;
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max) / 1.0e9;
+			}
+		}
+		return max / 1.0e9;
+	}
+
+	/**
+	 * Get the number of recorded values above a limit, e.g. the blocks that
+	 * missed their deadline.
+	 *
+	 * @param seconds
+	 *            The limit.
+	 *
+	 * @return The number of values that were certainly above the limit. Values
+	 *         in the bucket holding the limit are not counted.
+	 */
+	public long getCountAbove(double seconds) {
+		int first = indexOf((long) (seconds * 1.0e9)) + 1;
+		long above = 0;
+		for (int i = first; i < BUCKET_COUNT; i++) {
+			above += counts.get(i);
+		}
+		return above;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.3f ms p50=%.3f ms p99=%.3f ms "
+				+ "p99.9=%.3f ms max=%.3f ms", count, getMean() * 1000.0,
+				getValueAtPercentile(50.0) * 1000.0,
+				getValueAtPercentile(99.0) * 1000.0,
+				getValueAtPercentile(99.9) * 1000.0, getMax() * 1000.0);
+	}
+
+	/**
+	 * Get the bucket that holds a value.
+	 *
+	 * @param nanos
+	 *            The value, not negative.
+	 *
+	 * @return The index of the bucket.
+	 */
+	private static int indexOf(long nanos) {
+		if (nanos < 2 * SUB_BUCKET_COUNT) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+		if (exponent > MAX_EXPONENT - SUB_BUCKET_BITS) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (nanos >>> exponent) - SUB_BUCKET_COUNT;
+		return SUB_BUCKET_COUNT * (exponent + 1) + subBucket;
+	}
+
+	/**
+	 * Get the largest value a bucket holds.
+	 *
+	 * @param index
+	 *            The index of the bucket.
+	 *
+	 * @return The value in nanoseconds.
+	 */
+	private static long highestValueOf(int index) {
+		if (index < 2 * SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKET_COUNT - 1;
+		long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << exponent) - 1;
+	}
+}
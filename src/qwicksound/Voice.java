@@ -0,0 +1,388 @@
+package qwicksound;
+
+/**
+ * The mixing side of a {@code Playback}. A {@code Voice} pulls frames from its
+ * source at the source's sample rate, converts them to the stereo output rate
+ * of the {@code MixEngine}, sped up or slowed down by the rate of its
+ * {@code Playback}, and adds them, scaled by the volume of its
+ * {@code Playback}, into the engine's mix buffer.
+ * <p>
+ * The conversion interpolates between source frames, linearly or with a
+ * four-point cubic Hermite curve depending on the {@code Playback}'s
+ * {@code Interpolation}. Either way a window of four source frames is kept:
+ * the frame before the current one, the current one, and the two after it.
+ * <p>
+ * All methods other than the constructor are called only from the thread
+ * running the {@code MixEngine}.
+ *
+ * @author Christian Holton
+ *
+ */
+abstract class Voice {
+
+	/**
+	 * The number of source frames fetched at a time.
+	 */
+	private static final int SCRATCH_FRAMES = 64;
+	/**
+	 * The {@code Playback} this {@code Voice} renders.
+	 */
+	final Playback playback;
+	/**
+	 * The number of channels per source frame.
+	 */
+	final int channels;
+	/**
+	 * The number of source frames that pass per output frame at a rate of 1.
+	 */
+	private final double step;
+	/**
+	 * Holds fetched source frames that have not yet been rendered.
+	 */
+	private final float[] scratch;
+	/**
+	 * The index of the next unread frame in {@code scratch}.
+	 */
+	private int scratchPos;
+	/**
+	 * The number of valid frames in {@code scratch}.
+	 */
+	private int scratchLen;
+	/**
+	 * The source frame before the current one (left and right).
+	 */
+	private float prevL, prevR;
+	/**
+	 * The current source frame (left and right).
+	 */
+	private float curL, curR;
+	/**
+	 * The source frame following the current one (left and right).
+	 */
+	private float nextL, nextR;
+	/**
+	 * The source frame following the next one (left and right).
+	 */
+	private float lastL, lastR;
+	/**
+	 * The number of frames at the end of the window, 0 to 2, that lie past
+	 * the end of the source and are silent.
+	 */
+	private int padding;
+	/**
+	 * The fractional position between the current and next source frames.
+	 */
+	private double frac;
+	/**
+	 * Whether the window of source frames has been loaded.
+	 */
+	private boolean primed;
+	/**
+	 * Whether the source has run out of frames.
+	 */
+	private boolean sourceEnded;
+	/**
+	 * Whether the {@code MixEngine} is currently tracking this {@code Voice}
+	 * by clock arithmetic instead of rendering it. Owned by the engine.
+	 */
+	boolean virtual;
+	/**
+	 * The volume of the {@code Playback} scaled by its normalization gain and
+	 * the effective volume of its bus, used to rank voices. Owned by the
+	 * engine.
+	 */
+	double loudness;
+
+	/**
+	 * Creates a new {@code Voice}.
+	 *
+	 * @param playback
+	 *            The {@code Playback} to render.
+	 * @param channels
+	 *            The number of channels per source frame.
+	 * @param sampleRate
+	 *            The sample rate of the source.
+	 */
+	Voice(Playback playback, int channels, float sampleRate) {
+		this.playback = playback;
+		this.channels = channels;
+		this.step = sampleRate / MixEngine.FORMAT.getSampleRate();
+		this.scratch = new float[SCRATCH_FRAMES * channels];
+	}
+
+	/**
+	 * Read the next frames of the source, interleaved, {@code channels}
+	 * samples per frame.
+	 *
+	 * @param dest
+	 *            The array that receives the samples.
+	 * @param frames
+	 *            The maximum number of frames to read.
+	 *
+	 * @return The number of frames read, or 0 if the source has ended.
+	 */
+	abstract int fetch(float[] dest, int frames);
+
+	/**
+	 * Move the source's read position by the specified number of frames
+	 * without reading them. Only sources that can be virtualized support
+	 * this.
+	 *
+	 * @param frames
+	 *            The number of frames to move, which is not negative.
+	 *
+	 * @return {@code false} if the source has ended as a result.
+	 */
+	boolean skip(long frames) {
+		return false;
+	}
+
+	/**
+	 * Whether this {@code Voice} may be virtualized, i.e. tracked by clock
+	 * arithmetic via {@code advance} while inaudible or over the polyphony
+	 * budget.
+	 *
+	 * @return {@code true} if the source supports {@code skip}.
+	 */
+	boolean isVirtualizable() {
+		return false;
+	}
+
+	/**
+	 * Called by the {@code MixEngine} before each block is rendered, giving
+	 * the {@code Voice} a chance to apply changes requested from other
+	 * threads.
+	 */
+	void prepare() {
+	}
+
+	/**
+	 * Render frames of this {@code Voice}, adding them into the mix buffer.
+	 *
+	 * @param mix
+	 *            The interleaved stereo mix buffer.
+	 * @param frames
+	 *            The number of output frames to render.
+	 *
+	 * @return The number of frames rendered. A value less than
+	 *         {@code frames} means the source has ended.
+	 */
+	final int render(float[] mix, int frames) {
+		return render(mix, frames,
+				(float) (playback.volume * playback.normalizationGain));
+	}
+
+	/**
+	 * Render frames of this {@code Voice} at the specified gain, adding them
+	 * into the mix buffer.
+	 *
+	 * @param mix
+	 *            The interleaved stereo mix buffer.
+	 * @param frames
+	 *            The number of output frames to render.
+	 * @param gain
+	 *            The factor the frames are scaled by.
+	 *
+	 * @return The number of frames rendered. A value less than
+	 *         {@code frames} means the source has ended.
+	 */
+	final int render(float[] mix, int frames, float gain) {
+		if (!primed && !prime()) {
+			return 0;
+		}
+		double step = this.step * playback.rate;
+		if (playback.interpolation == Playback.Interpolation.CUBIC) {
+			return renderCubic(mix, frames, gain, step);
+		}
+		for (int i = 0, j = 0; i < frames; i++, j += 2) {
+			while (frac >= 1.0) {
+				if (!shift()) {
+					return i;
+				}
+				frac -= 1.0;
+			}
+			float f = (float) frac;
+			mix[j] += (curL + (nextL - curL) * f) * gain;
+			mix[j + 1] += (curR + (nextR - curR) * f) * gain;
+			frac += step;
+		}
+		return frames;
+	}
+
+	/**
+	 * Render frames with cubic Hermite (Catmull-Rom) interpolation, which
+	 * suppresses the aliasing and high-frequency loss of linear interpolation
+	 * at a small extra cost.
+	 *
+	 * @param mix
+	 *            The interleaved stereo mix buffer.
+	 * @param frames
+	 *            The number of output frames to render.
+	 * @param gain
+	 *            The factor the frames are scaled by.
+	 * @param step
+	 *            The number of source frames that pass per output frame.
+	 *
+	 * @return The number of frames rendered.
+	 */
+	private int renderCubic(float[] mix, int frames, float gain, double step) {
+		for (int i = 0, j = 0; i < frames; i++, j += 2) {
+			while (frac >= 1.0) {
+				if (!shift()) {
+					return i;
+				}
+				frac -= 1.0;
+			}
+			float f = (float) frac;
+			mix[j] += hermite(prevL, curL, nextL, lastL, f) * gain;
+			mix[j + 1] += hermite(prevR, curR, nextR, lastR, f) * gain;
+			frac += step;
+		}
+		return frames;
+	}
+
+	/**
+	 * Interpolate between two samples with a Catmull-Rom spline.
+	 *
+	 * @param y0
+	 *            The sample before the first one.
+	 * @param y1
+	 *            The first sample.
+	 * @param y2
+	 *            The second sample.
+	 * @param y3
+	 *            The sample after the second one.
+	 * @param f
+	 *            The position between the first and second samples, from 0
+	 *            to 1.
+	 *
+	 * @return The interpolated sample.
+	 */
+	private static float hermite(float y0, float y1, float y2, float y3,
+			float f) {
+		float c1 = 0.5f * (y2 - y0);
+		float c2 = y0 - 2.5f * y1 + 2.0f * y2 - 0.5f * y3;
+		float c3 = 0.5f * (y3 - y0) + 1.5f * (y1 - y2);
+		return ((c3 * f + c2) * f + c1) * f + y1;
+	}
+
+	/**
+	 * Advance this {@code Voice} by the specified number of output frames
+	 * without rendering them.
+	 *
+	 * @param frames
+	 *            The number of output frames that have elapsed.
+	 *
+	 * @return {@code false} if the source has ended.
+	 */
+	final boolean advance(int frames) {
+		double total = frac + frames * step * playback.rate;
+		long whole = (long) total;
+		// The frames fetched ahead may have wrapped a loop and reported it
+		// already. Moving back across the wrap would report it twice, so the
+		// position only ever moves forward.
+		long delta = Math.max(0, whole - pendingFrames());
+		frac = total - whole;
+		reset();
+		return skip(delta);
+	}
+
+	/**
+	 * Discard any fetched frames so that rendering resumes from the source's
+	 * current read position.
+	 */
+	void reset() {
+		scratchPos = 0;
+		scratchLen = 0;
+		primed = false;
+		sourceEnded = false;
+	}
+
+	/**
+	 * Discard any fetched frames and the fractional position.
+	 */
+	void seekReset() {
+		reset();
+		frac = 0.0;
+	}
+
+	/**
+	 * Get the number of frames that have been fetched from the source but
+	 * whose playback position has not yet been passed.
+	 *
+	 * @return The number of pending frames.
+	 */
+	int pendingFrames() {
+		if (!primed) {
+			return 0;
+		}
+		return scratchLen - scratchPos + 3 - padding;
+	}
+
+	/**
+	 * Fill the window, starting at the current frame. The frame before it is
+	 * not known and taken to be the current one.
+	 *
+	 * @return {@code false} if the source has no frames.
+	 */
+	private boolean prime() {
+		padding = 0;
+		if (!nextFrame()) {
+			return false;
+		}
+		primed = true;
+		prevL = curL = lastL;
+		prevR = curR = lastR;
+		nextFrame();
+		nextL = lastL;
+		nextR = lastR;
+		nextFrame();
+		return true;
+	}
+
+	/**
+	 * Move the window on by one frame.
+	 *
+	 * @return {@code false} if the next frame lies past the end of the
+	 *         source.
+	 */
+	private boolean shift() {
+		if (padding == 2) {
+			return false;
+		}
+		prevL = curL;
+		prevR = curR;
+		curL = nextL;
+		curR = nextR;
+		nextL = lastL;
+		nextR = lastR;
+		nextFrame();
+		return true;
+	}
+
+	/**
+	 * Load the next source frame into the end of the window, mapping it to
+	 * stereo, or silence once the source has ended.
+	 *
+	 * @return {@code false} if the source has ended.
+	 */
+	private boolean nextFrame() {
+		if (scratchPos == scratchLen) {
+			scratchPos = 0;
+			scratchLen = sourceEnded ? 0 : fetch(scratch, SCRATCH_FRAMES);
+			if (scratchLen <= 0) {
+				scratchLen = 0;
+				lastL = 0.0f;
+				lastR = 0.0f;
+				sourceEnded = true;
+				padding++;
+				return false;
+			}
+		}
+		int k = scratchPos * channels;
+		lastL = scratch[k];
+		lastR = (channels == 1) ? lastL : scratch[k + 1];
+		scratchPos++;
+		return true;
+	}
+}
@@ -0,0 +1,303 @@
+package qwicksound;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import qwicksound.util.logging.LoggerConfig;
+
+/**
+ * Runs the stages of {@link QwickSound#init(WarmupConfig)}. All of the work is
+ * done on the calling thread, except for opening the output line, which the
+ * {@code MixEngine} does on its own thread while the caller waits.
+ *
+ * @author Christian Holton
+ *
+ */
+final class Warmup {
+
+	/**
+	 * The number of blocks mixed per synthetic voice, enough for the JIT to
+	 * compile the mixing code.
+	 */
+	private static final int MIX_BLOCKS = 4000;
+	/**
+	 * The longest time to wait for the output line to open, in milliseconds.
+	 */
+	private static final long LINE_TIMEOUT = 2000;
+	/**
+	 * {@code Logger} for the {@code Warmup} class.
+	 */
+	private static Logger logger = LoggerConfig.getLogger(Warmup.class
+			.getName());
+
+	/**
+	 * A voice that loops audio data forever, for running the mixing code
+	 * without the {@code MixEngine}.
+	 */
+	private static final class LoopVoice extends Voice {
+
+		/**
+		 * The audio data.
+		 */
+		private final SampleData pcm;
+		/**
+		 * Reads the audio data.
+		 */
+		private final SampleData.Reader reader;
+		/**
+		 * The next frame to read.
+		 */
+		private int cursor;
+
+		/**
+		 * Creates a new {@code LoopVoice}.
+		 *
+		 * @param playback
+		 *            A {@code Playback} of the audio that is never started.
+		 * @param pcm
+		 *            The audio data.
+		 */
+		LoopVoice(Playback playback, SampleData pcm) {
+			super(playback, pcm.getChannels(), pcm.getSampleRate());
+			this.pcm = pcm;
+			this.reader = pcm.newReader();
+		}
+
+		@Override
+		int fetch(float[] dest, int frames) {
+			int read = 0;
+			while (read < frames) {
+				if (cursor >= pcm.getFrameCount()) {
+					cursor = 0;
+				}
+				int count = Math.min(frames - read, pcm.getFrameCount()
+						- cursor);
+				reader.read(cursor, count, dest, read * channels);
+				cursor += count;
+				read += count;
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * This class is not meant to be instantiated.
+	 */
+	private Warmup() {
+	}
+
+	/**
+	 * Run the enabled stages of a warm-up.
+	 *
+	 * @param config
+	 *            The stages to run.
+	 *
+	 * @return How long each stage took.
+	 */
+	static WarmupReport run(WarmupConfig config) {
+		long start = System.nanoTime();
+		if (config.isProviders()) {
+			loadProviders();
+		}
+		long providersDone = System.nanoTime();
+		PcmData tone = null;
+		if (config.isDecoders() || config.isMix()) {
+			tone = decode(config);
+		}
+		long decodeDone = System.nanoTime();
+		if (config.isMix() && tone != null) {
+			mix(tone);
+		}
+		long mixDone = System.nanoTime();
+		boolean lineOpened = false;
+		if (config.isOutputLine()) {
+			lineOpened = openLine();
+		}
+		long lineDone = System.nanoTime();
+		WarmupReport report = new WarmupReport(
+				(providersDone - start) / 1.0e9,
+				(decodeDone - providersDone) / 1.0e9,
+				(mixDone - decodeDone) / 1.0e9, (lineDone - mixDone) / 1.0e9,
+				lineOpened);
+		logger.info(report.toString());
+		return report;
+	}
+
+	/**
+	 * Discover and load the Java Sound mixers, file readers and format
+	 * converters.
+	 */
+	private static void loadProviders() {
+		AudioSystem.getMixerInfo();
+		AudioSystem.isLineSupported(new Line.Info(SourceDataLine.class));
+		AudioSystem.getAudioFileTypes();
+		AudioSystem.getTargetEncodings(AudioFormat.Encoding.PCM_SIGNED);
+		// Every file reader probes data that none of them recognizes.
+		try {
+			AudioSystem.getAudioFileFormat(new ByteArrayInputStream(
+					new byte[4096]));
+		} catch (UnsupportedAudioFileException ex) {
+			// Expected.
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Decode synthetic WAV and AIFF data, through both the direct PCM reader
+	 * and Java Sound, and the configured sample files.
+	 *
+	 * @param config
+	 *            The warm-up configuration.
+	 *
+	 * @return The decoded synthetic data, a mono tone at a sample rate that
+	 *         the mixer must convert, or {@code null} if it could not be
+	 *         decoded.
+	 */
+	private static PcmData decode(WarmupConfig config) {
+		AudioFormat format = new AudioFormat(22050.0f, 16, 1, true, false);
+		byte[] samples = new byte[22050 / 4 * 2];
+		ByteBuffer buffer = ByteBuffer.wrap(samples).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < samples.length / 2; i++) {
+			buffer.putShort((short) (8000 * Math.sin(i * 0.1)));
+		}
+		byte[] wav = encode(samples, format, AudioFileFormat.Type.WAVE);
+		byte[] aiff = encode(samples, format, AudioFileFormat.Type.AIFF);
+		PcmData tone = null;
+		if (wav != null) {
+			tone = AudioSource.of(ByteBuffer.wrap(wav), "warmup.wav").loadPcm(
+					Long.MAX_VALUE);
+		}
+		if (aiff != null && config.isDecoders()) {
+			// Big-endian data converted by Java Sound.
+			AudioInputStream audioInStream = QwickSound
+					.acquireAudioInputStream(new ByteArrayInputStream(aiff),
+							"warmup.aiff");
+			if (audioInStream != null) {
+				audioInStream = QwickSound.toCanonicalPCM(audioInStream);
+				PreloadedAudio.readData(audioInStream, aiff.length * 2L,
+						Long.MAX_VALUE);
+			}
+		}
+		if (config.isDecoders()) {
+			for (String fileName : config.getSamples()) {
+				URL fileURL = QwickSound.loadFile(fileName);
+				if (fileURL != null) {
+					AudioSource.of(fileURL).loadPcm(Long.MAX_VALUE);
+				}
+			}
+		}
+		return tone;
+	}
+
+	/**
+	 * Write PCM samples as an audio file.
+	 *
+	 * @param samples
+	 *            The samples.
+	 * @param format
+	 *            The format of the samples.
+	 * @param type
+	 *            The type of file.
+	 *
+	 * @return The file, or {@code null} if it could not be written.
+	 */
+	private static byte[] encode(byte[] samples, AudioFormat format,
+			AudioFileFormat.Type type) {
+		AudioInputStream audioInStream = new AudioInputStream(
+				new ByteArrayInputStream(samples), format, samples.length
+						/ format.getFrameSize());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			AudioSystem.write(audioInStream, type, out);
+		} catch (IOException ex) {
+			logger.warning("Could not write synthetic " + type + " data.");
+			ex.printStackTrace();
+			return null;
+		} catch (IllegalArgumentException ex) {
+			logger.warning("Could not write synthetic " + type + " data.");
+			ex.printStackTrace();
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Run the mixing code on synthetic voices, one that must be converted to
+	 * the mixer's format and one that need not be, plus one stored in the
+	 * selected compact encoding, if any, to warm up its decoder.
+	 *
+	 * @param tone
+	 *            The synthetic data to mix.
+	 */
+	private static void mix(PcmData tone) {
+		int frames = (int) MixEngine.FORMAT.getSampleRate() / 4;
+		PcmData stereo = new PcmData(new byte[frames
+				* MixEngine.FORMAT.getFrameSize()], MixEngine.FORMAT);
+		SampleData encoded = SampleData.encode(tone);
+		SampleData[] voices = (encoded == tone) ? new SampleData[] { tone,
+				stereo } : new SampleData[] { tone, stereo, encoded };
+		PreloadedAudio audio = new PreloadedAudio(AudioSource.of(
+				ByteBuffer.allocate(0), "warmup"), tone);
+		for (SampleData pcm : voices) {
+			Playback playback = new PreloadedPlayback(audio, pcm, 0);
+			MixEngine.warmUp(new LoopVoice(playback, pcm), MIX_BLOCKS);
+		}
+		audio.close();
+	}
+
+	/**
+	 * Open and prime the mixer's output line by playing a short silence.
+	 *
+	 * @return {@code true} if the line was opened.
+	 */
+	private static boolean openLine() {
+		MixEngine engine = MixEngine.getInstance();
+		if (engine.getLatency() > 0.0) {
+			return true;
+		}
+		int frames = (int) MixEngine.FORMAT.getSampleRate() / 4;
+		byte[] silence = encode(new byte[frames
+				* MixEngine.FORMAT.getFrameSize()], MixEngine.FORMAT,
+				AudioFileFormat.Type.WAVE);
+		if (silence == null) {
+			return false;
+		}
+		AudioSource source = AudioSource.of(ByteBuffer.wrap(silence),
+				"warmup.wav");
+		PreloadedAudio audio = new PreloadedAudio(source,
+				source.loadPcm(Long.MAX_VALUE));
+		Playback playback = audio.play();
+		long deadline = System.currentTimeMillis() + LINE_TIMEOUT;
+		while (playback != null && engine.getLatency() == 0.0
+				&& playback.getState() != Playback.State.STOPPED
+				&& System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		audio.close();
+		if (engine.getLatency() == 0.0) {
+			logger.warning("The output line could not be opened.");
+			return false;
+		}
+		return true;
+	}
+}
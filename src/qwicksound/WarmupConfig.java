@@ -0,0 +1,157 @@
+package qwicksound;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selects the work {@link QwickSound#init(WarmupConfig)} does up front so
+ * that the first sound plays without delay. By default every stage is
+ * enabled:
+ * <ul>
+ * <li><b>Providers:</b> the Java Sound mixers, file readers and format
+ * converters, including the MP3, Ogg and AAC plugins, are discovered and
+ * loaded.</li>
+ * <li><b>Decoders:</b> synthetic WAV and AIFF data, and any sample files
+ * added with {@link #addSample}, are decoded.</li>
+ * <li><b>Mix:</b> the mixing code runs on synthetic voices until it has been
+ * compiled.</li>
+ * <li><b>Output line:</b> the mixer's output line is opened and primed with
+ * silence.</li>
+ * </ul>
+ * Since the codecs only compile their decoding code once they have decoded
+ * real data, adding a short file of each compressed format the application
+ * uses is recommended.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class WarmupConfig {
+
+	/**
+	 * Whether to load the Java Sound providers.
+	 */
+	private boolean providers = true;
+	/**
+	 * Whether to run the decoders.
+	 */
+	private boolean decoders = true;
+	/**
+	 * Whether to run the mixing code.
+	 */
+	private boolean mix = true;
+	/**
+	 * Whether to open the output line.
+	 */
+	private boolean outputLine = true;
+	/**
+	 * The names of the sample files to decode.
+	 */
+	private final List<String> samples = new ArrayList<String>();
+
+	/**
+	 * Creates a new {@code WarmupConfig} with every stage enabled and no
+	 * sample files.
+	 */
+	public WarmupConfig() {
+	}
+
+	/**
+	 * Set whether the Java Sound providers are loaded.
+	 *
+	 * @param providers
+	 *            {@code true} to load them.
+	 */
+	public void setProviders(boolean providers) {
+		this.providers = providers;
+	}
+
+	/**
+	 * Whether the Java Sound providers are loaded.
+	 *
+	 * @return {@code true} if they are loaded.
+	 */
+	public boolean isProviders() {
+		return providers;
+	}
+
+	/**
+	 * Set whether synthetic data and the sample files are decoded.
+	 *
+	 * @param decoders
+	 *            {@code true} to run the decoders.
+	 */
+	public void setDecoders(boolean decoders) {
+		this.decoders = decoders;
+	}
+
+	/**
+	 * Whether synthetic data and the sample files are decoded.
+	 *
+	 * @return {@code true} if the decoders are run.
+	 */
+	public boolean isDecoders() {
+		return decoders;
+	}
+
+	/**
+	 * Set whether the mixing code is run on synthetic voices.
+	 *
+	 * @param mix
+	 *            {@code true} to run the mixing code.
+	 */
+	public void setMix(boolean mix) {
+		this.mix = mix;
+	}
+
+	/**
+	 * Whether the mixing code is run on synthetic voices.
+	 *
+	 * @return {@code true} if the mixing code is run.
+	 */
+	public boolean isMix() {
+		return mix;
+	}
+
+	/**
+	 * Set whether the output line is opened and primed.
+	 *
+	 * @param outputLine
+	 *            {@code true} to open the line.
+	 */
+	public void setOutputLine(boolean outputLine) {
+		this.outputLine = outputLine;
+	}
+
+	/**
+	 * Whether the output line is opened and primed.
+	 *
+	 * @return {@code true} if the line is opened.
+	 */
+	public boolean isOutputLine() {
+		return outputLine;
+	}
+
+	/**
+	 * Add an audio file to decode while warming up, e.g. a short file in
+	 * each compressed format the application uses. The decoded data is
+	 * discarded.
+	 * <p>
+	 * Note that the file's containing directory must be on the classpath.
+	 *
+	 * @param fileName
+	 *            The name of the audio file.
+	 */
+	public void addSample(String fileName) {
+		samples.add(fileName);
+	}
+
+	/**
+	 * Get the names of the audio files to decode while warming up.
+	 *
+	 * @return An unmodifiable list of the file names.
+	 */
+	public List<String> getSamples() {
+		return Collections.unmodifiableList(samples);
+	}
+}
@@ -0,0 +1,120 @@
+package qwicksound;
+
+/**
+ * How long each stage of {@link QwickSound#init(WarmupConfig)} took. Stages
+ * that were not enabled took 0 seconds.
+ *
+ * @author Christian Holton
+ *
+ */
+public final class WarmupReport {
+
+	/**
+	 * The time spent loading the Java Sound providers, in seconds.
+	 */
+	private final double providerTime;
+	/**
+	 * The time spent decoding, in seconds.
+	 */
+	private final double decodeTime;
+	/**
+	 * The time spent running the mixing code, in seconds.
+	 */
+	private final double mixTime;
+	/**
+	 * The time spent opening the output line, in seconds.
+	 */
+	private final double lineTime;
+	/**
+	 * Whether the output line was opened.
+	 */
+	private final boolean lineOpened;
+
+	/**
+	 * Creates a new {@code WarmupReport}.
+	 *
+	 * @param providerTime
+	 *            The time spent loading the providers.
+	 * @param decodeTime
+	 *            The time spent decoding.
+	 * @param mixTime
+	 *            The time spent running the mixing code.
+	 * @param lineTime
+	 *            The time spent opening the output line.
+	 * @param lineOpened
+	 *            Whether the output line was opened.
+	 */
+	WarmupReport(double providerTime, double decodeTime, double mixTime,
+			double lineTime, boolean lineOpened) {
+		this.providerTime = providerTime;
+		this.decodeTime = decodeTime;
+		this.mixTime = mixTime;
+		this.lineTime = lineTime;
+		this.lineOpened = lineOpened;
+	}
+
+	/**
+	 * Get the time spent loading the Java Sound providers.
+	 *
+	 * @return The time in seconds.
+	 */
+	public double getProviderTime() {
+		return providerTime;
+	}
+
+	/**
+	 * Get the time spent decoding synthetic data and the sample files.
+	 *
+	 * @return The time in seconds.
+	 */
+	public double getDecodeTime() {
+		return decodeTime;
+	}
+
+	/**
+	 * Get the time spent running the mixing code.
+	 *
+	 * @return The time in seconds.
+	 */
+	public double getMixTime() {
+		return mixTime;
+	}
+
+	/**
+	 * Get the time spent opening and priming the output line.
+	 *
+	 * @return The time in seconds.
+	 */
+	public double getLineTime() {
+		return lineTime;
+	}
+
+	/**
+	 * Whether the output line was opened. If it was not, e.g. because there
+	 * is no audio device, the first sound will fail to play as well.
+	 *
+	 * @return {@code true} if the line was opened, or {@code false} if it
+	 *         could not be or was not meant to be opened.
+	 */
+	public boolean isLineOpened() {
+		return lineOpened;
+	}
+
+	/**
+	 * Get the total time the warm-up took.
+	 *
+	 * @return The time in seconds.
+	 */
+	public double getTotalTime() {
+		return providerTime + decodeTime + mixTime + lineTime;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Warm-up took %.1f ms (providers %.1f ms, "
+				+ "decoders %.1f ms, mix %.1f ms, output line %.1f ms%s)",
+				getTotalTime() * 1000.0, providerTime * 1000.0,
+				decodeTime * 1000.0, mixTime * 1000.0, lineTime * 1000.0,
+				lineOpened ? "" : ", not opened");
+	}
+}